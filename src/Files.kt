@@ -4,4 +4,9 @@ private val jvm2wasmFile = java.io.File(".").absolutePath
 val jvm2wasmFolder = getReference(jvm2wasmFile)
     .apply { check(exists) { "Missing $jvm2wasmFile..." } }
 
-val targetsFolder = jvm2wasmFolder.getChild("targets")
\ No newline at end of file
+val targetsFolder = jvm2wasmFolder.getChild("targets")
+
+/**
+ * build artifacts, which can be reused by later builds, e.g., translated classes
+ * */
+val cacheFolder = java.io.File(jvm2wasmFile, "cache")
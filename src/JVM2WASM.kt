@@ -4,14 +4,23 @@ import dependency.DependencyIndex
 import dependency.DependencyIndex.constructableClasses
 import dependency.StaticDependencies
 import hierarchy.HierarchyIndex
+import hierarchy.PrimitiveLambdaSpecializer
+import jvm.JVMFlags
 import jvm.JVMFlags.is32Bits
+import jvm.JVMFlags.useBulkMemory
+import jvm.JVMFlags.useGenerationalGC
+import jvm.JVMFlags.useNativeThreads
+import jvm.JVMFlags.useSharedMemory
 import jvm.JVMShared
 import me.anno.io.Streams.readText
 import me.anno.maths.Maths.ceilDiv
 import me.anno.utils.Clock
 import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertFalse
 import me.anno.utils.assertions.assertTrue
 import me.anno.utils.files.Files.formatFileSize
+import optimizer.BoundsCheckOptimizer
+import optimizer.EagerStaticInit
 import org.apache.logging.log4j.LogManager
 import translator.GeneratorIndex
 import translator.GeneratorIndex.alignPointer
@@ -26,12 +35,16 @@ import utils.Descriptor.Companion.voidDescriptor
 import utils.DynIndex.appendDynamicFunctionTable
 import utils.DynIndex.appendInheritanceTable
 import utils.DynIndex.appendInvokeDynamicTable
+import utils.DynIndex.appendTypeDisplayTable
+import utils.DynIndex.typeDisplayStride
+import utils.DynIndex.typeDisplayTablePtr
 import utils.DynIndex.calculateDynamicFunctionTable
 import utils.DynIndex.resolveIndirectTablePtr
 import utils.MissingFunctions.checkUsedButNotImplemented
 import utils.MissingFunctions.findUsedButNotImplemented
 import utils.NativeHelperFunctions.appendNativeHelperFunctions
 import wasm.instr.Instructions.F64_SQRT
+import wasm.parser.FunctionImpl
 import wasm.parser.GlobalVariable
 import wasm2cpp.FunctionOrder
 import java.io.FileNotFoundException
@@ -95,6 +108,78 @@ var useDefaultKotlinReflection = false
 var alignFieldsProperly = true
 var useHighLevelInstructions = true
 
+/**
+ * translates classes on all cores instead of a single one;
+ * the result is identical to the serial translation, byte by byte
+ * */
+var parallelTranslation = false
+
+/**
+ * translates each class a second time on the main thread, and crashes if its TranslationLog differs;
+ * only applies if parallelTranslation is set
+ * */
+var validateParallelTranslation = false
+
+/**
+ * stores translated classes in cacheFolder, keyed by their class file, the compiler flags,
+ * and the index entries of the classes and method signatures they reference;
+ * classes, whose key didn't change, are loaded instead of being translated again;
+ * opt-in until incremental rebuilds have been measured
+ * */
+var useTranslationCache = false
+
+/**
+ * reads classes from memory-mapped jars of the class path, instead of asking the system class loader for each one
+ * */
+var mapClassPathJars = true
+
+/**
+ * writes the WASM binary directly from the functions, data sections and globals in memory,
+ * instead of printing the module as WAT, and parsing that again
+ * */
+var writeWASMFromMemory = true
+
+/**
+ * the WAT file is only needed for debugging, for running wasm2cpp() on its own, and for validateWAT(),
+ * which JVM2CPP and JVM2JS only run with testWATParser, and then enable it;
+ * without it, the printed text never needs to be held in memory
+ * */
+var writeWAT = false
+
+/**
+ * writes the binary both ways, and crashes if the bytes are not identical;
+ * only applies if writeWASMFromMemory and writeWAT are set
+ * */
+var validateWASMFromMemory = false
+
+/**
+ * additionally writes jvm2wasm-simd.wasm, where counted loops over arrays are vectorized using v128;
+ * the loader picks it, if the browser supports SIMD, and wasm2cpp vectorizes the same loops.
+ * Only works with is32Bits; with checkArrayAccess,
+ * only loops, whose checks were removed by BoundsCheckOptimizer, are vectorized.
+ * Opt-in, until the vectorized flavor has been benchmarked against the scalar one
+ * */
+var buildSIMDFlavor = false
+
+/**
+ * runs java.lang.Thread on a pool of Web Workers, which share one WebAssembly.Memory, see jvm/WorkerThreads.java;
+ * sets JVMFlags.useNativeThreads and JVMFlags.useSharedMemory.
+ * Browsers only provide shared memory to cross-origin isolated pages, so the server must send COOP/COEP headers,
+ * e.g. targets/wasm/serve.py
+ * */
+var useWorkerThreads = false
+
+/**
+ * shared memory must declare its maximum size in 64 kiB pages; browsers reserve it upfront
+ * */
+var maxSharedMemoryPages = 16384
+
+/**
+ * calls of functional interfaces, like f.invoke(Integer.valueOf(x)), whose implementations are all lambdas
+ * with the same primitive signature, are redirected to bridges, which don't box the argument and the result
+ * */
+var specializePrimitiveLambdas = true
+
 // not supported, because there is lots of cyclic dependencies (24 cycles)
 // var callStaticInitOnce = false
 
@@ -108,6 +193,19 @@ var useHighLevelInstructions = true
  * */
 var callStaticInitAtCompileTime = false
 
+/**
+ * removes static-init-calls, which every direct caller of a method has already executed;
+ * keeps the initialization order unchanged
+ * */
+var removeImpliedStaticInits = true
+
+/**
+ * calls side-effect-free static-init-blocks once at startup,
+ * so their static-init-calls can be removed from all other methods;
+ * this initializes those classes earlier than the JVM would, so it is opt-in
+ * */
+var callStaticInitEagerly = false
+
 // todo this needs catch-blocks, somehow..., and we get a lot of type-mismatch errors at the moment
 var useWASMExceptions = false
 var crashOnAllExceptions = true
@@ -115,8 +213,21 @@ val useResultForThrowables = !useWASMExceptions && !crashOnAllExceptions
 
 // experimental, not really JVM conform; might work anyway 😄, and be faster or use less memory
 var enableTracing = false
+
+/**
+ * with enableTracing, don't wrap calls into stackPush/stackPop, but map native frames to stackTraceTable-entries,
+ * when a Throwable is created: WASM via Error().stack in JS, C++ via backtrace();
+ * this is free until something is thrown, but only resolves methods, not lines
+ * */
+var useNativeStackTraces = false
 var ignoreNonCriticalNullPointers = true
 var checkArrayAccess = false
+
+/**
+ * with checkArrayAccess, removes bounds checks, which BoundsCheckOptimizer proves to be unnecessary, and inlines the others;
+ * opt-in, until SciMark has been compared with and without it
+ * */
+var eliminateBoundsChecks = false
 var checkNullPointers = false
 var checkClassCasts = false
 var checkIntDivisions = false
@@ -129,6 +240,17 @@ val byteStrings = useUTF8Strings || replaceStringInternals
 
 var disableAudio = true
 
+// GL calls without return value are encoded into a buffer in linear memory, and executed by JavaScript in batches;
+// natives, which call WebGL outside jvm/LWJGLxOpenGL, must be marked with @UsesGL;
+// opt-in until engine/test/DrawCallBenchmark has been measured
+var useGLCommandBuffer = false
+
+/**
+ * resources of at least this many bytes are stored deflated in the image, and inflated on first access;
+ * Int.MAX_VALUE stores all resources uncompressed
+ * */
+var compressResourcesMinSize = 4096
+
 var addDebugMethods = false
 
 // todo doesn't work yet, missing functions :/
@@ -138,7 +260,7 @@ var fieldsRWRequired = false
 var alwaysUseFieldCalls = true
 
 
-val stackSize = if (enableTracing) 1024 * 32 else 0
+val stackSize = if (enableTracing && !useNativeStackTraces) 1024 * 32 else 0
 
 val classReplacements = hashMapOf(
     "java/util/concurrent/ConcurrentHashMap" to "java/util/HashMap",
@@ -184,6 +306,22 @@ val classReplacements = hashMapOf(
     }
 }
 
+/**
+ * used instead of classReplacements with JVMFlags.useNativeThreads, where the concurrent collections must be locked;
+ * every class, which classReplacements maps to an unsynchronized one, needs an entry here.
+ * Hashtable, Collections.synchronized*() and CopyOnWrite* aren't replaced, so their own locking applies
+ * */
+val threadSafeClassReplacements = hashMapOf(
+    "java/util/concurrent/ConcurrentHashMap" to "jvm/custom/ConcurrentHashMap2",
+    "java/util/concurrent/ConcurrentLinkedQueue" to "jvm/custom/BlockingLinkedQueue",
+    "java/util/concurrent/LinkedBlockingQueue" to "jvm/custom/BlockingLinkedQueue",
+    "java/util/concurrent/PriorityBlockingQueue" to "jvm/custom/BlockingPriorityQueue",
+    "java/util/concurrent/ConcurrentSkipListSet" to "jvm/custom/ConcurrentSkipListSet2",
+    // their methods are synchronized themselves
+    "java/util/Vector" to "java/util/Vector",
+    "java/util/Stack" to "java/util/Stack",
+)
+
 fun replaceClass(clazz: String): String = replaceClassNullable(clazz)!!
 fun replaceClassNullable(clazz: String?): String? {
     var clazz1 = clazz ?: return null
@@ -191,6 +329,10 @@ fun replaceClassNullable(clazz: String?): String? {
     if (useKotlynReflect) {
         clazz1 = KotlynReflect.replaceClass(clazz1)
     }
+    if (useNativeThreads) {
+        val replacement = threadSafeClassReplacements[clazz1]
+        if (replacement != null) return replacement
+    }
     return classReplacements[clazz1] ?: clazz1
 }
 
@@ -248,6 +390,7 @@ fun listEntryPoints(clazz: (String) -> Unit, method: (MethodSig) -> Unit) {
 
     clazz("jvm/JVMShared")
     clazz("jvm/gc/GarbageCollector")
+    clazz("jvm/gc/GCNursery")
     clazz("jvm/MemDebug")
     clazz("jvm/ThrowJS")
 
@@ -257,6 +400,18 @@ fun listEntryPoints(clazz: (String) -> Unit, method: (MethodSig) -> Unit) {
         clazz("jvm/ArrayAccessUnchecked")
     }
 
+    if (useGLCommandBuffer) {
+        clazz("jvm/GLCommandBuffer")
+    }
+
+    if (useNativeThreads) {
+        clazz("jvm/NativeThreads")
+    }
+
+    if (useSharedMemory) {
+        clazz("jvm/WorkerThreads")
+    }
+
     if (useDefaultKotlinReflection) {
         clazz("kotlin/reflect/jvm/internal/ReflectionFactoryImpl")
     }
@@ -304,6 +459,7 @@ fun listLibrary(clazz: (String) -> Unit) {
     clazz("jvm/LWJGLxGLFW")
     clazz("jvm/LWJGLxGamepad")
     clazz("jvm/LWJGLxOpenGL")
+    clazz("jvm/GLCommandBuffer")
     clazz("jvm/LWJGLxOpenAL")
     clazz("jvm/JNA")
     clazz("jvm/SunMisc")
@@ -391,6 +547,8 @@ var allocationStart = -1
 val entrySig = MethodSig.c("", "entry", voidDescriptor)
 val resolvedMethods = HashMap<MethodSig, MethodSig>(4096)
 fun main() {
+    JVMFlags.useNativeThreads = useWorkerThreads
+    JVMFlags.useSharedMemory = useWorkerThreads
     jvm2wasm()
 }
 
@@ -409,6 +567,23 @@ fun jvm2wasm() {
 
     // todo confirm type shift using WASMEngine
 
+    if (useNativeThreads) {
+        // the nursery would need a write barrier shared by all threads, and a loop in fill64()
+        //  would allow a safepoint between malloc() and writeClass(), where the heap isn't walkable
+        assertFalse(useGenerationalGC, "useNativeThreads doesn't support useGenerationalGC")
+        assertTrue(useBulkMemory, "useNativeThreads requires useBulkMemory")
+        // synchronized methods release their monitor in the Return-paths of thrown exceptions
+        assertFalse(useWASMExceptions, "useNativeThreads doesn't support useWASMExceptions")
+        // the interpreter doesn't implement monitors and atomics, which guard <clinit>
+        assertFalse(callStaticInitAtCompileTime, "useNativeThreads doesn't support callStaticInitAtCompileTime")
+    }
+    if (useSharedMemory) {
+        assertTrue(useNativeThreads, "useSharedMemory requires useNativeThreads")
+        assertTrue(is32Bits, "useSharedMemory is only implemented for 32-bit memory")
+        // globals are per instance, so each worker would need its own shadow stack
+        assertTrue(stackSize == 0, "useSharedMemory doesn't support the shadow stack of enableTracing")
+    }
+
     val predefinedClasses = registerDefaultClasses()
     registerDefaultOffsets()
     indexHierarchyFromEntryPoints()
@@ -426,6 +601,11 @@ fun jvm2wasm() {
     findNoThrowMethods()
     clock.stop("Find NoThrow-Methods")
 
+    if (specializePrimitiveLambdas) {
+        PrimitiveLambdaSpecializer.specializeLambdas()
+        clock.stop("Specialize Primitive Lambdas")
+    }
+
     // java_lang_StrictMath_sqrt_DD
     hIndex.inlined[MethodSig.c("java/lang/StrictMath", "sqrt", "(D)D")] = listOf(F64_SQRT)
     hIndex.inlined[MethodSig.c("java/lang/Math", "sqrt", "(D)D")] = listOf(F64_SQRT)
@@ -536,9 +716,16 @@ fun jvm2wasm() {
     stringStart = ptr
 
     appendNativeHelperFunctions()
+    GLCommandEncoder.appendEncoderFunctions()
     defineGlobalsForValidator()
     translateMethods(classesToLoad, ::filterClass)
+    ClassRepository.logStatistics()
+    if (specializePrimitiveLambdas) PrimitiveLambdaSpecializer.printStatistics()
     buildSyntheticMethods()
+    if (callStaticInitEagerly && !callStaticInitAtCompileTime) {
+        EagerStaticInit.initStaticEagerly(staticCallOrder)
+        clock.stop("Eager Static Init")
+    }
 
     ptr = appendStringData(dataPrinter, gIndex) // idx -> string
 
@@ -546,19 +733,31 @@ fun jvm2wasm() {
 
     // class -> super, instance size, interfaces, interface functions
     ptr = appendInheritanceTable(dataPrinter, ptr, numClasses)
+    // class -> depth, super classes by depth, interface bits for instanceOf
+    ptr = appendTypeDisplayTable(dataPrinter, ptr, numClasses)
     // class -> function[] for resolveIndirect
     ptr = appendInvokeDynamicTable(dataPrinter, ptr, numClasses)
     // java.lang.Class, with name, fields and methods
     ptr = appendClassInstanceTable(dataPrinter, ptr, numClasses)
     // idx -> class, line for stack trace
     ptr = appendStackTraceTable(dataPrinter, ptr)
+    // function name hash -> stack trace entry for native frames
+    ptr = appendNativeTraceTable(dataPrinter, ptr)
     // length, [String, byte[]]x resources
     ptr = appendResourceTable(dataPrinter, ptr)
+    // call site -> last (class, function index) pairs for invokeinterface
+    ptr = appendInterfaceCacheTable(ptr)
 
     // must come after invoke dynamic
     calculateDynamicFunctionTable() // idx -> function
 
-    appendNthGetterMethods(bodyPrinter)
+    if (removeImpliedStaticInits) {
+        // needs the function table, because those functions can be called from anywhere
+        EagerStaticInit.removeImpliedGuards()
+        clock.stop("Implied Static Init")
+    }
+
+    if (writeWAT) appendNthGetterMethods(bodyPrinter)
 
     val usedButNotImplemented = findUsedButNotImplemented(jsImplemented, jsPseudoImplemented)
 
@@ -590,25 +789,40 @@ fun jvm2wasm() {
 
     appendGlobals(dataPrinter)
 
-    printMethodImplementations(bodyPrinter, usedMethods)
+    val implementations = collectMethodImplementations(usedMethods)
+    if (writeWAT) printMethodImplementations(bodyPrinter, implementations)
     printInterfaceIndex()
 
     memorySizeInBlocks = ceilDiv(ptr, 65536) + 1 // number of 64 kiB pages
 
     writeJavaScriptImportsFile(jsImplemented, jsPseudoImplemented, memorySizeInBlocks)
 
-    val joined = joinPrinters(
-        memorySizeInBlocks, headerPrinter,
-        importPrinter, dataPrinter, bodyPrinter
-    )
+    val joined = if (writeWAT) {
+        joinPrinters(
+            memorySizeInBlocks, headerPrinter,
+            importPrinter, dataPrinter, bodyPrinter
+        )
+    } else null
 
     printStats(joined)
     clock.stop("Print Stats, etc")
 
-    compileToWASM(joined, clock)
+    compileToWASM(joined, collectModuleFunctions(implementations), clock)
     clock.total("Kotlin")
 }
 
+/**
+ * all functions in the order, in which they are printed into the WAT file
+ * */
+private fun collectModuleFunctions(implementations: List<FunctionImpl>): List<FunctionImpl> {
+    val nthGetterMethods = gIndex.nthGetterMethods.values.sortedWith(FunctionOrder)
+    val functions = ArrayList<FunctionImpl>(abstractMethodStubs.size + nthGetterMethods.size + implementations.size)
+    functions.addAll(abstractMethodStubs)
+    functions.addAll(nthGetterMethods)
+    functions.addAll(implementations)
+    return functions
+}
+
 var memorySizeInBlocks = -1
 
 private fun cleanupJVMImplemented() {
@@ -645,7 +859,11 @@ private fun defineGlobalsForValidator() {
     defineGlobal("classInstanceTable", ptrTypeI)
     defineGlobal("staticInitTable", ptrTypeI)
     defineGlobal("stackTraceTable", ptrTypeI)
+    defineGlobal("nativeTraceTable", ptrTypeI)
     defineGlobal("resourceTable", ptrTypeI)
+    defineGlobal("interfaceCacheTable", ptrTypeI)
+    defineGlobal("typeDisplayTable", ptrTypeI)
+    defineGlobal("typeDisplayStride", WASMType.I32)
 
     defineGlobal("stackEndPointer", ptrTypeI) // stack end ptr
     defineGlobal("stackPointer", ptrTypeI) // stack ptr
@@ -666,7 +884,11 @@ private fun defineGlobals(classTableStart: Int, numClasses: Int, ptr0: Int): Int
     defineGlobal("classInstanceTable", ptrTypeI, classInstanceTablePtr)
     defineGlobal("staticInitTable", ptrTypeI, staticInitFlagsPtr)
     defineGlobal("stackTraceTable", ptrTypeI, stackTraceTablePtr)
+    defineGlobal("nativeTraceTable", ptrTypeI, nativeTraceTablePtr)
     defineGlobal("resourceTable", ptrTypeI, resourceTablePtr)
+    defineGlobal("interfaceCacheTable", ptrTypeI, interfaceCacheTablePtr)
+    defineGlobal("typeDisplayTable", ptrTypeI, typeDisplayTablePtr)
+    defineGlobal("typeDisplayStride", WASMType.I32, typeDisplayStride)
 
     var ptr = ptr0
     defineGlobal("stackEndPointer", ptrTypeI, ptr) // stack end ptr
@@ -701,7 +923,9 @@ private fun joinPrinters(
     dataPrinter: StringBuilder2, bodyPrinter: StringBuilder2
 ): StringBuilder2 {
     // close module
-    headerPrinter.append("(memory (import \"js\" \"mem\") ").append(sizeInPages).append(")\n")
+    headerPrinter.append("(memory (import \"js\" \"mem\") ").append(sizeInPages)
+    if (useSharedMemory) headerPrinter.append(' ').append(maxSharedMemoryPages).append(" shared")
+    headerPrinter.append(")\n")
     headerPrinter.ensureExtra(importPrinter.size + dataPrinter.size + bodyPrinter.size)
     headerPrinter.append(importPrinter)
     headerPrinter.append(dataPrinter)
@@ -710,8 +934,8 @@ private fun joinPrinters(
     return headerPrinter
 }
 
-private fun printStats(printer: StringBuilder2) {
-    LOGGER.info(
+private fun printStats(printer: StringBuilder2?) {
+    if (printer != null) LOGGER.info(
         "WAT size (${if (comments) "with" else "without"} comments): " +
                 printer.length.formatFileSize()
     )
@@ -721,6 +945,7 @@ private fun printStats(printer: StringBuilder2) {
                 "size: ${gIndex.totalStringSize.formatFileSize()}"
     )
     LOGGER.info("${constructableClasses.size}/${classNames.size} classes are constructable")
+    BoundsCheckOptimizer.printStatistics()
 }
 
 val globals = HashMap<String, GlobalVariable>()
@@ -0,0 +1,8 @@
+package annotations
+
+/**
+ * The JavaScript code of this native calls the WebGL context,
+ * so all GL calls, which GLCommandBuffer has buffered, must be executed before it.
+ * Unbuffered natives of jvm/LWJGLxOpenGL don't need it.
+ * */
+annotation class UsesGL
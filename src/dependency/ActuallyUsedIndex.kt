@@ -3,6 +3,7 @@ package dependency
 import entrySig
 import hIndex
 import listEntryPoints
+import translator.GeneratorIndex
 import utils.DynIndex.dynIndexSig
 import utils.MethodSig
 import utils.methodName
@@ -23,6 +24,12 @@ object ActuallyUsedIndex {
     }
 
     fun add(caller: MethodSig, calledName: String) {
+        val log = GeneratorIndex.translationLog.get()
+        if (log != null) log.addUse(caller, calledName)
+        else addImpl(caller, calledName)
+    }
+
+    private fun addImpl(caller: MethodSig, calledName: String) {
         val callerName = methodName(caller)
         val changed0 = usedBy.getOrPut(calledName) { HashSet() }.add(callerName)
         val changed1 = uses.getOrPut(callerName) { HashSet() }.add(calledName)
@@ -32,6 +39,13 @@ object ActuallyUsedIndex {
     }
 
     fun add(caller: MethodSig, called: Collection<MethodSig>) {
+        val log = GeneratorIndex.translationLog.get()
+        if (log != null) {
+            for (calledI in called) log.addUse(caller, methodName(calledI))
+        } else addImpl(caller, called)
+    }
+
+    private fun addImpl(caller: MethodSig, called: Collection<MethodSig>) {
         val callerName = methodName(caller)
         val calledName = called.map { calledI -> methodName(calledI) }
         val changed0 = calledName.any { calledNameI ->
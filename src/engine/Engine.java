@@ -70,6 +70,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 
+import static jvm.JVMFlags.useNativeThreads;
 import static jvm.JVMShared.arrayOverhead;
 import static jvm.JVMShared.castToPtr;
 import static jvm.JavaLang.Object_toString;
@@ -180,6 +181,12 @@ public class Engine {
 
         // LuaTest.test();
         // SciMark.test();
+        // SwitchBenchmark.test();
+        // CollectionsBenchmark.test();
+        // InstanceOfBenchmark.test();
+        // GCStressTest.test();
+        // ThreadGCStressTest.test(); // with useNativeThreads
+        // DeflateBenchmark.test();
 
         if (runsInBrowser()) {
             initBrowserFonts();
@@ -223,6 +230,8 @@ public class Engine {
 
         GFX.check("main");
 
+        // DrawCallBenchmark.test(); // needs the GL context
+
         instance.gameInit();
         WindowRenderFlags.INSTANCE.setShowFPS(true);
 
@@ -398,6 +407,7 @@ public class Engine {
             "   ctx.restore();\n" +
             "   let x=window.lib.prepareTexture(arg1);\n" +
             "   if(x) throw x;\n" +
+            "   if(window.glFlush) glFlush();\n" + // binding the texture may have been buffered
             "   gl.texImage2D(gl.TEXTURE_2D,0,gl.RGBA8,w,h,0,gl.RGBA,gl.UNSIGNED_BYTE,ctx.getImageData(0,0,w,h).data);\n" +
             "   x=window.lib.finishTexture(arg1,w,h,arg2);\n" +
             "   if(x) throw x;\n" +
@@ -794,7 +804,11 @@ public class Engine {
     @NoThrow
     @Alias(names = "me_anno_cache_CacheSection_runAsync_Ljava_lang_StringLkotlin_jvm_functions_Function0V")
     public static void runAsync(Object self, String name, Function0<Object> runnable) {
-        runAsyncImpl(runnable, name);
+        if (useNativeThreads) {
+            if (!name.equals("Saving main.config")) {
+                new Thread(runnable::invoke, name).start();
+            }
+        } else runAsyncImpl(runnable, name);
     }
 
     @Alias(names = "me_anno_engine_OfficialExtensions_register_V")
@@ -1,6 +1,7 @@
 package engine;
 
 import annotations.JavaScriptWASM;
+import annotations.UsesGL;
 
 public class VRRoutineJS {
     @JavaScriptWASM(code = "const viewIndex = arg0, dst = unpackFloatArray(arg1,16);\n" +
@@ -25,6 +26,7 @@ public class VRRoutineJS {
     @JavaScriptWASM(code = "return webXR.views.length;\n")
     public static native int getNumViews();
 
+    @UsesGL
     @JavaScriptWASM(code = "" +
             "const src = unmap(arg0), view = webXR.viewports[arg1];\n" +
             "const x = view.x, y = view.y, w = view.width, h = view.height;\n" +
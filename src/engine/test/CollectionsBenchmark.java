@@ -0,0 +1,97 @@
+package engine.test;
+
+import jvm.JVMShared;
+
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Microbenchmark for interface calls: iterators, List.get(), Map-lookups and lambdas are all invokeinterface,
+ * some call sites only see a single class, others alternate between two or three.
+ * Set JVMFlags.countInterfaceCacheHits to see how often the inline caches hit.
+ */
+public class CollectionsBenchmark {
+
+    private static final int NUM_ELEMENTS = 10_000;
+    private static final int NUM_ITERATIONS = 100;
+
+    public static void test() {
+        List<Integer> arrayList = new ArrayList<>();
+        List<Integer> linkedList = new LinkedList<>();
+        Map<Integer, Integer> hashMap = new HashMap<>();
+        for (int i = 0; i < NUM_ELEMENTS; i++) {
+            arrayList.add(i);
+            linkedList.add(i);
+            hashMap.put(i, i * 3);
+        }
+        List<Collection<Integer>> collections = Arrays.asList(arrayList, linkedList, hashMap.values());
+        IntUnaryOperator[] operators = {x -> x + 1, x -> x * 3, x -> x ^ 0x55};
+
+        // warm up, so the JVM-reference isn't dominated by the interpreter
+        runMonomorphic(arrayList, NUM_ITERATIONS / 10);
+        runPolymorphic(collections, NUM_ITERATIONS / 10);
+        runMapLookups(hashMap, NUM_ITERATIONS / 10);
+        runLambdas(operators, NUM_ITERATIONS / 10);
+        JVMShared.logInterfaceCacheStatistics();
+
+        long t0 = System.nanoTime();
+        long monomorphic = runMonomorphic(arrayList, NUM_ITERATIONS);
+        long t1 = System.nanoTime();
+        long polymorphic = runPolymorphic(collections, NUM_ITERATIONS);
+        long t2 = System.nanoTime();
+        long mapLookups = runMapLookups(hashMap, NUM_ITERATIONS);
+        long t3 = System.nanoTime();
+        long lambdas = runLambdas(operators, NUM_ITERATIONS);
+        long t4 = System.nanoTime();
+
+        long numOps = (long) NUM_ELEMENTS * NUM_ITERATIONS;
+        System.out.println("Monomorphic: " + (t1 - t0) / numOps + " ns/op, " + monomorphic);
+        System.out.println("Polymorphic: " + (t2 - t1) / (3 * numOps) + " ns/op, " + polymorphic);
+        System.out.println("Map-Lookups: " + (t3 - t2) / numOps + " ns/op, " + mapLookups);
+        System.out.println("Lambdas:     " + (t4 - t3) / numOps + " ns/op, " + lambdas);
+        JVMShared.logInterfaceCacheStatistics();
+    }
+
+    private static long runMonomorphic(List<Integer> list, int numIterations) {
+        long sum = 0;
+        for (int j = 0; j < numIterations; j++) {
+            for (int i = 0, l = list.size(); i < l; i++) {
+                sum += list.get(i);
+            }
+        }
+        return sum;
+    }
+
+    private static long runPolymorphic(List<Collection<Integer>> collections, int numIterations) {
+        long sum = 0;
+        for (int j = 0; j < numIterations; j++) {
+            for (int k = 0; k < collections.size(); k++) {
+                // iterator() and next() see a different class for each collection
+                for (Integer value : collections.get(k)) {
+                    sum += value;
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static long runMapLookups(Map<Integer, Integer> map, int numIterations) {
+        long sum = 0;
+        for (int j = 0; j < numIterations; j++) {
+            for (int i = 0; i < NUM_ELEMENTS; i++) {
+                sum += map.get(i);
+            }
+        }
+        return sum;
+    }
+
+    private static long runLambdas(IntUnaryOperator[] operators, int numIterations) {
+        long sum = 0;
+        for (int j = 0; j < numIterations; j++) {
+            for (int i = 0; i < NUM_ELEMENTS; i++) {
+                sum += operators[i % 3].applyAsInt(i);
+            }
+        }
+        return sum;
+    }
+}
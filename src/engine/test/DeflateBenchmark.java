@@ -0,0 +1,99 @@
+package engine.test;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Throughput benchmark for DEFLATE: in WASM, java.util.zip.Inflater/Deflater are replaced by jvm.custom.Inflater/Deflater,
+ * on the JVM, the same code measures native zlib as reference.
+ * The browser's DecompressionStream("deflate") can only be called asynchronously, so it isn't compared here.
+ */
+public class DeflateBenchmark {
+
+    private static final int DATA_SIZE = 1 << 20;
+    private static final int NUM_ITERATIONS = 10;
+
+    public static void test() {
+        byte[] data = createData();
+        byte[] buffer = new byte[DATA_SIZE + (DATA_SIZE >> 3) + 64];
+        byte[] output = new byte[DATA_SIZE];
+        // warm up, so the JVM-reference isn't dominated by the interpreter
+        int compressedSize = 0;
+        for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION}) {
+            compressedSize = deflate(data, buffer, level);
+            inflate(buffer, compressedSize, output);
+        }
+
+        for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION}) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                compressedSize = deflate(data, buffer, level);
+            }
+            long t1 = System.nanoTime();
+            int size = 0;
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                size = inflate(buffer, compressedSize, output);
+            }
+            long t2 = System.nanoTime();
+            if (size != DATA_SIZE) throw new IllegalStateException("Size mismatch");
+            for (int i = 0; i < DATA_SIZE; i++) {
+                if (output[i] != data[i]) throw new IllegalStateException("Data mismatch at " + i);
+            }
+            System.out.println("Deflate, level " + level + ": " + mbPerSecond(t1 - t0) + " MB/s, " +
+                    "ratio " + (compressedSize * 100L / DATA_SIZE) + "%");
+            System.out.println("Inflate, level " + level + ": " + mbPerSecond(t2 - t1) + " MB/s");
+        }
+    }
+
+    private static long mbPerSecond(long nanos) {
+        return (long) DATA_SIZE * NUM_ITERATIONS * 1000L / Math.max(nanos, 1);
+    }
+
+    /**
+     * text-like data, which compresses to about a fifth, so both literals and matches are measured
+     */
+    private static byte[] createData() {
+        String[] words = {
+                "the ", "quick ", "brown ", "fox ", "jumps ", "over ", "lazy ", "dog", ".\n",
+                "engine ", "shader ", "texture ", "buffer ", "mesh ", "frame ", "0x", "1f", "42 "
+        };
+        byte[] data = new byte[DATA_SIZE];
+        int seed = 1234;
+        for (int i = 0; i < DATA_SIZE; ) {
+            seed = seed * 1103515245 + 12345;
+            String word = words[(seed >>> 16) % words.length];
+            for (int j = 0; j < word.length() && i < DATA_SIZE; j++) {
+                data[i++] = (byte) word.charAt(j);
+            }
+        }
+        return data;
+    }
+
+    private static int deflate(byte[] data, byte[] buffer, int level) {
+        Deflater deflater = new Deflater(level);
+        deflater.setInput(data);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+        deflater.end();
+        return size;
+    }
+
+    private static int inflate(byte[] buffer, int compressedSize, byte[] output) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(buffer, 0, compressedSize);
+        int size = 0;
+        try {
+            while (!inflater.finished() && size < output.length) {
+                size += inflater.inflate(output, size, output.length - size);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        }
+        inflater.end();
+        return size;
+    }
+}
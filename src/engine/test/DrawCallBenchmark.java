@@ -0,0 +1,47 @@
+package engine.test;
+
+import static org.lwjgl.opengl.GL46C.*;
+
+/**
+ * Frame-time benchmark for GL calls without return value, which are batched by GLCommandBuffer:
+ * each frame issues the bind-, state- and uniform-calls of a scene with many small draw calls,
+ * and ends with a call with return value, which forces the buffer to be flushed.
+ * Uniform location 0 is null in WebGL, so the uniforms are accepted without a bound program.
+ * Set useGLCommandBuffer to compare against one JavaScript-call per GL-call.
+ */
+public class DrawCallBenchmark {
+
+    private static final int NUM_DRAW_CALLS = 2000;
+    private static final int NUM_FRAMES = 100;
+
+    public static void test() {
+        runFrames(NUM_FRAMES / 10);
+
+        long t0 = System.nanoTime();
+        int result = runFrames(NUM_FRAMES);
+        long t1 = System.nanoTime();
+
+        long numCalls = (long) NUM_FRAMES * NUM_DRAW_CALLS;
+        System.out.println("Frame-Time: " + (t1 - t0) / (NUM_FRAMES * 1000L) + " µs/frame, " +
+                (t1 - t0) / numCalls + " ns/draw-call, " + result);
+    }
+
+    private static int runFrames(int numFrames) {
+        int result = 0;
+        for (int frame = 0; frame < numFrames; frame++) {
+            glViewport(0, 0, 800, 600);
+            glDepthMask(true);
+            glBlendFuncSeparate(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA, GL_ONE, GL_ONE);
+            for (int i = 0; i < NUM_DRAW_CALLS; i++) {
+                glActiveTexture(GL_TEXTURE0 + (i & 7));
+                glBindTexture(GL_TEXTURE_2D, 0);
+                glUniform1f(0, i * 0.5f);
+                glUniform4f(0, i, 1f, 0.5f, 0.25f);
+                glColorMask(true, true, true, (i & 1) == 0);
+            }
+            // has a return value, so the buffer must be flushed
+            result += glGetInteger(GL_MAX_TEXTURE_SIZE) & 1;
+        }
+        return result;
+    }
+}
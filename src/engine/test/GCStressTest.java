@@ -0,0 +1,54 @@
+package engine.test;
+
+/**
+ * Stress test for the mark phase: a linked list with ten million nodes used to overflow the stack,
+ * because traversal recursed once per reference.
+ * In the browser, System.gc() only schedules a collection after the current frame,
+ * so the list is kept in a static field, and can be checked again with verify().
+ */
+public class GCStressTest {
+
+    private static class Node {
+        final int value;
+        Node next;
+
+        Node(int value) {
+            this.value = value;
+        }
+    }
+
+    private static final int NUM_NODES = 10_000_000;
+
+    private static Node head;
+
+    public static void test() {
+        Node tail = head = new Node(0);
+        for (int i = 1; i < NUM_NODES; i++) {
+            Node node = new Node(i);
+            tail.next = node;
+            tail = node;
+        }
+
+        long t0 = System.nanoTime();
+        System.gc();
+        long t1 = System.nanoTime();
+        System.out.println("GC-Stress: " + (t1 - t0) / 1000 + " us for " + NUM_NODES + " nodes");
+        verify();
+    }
+
+    /**
+     * checks that all nodes have survived
+     */
+    public static void verify() {
+        long sum = 0;
+        int count = 0;
+        for (Node node = head; node != null; node = node.next) {
+            sum += node.value;
+            count++;
+        }
+        long expectedSum = (long) NUM_NODES * (NUM_NODES - 1) / 2;
+        if (count != NUM_NODES || sum != expectedSum) {
+            throw new IllegalStateException("Lost nodes: " + count + "/" + NUM_NODES);
+        }
+    }
+}
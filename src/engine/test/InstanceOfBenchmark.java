@@ -0,0 +1,101 @@
+package engine.test;
+
+/**
+ * Microbenchmark for instanceof/checkcast: class checks against a deep hierarchy,
+ * interface checks, and a Kotlin-like when(x) { is ... }-chain, which fails most checks before it matches.
+ */
+public class InstanceOfBenchmark {
+
+    private interface Shape {
+    }
+
+    private interface Named {
+    }
+
+    private interface Closed extends Shape {
+    }
+
+    private static class Node {
+    }
+
+    private static class Level1 extends Node implements Named {
+    }
+
+    private static class Level2 extends Level1 {
+    }
+
+    private static class Level3 extends Level2 implements Closed {
+    }
+
+    private static class Level4 extends Level3 {
+    }
+
+    private static class Level5 extends Level4 {
+    }
+
+    private static class Leaf extends Node implements Shape {
+    }
+
+    private static final int NUM_ITERATIONS = 1_000_000;
+
+    public static void test() {
+        Object[] instances = {
+                new Node(), new Level1(), new Level2(), new Level3(),
+                new Level4(), new Level5(), new Leaf(), "text"
+        };
+        // warm up, so the JVM-reference isn't dominated by the interpreter
+        runClassChecks(instances, NUM_ITERATIONS / 10);
+        runInterfaceChecks(instances, NUM_ITERATIONS / 10);
+        runWhenChain(instances, NUM_ITERATIONS / 10);
+
+        long t0 = System.nanoTime();
+        int classResult = runClassChecks(instances, NUM_ITERATIONS);
+        long t1 = System.nanoTime();
+        int interfaceResult = runInterfaceChecks(instances, NUM_ITERATIONS);
+        long t2 = System.nanoTime();
+        int whenResult = runWhenChain(instances, NUM_ITERATIONS);
+        long t3 = System.nanoTime();
+
+        System.out.println("Class-Checks:     " + (t1 - t0) / NUM_ITERATIONS + " ns/op, " + classResult);
+        System.out.println("Interface-Checks: " + (t2 - t1) / NUM_ITERATIONS + " ns/op, " + interfaceResult);
+        System.out.println("When-Chain:       " + (t3 - t2) / NUM_ITERATIONS + " ns/op, " + whenResult);
+    }
+
+    private static int runClassChecks(Object[] instances, int numIterations) {
+        int count = 0;
+        for (int i = 0; i < numIterations; i++) {
+            Object instance = instances[i & 7];
+            if (instance instanceof Level2) count++;
+            if (instance instanceof Node) count += 3;
+        }
+        return count;
+    }
+
+    private static int runInterfaceChecks(Object[] instances, int numIterations) {
+        int count = 0;
+        for (int i = 0; i < numIterations; i++) {
+            Object instance = instances[i & 7];
+            if (instance instanceof Shape) count++;
+            if (instance instanceof Named) count += 3;
+            if (instance instanceof CharSequence) count += 5;
+        }
+        return count;
+    }
+
+    private static int runWhenChain(Object[] instances, int numIterations) {
+        int count = 0;
+        for (int i = 0; i < numIterations; i++) {
+            count += classify(instances[i & 7]);
+        }
+        return count;
+    }
+
+    private static int classify(Object instance) {
+        if (instance instanceof Level5) return 5;
+        else if (instance instanceof Level4) return 4;
+        else if (instance instanceof Closed) return 3;
+        else if (instance instanceof Level1) return ((Named) instance).hashCode() & 1;
+        else if (instance instanceof Shape) return 2;
+        else return 0;
+    }
+}
@@ -0,0 +1,163 @@
+package engine.test;
+
+/**
+ * Microbenchmark for switch-lowering: enum-switches become dense tableswitches over the ordinal,
+ * String-switches become a sparse lookupswitch over the hash, followed by a dense tableswitch.
+ */
+public class SwitchBenchmark {
+
+    private enum Opcode {
+        LOAD, STORE, ADD, SUB, MUL, DIV, AND, OR, XOR, SHL, SHR, NEG, JUMP, CALL, RETURN, NOP
+    }
+
+    private static final String[] KEYWORDS = {
+            "if", "else", "while", "for", "do", "switch", "case", "default",
+            "break", "continue", "return", "class", "interface", "enum", "unknown", "static"
+    };
+
+    private static final int NUM_ITERATIONS = 1_000_000;
+
+    public static void test() {
+        Opcode[] opcodes = Opcode.values();
+        // warm up, so the JVM-reference isn't dominated by the interpreter
+        runEnumSwitch(opcodes, NUM_ITERATIONS / 10);
+        runStringSwitch(NUM_ITERATIONS / 10);
+        runIntSwitch(NUM_ITERATIONS / 10);
+
+        long t0 = System.nanoTime();
+        int enumResult = runEnumSwitch(opcodes, NUM_ITERATIONS);
+        long t1 = System.nanoTime();
+        int stringResult = runStringSwitch(NUM_ITERATIONS);
+        long t2 = System.nanoTime();
+        int intResult = runIntSwitch(NUM_ITERATIONS);
+        long t3 = System.nanoTime();
+
+        System.out.println("Enum-Switch:   " + (t1 - t0) / NUM_ITERATIONS + " ns/op, " + enumResult);
+        System.out.println("String-Switch: " + (t2 - t1) / NUM_ITERATIONS + " ns/op, " + stringResult);
+        System.out.println("Int-Switch:    " + (t3 - t2) / NUM_ITERATIONS + " ns/op, " + intResult);
+    }
+
+    private static int runEnumSwitch(Opcode[] opcodes, int numIterations) {
+        int acc = 1;
+        for (int i = 0; i < numIterations; i++) {
+            acc = execute(opcodes[(i * 7) & 15], acc, i);
+        }
+        return acc;
+    }
+
+    private static int execute(Opcode opcode, int acc, int value) {
+        switch (opcode) {
+            case LOAD:
+                return value;
+            case STORE:
+                return acc ^ value;
+            case ADD:
+                return acc + value;
+            case SUB:
+                return acc - value;
+            case MUL:
+                return acc * (value | 1);
+            case DIV:
+                return acc / ((value & 7) + 1);
+            case AND:
+                return acc & value;
+            case OR:
+                return acc | value;
+            case XOR:
+                return acc ^ (value * 31);
+            case SHL:
+                return acc << (value & 3);
+            case SHR:
+                return acc >> (value & 3);
+            case NEG:
+                return -acc;
+            case JUMP:
+                return acc + 3;
+            case CALL:
+                return acc * 3;
+            case RETURN:
+                return acc - 3;
+            default:
+                return acc;
+        }
+    }
+
+    private static int runStringSwitch(int numIterations) {
+        int acc = 0;
+        for (int i = 0; i < numIterations; i++) {
+            acc += getKeywordId(KEYWORDS[(i * 5) & 15]);
+        }
+        return acc;
+    }
+
+    private static int getKeywordId(String keyword) {
+        switch (keyword) {
+            case "if":
+                return 1;
+            case "else":
+                return 2;
+            case "while":
+                return 3;
+            case "for":
+                return 4;
+            case "do":
+                return 5;
+            case "switch":
+                return 6;
+            case "case":
+                return 7;
+            case "default":
+                return 8;
+            case "break":
+                return 9;
+            case "continue":
+                return 10;
+            case "return":
+                return 11;
+            case "class":
+                return 12;
+            case "interface":
+                return 13;
+            case "enum":
+                return 14;
+            case "static":
+                return 15;
+            default:
+                return 0;
+        }
+    }
+
+    private static int runIntSwitch(int numIterations) {
+        int acc = 0;
+        for (int i = 0; i < numIterations; i++) {
+            switch (i & 7) {
+                case 0:
+                    acc += 1;
+                    break;
+                case 1:
+                    acc ^= i;
+                    break;
+                case 2:
+                    acc -= 7;
+                    break;
+                case 3:
+                    acc *= 3;
+                    break;
+                case 4:
+                    acc >>>= 1;
+                    break;
+                case 5:
+                    acc += i & 255;
+                    break;
+                default:
+                    acc--;
+                    break;
+            }
+        }
+        return acc;
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
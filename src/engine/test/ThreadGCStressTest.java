@@ -0,0 +1,95 @@
+package engine.test;
+
+/**
+ * Stress test for collecting while threads allocate, e.g. with JVMFlags.useNativeThreads in C++:
+ * each worker keeps building and checking linked lists, which are only referenced from its stack and registers,
+ * while the main thread calls System.gc() over and over. A list, whose nodes were collected or moved, fails its check.
+ */
+public class ThreadGCStressTest {
+
+    private static class Node {
+        final int value;
+        final int[] payload;
+        Node next;
+
+        Node(int value) {
+            this.value = value;
+            this.payload = new int[]{value, ~value};
+        }
+    }
+
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_ROUNDS = 200;
+    private static final int NUM_NODES = 10_000;
+    private static final int NUM_COLLECTIONS = 100;
+
+    public static void test() {
+        Thread[] threads = new Thread[NUM_THREADS];
+        String[] failures = new String[NUM_THREADS];
+        for (int i = 0; i < NUM_THREADS; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> failures[index] = runWorker(index), "GCStress-" + i);
+        }
+
+        long t0 = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (int i = 0; i < NUM_COLLECTIONS; i++) {
+                System.gc();
+                Thread.sleep(1);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        long t1 = System.nanoTime();
+
+        for (String failure : failures) {
+            if (failure != null) throw new IllegalStateException(failure);
+        }
+        System.out.println("Thread-GC-Stress: " + (t1 - t0) / 1000 + " us for " + NUM_THREADS + " threads, " +
+                NUM_ROUNDS + " rounds of " + NUM_NODES + " nodes");
+    }
+
+    /**
+     * returns null on success, else what was wrong
+     */
+    private static String runWorker(int index) {
+        // the previous list stays alive while the next one is built
+        Node previous = createList(index);
+        for (int round = 1; round < NUM_ROUNDS; round++) {
+            Node next = createList(index + round);
+            String failure = check(previous, index + round - 1);
+            if (failure != null) return failure;
+            previous = next;
+        }
+        return check(previous, index + NUM_ROUNDS - 1);
+    }
+
+    private static Node createList(int offset) {
+        Node head = new Node(offset);
+        Node tail = head;
+        for (int i = 1; i < NUM_NODES; i++) {
+            Node node = new Node(offset + i);
+            tail.next = node;
+            tail = node;
+        }
+        return head;
+    }
+
+    private static String check(Node head, int offset) {
+        int count = 0;
+        for (Node node = head; node != null; node = node.next) {
+            int expected = offset + count;
+            if (node.value != expected || node.payload[0] != expected || node.payload[1] != ~expected) {
+                return Thread.currentThread().getName() + ": node " + count + " is broken";
+            }
+            count++;
+        }
+        return count == NUM_NODES ? null : Thread.currentThread().getName() + ": lost nodes, " + count + "/" + NUM_NODES;
+    }
+}
@@ -0,0 +1,133 @@
+package graphing
+
+import wasm.instr.Comment
+import wasm.instr.Const
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Instruction
+import wasm.instr.Instructions.I32EQ
+import wasm.instr.Instructions.I32LTS
+import wasm.instr.Instructions.I32Sub
+import wasm.instr.Instructions.Unreachable
+import wasm.instr.SwitchCase
+
+/**
+ * Replaces the compare-tree of a dense switch by a SwitchCase, which becomes a br_table in WASM.
+ * This only works, once each case has been reduced to a single node, and all cases continue at the same node or return.
+ * */
+object CollapseSwitchTree {
+
+    fun tryCollapseSwitch(sa: StructuralAnalysis, tree: SwitchTree): Boolean {
+
+        val nodes = sa.nodes
+        val treeNodes = HashSet<GraphingNode>(tree.printers.size)
+        for (printer in tree.printers) {
+            val node = nodes.firstOrNull { it.printer === printer } as? BranchNode ?: return false
+            treeNodes.add(node)
+        }
+
+        val root = nodes.first { it.printer === tree.printers.first() } as BranchNode
+        val rootInstrs = root.printer.instrs
+        if (rootInstrs.size < 3 || root.outputStack.isNotEmpty()) return false
+        val getter = rootInstrs[rootInstrs.size - 3]
+        for (node in treeNodes) {
+            if (!isCompareNode(node, getter, node === root)) return false
+            if (node !== root && !treeNodes.containsAll(node.inputs)) return false
+        }
+
+        // find, where each key goes
+        val defaultKey = if (tree.min > Int.MIN_VALUE) tree.min - 1 else tree.max + 1
+        val defaultTarget = findTarget(root, treeNodes, defaultKey)
+        val targets = ArrayList<GraphingNode>()
+        val table = IntArray(tree.max - tree.min + 1) { index ->
+            val target = findTarget(root, treeNodes, tree.min + index)
+            if (target !== defaultTarget) {
+                val caseIndex = targets.indexOf(target)
+                if (caseIndex < 0) {
+                    targets.add(target)
+                    targets.lastIndex
+                } else caseIndex
+            } else -1
+        }
+        targets.add(defaultTarget)
+        for (i in table.indices) {
+            if (table[i] < 0) table[i] = targets.lastIndex
+        }
+
+        // all cases must continue at the same node, or return
+        var next: GraphingNode? = null
+        for (target in targets) {
+            if (target.inputStack.isNotEmpty()) return false
+            if (target !== root && target in treeNodes) return false
+            val isOwned = target !== root && treeNodes.containsAll(target.inputs)
+            val exit = when {
+                isOwned && target is ReturnNode -> null
+                isOwned && target is SequenceNode -> {
+                    if (target.next === target || target.outputStack.isNotEmpty()) return false
+                    target.next
+                }
+                else -> target
+            }
+            if (exit != null) {
+                if (exit !== root && exit in treeNodes) return false
+                if (next == null) next = exit
+                else if (next !== exit) return false
+            }
+        }
+
+        val cases = targets.map { target ->
+            if (target === next) ArrayList()
+            else ArrayList(target.printer.instrs)
+        }
+
+        // the key still is on the stack, when the last comparison was removed
+        val printer = root.printer
+        rootInstrs.subList(rootInstrs.size - 2, rootInstrs.size).clear()
+        if (tree.min != 0) printer.append(i32Const(tree.min)).append(I32Sub)
+        printer.append(SwitchCase("switch${sa.methodTranslator.nextLoopIndex++}", table, cases))
+        if (next == null) printer.append(Unreachable)
+
+        val removed = HashSet<GraphingNode>(treeNodes)
+        removed.remove(root)
+        for (target in targets) {
+            if (target !== next) removed.add(target)
+        }
+        nodes.removeAll(removed)
+
+        val i = nodes.indexOf(root)
+        if (next != null) {
+            val newNode = SequenceNode(printer)
+            sa.replaceNode(root, newNode, i)
+            newNode.next = if (next === root) newNode else next
+        } else {
+            sa.replaceNode(root, ReturnNode(printer), i)
+        }
+        sa.recalculateInputs()
+        return true
+    }
+
+    /**
+     * checks that the node still ends with "key <op> const", and that only the root has extra code
+     * */
+    private fun isCompareNode(node: GraphingNode, getter: Instruction, isRoot: Boolean): Boolean {
+        val instrs = node.printer.instrs
+        if (instrs.size < 3) return false
+        val compare = instrs.last()
+        val constant = instrs[instrs.size - 2]
+        return (compare == I32LTS || compare == I32EQ) &&
+                constant is Const && constant.value is Int &&
+                instrs[instrs.size - 3] == getter &&
+                (isRoot || instrs.subList(0, instrs.size - 3).all { it is Comment })
+    }
+
+    private fun findTarget(root: BranchNode, treeNodes: Set<GraphingNode>, key: Int): GraphingNode {
+        var node = root
+        while (true) {
+            val instrs = node.printer.instrs
+            val value = (instrs[instrs.size - 2] as Const).value.toInt()
+            val condition = if (instrs.last() == I32LTS) key < value else key == value
+            val next = if (condition) node.ifTrue else node.ifFalse
+            if (next === root || next !in treeNodes) return next
+            node = next as BranchNode
+        }
+    }
+}
@@ -10,10 +10,10 @@ import wasm.instr.Const.Companion.i32Const
 import wasm.instr.Const.Companion.i32Const0
 import wasm.instr.IfBranch
 import wasm.instr.Instruction
-import wasm.instr.Instructions.I32EQ
 import wasm.instr.Instructions.Unreachable
 import wasm.instr.Jump
 import wasm.instr.LoopInstr
+import wasm.instr.SwitchCase
 
 /**
  * If StackAnalysis fails, use this work-around.
@@ -25,7 +25,7 @@ object InefficientNodeStack {
         // make node.index usable
         renumber(nodes)
 
-        var lastCase: ArrayList<Instruction>? = null
+        val cases = ArrayList<ArrayList<Instruction>>(nodes.size)
         for (i in nodes.lastIndex downTo 0) {
             val node = nodes[i]
             if (i > 0) loadStackPrepend(node.inputStack, node.printer, mt)
@@ -50,22 +50,15 @@ object InefficientNodeStack {
                 else -> throw NotImplementedError()
             }
 
-            // append case
-            lastCase = if (lastCase == null) {
-                node.printer.instrs
-            } else {
-                arrayListOf(
-                    caseVariable.getter,
-                    i32Const(node.index), I32EQ,
-                    IfBranch(node.printer.instrs, lastCase)
-                )
-            }
+            cases.add(node.printer.instrs)
         }
 
-        lastCase!!
-
-        val loopInstr = LoopInstr("stack${mt.nextLoopIndex++}", lastCase, emptyList(), emptyList())
-        lastCase.add(Jump(loopInstr))
+        // dispatch via br_table, the last node is the default
+        cases.reverse()
+        val table = IntArray(cases.lastIndex) { it }
+        val body = arrayListOf<Instruction>(caseVariable.getter, SwitchCase("stackSwitch${mt.nextLoopIndex++}", table, cases))
+        val loopInstr = LoopInstr("stack${mt.nextLoopIndex++}", body, emptyList(), emptyList())
+        body.add(Jump(loopInstr))
 
         val result = Builder(4)
         result.append(i32Const0).append(caseVariable.setter)
@@ -51,6 +51,10 @@ object StackDepthTester {
                     minDepth = min(minDepth, depth)
                     depth += instr.results.size
                 }
+                is SwitchCase -> {
+                    depth-- // index
+                    minDepth = min(minDepth, depth)
+                }
                 is LoopInstr -> {
                     depth -= instr.params.size
                     minDepth = min(minDepth, depth)
@@ -77,6 +81,15 @@ object StackDepthTester {
                     depth -= 2
                     minDepth = min(minDepth, depth)
                 }
+                is BulkMemoryInstr -> {
+                    depth -= 3
+                    minDepth = min(minDepth, depth)
+                }
+                is AtomicInstr -> {
+                    depth -= instr.params.size
+                    minDepth = min(minDepth, depth)
+                    depth += instr.results.size
+                }
                 else -> throw NotImplementedError("Unknown instr: ${instr.javaClass.simpleName}")
             }
         }
@@ -230,6 +230,16 @@ object StackValidator {
                     stack.addAll(instr.results)
                 }
             }
+            is SwitchCase -> {
+                stack.pop(i32)
+                for (case in instr.cases) {
+                    validateStack3(
+                        sig, case, emptyList(), emptyList(),
+                        returnResults, localVarTypes, paramsTypes, depth + 1
+                    )
+                }
+                if (instr.isReturning()) return true
+            }
             is Const -> stack.push(instr.type.wasmName)
             is StringConst -> stack.push("java/lang/String")
             is Comment -> {} // ignored
@@ -285,6 +295,13 @@ object StackValidator {
                 // todo check results match stack
             }
             is StoreInstr -> stack.pop(instr.wasmType).pop(ptrType)
+            is BulkMemoryInstr -> stack.pop(ptrType).pop(instr.valueType).pop(ptrType)
+            is AtomicInstr -> {
+                for (k in instr.params.lastIndex downTo 0) {
+                    stack.pop(instr.params[k])
+                }
+                stack.addAll(instr.results)
+            }
             PtrDupInstr -> stack.pop(ptrType).push(ptrType).push(ptrType)
             is HighLevelInstruction -> {
                 for (lowInstr in instr.toLowLevel()) {
@@ -1,6 +1,7 @@
 package graphing
 
 import crashOnAllExceptions
+import graphing.CollapseSwitchTree.tryCollapseSwitch
 import graphing.ExtractBigLoop.tryExtractBigLoop
 import graphing.ExtractEndNodes.tryExtractEnd
 import graphing.SolveLinearTree.trySolveLinearTree
@@ -33,6 +34,8 @@ import wasm.instr.Instructions.I64LTS
 import wasm.instr.Instructions.I64NE
 import wasm.instr.Instructions.Unreachable
 import java.io.File
+import java.util.Collections
+import java.util.IdentityHashMap
 
 /**
  * Transforms an arbitrary code-graph into a structure out of ifs and whiles.
@@ -154,6 +157,45 @@ class StructuralAnalysis(
 
     val sig get() = methodTranslator.sig
 
+    /**
+     * compare-trees of dense switches, which still may become a br_table;
+     * other steps leave their nodes alone, until the analysis gets stuck
+     * */
+    private val pendingSwitches = ArrayList<SwitchTree>()
+    private val pendingSwitchPrinters = Collections.newSetFromMap(IdentityHashMap<Builder, Boolean>())
+
+    private fun isPendingSwitch(node: GraphingNode): Boolean {
+        return node.printer in pendingSwitchPrinters
+    }
+
+    private fun findPendingSwitches() {
+        for (tree in methodTranslator.switchTrees) {
+            if (tree.printers.all { printer -> nodes.any { it.printer === printer } }) {
+                pendingSwitches.add(tree)
+                pendingSwitchPrinters.addAll(tree.printers)
+            }
+        }
+    }
+
+    private fun collapseSwitchTrees(): Boolean {
+        val changed = pendingSwitches.removeIf { tree -> tryCollapseSwitch(this, tree) }
+        if (changed) {
+            pendingSwitchPrinters.clear()
+            for (tree in pendingSwitches) {
+                pendingSwitchPrinters.addAll(tree.printers)
+            }
+            if (printOps) printState(nodes, "Collapsed switch")
+        }
+        return changed
+    }
+
+    private fun releasePendingSwitches(): Boolean {
+        if (pendingSwitches.isEmpty()) return false
+        pendingSwitches.clear()
+        pendingSwitchPrinters.clear()
+        return true
+    }
+
     private fun checkState(node: GraphingNode, nextNode: GraphingNode, nodeSet: Set<GraphingNode>) {
         if (node !in nextNode.inputs) {
             printState(nodes, "Invalid inputs:")
@@ -281,7 +323,7 @@ class StructuralAnalysis(
         return if (isNode == oldNode) newNode else isNode
     }
 
-    private fun recalculateInputs() {
+    fun recalculateInputs() {
         for (i in nodes.indices) {
             nodes[i].inputs.clear()
         }
@@ -375,7 +417,7 @@ class StructuralAnalysis(
     }
 
     private fun isComplexInstr(it: Instruction): Boolean {
-        return it is IfBranch || it is LoopInstr
+        return it is IfBranch || it is LoopInstr || it is SwitchCase
     }
 
     private fun joinFirstSequence(): Boolean {
@@ -567,7 +609,7 @@ class StructuralAnalysis(
         var changed = false
         for (i in nodes.indices) {
             val node = nodes.getOrNull(i) ?: break
-            if (node !is BranchNode) continue
+            if (node !is BranchNode || isPendingSwitch(node)) continue
             val ifTrue = node.ifTrue
             val ifFalse = node.ifFalse
             if (ifTrue == ifFalse) continue
@@ -617,7 +659,7 @@ class StructuralAnalysis(
         var changed = false
         for (i in nodes.indices) {
             val node = nodes[i] as? BranchNode ?: continue
-            if (node.ifTrue == node.ifFalse) continue
+            if (node.ifTrue == node.ifFalse || isPendingSwitch(node)) continue
             if (node == node.ifTrue) {
                 renumber(nodes)
                 // A ? A : B
@@ -667,7 +709,7 @@ class StructuralAnalysis(
         var changed = false
         for (i in nodes.indices) {
             val node = nodes.getOrNull(i) ?: break
-            if (node is BranchNode) {
+            if (node is BranchNode && !isPendingSwitch(node)) {
                 val b0 = node.ifFalse
                 val b1 = node.ifTrue
                 if (b0 is SequenceNode && b0.inputs.size == 1 && b0.next == b1) {
@@ -691,7 +733,7 @@ class StructuralAnalysis(
         var changed = false
         for (i in nodes.indices) {
             val nodeA = nodes.getOrNull(i) ?: break
-            if (nodeA is BranchNode) {
+            if (nodeA is BranchNode && !isPendingSwitch(nodeA)) {
                 val nodeB = nodeA.ifTrue
                 val nodeC = nodeA.ifFalse
                 if (
@@ -753,7 +795,7 @@ class StructuralAnalysis(
         var changed = false
         for (i in nodes.indices) {
             val node = nodes.getOrNull(i) ?: break
-            if (node is BranchNode) {
+            if (node is BranchNode && !isPendingSwitch(node)) {
                 val b0 = node.ifFalse
                 val b1 = node.ifTrue
 
@@ -830,7 +872,7 @@ class StructuralAnalysis(
         for (i in nodes.indices) {
 
             val nodeA = nodes.getOrNull(i) ?: break
-            if (nodeA !is BranchNode) continue
+            if (nodeA !is BranchNode || isPendingSwitch(nodeA)) continue
 
             fun isSmallCircle(nextNode: GraphingNode): Boolean {
                 return nextNode is SequenceNode &&
@@ -894,7 +936,7 @@ class StructuralAnalysis(
         for (i in nodes.indices) {
 
             val nodeA = nodes.getOrNull(i) ?: break
-            if (nodeA !is BranchNode) continue
+            if (nodeA !is BranchNode || isPendingSwitch(nodeA)) continue
 
             fun isValidBAndC(nodeB: GraphingNode, nodeC: GraphingNode): Boolean {
                 // check that B only goes to A and C
@@ -1045,10 +1087,11 @@ class StructuralAnalysis(
         }
 
         validateNodes1(nodes, methodTranslator)
+        findPendingSwitches()
 
         while (true) {
             var hadAnyChange = false
-            for (step in 0..14) {
+            for (step in 0..15) {
                 while (true) {
                     val hadStepChange = when (step) {
                         0 -> removeEmptyIfStatements()
@@ -1066,6 +1109,7 @@ class StructuralAnalysis(
                         12 -> findSmallCircleA()
                         13 -> findSmallCircleB()
                         14 -> removeNodesWithoutInputs()
+                        15 -> collapseSwitchTrees()
                         else -> false
                     }
                     if (hadStepChange) {
@@ -1080,6 +1124,11 @@ class StructuralAnalysis(
                 }
             }
 
+            if (!hadAnyChange) {
+                // the cases didn't become simple enough, so solve the compare-trees like any other branches
+                hadAnyChange = releasePendingSwitches()
+            }
+
             if (!hadAnyChange) {
                 checkState()
                 if (trySolveLinearTree(nodes, methodTranslator, true, emptyMap())) {
@@ -0,0 +1,9 @@
+package graphing
+
+import utils.Builder
+
+/**
+ * Compare-tree of a dense switch, which StructuralAnalysis may collapse into a single SwitchCase (br_table).
+ * Nodes are identified by their printers, the root comes first; all keys are within min..max.
+ * */
+class SwitchTree(val printers: List<Builder>, val min: Int, val max: Int)
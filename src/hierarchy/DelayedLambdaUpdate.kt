@@ -27,6 +27,11 @@ class DelayedLambdaUpdate(
     val bridgeMethod: MethodSig,
 ) {
 
+    /**
+     * variants of bridgeMethod, which take and return primitives, see PrimitiveLambdaSpecializer
+     * */
+    val specializedBridges = ArrayList<MethodSig>()
+
     private fun isNative(type: String?): Boolean {
         return type != null && type in NativeTypes.nativeTypes
     }
@@ -125,6 +130,10 @@ class DelayedLambdaUpdate(
         if (needsSelf) fields += FieldSig(synthClassName, "self", "java/lang/Object", false)
         dIndex.getterDependencies[bridgeMethod] = fields
         dIndex.setterDependencies[bridgeMethod] = fields
+        for (bridge in specializedBridges) {
+            dIndex.getterDependencies[bridge] = fields
+            dIndex.setterDependencies[bridge] = fields
+        }
     }
 
     private val isInterface
@@ -134,7 +143,24 @@ class DelayedLambdaUpdate(
     private val needsSelf get() = (!callingStatic || !isInterface)
     val usesSelf get() = hIndex.usesSelf[calledMethod] == true
 
+    /**
+     * the type, which calledMethod expects for the given parameter of the bridge method;
+     * null, if that parameter becomes the instance, on which calledMethod is called
+     * */
+    fun getTargetType(bridgeParamIndex: Int): String? {
+        val offset = if (needsSelf && !callingStatic) -1 else 0
+        return calledMethod.descriptor.params.getOrNull(offset + descriptor.params.size + bridgeParamIndex)
+    }
+
     fun generateSyntheticMethod() {
+        generateSyntheticMethod(bridgeMethod)
+        for (bridge in specializedBridges) {
+            // primitives, which calledMethod takes and returns directly, aren't boxed in these
+            generateSyntheticMethod(bridge)
+        }
+    }
+
+    private fun generateSyntheticMethod(bridgeMethod: MethodSig) {
 
         // build synthetic method code
         val mt = MethodTranslator(0, bridgeMethod.className, bridgeMethod.name, bridgeMethod.descriptor)
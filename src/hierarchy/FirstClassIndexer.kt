@@ -4,13 +4,13 @@ import hIndex
 import hierarchy.HierarchyIndex.methodFlags
 import me.anno.utils.types.Booleans.hasFlag
 import org.apache.logging.log4j.LogManager
-import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.FieldVisitor
 import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes.*
 import replaceClass
 import replaceClassNullable
+import specializePrimitiveLambdas
 import utils.*
 import java.io.IOException
 
@@ -72,7 +72,7 @@ class FirstClassIndexer(val clazz: String) : ClassVisitor(API_LEVEL) {
                     val next = replaceClass(next0)
                     if (!next.startsWith("[") && hIndex.doneClasses.add(next)) {
                         try {
-                            ClassReader(next)
+                            ClassRepository.getReader(next)
                                 .accept(FirstClassIndexer(next), 0)
                         } catch (e: IOException) {
                             LOGGER.warn("Missing $next by $self")
@@ -246,7 +246,13 @@ class FirstClassIndexer(val clazz: String) : ClassVisitor(API_LEVEL) {
             dep(type)
         }
 
-        return FirstMethodIndexer(sig, this, isStatic)
+        val indexer = FirstMethodIndexer(sig, this, isStatic)
+        return if (specializePrimitiveLambdas) {
+            PrimitiveCallSiteVisitor(indexer) { site ->
+                PrimitiveLambdaSpecializer.addCallSite(sig, site)
+                null // the indexer sees the original instructions
+            }
+        } else indexer
     }
 
     override fun visitField(
@@ -5,6 +5,8 @@ import gIndex
 import hIndex
 import hierarchy.DelayedLambdaUpdate.Companion.getSynthClassName
 import hierarchy.DelayedLambdaUpdate.Companion.needingBridgeUpdate
+import jvm.JVMFlags.useBulkMemory
+import jvm.JVMFlags.useSharedMemory
 import org.objectweb.asm.*
 import org.objectweb.asm.Opcodes.*
 import replaceClass
@@ -12,8 +14,21 @@ import useResultForThrowables
 import utils.*
 import utils.CommonInstructions.INVOKE_INTERFACE
 import utils.CommonInstructions.NEW_INSTR
+import wasm.instr.AtomicInstructions.I32AtomicLoad
+import wasm.instr.AtomicInstructions.I32AtomicRMWAdd
+import wasm.instr.AtomicInstructions.I32AtomicRMWCmpxchg
+import wasm.instr.AtomicInstructions.I32AtomicRMWXchg
+import wasm.instr.AtomicInstructions.I32AtomicStore
+import wasm.instr.AtomicInstructions.I64AtomicLoad
+import wasm.instr.AtomicInstructions.I64AtomicRMWAdd
+import wasm.instr.AtomicInstructions.I64AtomicRMWCmpxchg
+import wasm.instr.AtomicInstructions.I64AtomicStore
+import wasm.instr.AtomicInstructions.MemoryAtomicNotify
+import wasm.instr.AtomicInstructions.MemoryAtomicWait32
 import wasm.instr.CallIndirect
 import wasm.instr.FuncType
+import wasm.instr.Instructions.MemoryCopy
+import wasm.instr.Instructions.MemoryFill
 
 class FirstMethodIndexer(val sig: MethodSig, val clazz: FirstClassIndexer, val isStatic: Boolean) :
     MethodVisitor(FirstClassIndexer.API_LEVEL) {
@@ -350,6 +365,42 @@ class FirstMethodIndexer(val sig: MethodSig, val clazz: FirstClassIndexer, val i
         }
     }
 
+    /**
+     * memoryCopy and memoryFill have a Java fallback, which is replaced by the bulk-memory instructions, if enabled
+     * */
+    private fun addBulkMemoryWASM() {
+        if (!useBulkMemory) return
+        val code = when {
+            sig.className == "jvm/JavaLang" && sig.name == "memoryCopy" -> MemoryCopy.name
+            sig.className == "jvm/JVMShared" && sig.name == "memoryFill" -> MemoryFill.name
+            else -> return
+        }
+        hIndex.addAnnotation(sig, Annota(Annotations.WASM, hashMapOf("code" to code)))
+    }
+
+    /**
+     * with shared memory, the atomic natives of NativeThreads become instructions from the threads proposal;
+     * the C++ target implements them using std::atomic_ref instead
+     * */
+    private fun addAtomicWASM() {
+        if (!useSharedMemory || sig.className != "jvm/NativeThreads") return
+        val instr = when (sig.name) {
+            "atomicLoadI32" -> I32AtomicLoad
+            "atomicStoreI32" -> I32AtomicStore
+            "atomicAddI32" -> I32AtomicRMWAdd
+            "atomicExchangeI32" -> I32AtomicRMWXchg
+            "atomicCompareExchangeI32" -> I32AtomicRMWCmpxchg
+            "atomicLoadI64" -> I64AtomicLoad
+            "atomicStoreI64" -> I64AtomicStore
+            "atomicAddI64" -> I64AtomicRMWAdd
+            "atomicCompareExchangeI64" -> I64AtomicRMWCmpxchg
+            "atomicWaitI32" -> MemoryAtomicWait32
+            "atomicNotify" -> MemoryAtomicNotify
+            else -> return
+        }
+        hIndex.addAnnotation(sig, Annota(Annotations.WASM, hashMapOf("code" to instr.name)))
+    }
+
     private fun findIsGetterOrSetter() {
         if (lastField != null && (isGetter || isSetter)) {
             if (isGetter && instructionIndex != 3) isGetter = false
@@ -362,6 +413,8 @@ class FirstMethodIndexer(val sig: MethodSig, val clazz: FirstClassIndexer, val i
     override fun visitEnd() {
         registerDependencies()
         addCallIndirect()
+        addBulkMemoryWASM()
+        addAtomicWASM()
         findIsGetterOrSetter()
     }
 
@@ -0,0 +1,261 @@
+package hierarchy
+
+import org.objectweb.asm.*
+import org.objectweb.asm.Opcodes.*
+import utils.Descriptor
+import utils.MethodSig
+import utils.NativeTypes
+
+/**
+ * Finds the pattern, which javac and kotlinc generate for calling a functional interface with primitives,
+ *   Integer.valueOf(x); invokeinterface I.m(..., Object)Object; checkcast Number; Number.floatValue(),
+ * where both the boxing and the unboxing are optional.
+ * If getSpecialization returns a method for such a call site, the sequence is replaced by a single call to it,
+ * which takes and returns the primitives directly; all other instructions are passed on unchanged.
+ * */
+class PrimitiveCallSiteVisitor(
+    next: MethodVisitor,
+    private val getSpecialization: (PrimitiveCallSite) -> MethodSig?
+) : MethodVisitor(FirstClassIndexer.API_LEVEL, next) {
+
+    /**
+     * an interface call, whose last argument is boxed right before, and/or whose result is unboxed right after it;
+     * paramType and returnType are the primitives, e.g. "int", or null, if that side isn't boxed
+     * */
+    data class PrimitiveCallSite(
+        val method: MethodSig,
+        val rawDescriptor: String,
+        val paramType: String?,
+        val returnType: String?,
+    ) {
+        /**
+         * descriptor of the specialized method: the boxed parameter and result are replaced by their primitives
+         * */
+        val specializedDescriptor: String
+            get() {
+                val params = Type.getArgumentTypes(rawDescriptor)
+                if (paramType != null) params[params.lastIndex] = getPrimitiveType(paramType)
+                val returnType = if (returnType != null) getPrimitiveType(returnType)
+                else Type.getReturnType(rawDescriptor)
+                return Type.getMethodDescriptor(returnType, *params)
+            }
+
+        private fun getPrimitiveType(type: String): Type {
+            return Type.getType(NativeTypes.nativeMappingInv[type]!!.toString())
+        }
+    }
+
+    private var boxedType: String? = null
+    private var callOwner: String? = null
+    private var callName = ""
+    private var callDescriptor = ""
+    private var castType: String? = null
+    private var unboxOwner = ""
+
+    private fun getBoxedType(opcode: Int, owner: String, name: String, descriptor: String): String? {
+        if (opcode != INVOKESTATIC || name != "valueOf" || descriptor.length < 4) return null
+        val type = NativeTypes.nativeMapping[descriptor[1]] ?: return null
+        return if (NativeTypes.nativeTypeWrappers[type] == owner && descriptor == "(${descriptor[1]})L$owner;") {
+            type
+        } else null
+    }
+
+    private fun getUnboxedType(opcode: Int, owner: String, name: String, descriptor: String): String? {
+        if (opcode != INVOKEVIRTUAL || descriptor.length != 3 || !descriptor.startsWith("()")) return null
+        val type = NativeTypes.nativeMapping[descriptor[2]] ?: return null
+        if (name != "${type}Value") return null
+        return if (owner == castType && (owner == NUMBER || NativeTypes.nativeTypeWrappers[type] == owner)) {
+            type
+        } else null
+    }
+
+    private fun isLastParamReference(descriptor: String): Boolean {
+        val params = Type.getArgumentTypes(descriptor)
+        return params.isNotEmpty() && params.last().sort >= Type.ARRAY
+    }
+
+    private fun isReturnReference(descriptor: String): Boolean {
+        return Type.getReturnType(descriptor).sort >= Type.ARRAY
+    }
+
+    /**
+     * emits everything, which is pending, in its original form
+     * */
+    private fun flush() {
+        val boxedType = boxedType
+        if (boxedType != null) {
+            emitBoxing(boxedType)
+            this.boxedType = null
+        }
+        val callOwner = callOwner
+        if (callOwner != null) {
+            finishCall(null)
+        }
+    }
+
+    private fun emitBoxing(type: String) {
+        val owner = NativeTypes.nativeTypeWrappers[type]!!
+        val symbol = NativeTypes.nativeMappingInv[type]!!
+        super.visitMethodInsn(INVOKESTATIC, owner, "valueOf", "($symbol)L$owner;", false)
+    }
+
+    private fun finishCall(unboxedType: String?) {
+        val callOwner = callOwner!!
+        val boxedType = boxedType
+        val castType = castType
+        this.callOwner = null
+        this.boxedType = null
+        this.castType = null
+        val site = PrimitiveCallSite(
+            MethodSig.c(Descriptor.parseTypeMixed(callOwner), callName, callDescriptor),
+            callDescriptor, boxedType, unboxedType
+        )
+        val specialized = if (boxedType != null || unboxedType != null) getSpecialization(site) else null
+        if (specialized != null) {
+            super.visitMethodInsn(INVOKEINTERFACE, callOwner, specialized.name, site.specializedDescriptor, true)
+        } else {
+            if (boxedType != null) emitBoxing(boxedType)
+            super.visitMethodInsn(INVOKEINTERFACE, callOwner, callName, callDescriptor, true)
+            if (castType != null) super.visitTypeInsn(CHECKCAST, castType)
+            if (unboxedType != null) {
+                val symbol = NativeTypes.nativeMappingInv[unboxedType]!!
+                super.visitMethodInsn(INVOKEVIRTUAL, unboxOwner, "${unboxedType}Value", "()$symbol", false)
+            }
+        }
+    }
+
+    override fun visitMethodInsn(opcode: Int, owner: String, name: String, descriptor: String, isInterface: Boolean) {
+        if (callOwner != null) {
+            val unboxedType = if (castType != null) getUnboxedType(opcode, owner, name, descriptor) else null
+            if (unboxedType != null) {
+                unboxOwner = owner
+                finishCall(unboxedType)
+                return
+            }
+            finishCall(null)
+        }
+        if (opcode == INVOKEINTERFACE) {
+            val boxedType = boxedType
+            if (boxedType != null && !isLastParamReference(descriptor)) {
+                emitBoxing(boxedType)
+                this.boxedType = null
+            }
+            callOwner = owner
+            callName = name
+            callDescriptor = descriptor
+            return
+        }
+        flush()
+        val boxedType = getBoxedType(opcode, owner, name, descriptor)
+        if (boxedType != null) {
+            this.boxedType = boxedType
+        } else {
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface)
+        }
+    }
+
+    override fun visitTypeInsn(opcode: Int, type: String) {
+        if (opcode == CHECKCAST && callOwner != null && castType == null && isReturnReference(callDescriptor) &&
+            (type == NUMBER || type in NativeTypes.nativeTypeWrappers.values)
+        ) {
+            castType = type
+            return
+        }
+        flush()
+        super.visitTypeInsn(opcode, type)
+    }
+
+    override fun visitInsn(opcode: Int) {
+        flush()
+        super.visitInsn(opcode)
+    }
+
+    override fun visitIntInsn(opcode: Int, operand: Int) {
+        flush()
+        super.visitIntInsn(opcode, operand)
+    }
+
+    override fun visitVarInsn(opcode: Int, varIndex: Int) {
+        flush()
+        super.visitVarInsn(opcode, varIndex)
+    }
+
+    override fun visitFieldInsn(opcode: Int, owner: String, name: String, descriptor: String) {
+        flush()
+        super.visitFieldInsn(opcode, owner, name, descriptor)
+    }
+
+    override fun visitInvokeDynamicInsn(name: String, descriptor: String, method: Handle, vararg args: Any) {
+        flush()
+        super.visitInvokeDynamicInsn(name, descriptor, method, *args)
+    }
+
+    override fun visitJumpInsn(opcode: Int, label: Label) {
+        flush()
+        super.visitJumpInsn(opcode, label)
+    }
+
+    override fun visitLabel(label: Label) {
+        flush()
+        super.visitLabel(label)
+    }
+
+    override fun visitLdcInsn(value: Any) {
+        flush()
+        super.visitLdcInsn(value)
+    }
+
+    override fun visitIincInsn(varIndex: Int, increment: Int) {
+        flush()
+        super.visitIincInsn(varIndex, increment)
+    }
+
+    override fun visitTableSwitchInsn(min: Int, max: Int, dflt: Label, vararg labels: Label) {
+        flush()
+        super.visitTableSwitchInsn(min, max, dflt, *labels)
+    }
+
+    override fun visitLookupSwitchInsn(dflt: Label, keys: IntArray, labels: Array<out Label>) {
+        flush()
+        super.visitLookupSwitchInsn(dflt, keys, labels)
+    }
+
+    override fun visitMultiANewArrayInsn(descriptor: String, numDimensions: Int) {
+        flush()
+        super.visitMultiANewArrayInsn(descriptor, numDimensions)
+    }
+
+    override fun visitInsnAnnotation(typeRef: Int, typePath: TypePath?, descriptor: String, visible: Boolean): AnnotationVisitor? {
+        flush()
+        return super.visitInsnAnnotation(typeRef, typePath, descriptor, visible)
+    }
+
+    override fun visitTryCatchBlock(start: Label, end: Label, handler: Label, type: String?) {
+        flush()
+        super.visitTryCatchBlock(start, end, handler, type)
+    }
+
+    override fun visitFrame(type: Int, numLocal: Int, local: Array<out Any>?, numStack: Int, stack: Array<out Any>?) {
+        flush()
+        super.visitFrame(type, numLocal, local, numStack, stack)
+    }
+
+    override fun visitLineNumber(line: Int, start: Label) {
+        flush()
+        super.visitLineNumber(line, start)
+    }
+
+    override fun visitMaxs(maxStack: Int, maxLocals: Int) {
+        flush()
+        super.visitMaxs(maxStack, maxLocals)
+    }
+
+    override fun visitEnd() {
+        flush()
+        super.visitEnd()
+    }
+
+    companion object {
+        private const val NUMBER = "java/lang/Number"
+    }
+}
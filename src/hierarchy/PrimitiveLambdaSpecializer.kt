@@ -0,0 +1,147 @@
+package hierarchy
+
+import dIndex
+import hIndex
+import hierarchy.PrimitiveCallSiteVisitor.PrimitiveCallSite
+import me.anno.utils.algorithms.Recursion
+import org.apache.logging.log4j.LogManager
+import org.objectweb.asm.Opcodes.ACC_ABSTRACT
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import utils.INSTANCE_INIT
+import utils.MethodSig
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Calls like f.invoke(Integer.valueOf(x)) on a Kotlin (Int) -> Float box the argument,
+ * and the lambda bridge unboxes it again; the same happens to the result in the opposite direction.
+ *
+ * When all implementations of such an interface method are lambdas, whose targets take and return exactly these primitives,
+ * the interface gets a variant with the primitive descriptor, each lambda gets a bridge for it without any boxing,
+ * and PrimitiveCallSiteVisitor replaces these call sites by calls to the variant.
+ * Other call sites of the interface method keep using the boxing bridge.
+ * */
+object PrimitiveLambdaSpecializer {
+
+    private val LOGGER = LogManager.getLogger(PrimitiveLambdaSpecializer::class)
+
+    /**
+     * name suffix of specialized interface methods and bridges
+     * */
+    private const val SUFFIX = "\$unboxed"
+
+    private val callSites = HashMap<PrimitiveCallSite, HashSet<MethodSig>>()
+
+    /**
+     * call site -> specialized interface method; read-only while translating
+     * */
+    val specializations = HashMap<PrimitiveCallSite, MethodSig>()
+
+    private val numSpecializedCalls = AtomicInteger()
+    private val numRemovedBoxings = AtomicInteger()
+    private val numRemovedUnboxings = AtomicInteger()
+
+    /**
+     * called by FirstMethodIndexer for each matching call site in caller
+     * */
+    fun addCallSite(caller: MethodSig, site: PrimitiveCallSite) {
+        callSites.getOrPut(site, ::HashSet).add(caller)
+    }
+
+    /**
+     * called while translating a call site
+     * */
+    fun getSpecialization(site: PrimitiveCallSite): MethodSig? {
+        val specialized = specializations[site] ?: return null
+        if (specialized !in dIndex.usedInterfaceCalls) return null
+        numSpecializedCalls.incrementAndGet()
+        if (site.paramType != null) numRemovedBoxings.incrementAndGet()
+        if (site.returnType != null) numRemovedUnboxings.incrementAndGet()
+        return specialized
+    }
+
+    /**
+     * must be called after the hierarchy is complete, and before dependencies are resolved
+     * */
+    fun specializeLambdas() {
+        var numLambdas = 0
+        for ((site, callers) in callSites) {
+            val lambdas = findLambdaImplementations(site.method) ?: continue
+            if (lambdas.isEmpty() || !lambdas.all { canSpecialize(it, site) }) continue
+
+            val specialized = MethodSig.c(site.method.className, site.method.name + SUFFIX, site.specializedDescriptor)
+            if (specialized in (hIndex.methodsByClass[specialized.className] ?: emptySet())) continue
+            registerInterfaceMethod(specialized)
+            for (lambda in lambdas) {
+                registerBridge(lambda, specialized)
+            }
+            numLambdas += lambdas.size
+
+            for (caller in callers) {
+                dIndex.interfaceDependencies.getOrPut(caller, ::HashSet).add(specialized)
+            }
+            dIndex.knownInterfaceDependencies.add(specialized)
+            specializations[site] = specialized
+        }
+        LOGGER.info(
+            "Specialized ${specializations.size}/${callSites.size} primitive interface calls, " +
+                    "$numLambdas unboxed bridges"
+        )
+        callSites.clear()
+    }
+
+    /**
+     * all classes, which might implement method, or null, if any of them isn't a lambda
+     * */
+    private fun findLambdaImplementations(method: MethodSig): Collection<DelayedLambdaUpdate>? {
+        if (!hIndex.isInterfaceClass(method.className)) return null
+        val lambdas = LinkedHashSet<DelayedLambdaUpdate>()
+        var isSpecializable = true
+        Recursion.processRecursive(method.className) { clazz, remaining ->
+            if (hIndex.isInterfaceClass(clazz)) {
+                remaining.addAll(hIndex.childClasses[clazz] ?: emptySet())
+            } else {
+                val lambda = DelayedLambdaUpdate.needingBridgeUpdate[clazz]
+                if (lambda != null) lambdas.add(lambda)
+                else isSpecializable = false
+            }
+        }
+        return if (isSpecializable) lambdas else null
+    }
+
+    /**
+     * whether the target of lambda takes and returns exactly the primitives of site
+     * */
+    private fun canSpecialize(lambda: DelayedLambdaUpdate, site: PrimitiveCallSite): Boolean {
+        val bridge = lambda.bridgeMethod
+        if (bridge.name != site.method.name || bridge.descriptor != site.method.descriptor) return false
+        val target = lambda.calledMethod
+        if (target.name == INSTANCE_INIT) return false
+        if (site.paramType != null &&
+            lambda.getTargetType(bridge.descriptor.params.lastIndex) != site.paramType
+        ) return false
+        if (site.returnType != null && target.descriptor.returnType != site.returnType) return false
+        return true
+    }
+
+    private fun registerInterfaceMethod(specialized: MethodSig) {
+        hIndex.registerMethod(specialized)
+        hIndex.methodFlags[specialized] = ACC_PUBLIC or ACC_ABSTRACT
+        hIndex.abstractMethods.add(specialized)
+        hIndex.notImplementedMethods.add(specialized)
+    }
+
+    private fun registerBridge(lambda: DelayedLambdaUpdate, specialized: MethodSig) {
+        val bridge = specialized.withClass(lambda.bridgeMethod.className)
+        hIndex.registerMethod(bridge)
+        hIndex.jvmImplementedMethods.add(bridge)
+        dIndex.methodDependencies[bridge] = hashSetOf(lambda.calledMethod)
+        lambda.specializedBridges.add(bridge)
+    }
+
+    fun printStatistics() {
+        LOGGER.info(
+            "Unboxed lambda calls: ${numSpecializedCalls.get()}, " +
+                    "removed ${numRemovedBoxings.get()} boxings and ${numRemovedUnboxings.get()} unboxings"
+        )
+    }
+}
@@ -2,11 +2,16 @@ package highlevel
 
 import utils.MethodSig
 import wasm.instr.Call
+import wasm.instr.Const.Companion.i32Const
 import wasm.instr.FuncType
+import wasm.instr.Instruction
 
+/**
+ * cacheSlot is the index of this call site's inline cache, or -1, if it has none
+ * */
 class InvokeInterfaceInstr(
     original: MethodSig, resolvedMethods: Set<MethodSig>, funcType: FuncType,
-    stackPushId: Int, val interfaceId: Int,
+    stackPushId: Int, val interfaceId: Int, val cacheSlot: Int,
 ) : UnresolvedMethodInstr(original, resolvedMethods, funcType, stackPushId) {
     override fun getResolutionCall(): Call {
         return Call.resolveInterface
@@ -15,4 +20,10 @@ class InvokeInterfaceInstr(
     override fun getResolutionId(): Int {
         return interfaceId
     }
+
+    override fun getResolution(): List<Instruction> {
+        return if (cacheSlot >= 0) {
+            listOf(i32Const(interfaceId), i32Const(cacheSlot), Call.resolveInterfaceCached)
+        } else super.getResolution()
+    }
 }
\ No newline at end of file
@@ -17,19 +17,20 @@ abstract class UnresolvedMethodInstr(
     abstract fun getResolutionCall(): Call
     abstract fun getResolutionId(): Int
 
+    /**
+     * instance -> function index
+     * */
+    open fun getResolution(): List<Instruction> {
+        return listOf(i32Const(getResolutionId()), getResolutionCall())
+    }
+
     override fun toLowLevel(): List<Instruction> {
         return if (stackPushId >= 0) {
-            listOf(
-                i32Const(stackPushId), Call.stackPush,
-                i32Const(getResolutionId()), getResolutionCall(),
-                CallIndirect(funcType, resolvedMethods),
-                Call.stackPop
-            )
+            listOf(i32Const(stackPushId), Call.stackPush) +
+                    getResolution() +
+                    listOf(CallIndirect(funcType, resolvedMethods), Call.stackPop)
         } else {
-            listOf(
-                i32Const(getResolutionId()), getResolutionCall(),
-                CallIndirect(funcType, resolvedMethods),
-            )
+            getResolution() + CallIndirect(funcType, resolvedMethods)
         }
     }
 }
\ No newline at end of file
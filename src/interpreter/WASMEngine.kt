@@ -101,6 +101,7 @@ class WASMEngine(memorySize: Int) {
                 resolveCalls(i.ifFalse, byLabel),
                 i.params, i.results
             )
+            is SwitchCase -> SwitchCase(i.label, i.table, i.cases.map { resolveCalls(it, byLabel) })
             else -> i
         }
     }
@@ -318,8 +319,12 @@ class WASMEngine(memorySize: Int) {
         return null
     }
 
+    fun findFunction(name: String): FunctionImpl? {
+        return functionByName[name]
+    }
+
     fun executeFunction(name: String): Boolean {
-        val function = functionByName[name]
+        val function = findFunction(name)
             ?: return false
         executeFunction(function)
         return true
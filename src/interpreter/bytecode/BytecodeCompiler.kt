@@ -0,0 +1,325 @@
+package interpreter.bytecode
+
+import highlevel.HighLevelInstruction
+import interpreter.bytecode.BytecodeOps.BR
+import interpreter.bytecode.BytecodeOps.BR_IF
+import interpreter.bytecode.BytecodeOps.BR_IF_UNWIND
+import interpreter.bytecode.BytecodeOps.BR_TABLE
+import interpreter.bytecode.BytecodeOps.BR_UNWIND
+import interpreter.bytecode.BytecodeOps.CALL
+import interpreter.bytecode.BytecodeOps.CALL_INDIRECT
+import interpreter.bytecode.BytecodeOps.END_OF_FUNCTION
+import interpreter.bytecode.BytecodeOps.F32_CONST
+import interpreter.bytecode.BytecodeOps.F64_CONST
+import interpreter.bytecode.BytecodeOps.GLOBAL_GET
+import interpreter.bytecode.BytecodeOps.GLOBAL_SET
+import interpreter.bytecode.BytecodeOps.I32_CONST
+import interpreter.bytecode.BytecodeOps.I64_CONST
+import interpreter.bytecode.BytecodeOps.IF
+import interpreter.bytecode.BytecodeOps.LOCAL_GET
+import interpreter.bytecode.BytecodeOps.LOCAL_SET
+import interpreter.bytecode.BytecodeOps.MEMORY_COPY
+import interpreter.bytecode.BytecodeOps.MEMORY_FILL
+import interpreter.functions.ResolvedCall
+import me.anno.utils.structures.arrays.IntArrayList
+import utils.WASMType
+import wasm.instr.*
+import wasm.parser.FunctionImpl
+import kotlin.math.max
+
+/**
+ * Lowers the instruction tree of a function into BytecodeOps once:
+ * locals become numbered slots, labels become absolute pcs, and the operand stack height is known at every branch.
+ * */
+class BytecodeCompiler(private val engine: BytecodeEngine) {
+
+    private class LoopTarget(val label: String, val startPc: Int, val height: Int, val numParams: Int)
+
+    private val code = IntArrayList(256)
+    private val constants = ArrayList<Long>()
+    private val loops = ArrayList<LoopTarget>()
+    private val localSlots = HashMap<String, Int>()
+
+    private var height = 0
+    private var maxHeight = 0
+
+    fun compile(function: BytecodeFunction) {
+        val impl = function.impl
+        if (!canCompile(impl.body)) {
+            function.isFallback = true
+            function.fallbackUsesGlobals = usesGlobals(impl.body)
+            return
+        }
+
+        code.clear()
+        constants.clear()
+        loops.clear()
+        localSlots.clear()
+        height = 0
+        maxHeight = 0
+
+        val numParams = function.numParams
+        val locals = impl.locals
+        for (i in locals.indices) {
+            localSlots[locals[i].name] = numParams + i
+        }
+
+        if (compileList(impl.body)) {
+            code.add(END_OF_FUNCTION)
+        }
+
+        function.frameSize = numParams + locals.size
+        function.maxStackSize = maxHeight + 1
+        function.constants = constants.toLongArray()
+        function.code = code.toIntArray()
+    }
+
+    private fun canCompile(instructions: List<Instruction>): Boolean {
+        for (i in instructions.indices) {
+            val instr = instructions[i]
+            val supported = when (instr) {
+                is Comment, is Const, is ParamGet, is ParamSet, is LocalGet, is LocalSet,
+                is GlobalGet, is GlobalSet, is Call, is ResolvedCall, is CallIndirect,
+                is Jump, is JumpIf, is BulkMemoryInstr -> true
+                // SIMD and atomic opcodes follow a prefix, so they'd collide with the normal ones
+                is SIMDInstr, is AtomicInstr -> false
+                is SimpleInstr -> BytecodeOps.isSupported(instr.opcode)
+                is IfBranch -> canCompile(instr.ifTrue) && canCompile(instr.ifFalse)
+                is LoopInstr -> canCompile(instr.body)
+                is SwitchCase -> instr.cases.all { canCompile(it) }
+                is HighLevelInstruction -> canCompile(instr.toLowLevel())
+                else -> false
+            }
+            if (!supported) return false
+        }
+        return true
+    }
+
+    /**
+     * whether the tree-walker could read or write globals, when executing these instructions
+     * */
+    private fun usesGlobals(instructions: List<Instruction>): Boolean {
+        return instructions.any { instr ->
+            when (instr) {
+                is GlobalGet, is GlobalSet, is Call, is ResolvedCall, is CallIndirect -> true
+                is IfBranch -> usesGlobals(instr.ifTrue) || usesGlobals(instr.ifFalse)
+                is LoopInstr -> usesGlobals(instr.body)
+                is SwitchCase -> instr.cases.any { usesGlobals(it) }
+                is HighLevelInstruction -> usesGlobals(instr.toLowLevel())
+                else -> false
+            }
+        }
+    }
+
+    private fun push(delta: Int) {
+        height += delta
+        maxHeight = max(maxHeight, height)
+    }
+
+    private fun pop(delta: Int) {
+        height = max(height - delta, 0)
+    }
+
+    private fun emit(op: Int) {
+        code.add(op)
+    }
+
+    private fun emit(op: Int, immediate: Int) {
+        code.add(op)
+        code.add(immediate)
+    }
+
+    private fun addConstant(value: Long): Int {
+        constants.add(value)
+        return constants.lastIndex
+    }
+
+    /**
+     * returns whether the end of the list is reachable;
+     * instructions after an unconditional branch are dead, and skipped
+     * */
+    private fun compileList(instructions: List<Instruction>): Boolean {
+        for (i in instructions.indices) {
+            if (!compileInstr(instructions[i])) return false
+        }
+        return true
+    }
+
+    private fun compileInstr(instr: Instruction): Boolean {
+        when (instr) {
+            is Comment -> {}
+            is Const -> {
+                when (instr.type) {
+                    WASMType.I32 -> emit(I32_CONST, instr.value.toInt())
+                    WASMType.F32 -> emit(F32_CONST, instr.value.toFloat().toRawBits())
+                    WASMType.I64 -> emit(I64_CONST, addConstant(instr.value.toLong()))
+                    WASMType.F64 -> emit(F64_CONST, addConstant(instr.value.toDouble().toRawBits()))
+                }
+                push(1)
+            }
+            is ParamGet -> {
+                emit(LOCAL_GET, instr.index)
+                push(1)
+            }
+            is ParamSet -> {
+                emit(LOCAL_SET, instr.index)
+                pop(1)
+            }
+            is LocalGet -> {
+                emit(LOCAL_GET, getLocalSlot(instr.name))
+                push(1)
+            }
+            is LocalSet -> {
+                emit(LOCAL_SET, getLocalSlot(instr.name))
+                pop(1)
+            }
+            is GlobalGet -> {
+                emit(GLOBAL_GET, engine.getGlobalIndex(instr.name))
+                push(1)
+            }
+            is GlobalSet -> {
+                emit(GLOBAL_SET, engine.getGlobalIndex(instr.name))
+                pop(1)
+            }
+            is Call -> compileCall(engine.wasm.getFunction(instr.name))
+            is ResolvedCall -> compileCall(instr.function)
+            is CallIndirect -> {
+                emit(CALL_INDIRECT)
+                pop(1 + instr.type.params.size)
+                push(instr.type.results.size)
+            }
+            is IfBranch -> return compileIf(instr)
+            is LoopInstr -> return compileLoop(instr)
+            is SwitchCase -> return compileSwitch(instr)
+            is Jump -> {
+                compileJump(instr, BR, BR_UNWIND)
+                return false
+            }
+            is JumpIf -> {
+                pop(1)
+                compileJump(instr, BR_IF, BR_IF_UNWIND)
+            }
+            is HighLevelInstruction -> return compileList(instr.toLowLevel())
+            is ReturnInstr -> {
+                emit(instr.opcode.opcode)
+                return false
+            }
+            is StoreInstr -> {
+                emit(instr.opcode.opcode)
+                pop(2)
+            }
+            is BinaryInstruction -> {
+                emit(instr.opcode.opcode)
+                pop(1)
+            }
+            is Drop -> {
+                emit(instr.opcode.opcode)
+                pop(1)
+            }
+            is BulkMemoryInstr -> {
+                emit(if (instr.isCopy) MEMORY_COPY else MEMORY_FILL)
+                pop(3)
+            }
+            // unary instructions, loads and casts
+            is SimpleInstr -> emit(instr.opcode.opcode)
+            else -> throw IllegalStateException("Unsupported instruction $instr")
+        }
+        return true
+    }
+
+    private fun getLocalSlot(name: String): Int {
+        return localSlots[name] ?: throw IllegalStateException("Missing local $name")
+    }
+
+    private fun compileCall(function: FunctionImpl) {
+        emit(CALL, engine.getFunctionIndex(function))
+        pop(function.params.size)
+        push(function.results.size)
+    }
+
+    private fun compileIf(instr: IfBranch): Boolean {
+        pop(1)
+        val startHeight = height
+        val endHeight = startHeight - instr.params.size + instr.results.size
+
+        emit(IF, -1)
+        val elseImmediate = code.size - 1
+        val trueReachable = compileList(instr.ifTrue)
+        if (instr.ifFalse.isEmpty()) {
+            code[elseImmediate] = code.size
+            height = endHeight
+            return true
+        }
+
+        var endImmediate = -1
+        if (trueReachable) {
+            emit(BR, -1)
+            endImmediate = code.size - 1
+        }
+        code[elseImmediate] = code.size
+        height = startHeight
+        val falseReachable = compileList(instr.ifFalse)
+        if (endImmediate >= 0) code[endImmediate] = code.size
+        height = endHeight
+        return trueReachable || falseReachable
+    }
+
+    private fun compileSwitch(instr: SwitchCase): Boolean {
+        pop(1)
+        val startHeight = height
+        val table = instr.table
+        val cases = instr.cases
+
+        emit(BR_TABLE, table.size)
+        val tableStart = code.size
+        for (i in 0..table.size) code.add(-1)
+
+        val casePcs = IntArray(cases.size)
+        val endImmediates = IntArrayList(cases.size)
+        var reachable = false
+        for (i in cases.indices) {
+            casePcs[i] = code.size
+            height = startHeight
+            if (compileList(cases[i])) {
+                reachable = true
+                if (i < cases.lastIndex) {
+                    emit(BR, -1)
+                    endImmediates.add(code.size - 1)
+                }
+            }
+        }
+
+        for (i in table.indices) {
+            code[tableStart + i] = casePcs[table[i]]
+        }
+        code[tableStart + table.size] = casePcs.last()
+        for (i in 0 until endImmediates.size) {
+            code[endImmediates[i]] = code.size
+        }
+        height = startHeight
+        return reachable
+    }
+
+    private fun compileLoop(instr: LoopInstr): Boolean {
+        val startHeight = height
+        loops.add(LoopTarget(instr.label, code.size, startHeight, instr.params.size))
+        val reachable = compileList(instr.body)
+        loops.removeLast()
+        height = startHeight - instr.params.size + instr.results.size
+        return reachable
+    }
+
+    private fun compileJump(instr: Jumping, op: Int, unwindOp: Int) {
+        val label = instr.label
+        val target = loops.lastOrNull { it.label == label }
+            ?: throw IllegalStateException("Missing loop $label")
+        val targetHeight = target.height - target.numParams
+        if (height - target.numParams == targetHeight) {
+            emit(op, target.startPc)
+        } else {
+            emit(unwindOp, target.startPc)
+            code.add(targetHeight)
+            code.add(target.numParams)
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package interpreter.bytecode
+
+import interpreter.WASMEngine
+import interpreter.bytecode.BytecodeOps.BR
+import interpreter.bytecode.BytecodeOps.BR_IF
+import interpreter.bytecode.BytecodeOps.BR_IF_UNWIND
+import interpreter.bytecode.BytecodeOps.BR_TABLE
+import interpreter.bytecode.BytecodeOps.BR_UNWIND
+import interpreter.bytecode.BytecodeOps.CALL
+import interpreter.bytecode.BytecodeOps.CALL_INDIRECT
+import interpreter.bytecode.BytecodeOps.DROP
+import interpreter.bytecode.BytecodeOps.END_OF_FUNCTION
+import interpreter.bytecode.BytecodeOps.F32_ABS
+import interpreter.bytecode.BytecodeOps.F32_ADD
+import interpreter.bytecode.BytecodeOps.F32_CEIL
+import interpreter.bytecode.BytecodeOps.F32_CONST
+import interpreter.bytecode.BytecodeOps.F32_CONVERT_I32S
+import interpreter.bytecode.BytecodeOps.F32_CONVERT_I32U
+import interpreter.bytecode.BytecodeOps.F32_CONVERT_I64S
+import interpreter.bytecode.BytecodeOps.F32_CONVERT_I64U
+import interpreter.bytecode.BytecodeOps.F32_DEMOTE_F64
+import interpreter.bytecode.BytecodeOps.F32_DIV
+import interpreter.bytecode.BytecodeOps.F32_EQ
+import interpreter.bytecode.BytecodeOps.F32_FLOOR
+import interpreter.bytecode.BytecodeOps.F32_GE
+import interpreter.bytecode.BytecodeOps.F32_GT
+import interpreter.bytecode.BytecodeOps.F32_LE
+import interpreter.bytecode.BytecodeOps.F32_LOAD
+import interpreter.bytecode.BytecodeOps.F32_LT
+import interpreter.bytecode.BytecodeOps.F32_MAX
+import interpreter.bytecode.BytecodeOps.F32_MIN
+import interpreter.bytecode.BytecodeOps.F32_MUL
+import interpreter.bytecode.BytecodeOps.F32_NE
+import interpreter.bytecode.BytecodeOps.F32_NEAREST
+import interpreter.bytecode.BytecodeOps.F32_NEG
+import interpreter.bytecode.BytecodeOps.F32_REINTERPRET_I32
+import interpreter.bytecode.BytecodeOps.F32_SQRT
+import interpreter.bytecode.BytecodeOps.F32_STORE
+import interpreter.bytecode.BytecodeOps.F32_SUB
+import interpreter.bytecode.BytecodeOps.F32_TRUNC
+import interpreter.bytecode.BytecodeOps.F64_ABS
+import interpreter.bytecode.BytecodeOps.F64_ADD
+import interpreter.bytecode.BytecodeOps.F64_CEIL
+import interpreter.bytecode.BytecodeOps.F64_CONST
+import interpreter.bytecode.BytecodeOps.F64_CONVERT_I32S
+import interpreter.bytecode.BytecodeOps.F64_CONVERT_I32U
+import interpreter.bytecode.BytecodeOps.F64_CONVERT_I64S
+import interpreter.bytecode.BytecodeOps.F64_CONVERT_I64U
+import interpreter.bytecode.BytecodeOps.F64_DIV
+import interpreter.bytecode.BytecodeOps.F64_EQ
+import interpreter.bytecode.BytecodeOps.F64_FLOOR
+import interpreter.bytecode.BytecodeOps.F64_GE
+import interpreter.bytecode.BytecodeOps.F64_GT
+import interpreter.bytecode.BytecodeOps.F64_LE
+import interpreter.bytecode.BytecodeOps.F64_LOAD
+import interpreter.bytecode.BytecodeOps.F64_LT
+import interpreter.bytecode.BytecodeOps.F64_MAX
+import interpreter.bytecode.BytecodeOps.F64_MIN
+import interpreter.bytecode.BytecodeOps.F64_MUL
+import interpreter.bytecode.BytecodeOps.F64_NE
+import interpreter.bytecode.BytecodeOps.F64_NEAREST
+import interpreter.bytecode.BytecodeOps.F64_NEG
+import interpreter.bytecode.BytecodeOps.F64_PROMOTE_F32
+import interpreter.bytecode.BytecodeOps.F64_REINTERPRET_I64
+import interpreter.bytecode.BytecodeOps.F64_SQRT
+import interpreter.bytecode.BytecodeOps.F64_STORE
+import interpreter.bytecode.BytecodeOps.F64_SUB
+import interpreter.bytecode.BytecodeOps.F64_TRUNC
+import interpreter.bytecode.BytecodeOps.GLOBAL_GET
+import interpreter.bytecode.BytecodeOps.GLOBAL_SET
+import interpreter.bytecode.BytecodeOps.I32_ADD
+import interpreter.bytecode.BytecodeOps.I32_AND
+import interpreter.bytecode.BytecodeOps.I32_CONST
+import interpreter.bytecode.BytecodeOps.I32_DIVS
+import interpreter.bytecode.BytecodeOps.I32_EQ
+import interpreter.bytecode.BytecodeOps.I32_EQZ
+import interpreter.bytecode.BytecodeOps.I32_GES
+import interpreter.bytecode.BytecodeOps.I32_GEU
+import interpreter.bytecode.BytecodeOps.I32_GTS
+import interpreter.bytecode.BytecodeOps.I32_GTU
+import interpreter.bytecode.BytecodeOps.I32_LES
+import interpreter.bytecode.BytecodeOps.I32_LEU
+import interpreter.bytecode.BytecodeOps.I32_LOAD
+import interpreter.bytecode.BytecodeOps.I32_LOAD16S
+import interpreter.bytecode.BytecodeOps.I32_LOAD16U
+import interpreter.bytecode.BytecodeOps.I32_LOAD8S
+import interpreter.bytecode.BytecodeOps.I32_LOAD8U
+import interpreter.bytecode.BytecodeOps.I32_LTS
+import interpreter.bytecode.BytecodeOps.I32_LTU
+import interpreter.bytecode.BytecodeOps.I32_MUL
+import interpreter.bytecode.BytecodeOps.I32_NE
+import interpreter.bytecode.BytecodeOps.I32_OR
+import interpreter.bytecode.BytecodeOps.I32_REINTERPRET_F32
+import interpreter.bytecode.BytecodeOps.I32_REMS
+import interpreter.bytecode.BytecodeOps.I32_ROTL
+import interpreter.bytecode.BytecodeOps.I32_ROTR
+import interpreter.bytecode.BytecodeOps.I32_SHL
+import interpreter.bytecode.BytecodeOps.I32_SHRS
+import interpreter.bytecode.BytecodeOps.I32_SHRU
+import interpreter.bytecode.BytecodeOps.I32_STORE
+import interpreter.bytecode.BytecodeOps.I32_STORE16
+import interpreter.bytecode.BytecodeOps.I32_STORE8
+import interpreter.bytecode.BytecodeOps.I32_SUB
+import interpreter.bytecode.BytecodeOps.I32_TRUNC_F32S
+import interpreter.bytecode.BytecodeOps.I32_TRUNC_F64S
+import interpreter.bytecode.BytecodeOps.I32_WRAP_I64
+import interpreter.bytecode.BytecodeOps.I32_XOR
+import interpreter.bytecode.BytecodeOps.I64_ADD
+import interpreter.bytecode.BytecodeOps.I64_AND
+import interpreter.bytecode.BytecodeOps.I64_CONST
+import interpreter.bytecode.BytecodeOps.I64_DIVS
+import interpreter.bytecode.BytecodeOps.I64_EQ
+import interpreter.bytecode.BytecodeOps.I64_EQZ
+import interpreter.bytecode.BytecodeOps.I64_EXTEND_I32S
+import interpreter.bytecode.BytecodeOps.I64_EXTEND_I32U
+import interpreter.bytecode.BytecodeOps.I64_GES
+import interpreter.bytecode.BytecodeOps.I64_GEU
+import interpreter.bytecode.BytecodeOps.I64_GTS
+import interpreter.bytecode.BytecodeOps.I64_GTU
+import interpreter.bytecode.BytecodeOps.I64_LES
+import interpreter.bytecode.BytecodeOps.I64_LEU
+import interpreter.bytecode.BytecodeOps.I64_LOAD
+import interpreter.bytecode.BytecodeOps.I64_LTS
+import interpreter.bytecode.BytecodeOps.I64_LTU
+import interpreter.bytecode.BytecodeOps.I64_MUL
+import interpreter.bytecode.BytecodeOps.I64_NE
+import interpreter.bytecode.BytecodeOps.I64_OR
+import interpreter.bytecode.BytecodeOps.I64_REINTERPRET_F64
+import interpreter.bytecode.BytecodeOps.I64_REMS
+import interpreter.bytecode.BytecodeOps.I64_ROTL
+import interpreter.bytecode.BytecodeOps.I64_ROTR
+import interpreter.bytecode.BytecodeOps.I64_SHL
+import interpreter.bytecode.BytecodeOps.I64_SHRS
+import interpreter.bytecode.BytecodeOps.I64_SHRU
+import interpreter.bytecode.BytecodeOps.I64_STORE
+import interpreter.bytecode.BytecodeOps.I64_SUB
+import interpreter.bytecode.BytecodeOps.I64_TRUNC_F32S
+import interpreter.bytecode.BytecodeOps.I64_TRUNC_F64S
+import interpreter.bytecode.BytecodeOps.I64_XOR
+import interpreter.bytecode.BytecodeOps.IF
+import interpreter.bytecode.BytecodeOps.LOCAL_GET
+import interpreter.bytecode.BytecodeOps.LOCAL_SET
+import interpreter.bytecode.BytecodeOps.MEMORY_COPY
+import interpreter.bytecode.BytecodeOps.MEMORY_FILL
+import interpreter.bytecode.BytecodeOps.RETURN
+import interpreter.bytecode.BytecodeOps.UNREACHABLE
+import me.anno.utils.assertions.assertTrue
+import utils.WASMType
+import wasm.parser.FunctionImpl
+import java.nio.ByteBuffer
+import java.util.IdentityHashMap
+import kotlin.math.*
+
+/**
+ * Executes functions of a WASMEngine from pre-decoded bytecode:
+ * all values live in a single long[], i32 sign-extended, f32 and f64 as raw bits.
+ * Functions, which use interpreter-only instructions, are delegated to the tree-walker.
+ *
+ * Memory, functions and globals are shared with the WASMEngine, so both can be used alternately.
+ * */
+class BytecodeEngine(val wasm: WASMEngine) {
+
+    private val compiler = BytecodeCompiler(this)
+
+    private val functions = ArrayList<BytecodeFunction>()
+    private val functionIndices = IdentityHashMap<FunctionImpl, Int>()
+    private val tableFunctions = wasm.functionTable.map { getFunction(it) }
+
+    private val globalNames = ArrayList<String>()
+    private val globalTypes = ArrayList<WASMType>()
+    private val globalIndices = HashMap<String, Int>()
+    private var globalValues = LongArray(64)
+
+    private var stack = LongArray(1 shl 16)
+
+    private var frameFunctions = arrayOfNulls<BytecodeFunction>(256)
+    private var framePcs = IntArray(256)
+    private var frameFps = IntArray(256)
+    private var depth = 0
+
+    private var buffer: ByteBuffer = wasm.buffer
+
+    fun getFunctionIndex(function: FunctionImpl): Int {
+        return functionIndices.getOrPut(function) {
+            functions.add(BytecodeFunction(function, functions.size))
+            functions.lastIndex
+        }
+    }
+
+    private fun getFunction(function: FunctionImpl): BytecodeFunction {
+        return functions[getFunctionIndex(function)]
+    }
+
+    fun getGlobalIndex(name: String): Int {
+        return globalIndices.getOrPut(name) {
+            val value = wasm.globals[name]
+                ?: throw IllegalStateException("Missing global $name")
+            val index = globalNames.size
+            globalNames.add(name)
+            globalTypes.add(getType(value))
+            if (index >= globalValues.size) globalValues = globalValues.copyOf(index * 2)
+            globalValues[index] = toBits(value, globalTypes[index])
+            index
+        }
+    }
+
+    private fun getType(value: Number): WASMType {
+        return when (value) {
+            is Long -> WASMType.I64
+            is Float -> WASMType.F32
+            is Double -> WASMType.F64
+            else -> WASMType.I32
+        }
+    }
+
+    private fun loadGlobals() {
+        for (i in globalNames.indices) {
+            globalValues[i] = toBits(wasm.globals[globalNames[i]]!!, globalTypes[i])
+        }
+    }
+
+    private fun storeGlobals() {
+        for (i in globalNames.indices) {
+            wasm.globals[globalNames[i]] = fromBits(globalValues[i], globalTypes[i])
+        }
+    }
+
+    private fun toBits(value: Number, type: WASMType): Long {
+        return when (type) {
+            WASMType.I32 -> value.toInt().toLong()
+            WASMType.I64 -> value.toLong()
+            WASMType.F32 -> value.toFloat().toRawBits().toLong()
+            WASMType.F64 -> value.toDouble().toRawBits()
+        }
+    }
+
+    private fun fromBits(value: Long, type: WASMType): Number {
+        return when (type) {
+            WASMType.I32 -> value.toInt()
+            WASMType.I64 -> value
+            WASMType.F32 -> Float.fromBits(value.toInt())
+            WASMType.F64 -> Double.fromBits(value)
+        }
+    }
+
+    /**
+     * like WASMEngine.executeFunction(name): params and results are passed on wasm.stack
+     * */
+    fun executeFunction(name: String): Boolean {
+        val impl = wasm.findFunction(name) ?: return false
+        val function = getFunction(impl)
+
+        val wasmStack = wasm.stack
+        val numParams = function.numParams
+        val start = wasmStack.size - numParams
+        assertTrue(start >= 0)
+        for (i in 0 until numParams) {
+            stack[i] = toBits(wasmStack[start + i], function.paramTypes[i])
+        }
+        wasmStack.subList(start, wasmStack.size).clear()
+
+        loadGlobals()
+        buffer = wasm.buffer
+        if (function.code == null && !function.isFallback) compiler.compile(function)
+        val numResults = if (function.isFallback) {
+            callFallback(function, numParams)
+        } else {
+            run(function)
+        }
+        storeGlobals()
+
+        for (i in 0 until numResults) {
+            wasmStack.add(fromBits(stack[i], function.resultTypes[i]))
+        }
+        return true
+    }
+
+    private fun callFallback(function: BytecodeFunction, sp: Int): Int {
+        val start = sp - function.numParams
+        for (i in 0 until function.numParams) {
+            wasm.push(fromBits(stack[start + i], function.paramTypes[i]))
+        }
+        val usesGlobals = function.fallbackUsesGlobals
+        if (usesGlobals) storeGlobals()
+        wasm.executeFunction(function.impl)
+        if (usesGlobals) loadGlobals()
+        // memory may have been grown
+        buffer = wasm.buffer
+        for (i in function.numResults - 1 downTo 0) {
+            stack[start + i] = toBits(wasm.pop(), function.resultTypes[i])
+        }
+        return start + function.numResults
+    }
+
+    private fun ensureStackCapacity(size: Int) {
+        if (size > stack.size) {
+            stack = stack.copyOf(max(size, stack.size * 2))
+        }
+    }
+
+    private fun pushFrame(function: BytecodeFunction, pc: Int, fp: Int) {
+        if (depth == framePcs.size) {
+            val newSize = depth * 2
+            frameFunctions = frameFunctions.copyOf(newSize)
+            framePcs = framePcs.copyOf(newSize)
+            frameFps = frameFps.copyOf(newSize)
+        }
+        frameFunctions[depth] = function
+        framePcs[depth] = pc
+        frameFps[depth] = fp
+        depth++
+    }
+
+    /**
+     * runs function with its params at stack[0], returns the number of results, which are then at stack[0]
+     * */
+    private fun run(entry: BytecodeFunction): Int {
+        var func = entry
+        var code = func.code!!
+        var constants = func.constants
+        var fp = 0
+        var sp = func.frameSize
+        ensureStackCapacity(sp + func.maxStackSize)
+        stack.fill(0L, func.numParams, sp)
+        var pc = 0
+        var counter = 0L
+        val baseDepth = depth
+        var callee: BytecodeFunction? = null
+        try {
+            while (true) {
+                counter++
+                val stack = stack
+                val buffer = buffer
+                when (code[pc++]) {
+                    UNREACHABLE -> throw IllegalStateException("Reached unreachable in $func")
+                    END_OF_FUNCTION -> throw IllegalStateException("Missing return in $func")
+                    IF -> {
+                        val elsePc = code[pc++]
+                        if (stack[--sp] == 0L) pc = elsePc
+                    }
+                    BR -> pc = code[pc]
+                    BR_TABLE -> {
+                        val size = code[pc]
+                        val index = stack[--sp].toInt()
+                        pc = code[pc + 1 + (if (index >= 0 && index < size) index else size)]
+                    }
+                    BR_IF -> {
+                        if (stack[--sp] != 0L) pc = code[pc]
+                        else pc++
+                    }
+                    BR_UNWIND -> {
+                        val keep = code[pc + 2]
+                        val newSp = fp + func.frameSize + code[pc + 1]
+                        System.arraycopy(stack, sp - keep, stack, newSp, keep)
+                        sp = newSp + keep
+                        pc = code[pc]
+                    }
+                    BR_IF_UNWIND -> {
+                        if (stack[--sp] != 0L) {
+                            val keep = code[pc + 2]
+                            val newSp = fp + func.frameSize + code[pc + 1]
+                            System.arraycopy(stack, sp - keep, stack, newSp, keep)
+                            sp = newSp + keep
+                            pc = code[pc]
+                        } else pc += 3
+                    }
+                    RETURN -> {
+                        val numResults = func.numResults
+                        System.arraycopy(stack, sp - numResults, stack, fp, numResults)
+                        sp = fp + numResults
+                        if (depth == baseDepth) break
+                        depth--
+                        func = frameFunctions[depth]!!
+                        frameFunctions[depth] = null
+                        pc = framePcs[depth]
+                        fp = frameFps[depth]
+                        code = func.code!!
+                        constants = func.constants
+                    }
+                    CALL -> callee = functions[code[pc++]]
+                    CALL_INDIRECT -> {
+                        val index = stack[--sp].toInt()
+                        callee = tableFunctions.getOrNull(index)
+                            ?: throw IllegalStateException("Missing function #$index in table")
+                    }
+                    DROP -> sp--
+                    LOCAL_GET -> stack[sp++] = stack[fp + code[pc++]]
+                    LOCAL_SET -> stack[fp + code[pc++]] = stack[--sp]
+                    GLOBAL_GET -> stack[sp++] = globalValues[code[pc++]]
+                    GLOBAL_SET -> globalValues[code[pc++]] = stack[--sp]
+                    I32_CONST, F32_CONST -> stack[sp++] = code[pc++].toLong()
+                    I64_CONST, F64_CONST -> stack[sp++] = constants[code[pc++]]
+
+                    I32_LOAD -> stack[sp - 1] = buffer.getInt(stack[sp - 1].toInt()).toLong()
+                    I64_LOAD -> stack[sp - 1] = buffer.getLong(stack[sp - 1].toInt())
+                    F32_LOAD -> stack[sp - 1] = buffer.getInt(stack[sp - 1].toInt()).toLong()
+                    F64_LOAD -> stack[sp - 1] = buffer.getLong(stack[sp - 1].toInt())
+                    I32_LOAD8S -> stack[sp - 1] = buffer.get(stack[sp - 1].toInt()).toLong()
+                    I32_LOAD8U -> stack[sp - 1] = buffer.get(stack[sp - 1].toInt()).toLong().and(0xff)
+                    I32_LOAD16S -> stack[sp - 1] = buffer.getShort(stack[sp - 1].toInt()).toLong()
+                    I32_LOAD16U -> stack[sp - 1] = buffer.getShort(stack[sp - 1].toInt()).toLong().and(0xffff)
+
+                    I32_STORE, F32_STORE -> {
+                        buffer.putInt(stack[sp - 2].toInt(), stack[sp - 1].toInt())
+                        sp -= 2
+                    }
+                    I64_STORE, F64_STORE -> {
+                        buffer.putLong(stack[sp - 2].toInt(), stack[sp - 1])
+                        sp -= 2
+                    }
+                    I32_STORE8 -> {
+                        buffer.put(stack[sp - 2].toInt(), stack[sp - 1].toByte())
+                        sp -= 2
+                    }
+                    I32_STORE16 -> {
+                        buffer.putShort(stack[sp - 2].toInt(), stack[sp - 1].toShort())
+                        sp -= 2
+                    }
+                    MEMORY_COPY -> {
+                        val bytes = buffer.array()
+                        val length = stack[sp - 1].toInt()
+                        System.arraycopy(bytes, stack[sp - 2].toInt(), bytes, stack[sp - 3].toInt(), length)
+                        sp -= 3
+                    }
+                    MEMORY_FILL -> {
+                        val dst = stack[sp - 3].toInt()
+                        buffer.array().fill(stack[sp - 2].toByte(), dst, dst + stack[sp - 1].toInt())
+                        sp -= 3
+                    }
+
+                    I32_EQZ, I64_EQZ -> stack[sp - 1] = bool(stack[sp - 1] == 0L)
+                    // i32 are sign-extended, so signed comparisons are the same for i32 and i64
+                    I32_EQ, I64_EQ -> sp = cmp(stack, sp, stack[sp - 2] == stack[sp - 1])
+                    I32_NE, I64_NE -> sp = cmp(stack, sp, stack[sp - 2] != stack[sp - 1])
+                    I32_LTS, I64_LTS -> sp = cmp(stack, sp, stack[sp - 2] < stack[sp - 1])
+                    I32_GTS, I64_GTS -> sp = cmp(stack, sp, stack[sp - 2] > stack[sp - 1])
+                    I32_LES, I64_LES -> sp = cmp(stack, sp, stack[sp - 2] <= stack[sp - 1])
+                    I32_GES, I64_GES -> sp = cmp(stack, sp, stack[sp - 2] >= stack[sp - 1])
+                    I32_LTU -> sp = cmp(stack, sp, u32(stack[sp - 2]) < u32(stack[sp - 1]))
+                    I32_GTU -> sp = cmp(stack, sp, u32(stack[sp - 2]) > u32(stack[sp - 1]))
+                    I32_LEU -> sp = cmp(stack, sp, u32(stack[sp - 2]) <= u32(stack[sp - 1]))
+                    I32_GEU -> sp = cmp(stack, sp, u32(stack[sp - 2]) >= u32(stack[sp - 1]))
+                    I64_LTU -> sp = cmp(stack, sp, stack[sp - 2].toULong() < stack[sp - 1].toULong())
+                    I64_GTU -> sp = cmp(stack, sp, stack[sp - 2].toULong() > stack[sp - 1].toULong())
+                    I64_LEU -> sp = cmp(stack, sp, stack[sp - 2].toULong() <= stack[sp - 1].toULong())
+                    I64_GEU -> sp = cmp(stack, sp, stack[sp - 2].toULong() >= stack[sp - 1].toULong())
+
+                    F32_EQ -> sp = cmp(stack, sp, f32(stack[sp - 2]) == f32(stack[sp - 1]))
+                    F32_NE -> sp = cmp(stack, sp, f32(stack[sp - 2]) != f32(stack[sp - 1]))
+                    F32_LT -> sp = cmp(stack, sp, f32(stack[sp - 2]) < f32(stack[sp - 1]))
+                    F32_GT -> sp = cmp(stack, sp, f32(stack[sp - 2]) > f32(stack[sp - 1]))
+                    F32_LE -> sp = cmp(stack, sp, f32(stack[sp - 2]) <= f32(stack[sp - 1]))
+                    F32_GE -> sp = cmp(stack, sp, f32(stack[sp - 2]) >= f32(stack[sp - 1]))
+                    F64_EQ -> sp = cmp(stack, sp, f64(stack[sp - 2]) == f64(stack[sp - 1]))
+                    F64_NE -> sp = cmp(stack, sp, f64(stack[sp - 2]) != f64(stack[sp - 1]))
+                    F64_LT -> sp = cmp(stack, sp, f64(stack[sp - 2]) < f64(stack[sp - 1]))
+                    F64_GT -> sp = cmp(stack, sp, f64(stack[sp - 2]) > f64(stack[sp - 1]))
+                    F64_LE -> sp = cmp(stack, sp, f64(stack[sp - 2]) <= f64(stack[sp - 1]))
+                    F64_GE -> sp = cmp(stack, sp, f64(stack[sp - 2]) >= f64(stack[sp - 1]))
+
+                    I32_ADD -> sp = i32(stack, sp, stack[sp - 2].toInt() + stack[sp - 1].toInt())
+                    I32_SUB -> sp = i32(stack, sp, stack[sp - 2].toInt() - stack[sp - 1].toInt())
+                    I32_MUL -> sp = i32(stack, sp, stack[sp - 2].toInt() * stack[sp - 1].toInt())
+                    I32_DIVS -> sp = i32(stack, sp, stack[sp - 2].toInt() / stack[sp - 1].toInt())
+                    I32_REMS -> sp = i32(stack, sp, stack[sp - 2].toInt() % stack[sp - 1].toInt())
+                    I32_AND -> sp = i32(stack, sp, stack[sp - 2].toInt() and stack[sp - 1].toInt())
+                    I32_OR -> sp = i32(stack, sp, stack[sp - 2].toInt() or stack[sp - 1].toInt())
+                    I32_XOR -> sp = i32(stack, sp, stack[sp - 2].toInt() xor stack[sp - 1].toInt())
+                    I32_SHL -> sp = i32(stack, sp, stack[sp - 2].toInt() shl stack[sp - 1].toInt())
+                    I32_SHRS -> sp = i32(stack, sp, stack[sp - 2].toInt() shr stack[sp - 1].toInt())
+                    I32_SHRU -> sp = i32(stack, sp, stack[sp - 2].toInt() ushr stack[sp - 1].toInt())
+                    I32_ROTL -> sp = i32(stack, sp, stack[sp - 2].toInt().rotateLeft(stack[sp - 1].toInt()))
+                    I32_ROTR -> sp = i32(stack, sp, stack[sp - 2].toInt().rotateRight(stack[sp - 1].toInt()))
+
+                    I64_ADD -> sp = i64(stack, sp, stack[sp - 2] + stack[sp - 1])
+                    I64_SUB -> sp = i64(stack, sp, stack[sp - 2] - stack[sp - 1])
+                    I64_MUL -> sp = i64(stack, sp, stack[sp - 2] * stack[sp - 1])
+                    I64_DIVS -> sp = i64(stack, sp, stack[sp - 2] / stack[sp - 1])
+                    I64_REMS -> sp = i64(stack, sp, stack[sp - 2] % stack[sp - 1])
+                    I64_AND -> sp = i64(stack, sp, stack[sp - 2] and stack[sp - 1])
+                    I64_OR -> sp = i64(stack, sp, stack[sp - 2] or stack[sp - 1])
+                    I64_XOR -> sp = i64(stack, sp, stack[sp - 2] xor stack[sp - 1])
+                    I64_SHL -> sp = i64(stack, sp, stack[sp - 2] shl stack[sp - 1].toInt())
+                    I64_SHRS -> sp = i64(stack, sp, stack[sp - 2] shr stack[sp - 1].toInt())
+                    I64_SHRU -> sp = i64(stack, sp, stack[sp - 2] ushr stack[sp - 1].toInt())
+                    I64_ROTL -> sp = i64(stack, sp, stack[sp - 2].rotateLeft(stack[sp - 1].toInt()))
+                    I64_ROTR -> sp = i64(stack, sp, stack[sp - 2].rotateRight(stack[sp - 1].toInt()))
+
+                    F32_ABS -> stack[sp - 1] = f32(abs(f32(stack[sp - 1])))
+                    F32_NEG -> stack[sp - 1] = f32(-f32(stack[sp - 1]))
+                    F32_CEIL -> stack[sp - 1] = f32(ceil(f32(stack[sp - 1])))
+                    F32_FLOOR -> stack[sp - 1] = f32(floor(f32(stack[sp - 1])))
+                    F32_TRUNC -> stack[sp - 1] = f32(truncate(f32(stack[sp - 1])))
+                    F32_NEAREST -> stack[sp - 1] = f32(round(f32(stack[sp - 1])))
+                    F32_SQRT -> stack[sp - 1] = f32(sqrt(f32(stack[sp - 1])))
+                    F32_ADD -> sp = f32(stack, sp, f32(stack[sp - 2]) + f32(stack[sp - 1]))
+                    F32_SUB -> sp = f32(stack, sp, f32(stack[sp - 2]) - f32(stack[sp - 1]))
+                    F32_MUL -> sp = f32(stack, sp, f32(stack[sp - 2]) * f32(stack[sp - 1]))
+                    F32_DIV -> sp = f32(stack, sp, f32(stack[sp - 2]) / f32(stack[sp - 1]))
+                    F32_MIN -> sp = f32(stack, sp, min(f32(stack[sp - 2]), f32(stack[sp - 1])))
+                    F32_MAX -> sp = f32(stack, sp, max(f32(stack[sp - 2]), f32(stack[sp - 1])))
+
+                    F64_ABS -> stack[sp - 1] = f64(abs(f64(stack[sp - 1])))
+                    F64_NEG -> stack[sp - 1] = f64(-f64(stack[sp - 1]))
+                    F64_CEIL -> stack[sp - 1] = f64(ceil(f64(stack[sp - 1])))
+                    F64_FLOOR -> stack[sp - 1] = f64(floor(f64(stack[sp - 1])))
+                    F64_TRUNC -> stack[sp - 1] = f64(truncate(f64(stack[sp - 1])))
+                    F64_NEAREST -> stack[sp - 1] = f64(round(f64(stack[sp - 1])))
+                    F64_SQRT -> stack[sp - 1] = f64(sqrt(f64(stack[sp - 1])))
+                    F64_ADD -> sp = f64(stack, sp, f64(stack[sp - 2]) + f64(stack[sp - 1]))
+                    F64_SUB -> sp = f64(stack, sp, f64(stack[sp - 2]) - f64(stack[sp - 1]))
+                    F64_MUL -> sp = f64(stack, sp, f64(stack[sp - 2]) * f64(stack[sp - 1]))
+                    F64_DIV -> sp = f64(stack, sp, f64(stack[sp - 2]) / f64(stack[sp - 1]))
+                    F64_MIN -> sp = f64(stack, sp, min(f64(stack[sp - 2]), f64(stack[sp - 1])))
+                    F64_MAX -> sp = f64(stack, sp, max(f64(stack[sp - 2]), f64(stack[sp - 1])))
+
+                    I32_WRAP_I64 -> stack[sp - 1] = stack[sp - 1].toInt().toLong()
+                    I32_TRUNC_F32S -> stack[sp - 1] = f32(stack[sp - 1]).toInt().toLong()
+                    I32_TRUNC_F64S -> stack[sp - 1] = f64(stack[sp - 1]).toInt().toLong()
+                    I64_EXTEND_I32S -> {} // already sign-extended
+                    I64_EXTEND_I32U -> stack[sp - 1] = u32(stack[sp - 1])
+                    I64_TRUNC_F32S -> stack[sp - 1] = f32(stack[sp - 1]).toLong()
+                    I64_TRUNC_F64S -> stack[sp - 1] = f64(stack[sp - 1]).toLong()
+
+                    F32_CONVERT_I32S -> stack[sp - 1] = f32(stack[sp - 1].toInt().toFloat())
+                    F32_CONVERT_I32U -> stack[sp - 1] = f32(stack[sp - 1].toInt().toUInt().toFloat())
+                    F32_CONVERT_I64S -> stack[sp - 1] = f32(stack[sp - 1].toFloat())
+                    F32_CONVERT_I64U -> stack[sp - 1] = f32(stack[sp - 1].toULong().toFloat())
+                    F32_DEMOTE_F64 -> stack[sp - 1] = f32(f64(stack[sp - 1]).toFloat())
+                    F64_CONVERT_I32S -> stack[sp - 1] = f64(stack[sp - 1].toInt().toDouble())
+                    F64_CONVERT_I32U -> stack[sp - 1] = f64(u32(stack[sp - 1]).toDouble())
+                    F64_CONVERT_I64S -> stack[sp - 1] = f64(stack[sp - 1].toDouble())
+                    F64_CONVERT_I64U -> stack[sp - 1] = f64(stack[sp - 1].toULong().toDouble())
+                    F64_PROMOTE_F32 -> stack[sp - 1] = f64(f32(stack[sp - 1]).toDouble())
+
+                    // the bits stay the same
+                    I32_REINTERPRET_F32, F32_REINTERPRET_I32 -> stack[sp - 1] = stack[sp - 1].toInt().toLong()
+                    I64_REINTERPRET_F64, F64_REINTERPRET_I64 -> {}
+
+                    else -> throw IllegalStateException("Unknown opcode ${code[pc - 1]} in $func")
+                }
+
+                if (callee != null) {
+                    if (callee.code == null && !callee.isFallback) compiler.compile(callee)
+                    if (callee.isFallback) {
+                        sp = callFallback(callee, sp)
+                    } else {
+                        pushFrame(func, pc, fp)
+                        func = callee
+                        code = func.code!!
+                        constants = func.constants
+                        fp = sp - func.numParams
+                        sp = fp + func.frameSize
+                        ensureStackCapacity(sp + func.maxStackSize)
+                        this.stack.fill(0L, fp + func.numParams, sp)
+                        pc = 0
+                    }
+                    callee = null
+                }
+            }
+        } catch (e: IndexOutOfBoundsException) {
+            throw IllegalStateException("Segfault in $func", e)
+        } finally {
+            wasm.instructionCounter += counter
+            depth = baseDepth
+        }
+        return sp
+    }
+
+    private fun bool(value: Boolean): Long = if (value) 1L else 0L
+
+    private fun cmp(stack: LongArray, sp: Int, value: Boolean): Int {
+        stack[sp - 2] = if (value) 1L else 0L
+        return sp - 1
+    }
+
+    private fun i32(stack: LongArray, sp: Int, value: Int): Int {
+        stack[sp - 2] = value.toLong()
+        return sp - 1
+    }
+
+    private fun i64(stack: LongArray, sp: Int, value: Long): Int {
+        stack[sp - 2] = value
+        return sp - 1
+    }
+
+    private fun f32(stack: LongArray, sp: Int, value: Float): Int {
+        stack[sp - 2] = f32(value)
+        return sp - 1
+    }
+
+    private fun f64(stack: LongArray, sp: Int, value: Double): Int {
+        stack[sp - 2] = f64(value)
+        return sp - 1
+    }
+
+    private fun u32(value: Long): Long = value and 0xffffffffL
+    private fun f32(bits: Long): Float = Float.fromBits(bits.toInt())
+    private fun f32(value: Float): Long = value.toRawBits().toLong()
+    private fun f64(bits: Long): Double = Double.fromBits(bits)
+    private fun f64(value: Double): Long = value.toRawBits()
+}
@@ -0,0 +1,50 @@
+package interpreter.bytecode
+
+import translator.JavaTypes.convertTypeToWASM
+import utils.WASMType
+import utils.WASMTypes.isWASMType
+import wasm.parser.FunctionImpl
+
+/**
+ * a function of the BytecodeEngine; compiled on its first call
+ * */
+class BytecodeFunction(val impl: FunctionImpl, val index: Int) {
+
+    val numParams = impl.params.size
+    val numResults = impl.results.size
+
+    val paramTypes = Array(numParams) { impl.params[it].wasmType }
+    val resultTypes = Array(numResults) {
+        val type = impl.results[it]
+        if (isWASMType(type)) WASMType.find(type) else convertTypeToWASM(type)
+    }
+
+    /**
+     * null until compiled
+     * */
+    var code: IntArray? = null
+    var constants = EMPTY_CONSTANTS
+
+    /**
+     * number of slots for params and locals
+     * */
+    var frameSize = numParams
+
+    /**
+     * maximum height of the operand stack above the frame
+     * */
+    var maxStackSize = 0
+
+    /**
+     * functions with instructions, that only the tree-walker knows, e.g., the native helpers of WASMEngine,
+     * are executed by the tree-walker
+     * */
+    var isFallback = false
+    var fallbackUsesGlobals = false
+
+    override fun toString(): String = impl.funcName
+
+    companion object {
+        private val EMPTY_CONSTANTS = LongArray(0)
+    }
+}
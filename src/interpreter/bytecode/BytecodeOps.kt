@@ -0,0 +1,214 @@
+package interpreter.bytecode
+
+import wasm.writer.Opcode
+
+/**
+ * Opcodes of the pre-decoded bytecode. Simple instructions keep their WASM opcode,
+ * so they can be emitted as Opcode.opcode; these are constants, so the interpreter loop becomes a tableswitch.
+ *
+ * Immediates follow the opcode in the code array:
+ * - IF: pc of else-branch/end, taken if the condition is zero
+ * - BR, BR_IF: absolute target pc
+ * - BR_TABLE: table size n, then n+1 absolute target pcs, the last one is the default
+ * - BR_UNWIND, BR_IF_UNWIND: target pc, stack height at target, number of kept values
+ * - CALL: function index
+ * - LOCAL_GET, LOCAL_SET: slot, params first, then locals
+ * - GLOBAL_GET, GLOBAL_SET: global index
+ * - I32_CONST, F32_CONST: value/bits; I64_CONST, F64_CONST: index into the constant pool
+ * */
+object BytecodeOps {
+
+    const val UNREACHABLE = 0x00
+    const val IF = 0x04
+    const val BR = 0x0c
+    const val BR_IF = 0x0d
+    const val BR_TABLE = 0x0e
+    const val RETURN = 0x0f
+    const val CALL = 0x10
+    const val CALL_INDIRECT = 0x11
+    const val DROP = 0x1a
+
+    const val LOCAL_GET = 0x20
+    const val LOCAL_SET = 0x21
+    const val GLOBAL_GET = 0x23
+    const val GLOBAL_SET = 0x24
+
+    const val I32_LOAD = 0x28
+    const val I64_LOAD = 0x29
+    const val F32_LOAD = 0x2a
+    const val F64_LOAD = 0x2b
+    const val I32_LOAD8S = 0x2c
+    const val I32_LOAD8U = 0x2d
+    const val I32_LOAD16S = 0x2e
+    const val I32_LOAD16U = 0x2f
+
+    const val I32_STORE = 0x36
+    const val I64_STORE = 0x37
+    const val F32_STORE = 0x38
+    const val F64_STORE = 0x39
+    const val I32_STORE8 = 0x3a
+    const val I32_STORE16 = 0x3b
+
+    const val I32_CONST = 0x41
+    const val I64_CONST = 0x42
+    const val F32_CONST = 0x43
+    const val F64_CONST = 0x44
+
+    const val I32_EQZ = 0x45
+    const val I32_EQ = 0x46
+    const val I32_NE = 0x47
+    const val I32_LTS = 0x48
+    const val I32_LTU = 0x49
+    const val I32_GTS = 0x4a
+    const val I32_GTU = 0x4b
+    const val I32_LES = 0x4c
+    const val I32_LEU = 0x4d
+    const val I32_GES = 0x4e
+    const val I32_GEU = 0x4f
+
+    const val I64_EQZ = 0x50
+    const val I64_EQ = 0x51
+    const val I64_NE = 0x52
+    const val I64_LTS = 0x53
+    const val I64_LTU = 0x54
+    const val I64_GTS = 0x55
+    const val I64_GTU = 0x56
+    const val I64_LES = 0x57
+    const val I64_LEU = 0x58
+    const val I64_GES = 0x59
+    const val I64_GEU = 0x5a
+
+    const val F32_EQ = 0x5b
+    const val F32_NE = 0x5c
+    const val F32_LT = 0x5d
+    const val F32_GT = 0x5e
+    const val F32_LE = 0x5f
+    const val F32_GE = 0x60
+
+    const val F64_EQ = 0x61
+    const val F64_NE = 0x62
+    const val F64_LT = 0x63
+    const val F64_GT = 0x64
+    const val F64_LE = 0x65
+    const val F64_GE = 0x66
+
+    const val I32_ADD = 0x6a
+    const val I32_SUB = 0x6b
+    const val I32_MUL = 0x6c
+    const val I32_DIVS = 0x6d
+    const val I32_REMS = 0x6f
+    const val I32_AND = 0x71
+    const val I32_OR = 0x72
+    const val I32_XOR = 0x73
+    const val I32_SHL = 0x74
+    const val I32_SHRS = 0x75
+    const val I32_SHRU = 0x76
+    const val I32_ROTL = 0x77
+    const val I32_ROTR = 0x78
+
+    const val I64_ADD = 0x7c
+    const val I64_SUB = 0x7d
+    const val I64_MUL = 0x7e
+    const val I64_DIVS = 0x7f
+    const val I64_REMS = 0x81
+    const val I64_AND = 0x83
+    const val I64_OR = 0x84
+    const val I64_XOR = 0x85
+    const val I64_SHL = 0x86
+    const val I64_SHRS = 0x87
+    const val I64_SHRU = 0x88
+    const val I64_ROTL = 0x89
+    const val I64_ROTR = 0x8a
+
+    const val F32_ABS = 0x8b
+    const val F32_NEG = 0x8c
+    const val F32_CEIL = 0x8d
+    const val F32_FLOOR = 0x8e
+    const val F32_TRUNC = 0x8f
+    const val F32_NEAREST = 0x90
+    const val F32_SQRT = 0x91
+    const val F32_ADD = 0x92
+    const val F32_SUB = 0x93
+    const val F32_MUL = 0x94
+    const val F32_DIV = 0x95
+    const val F32_MIN = 0x96
+    const val F32_MAX = 0x97
+
+    const val F64_ABS = 0x99
+    const val F64_NEG = 0x9a
+    const val F64_CEIL = 0x9b
+    const val F64_FLOOR = 0x9c
+    const val F64_TRUNC = 0x9d
+    const val F64_NEAREST = 0x9e
+    const val F64_SQRT = 0x9f
+    const val F64_ADD = 0xa0
+    const val F64_SUB = 0xa1
+    const val F64_MUL = 0xa2
+    const val F64_DIV = 0xa3
+    const val F64_MIN = 0xa4
+    const val F64_MAX = 0xa5
+
+    const val I32_WRAP_I64 = 0xa7
+    const val I32_TRUNC_F32S = 0xa8
+    const val I32_TRUNC_F64S = 0xaa
+    const val I64_EXTEND_I32S = 0xac
+    const val I64_EXTEND_I32U = 0xad
+    const val I64_TRUNC_F32S = 0xae
+    const val I64_TRUNC_F64S = 0xb0
+
+    const val F32_CONVERT_I32S = 0xb2
+    const val F32_CONVERT_I32U = 0xb3
+    const val F32_CONVERT_I64S = 0xb4
+    const val F32_CONVERT_I64U = 0xb5
+    const val F32_DEMOTE_F64 = 0xb6
+    const val F64_CONVERT_I32S = 0xb7
+    const val F64_CONVERT_I32U = 0xb8
+    const val F64_CONVERT_I64S = 0xb9
+    const val F64_CONVERT_I64U = 0xba
+    const val F64_PROMOTE_F32 = 0xbb
+
+    const val I32_REINTERPRET_F32 = 0xbc
+    const val I64_REINTERPRET_F64 = 0xbd
+    const val F32_REINTERPRET_I32 = 0xbe
+    const val F64_REINTERPRET_I64 = 0xbf
+
+    // not part of WASM
+    const val BR_UNWIND = 0x100
+    const val BR_IF_UNWIND = 0x101
+    const val END_OF_FUNCTION = 0x102
+    const val MEMORY_COPY = 0x103
+    const val MEMORY_FILL = 0x104
+
+    /**
+     * simple instructions, which are implemented by BytecodeEngine; functions with others run on the tree-walker
+     * */
+    private val supportedOpcodes = BooleanArray(256).apply {
+        val supported = intArrayOf(
+            UNREACHABLE, RETURN, DROP,
+            I32_LOAD, I64_LOAD, F32_LOAD, F64_LOAD, I32_LOAD8S, I32_LOAD8U, I32_LOAD16S, I32_LOAD16U,
+            I32_STORE, I64_STORE, F32_STORE, F64_STORE, I32_STORE8, I32_STORE16,
+            I32_EQZ, I32_EQ, I32_NE, I32_LTS, I32_LTU, I32_GTS, I32_GTU, I32_LES, I32_LEU, I32_GES, I32_GEU,
+            I64_EQZ, I64_EQ, I64_NE, I64_LTS, I64_LTU, I64_GTS, I64_GTU, I64_LES, I64_LEU, I64_GES, I64_GEU,
+            F32_EQ, F32_NE, F32_LT, F32_GT, F32_LE, F32_GE,
+            F64_EQ, F64_NE, F64_LT, F64_GT, F64_LE, F64_GE,
+            I32_ADD, I32_SUB, I32_MUL, I32_DIVS, I32_REMS, I32_AND, I32_OR, I32_XOR,
+            I32_SHL, I32_SHRS, I32_SHRU, I32_ROTL, I32_ROTR,
+            I64_ADD, I64_SUB, I64_MUL, I64_DIVS, I64_REMS, I64_AND, I64_OR, I64_XOR,
+            I64_SHL, I64_SHRS, I64_SHRU, I64_ROTL, I64_ROTR,
+            F32_ABS, F32_NEG, F32_CEIL, F32_FLOOR, F32_TRUNC, F32_NEAREST, F32_SQRT,
+            F32_ADD, F32_SUB, F32_MUL, F32_DIV, F32_MIN, F32_MAX,
+            F64_ABS, F64_NEG, F64_CEIL, F64_FLOOR, F64_TRUNC, F64_NEAREST, F64_SQRT,
+            F64_ADD, F64_SUB, F64_MUL, F64_DIV, F64_MIN, F64_MAX,
+            I32_WRAP_I64, I32_TRUNC_F32S, I32_TRUNC_F64S,
+            I64_EXTEND_I32S, I64_EXTEND_I32U, I64_TRUNC_F32S, I64_TRUNC_F64S,
+            F32_CONVERT_I32S, F32_CONVERT_I32U, F32_CONVERT_I64S, F32_CONVERT_I64U, F32_DEMOTE_F64,
+            F64_CONVERT_I32S, F64_CONVERT_I32U, F64_CONVERT_I64S, F64_CONVERT_I64U, F64_PROMOTE_F32,
+            I32_REINTERPRET_F32, I64_REINTERPRET_F64, F32_REINTERPRET_I32, F64_REINTERPRET_I64,
+        )
+        for (opcode in supported) this[opcode] = true
+    }
+
+    fun isSupported(opcode: Opcode): Boolean {
+        return supportedOpcodes[opcode.opcode]
+    }
+}
@@ -76,6 +76,11 @@ object StaticInitRemover {
                 is LoopInstr -> {
                     removeStaticInit(instr.body)
                 }
+                is SwitchCase -> {
+                    for (case in instr.cases) {
+                        removeStaticInit(case)
+                    }
+                }
             }
             i++
         }
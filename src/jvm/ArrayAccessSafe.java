@@ -104,6 +104,13 @@ public class ArrayAccessSafe {
         return arrayLengthU(instance);
     }
 
+    // target of the inlined bounds checks from BoundsCheckOptimizer
+    @Alias(names = "throwArrayAccess")
+    public static void throwArrayAccess(Object instance, int index) {
+        if (instance == null) throw new NullPointerException("isOOB");
+        throw new IndexOutOfBoundsException();
+    }
+
     private static void checkOutOfBounds(Object instance, int index, int expectedClassId) {
         checkOutOfBounds(instance, index, expectedClassId, expectedClassId);
     }
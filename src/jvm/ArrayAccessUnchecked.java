@@ -17,7 +17,7 @@ public class ArrayAccessUnchecked {
     }
 
     @NoThrow // used by replacement logic for (un)safe array access
-    @SuppressWarnings("unused")
+    @Alias(names = "ptrArrayStoreU")
     @JavaScriptNative(code = "arg0.values[arg1] = arg2;")
     public static void arrayStoreUPtr(Object[] instance, int index, Object value) {
         writePtrAtOffset(instance, arrayOverhead + index * ptrSize, value);
@@ -0,0 +1,55 @@
+package jvm;
+
+import annotations.Alias;
+import annotations.Export;
+import annotations.JavaScriptWASM;
+import annotations.NoThrow;
+
+import static jvm.JVMShared.castToPtr;
+
+/**
+ * GL calls without return value, which only take primitive arguments, are encoded into this buffer instead of calling JavaScript,
+ * because a frame with thousands of uniform-, bind- and draw-calls would cross the WASM-JS boundary thousands of times.
+ * The encoding functions are generated by GLCommandEncoder; JavaScript executes the buffered commands in glFlush(),
+ * which runs before any other GL call, before natives marked with @UsesGL, and at the end of each frame.
+ */
+public class GLCommandBuffer {
+
+    private static final int CAPACITY = 1 << 14;
+
+    /**
+     * [0] = number of used words, then per command: id, arguments;
+     * JavaScript reads and resets the size, so it doesn't need its own import
+     */
+    private static final int[] commands = new int[CAPACITY];
+
+    @NoThrow
+    @Alias(names = "glCommandBegin")
+    public static void begin(int commandId, int numWords) {
+        int[] commands = GLCommandBuffer.commands;
+        if (commands[0] + numWords + 2 > CAPACITY) flush();
+        int size = commands[0] + 1;
+        commands[size] = commandId;
+        commands[0] = size;
+    }
+
+    @NoThrow
+    @Alias(names = "glCommandPut")
+    public static void put(int value) {
+        int[] commands = GLCommandBuffer.commands;
+        int size = commands[0] + 1;
+        commands[size] = value;
+        commands[0] = size;
+    }
+
+    @NoThrow
+    @JavaScriptWASM(code = "glFlush()")
+    private static native void flush();
+
+    @Export
+    @NoThrow
+    @Alias(names = "glCommandBuffer")
+    public static Pointer getCommandBuffer() {
+        return castToPtr(commands);
+    }
+}
@@ -5,4 +5,39 @@ public class JVMFlags {
     public static boolean is32Bits = true;
     public static int ptrSize = is32Bits ? 4 : 8;
     public static int ptrSizeBits = is32Bits ? 2 : 3;
+
+    /**
+     * use memory.copy and memory.fill from the bulk-memory proposal for arraycopy, calloc and Arrays.fill;
+     * supported by all major browsers since 2021
+     */
+    public static boolean useBulkMemory = true;
+
+    /**
+     * allocate new instances in a nursery, which is collected by GCNursery.minorGC() without walking the whole heap;
+     * reference stores into instances then go through a write barrier
+     */
+    public static boolean useGenerationalGC = false;
+
+    /**
+     * interface calls remember the last two (class -> function) pairs per call site,
+     * so the interface table of the class only needs to be searched on a miss
+     */
+    public static boolean useInterfaceCaches = true;
+
+    /**
+     * counts hits and misses of the interface caches for profiling, see JVMShared.logInterfaceCacheStatistics()
+     */
+    public static boolean countInterfaceCacheHits = false;
+
+    /**
+     * java.lang.Thread runs on a native thread, monitors lock, and the GC stops all threads at safepoints;
+     * implemented by the C++ target, see NativeThreads, and by the WASM target together with useSharedMemory
+     */
+    public static boolean useNativeThreads = false;
+
+    /**
+     * WASM target: java.lang.Thread runs on a pool of Web Workers, which all instantiate the module on the same,
+     * shared memory, see WorkerThreads; the GC only runs while no worker is running a thread
+     */
+    public static boolean useSharedMemory = false;
 }
@@ -1,6 +1,7 @@
 package jvm;
 
 import annotations.*;
+import jvm.gc.GCNursery;
 import jvm.gc.GarbageCollector;
 import jvm.gc.GarbageCollectorFlags;
 import jvm.lang.JavaLangAccessImpl;
@@ -9,8 +10,12 @@ import sun.misc.SharedSecrets;
 
 import java.io.PrintStream;
 
+import static jvm.JVMFlags.countInterfaceCacheHits;
 import static jvm.JVMFlags.is32Bits;
 import static jvm.JVMFlags.ptrSizeBits;
+import static jvm.JVMFlags.useBulkMemory;
+import static jvm.JVMFlags.useGenerationalGC;
+import static jvm.JVMFlags.useNativeThreads;
 import static jvm.JVMValues.emptyArray;
 import static jvm.JavaLang.getStackTraceTablePtr;
 import static jvm.NativeLog.log;
@@ -29,6 +34,11 @@ public class JVMShared {
 
     public static final int intSize = 4;
     public static final int longSize = 8;
+
+    // type display table, see isChildOrSameClass()
+    public static final int MAX_DISPLAY_DEPTH = 7;
+    public static final int MAX_INTERFACE_BITS = 256;
+    public static final int NO_DISPLAY = Integer.MIN_VALUE;
     public static boolean trackAllocations = true;
 
     // todo mark some static fields as not needing <clinit>
@@ -115,16 +125,27 @@ public class JVMShared {
 
     @NoThrow
     public static void writeClass(Object ptr, int clazz) {
-        writeI32AtOffset(ptr, 0, clazz | (GarbageCollector.iteration << 24));
+        byte state = useGenerationalGC && GCNursery.isInNursery(ptr) ? GCNursery.YOUNG : GarbageCollector.iteration;
+        writeI32AtOffset(ptr, 0, clazz | (state << 24));
     }
 
     private static Pointer malloc(Pointer size) {
         // enough space for the first allocations
         Pointer ptr;
+        if (useNativeThreads) {
+            ptr = NativeThreads.mallocInTLAB(size);
+            if (ptr != null) return ptr;
+        }
+        if (useGenerationalGC) {
+            ptr = GCNursery.allocate(size);
+            if (ptr != null) return ptr;
+        }
         if (GarbageCollectorFlags.hasGaps &&
                 getAddrS(size) <= Integer.MAX_VALUE) {
             // try to find a freed place in gaps first
+            if (useNativeThreads) GarbageCollector.lockMallocMutex();
             ptr = GarbageCollector.findGap((int) getAddrS(size));
+            if (useNativeThreads) GarbageCollector.unlockMallocMutex();
             if (ptr == null) {
                 ptr = GarbageCollector.allocateNewSpace(size);
             }
@@ -132,6 +153,10 @@ public class JVMShared {
         return ptr;
     }
 
+    /**
+     * with JVMFlags.useNativeThreads, the heap must stay walkable at each safepoint, so there must not be any loop
+     * between malloc() and writeClass(); that's why useNativeThreads requires useBulkMemory for fill64()
+     */
     public static Object calloc(Pointer size) {
         Pointer ptr = malloc(size);
         fill64(ptr, add(ptr, size), 0);
@@ -189,6 +214,29 @@ public class JVMShared {
 
     @NoThrow
     public static void fill64(Pointer start, Pointer end, long value) {
+        if (useBulkMemory && isRepeatedByte(value)) {
+            if (Pointer.unsignedLessThan(start, end)) {
+                memoryFill(start, (int) value & 0xff, sub(end, start));
+            }
+        } else fill64Loop(start, end, value);
+    }
+
+    @NoThrow
+    private static boolean isRepeatedByte(long value) {
+        return (value & 0xffL) * 0x0101010101010101L == value;
+    }
+
+    /**
+     * sets length bytes starting at dst to value;
+     * replaced by memory.fill, if JVMFlags.useBulkMemory
+     */
+    @NoThrow
+    public static void memoryFill(Pointer dst, int value, Pointer length) {
+        fill64Loop(dst, add(dst, length), (value & 0xffL) * 0x0101010101010101L);
+    }
+
+    @NoThrow
+    private static void fill64Loop(Pointer start, Pointer end, long value) {
 
         // benchmark:
         // let t0 = window.performance.now()
@@ -220,7 +268,7 @@ public class JVMShared {
 
         final Pointer endPtr64 = sub(end, 63);
         while (Pointer.unsignedLessThan(start, endPtr64)) {
-            // todo later detect simd features, and send corresponding build :)
+            // todo the SIMD build (buildSIMDFlavor) only vectorizes loops over arrays; use v128.store here, too
             // https://v8.dev/features/simd
             /*clear128(p);
             clear128(p + 16);
@@ -362,6 +410,7 @@ public class JVMShared {
         } else {
             writeI64AtOffset(instance, offset, value1);
         }
+        if (useGenerationalGC) GCNursery.writeBarrier(instance, offset, value);
     }
 
     @NoThrow
@@ -689,13 +738,19 @@ public class JVMShared {
         return b;
     }
 
-    // to do implement this, when we have multi-threading
+    /**
+     * only called with JVMFlags.useNativeThreads; without threads, nobody can hold a lock
+     */
+    @NoThrow
     @Alias(names = "monitorEnter")
     public static void monitorEnter(Object lock) {
+        if (useNativeThreads) NativeThreads.monitorEnter(lock);
     }
 
+    @NoThrow
     @Alias(names = "monitorExit")
     public static void monitorExit(Object lock) {
+        if (useNativeThreads) NativeThreads.monitorExit(lock);
     }
 
     @NoThrow
@@ -706,11 +761,21 @@ public class JVMShared {
     public static boolean wasStaticInited(int index) {
         validateClassId(index);
         Pointer address = add(getStaticInitTable(), index);
+        if (useNativeThreads) return NativeThreads.wasStaticInited(address, classIdToInstance(index));
         boolean answer = read8(address) != 0;
         write8(address, (byte) 1);
         return answer;
     }
 
+    /**
+     * called before each Return of <clinit> with JVMFlags.useNativeThreads, see NativeThreads.wasStaticInited()
+     */
+    @NoThrow
+    @Alias(names = "endStaticInit")
+    public static void endStaticInit(int index) {
+        NativeThreads.endStaticInit(add(getStaticInitTable(), index), classIdToInstance(index));
+    }
+
     @NoThrow
     @WASM(code = "i32.ge_u")
     static native boolean ge_ub(int a, int b);
@@ -761,8 +826,53 @@ public class JVMShared {
         return read32(tableAddress);
     }
 
+    @NoThrow
+    @WASM(code = "global.get $typeDisplayTable")
+    private static native Pointer typeDisplayTable();
+
+    @NoThrow
+    @WASM(code = "global.get $typeDisplayStride")
+    private static native int typeDisplayStride();
+
+    @NoThrow
+    private static Pointer getTypeDisplayRow(int classId) {
+        return add(typeDisplayTable(), classId * typeDisplayStride());
+    }
+
+    /**
+     * Cohen display: a class is a child of parent, if its super class at the depth of parent is parent
+     */
+    @NoThrow
+    private static boolean isInDisplay(int childClassIdx, int parentClassIdx, int parentDepth) {
+        return read32(add(getTypeDisplayRow(childClassIdx), parentDepth << 2)) == parentClassIdx;
+    }
+
+    @NoThrow
+    private static boolean hasInterfaceBit(int childClassIdx, int bit) {
+        Pointer row = getTypeDisplayRow(childClassIdx);
+        int word = read32(add(row, (MAX_DISPLAY_DEPTH + 1 + (bit >>> 5)) << 2));
+        return ((word >>> bit) & 1) != 0;
+    }
+
+    /**
+     * uses the type display table, if possible: classes are checked by their depth,
+     * interfaces by their bit; only very deep classes and rarely checked interfaces walk the hierarchy
+     */
     @NoThrow
     public static boolean isChildOrSameClass(int childClassIdx, int parentClassIdx) {
+        if (childClassIdx == parentClassIdx || parentClassIdx == 0) return true;
+        validateClassId(childClassIdx);
+        int parentInfo = read32(getTypeDisplayRow(parentClassIdx));
+        if (parentInfo >= 0) {
+            if (parentInfo <= MAX_DISPLAY_DEPTH) return isInDisplay(childClassIdx, parentClassIdx, parentInfo);
+        } else if (parentInfo != NO_DISPLAY) {
+            return hasInterfaceBit(childClassIdx, -1 - parentInfo);
+        }
+        return isChildOrSameClassByWalking(childClassIdx, parentClassIdx);
+    }
+
+    @NoThrow
+    private static boolean isChildOrSameClassByWalking(int childClassIdx, int parentClassIdx) {
         while (true) {
             if (childClassIdx == parentClassIdx) return true;
             // find super classes in table
@@ -778,6 +888,12 @@ public class JVMShared {
 
     @NoThrow
     public static boolean isChildOrSameClassNonInterface(int childClassIdx, int parentClassIdx) {
+        if (childClassIdx == parentClassIdx || parentClassIdx == 0) return true;
+        validateClassId(childClassIdx);
+        int parentDepth = read32(getTypeDisplayRow(parentClassIdx));
+        if (parentDepth >= 0 && parentDepth <= MAX_DISPLAY_DEPTH) {
+            return isInDisplay(childClassIdx, parentClassIdx, parentDepth);
+        }
         while (true) {
             if (childClassIdx == parentClassIdx) return true;
             validateClassId(childClassIdx);
@@ -900,6 +1016,62 @@ public class JVMShared {
         }
     }
 
+    @NoThrow
+    @WASM(code = "global.get $interfaceCacheTable")
+    public static native Pointer interfaceCacheTable();
+
+    private static int interfaceCacheHits, interfaceCacheMisses;
+
+    /**
+     * resolveInterface with a per-call-site inline cache of the last two classes;
+     * each entry is written at once as (function index << 32) | (classId + 1), so zeroed entries never match;
+     * the table is 8-byte-aligned, and with threads, entries are read and written atomically, so no thread sees a torn pair
+     */
+    @NoThrow
+    @Alias(names = "resolveInterfaceCached")
+    public static int resolveInterfaceCached(Object instance, int methodId, int cacheSlot) {
+        if (instance == null) {
+            throwJs("Instance for resolveInterface is null");
+            return -1;
+        }
+        int classId = readClassId(instance);
+        int key = classId + 1;
+        Pointer cache = add(interfaceCacheTable(), (long) cacheSlot << 4);
+        long entry0 = readInterfaceCacheEntry(cache);
+        if ((int) entry0 == key) {
+            if (countInterfaceCacheHits) interfaceCacheHits++;
+            return (int) (entry0 >>> 32);
+        }
+        long entry1 = readInterfaceCacheEntry(add(cache, 8));
+        if ((int) entry1 == key) {
+            if (countInterfaceCacheHits) interfaceCacheHits++;
+            return (int) (entry1 >>> 32);
+        }
+        if (countInterfaceCacheHits) interfaceCacheMisses++;
+        int id = resolveInterfaceByClass(classId, methodId);
+        writeInterfaceCacheEntry(add(cache, 8), entry0);
+        writeInterfaceCacheEntry(cache, ((long) id << 32) | (key & 0xffffffffL));
+        return id;
+    }
+
+    @NoThrow
+    private static long readInterfaceCacheEntry(Pointer entry) {
+        return useNativeThreads ? NativeThreads.atomicGetI64(entry) : read64(entry);
+    }
+
+    @NoThrow
+    private static void writeInterfaceCacheEntry(Pointer entry, long value) {
+        if (useNativeThreads) NativeThreads.atomicSetI64(entry, value);
+        else write64(entry, value);
+    }
+
+    @NoThrow
+    public static void logInterfaceCacheStatistics() {
+        log("InterfaceCache-Hits/Misses:", interfaceCacheHits, interfaceCacheMisses);
+        interfaceCacheHits = 0;
+        interfaceCacheMisses = 0;
+    }
+
     @Export
     @NoThrow
     @Alias(names = "instanceOf")
@@ -908,7 +1080,7 @@ public class JVMShared {
             "const classId = arg1;\n" +
             "const jsClass = getJSClassById(classId);\n" +
             "const jvmClass = getClassById(readClass(arg0));\n" +
-            "return arg0 instanceof jsClass || jvmClass.interfaceIds.indexOf(classId) >= 0;\n")
+            "return arg0 instanceof jsClass || jvmClass.interfaceIds.has(classId);\n")
     public static boolean instanceOf(Object instance, int classId) {
         // log("instanceOf", instance, clazz);
         if (instance == null) return false;
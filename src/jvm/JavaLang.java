@@ -2,6 +2,7 @@ package jvm;
 
 import annotations.*;
 import jvm.custom.ThreadLocalRandom;
+import jvm.gc.GCNursery;
 import jvm.gc.GarbageCollector;
 import jvm.lang.Bean;
 import org.jetbrains.annotations.NotNull;
@@ -14,11 +15,14 @@ import java.security.AccessControlContext;
 import java.util.Random;
 
 import static jvm.ArrayAccessSafe.arrayLength;
+import static jvm.JVMFlags.useGenerationalGC;
+import static jvm.JVMFlags.useNativeThreads;
 import static jvm.JVMShared.*;
 import static jvm.NativeLog.log;
 import static jvm.Pointer.unsignedLessThan;
 import static jvm.Pointer.*;
 import static jvm.ThrowJS.throwJs;
+import static utils.StaticClassIndices.OBJECT_ARRAY;
 
 @SuppressWarnings("unused")
 public class JavaLang {
@@ -255,8 +259,21 @@ public class JavaLang {
         checkIndexOutOfBounds(dstIndex, length, arrayLength(dst1));
 
         long numBytes = (long) length << shift;
-        if (src != dst || srcIndex > dstIndex) copyForwards(src2, dst2, numBytes);
-        else copyBackwards(src2, dst2, numBytes);
+        memoryCopy(dst2, src2, ptrTo(numBytes));
+        if (useGenerationalGC && classIdDst == OBJECT_ARRAY) {
+            GCNursery.writeBarrierRange(dst, dst2, numBytes);
+        }
+    }
+
+    /**
+     * copies length bytes from src to dst, the ranges may overlap like in memmove();
+     * replaced by memory.copy, if JVMFlags.useBulkMemory
+     */
+    @NoThrow
+    public static void memoryCopy(Pointer dst, Pointer src, Pointer length) {
+        long numBytes = getAddrS(length);
+        if (unsignedLessThan(dst, src) || !unsignedLessThan(dst, add(src, length))) copyForwards(src, dst, numBytes);
+        else copyBackwards(src, dst, numBytes);
     }
 
     @NoThrow
@@ -387,19 +404,23 @@ public class JavaLang {
     @Alias(names = "java_lang_Thread_holdsLock_Ljava_lang_ObjectZ")
     public static boolean Thread_holdsLock_Ljava_lang_ObjectZ(Object lock) {
         // static function, why ever
-        return true;
+        return !useNativeThreads || NativeThreads.holdsLock(lock);
     }
 
     @NoThrow
     @Alias(names = "java_lang_Thread_isAlive_Z")
     public static boolean Thread_isAlive_Z(Thread self) {
-        return self == MAIN_THREAD;
+        return self == MAIN_THREAD || (useNativeThreads && NativeThreads.isAlive(self));
     }
 
     private static final Thread MAIN_THREAD = new Thread("main");
 
     @Alias(names = "java_lang_Thread_currentThread_Ljava_lang_Thread")
     public static Thread Thread_currentThread() {
+        if (useNativeThreads) {
+            Thread thread = NativeThreads.currentThread();
+            if (thread != null) return thread;
+        }
         return MAIN_THREAD;
     }
 
@@ -436,8 +457,12 @@ public class JavaLang {
     @Alias(names = "java_lang_Thread_init_Ljava_lang_ThreadGroupLjava_lang_RunnableLjava_lang_StringJLjava_security_AccessControlContextZV")
     public static void Thread_init(
             Thread self, ThreadGroup threadGroup, Runnable runnable, String name,
-            long stackSize, AccessControlContext ctx, boolean inheritThreadLocals) {
-
+            long stackSize, AccessControlContext ctx, boolean inheritThreadLocals)
+            throws NoSuchFieldException, IllegalAccessException {
+        if (useNativeThreads && runnable != null) {
+            // Thread.run() calls target.run()
+            Thread.class.getField("target").set(self, runnable);
+        }
     }
 
     @Alias(names = "java_lang_Thread_interrupt0_V")
@@ -588,6 +613,10 @@ public class JavaLang {
     @SuppressWarnings("CallToThreadRun")
     @Alias(names = "java_lang_Thread_start_V")
     public static <V> void Thread_start_V(Thread thread) {
+        if (useNativeThreads) {
+            NativeThreads.startThread(thread);
+            return;
+        }
         log("Warning: starting threads is not yet supported!", thread.getName());
         thread.run();
     }
@@ -609,7 +638,9 @@ public class JavaLang {
 
     @Alias(names = "java_lang_Thread_sleep_JV")
     public static void Thread_sleep_JV(long delay) {
-        if (delay > 0) {
+        if (useNativeThreads) {
+            NativeThreads.sleep(delay);
+        } else if (delay > 0) {
             throwJs("Cannot sleep in web!");
         } else {
             if (sleepCtr++ > 100) {
@@ -661,7 +692,8 @@ public class JavaLang {
     @NoThrow
     @Alias(names = "java_lang_Thread_join_JV")
     public static void Thread_join_JV(Thread self, long timeoutMillis) {
-        // not supported, as threads cannot run
+        // without native threads, they have finished in start()
+        if (useNativeThreads) NativeThreads.join(self, timeoutMillis);
     }
 
     @Alias(names = "java_lang_Double_parseDouble_Ljava_lang_StringD")
@@ -778,17 +810,24 @@ public class JavaLang {
         return self.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(self));
     }
 
+    @Alias(names = "java_lang_Object_notify_V")
+    public static void Object_notify_V(Object self) {
+        if (useNativeThreads) NativeThreads.notify(self, false);
+    }
+
     @Alias(names = "java_lang_Object_notifyAll_V")
     public static void Object_notifyAll_V(Object self) {
-        // idk...
+        if (useNativeThreads) NativeThreads.notify(self, true);
     }
 
     @Alias(names = "java_lang_Object_wait_V")
     public static void Object_wait_V(Object self) {
+        if (useNativeThreads) NativeThreads.wait(self, 0L);
     }
 
     @Alias(names = "java_lang_Object_wait_JV")
     public static void Object_wait_JV(Object self, long timeout) {
+        if (useNativeThreads) NativeThreads.wait(self, timeout);
     }
 
 }
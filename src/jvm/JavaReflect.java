@@ -9,7 +9,10 @@ import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.*;
 import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+import static jvm.JVMFlags.ptrSize;
 import static jvm.JVMShared.*;
 import static jvm.JavaReflectMethod.Constructor_invoke;
 import static jvm.NativeLog.log;
@@ -544,19 +547,62 @@ public class JavaReflect {
     @JavaScriptNative(code = "return getResourceAsByteArray(arg0);")
     public static byte[] ClassLoader_getResourceAsByteArray(String name) {
         if (name == null) return null;
-        Pointer ptr = getResourcePtr();
-        int numResources = read32(ptr);
-        // todo if we have more than 16 resources, use a HashMap
-        ptr = add(ptr, 4);
-        Pointer endPtr = add(ptr, numResources << 3);
-        while (Pointer.unsignedLessThan(ptr, endPtr)) {
-            String key = readPtrAtOffset(ptr, 0);
-            if (name.equals(key)) {
-                return readPtrAtOffset(ptr, 4);
+        // open-addressed hash table, see WATAppender.appendResourceTable()
+        Pointer table = getResourcePtr();
+        int mask = read32(table);
+        int hash = getResourceHash(name);
+        int slotSize = 8 + 2 * ptrSize;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Pointer entry = add(table, 8 + slot * slotSize);
+            String key = readPtrAtOffset(entry, 8);
+            if (key == null) return null;
+            if (read32(entry) == hash && name.equals(key)) {
+                byte[] data = readPtrAtOffset(entry, 8 + ptrSize);
+                int inflatedSize = readI32AtOffset(entry, 4);
+                return inflatedSize < 0 ? data : inflateResource(slot, mask + 1, data, inflatedSize);
             }
-            ptr = add(ptr, 8);
         }
-        return null;
+    }
+
+    /**
+     * must match the hash, which the compiler uses for the table;
+     * String.hashCode() might be precomputed with UTF-16 chars, even if strings are stored as UTF-8
+     * */
+    private static int getResourceHash(String name) {
+        int hash = 0;
+        for (int i = 0, l = name.length(); i < l; i++) {
+            hash = hash * 31 + name.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * inflated resources by slot; must be referenced by a static field, so the GC keeps them
+     * */
+    private static byte[][] inflatedResources;
+
+    private static byte[] inflateResource(int slot, int numSlots, byte[] deflated, int size) {
+        if (inflatedResources == null) inflatedResources = new byte[numSlots][];
+        byte[] data = inflatedResources[slot];
+        if (data != null) return data;
+        data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(deflated);
+            int length = 0;
+            while (length < size) {
+                int n = inflater.inflate(data, length, size - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+                length += n;
+            }
+            if (length != size) throw new IllegalStateException("Truncated resource");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+        inflatedResources[slot] = data;
+        return data;
     }
 
     private static final Object[] empty = new Object[0];
@@ -4,6 +4,7 @@ import annotations.Alias;
 import annotations.JavaScriptWASM;
 import annotations.NoThrow;
 import annotations.JavaScriptNative;
+import annotations.WASM;
 
 import static jvm.JVMShared.*;
 import static jvm.JavaLang.getStackTraceTablePtr;
@@ -79,6 +80,11 @@ public class JavaThrowable {
             return th;
         }
 
+        if (getNativeTraceTable() != null) {
+            fillInNativeStackTrace(th);
+            return th;
+        }
+
         insideFIST = true;
 
         Pointer sp = getStackPtr();
@@ -144,6 +150,95 @@ public class JavaThrowable {
         return th;
     }
 
+    @NoThrow
+    @WASM(code = "global.get $nativeTraceTable")
+    private static native Pointer getNativeTraceTable();
+
+    /**
+     * writes FNV-1a hashes of the function names of the innermost native frames to dst, and returns their number;
+     * V8 only records Error.stackTraceLimit frames (default 10), so it is lifted while capturing
+     */
+    @NoThrow
+    @JavaScriptWASM(code = "" +
+            "const dst = new Int32Array(memory.buffer, arg0, arg1);\n" +
+            "const limit = Error.stackTraceLimit;\n" +
+            "Error.stackTraceLimit = Infinity;\n" +
+            "const lines = new Error().stack.split('\\n');\n" +
+            "Error.stackTraceLimit = limit;\n" +
+            "let n = 0;\n" +
+            "for (let i = 0; i < lines.length && n < arg1; i++) {\n" +
+            // Chrome: 'at name (wasm://wasm/hash:wasm-function[index]:0xoffset)', Firefox: 'name@url:wasm-function[index]:0xoffset'
+            "   const match = /([\\w$]+)\\s*[(@][^\\n]*wasm-function/.exec(lines[i]);\n" +
+            "   if (!match) continue;\n" +
+            "   const name = match[1].replace(/^\\$/, '');\n" +
+            "   let hash = arg2;\n" +
+            "   for (let j = 0; j < name.length; j++) hash = Math.imul(hash ^ name.charCodeAt(j), 0x01000193);\n" +
+            "   dst[n++] = hash;\n" +
+            "}\n" +
+            "return n;")
+    private static native int captureNativeFrames(Pointer dst, int maxFrames, int seed);
+
+    /**
+     * maps the native frames to stackTraceTable-entries using the table from the compiler (useNativeStackTraces);
+     * frames without entry, e.g., from JavaScript or the C++ runtime, are skipped;
+     * frames is allocated per call, because several threads may capture their stack traces at once
+     */
+    @NoThrow
+    private static int captureNativeStackTrace(int[] frames) {
+        Pointer table = getNativeTraceTable();
+        int numEntries = read32(table);
+        int seed = read32(add(table, 4));
+        int numFrames = captureNativeFrames(add(castToPtr(frames), arrayOverhead), frames.length, seed);
+        int numFound = 0;
+        for (int i = 0; i < numFrames; i++) {
+            int entry = findNativeTraceEntry(table, numEntries, frames[i]);
+            if (entry >= 0) frames[numFound++] = entry;
+        }
+        return numFound;
+    }
+
+    @NoThrow
+    private static int findNativeTraceEntry(Pointer table, int numEntries, int hash) {
+        int min = 0, max = numEntries - 1;
+        while (min <= max) {
+            int mid = (min + max) >>> 1;
+            Pointer entry = add(table, 8 + mid * 8);
+            int midHash = read32(entry);
+            if (midHash < hash) min = mid + 1;
+            else if (midHash > hash) max = mid - 1;
+            else return read32(add(entry, 4));
+        }
+        return -1;
+    }
+
+    @NoThrow
+    private static StackTraceElement[] fillInNativeStackTrace(Throwable th) throws NoSuchFieldException, IllegalAccessException {
+        Pointer lookupBasePtr = getStackTraceTablePtr();
+        if (lookupBasePtr == null) return null;
+
+        insideFIST = true;
+        int[] frames = new int[stackReportLimit];
+        int stackLength = captureNativeStackTrace(frames);
+        criticalAlloc = true;
+
+        StackTraceElement[] array0 = th != null ? getStackTrace(th) : null;
+        StackTraceElement[] array1 = array0 != null && array0.length == stackLength ?
+                array0 : new StackTraceElement[stackLength];
+        if (th != null) setStackTrace(th, array1);
+
+        for (int i = 0; i < stackLength; i++) {
+            Pointer throwableLookup = add(lookupBasePtr, frames[i] * 12);
+            String className = unsafeCast(read32Ptr(throwableLookup));
+            String methodName = unsafeCast(read32Ptr(add(throwableLookup, 4)));
+            int line = read32(add(throwableLookup, 8));
+            fillInElement(className, methodName, line, array1, i);
+        }
+
+        criticalAlloc = false;
+        insideFIST = false;
+        return array1;
+    }
+
     @NoThrow
     private static void fillInElement(String className, String methodName, int line, StackTraceElement[] array1, int i) throws NoSuchFieldException, IllegalAccessException {
         // log("Fill In Element", className, methodName);
@@ -162,7 +257,11 @@ public class JavaThrowable {
     }
 
     @Alias(names = "java_lang_Thread_getStackTrace_AW")
-    public static StackTraceElement[] Thread_getStackTrace(Thread thread) {
+    public static StackTraceElement[] Thread_getStackTrace(Thread thread) throws NoSuchFieldException, IllegalAccessException {
+        if (getNativeTraceTable() != null) {
+            StackTraceElement[] array = fillInNativeStackTrace(null);
+            return array != null ? array : new StackTraceElement[0];
+        }
 
         Pointer sp = getStackPtr();
         int stackLength = getStackDepth(sp);// each element is 4 bytes in size currently
@@ -15,6 +15,7 @@ import java.util.function.ToIntFunction;
 import static jvm.ArrayAccessSafe.arrayLength;
 import static jvm.JVMFlags.is32Bits;
 import static jvm.JVMFlags.ptrSizeBits;
+import static jvm.JVMFlags.useNativeThreads;
 import static jvm.JVMShared.*;
 import static jvm.JavaLang.toFixed;
 import static jvm.Pointer.add;
@@ -159,17 +160,21 @@ public class JavaUtil {
     public static void static_java_util_ArraysXLegacyMergeSort_V() {
     }
 
+    // with JVMFlags.useNativeThreads, ReentrantLock uses the monitor of the lock instance, e.g., for CopyOnWriteArrayList
+
     @Alias(names = "java_util_concurrent_locks_ReentrantLock_lock_V")
     public static void java_util_concurrent_locks_ReentrantLock_lock_V(ReentrantLock lock) {
+        if (useNativeThreads) NativeThreads.monitorEnter(lock);
     }
 
     @Alias(names = "java_util_concurrent_locks_ReentrantLock_unlock_V")
     public static void java_util_concurrent_locks_ReentrantLock_unlock_V(ReentrantLock lock) {
+        if (useNativeThreads) NativeThreads.monitorExit(lock);
     }
 
     @Alias(names = "java_util_concurrent_locks_ReentrantLock_tryLock_Z")
     public static boolean java_util_concurrent_locks_ReentrantLock_tryLock_Z(ReentrantLock lock) {
-        return true;
+        return !useNativeThreads || NativeThreads.tryMonitorEnter(lock);
     }
 
     @NoThrow
@@ -0,0 +1,416 @@
+package jvm;
+
+import annotations.Alias;
+import annotations.Export;
+import annotations.JavaScriptWASM;
+import annotations.NoThrow;
+import jvm.custom.ThreadLocal2;
+import jvm.gc.GarbageCollector;
+
+import static jvm.JVMFlags.useSharedMemory;
+import static jvm.JVMShared.arrayOverhead;
+import static jvm.JVMShared.objectOverhead;
+import static jvm.JVMShared.writeI32AtOffset;
+import static jvm.Pointer.*;
+import static jvm.gc.GarbageCollector.BYTE_ARRAY_CLASS;
+
+/**
+ * Runtime side of JVMFlags.useNativeThreads, implemented by jvm2wasm-base.cpp:
+ * each java.lang.Thread runs on its own std::thread, monitors are kept in a side table there, keyed by the instance,
+ * and worker threads allocate small instances from thread-local allocation buffers (TLABs).
+ * <p>
+ * The GC still runs on the main thread between two frames; it stops all workers at a safepoint,
+ * which is polled in every loop, or while they are blocked in one of the natives here.
+ * Their stacks are then scanned conservatively, see GCTraversal.markThreadStacks().
+ * <p>
+ * With JVMFlags.useSharedMemory, the same API is implemented by WorkerThreads for the WASM target instead.
+ */
+public class NativeThreads {
+
+    static final int TLAB_SIZE = 32 << 10;
+
+    /**
+     * larger instances are allocated from the shared heap, so a TLAB doesn't waste much memory when it is retired
+     */
+    private static final int MAX_TLAB_INSTANCE_SIZE = TLAB_SIZE >> 3;
+
+    @NoThrow
+    public static void startThread(Thread thread) {
+        if (useSharedMemory) WorkerThreads.startThread(thread);
+        else startNativeThread(thread);
+    }
+
+    @NoThrow
+    public static void join(Thread thread, long timeoutMillis) {
+        if (useSharedMemory) WorkerThreads.join(thread, timeoutMillis);
+        else joinNativeThread(thread, timeoutMillis);
+    }
+
+    @NoThrow
+    public static boolean isAlive(Thread thread) {
+        return useSharedMemory ? WorkerThreads.isAlive(thread) : isNativeThreadAlive(thread);
+    }
+
+    /**
+     * returns null on the main thread
+     */
+    @NoThrow
+    public static Thread currentThread() {
+        return useSharedMemory ? WorkerThreads.currentThread() : getNativeCurrentThread();
+    }
+
+    @NoThrow
+    public static void sleep(long millis) {
+        if (useSharedMemory) WorkerThreads.sleep(millis);
+        else nativeSleep(millis);
+    }
+
+    @NoThrow
+    public static void monitorEnter(Object lock) {
+        if (useSharedMemory) WorkerThreads.monitorEnter(lock);
+        else nativeMonitorEnter(lock);
+    }
+
+    /**
+     * enters the monitor, if nobody else holds it; returns whether it was entered
+     */
+    @NoThrow
+    public static boolean tryMonitorEnter(Object lock) {
+        return useSharedMemory ? WorkerThreads.tryMonitorEnter(lock) : nativeMonitorTryEnter(lock);
+    }
+
+    @NoThrow
+    public static void monitorExit(Object lock) {
+        if (useSharedMemory) WorkerThreads.monitorExit(lock);
+        else nativeMonitorExit(lock);
+    }
+
+    @NoThrow
+    public static boolean holdsLock(Object lock) {
+        return useSharedMemory ? WorkerThreads.holdsLock(lock) : nativeHoldsLock(lock);
+    }
+
+    /**
+     * timeoutMillis = 0 waits until notified
+     */
+    @NoThrow
+    public static void wait(Object lock, long timeoutMillis) {
+        if (useSharedMemory) WorkerThreads.wait(lock, timeoutMillis);
+        else nativeMonitorWait(lock, timeoutMillis);
+    }
+
+    @NoThrow
+    public static void notify(Object lock, boolean all) {
+        if (useSharedMemory) WorkerThreads.notify(lock);
+        else nativeMonitorNotify(lock, all);
+    }
+
+    @NoThrow
+    @Alias(names = "startNativeThread")
+    @JavaScriptWASM(code = "")
+    private static native void startNativeThread(Thread thread);
+
+    @NoThrow
+    @Alias(names = "joinNativeThread")
+    @JavaScriptWASM(code = "")
+    private static native void joinNativeThread(Thread thread, long timeoutMillis);
+
+    @NoThrow
+    @Alias(names = "isNativeThreadAlive")
+    @JavaScriptWASM(code = "return 0;")
+    private static native boolean isNativeThreadAlive(Thread thread);
+
+    @NoThrow
+    @Alias(names = "getNativeCurrentThread")
+    @JavaScriptWASM(code = "return 0;")
+    private static native Thread getNativeCurrentThread();
+
+    @NoThrow
+    @Alias(names = "nativeSleep")
+    @JavaScriptWASM(code = "")
+    private static native void nativeSleep(long millis);
+
+    @NoThrow
+    @Alias(names = "nativeMonitorEnter")
+    @JavaScriptWASM(code = "")
+    private static native void nativeMonitorEnter(Object lock);
+
+    @NoThrow
+    @Alias(names = "nativeMonitorTryEnter")
+    @JavaScriptWASM(code = "return 1;")
+    private static native boolean nativeMonitorTryEnter(Object lock);
+
+    @NoThrow
+    @Alias(names = "nativeMonitorExit")
+    @JavaScriptWASM(code = "")
+    private static native void nativeMonitorExit(Object lock);
+
+    @NoThrow
+    @Alias(names = "nativeHoldsLock")
+    @JavaScriptWASM(code = "return 1;")
+    private static native boolean nativeHoldsLock(Object lock);
+
+    @NoThrow
+    @Alias(names = "nativeMonitorWait")
+    @JavaScriptWASM(code = "")
+    private static native void nativeMonitorWait(Object lock, long timeoutMillis);
+
+    @NoThrow
+    @Alias(names = "nativeMonitorNotify")
+    @JavaScriptWASM(code = "")
+    private static native void nativeMonitorNotify(Object lock, boolean all);
+
+    // static initializers, see JVMShared.wasStaticInited(); each class has one byte in the static init table
+
+    private static final int STATIC_INIT_RUNNING = 1;
+    private static final int STATIC_INIT_DONE = 2;
+
+    /**
+     * returns true, if <clinit> must be skipped, because it is done, or because the current thread is running it.
+     * Otherwise, the current thread holds the monitor of clazz until endStaticInit(), so other threads wait for it
+     */
+    @NoThrow
+    public static boolean wasStaticInited(Pointer address, Object clazz) {
+        if (getStaticInitState(address) == STATIC_INIT_DONE) return true;
+        monitorEnter(clazz);
+        if (getStaticInitState(address) != 0) {
+            // done by another thread meanwhile, or a recursive call from our own <clinit>
+            monitorExit(clazz);
+            return true;
+        }
+        setStaticInitState(address, STATIC_INIT_RUNNING);
+        return false;
+    }
+
+    /**
+     * a <clinit>, which threw, is marked as done, too
+     */
+    @NoThrow
+    public static void endStaticInit(Pointer address, Object clazz) {
+        setStaticInitState(address, STATIC_INIT_DONE);
+        monitorExit(clazz);
+    }
+
+    /**
+     * atomics need aligned words; the table is aligned, and padded to whole words
+     */
+    @NoThrow
+    private static int getStaticInitState(Pointer address) {
+        long addr = getAddrS(address);
+        int word = atomicLoadI32(ptrTo(addr & ~3L));
+        return (word >>> ((int) (addr & 3) << 3)) & 0xff;
+    }
+
+    @NoThrow
+    private static void setStaticInitState(Pointer address, int state) {
+        long addr = getAddrS(address);
+        Pointer word = ptrTo(addr & ~3L);
+        int shift = (int) (addr & 3) << 3;
+        while (true) {
+            // the neighbours are the states of other classes
+            int expected = atomicLoadI32(word);
+            int value = (expected & ~(0xff << shift)) | (state << shift);
+            if (atomicCompareExchangeI32(word, expected, value) == expected) return;
+        }
+    }
+
+    // atomics on a field of instance, used by AtomicInt and AtomicLong
+
+    @NoThrow
+    public static int atomicGetI32(Object instance, int offset) {
+        return atomicLoadI32(addr(instance, offset));
+    }
+
+    @NoThrow
+    public static void atomicSetI32(Object instance, int offset, int value) {
+        atomicStoreI32(addr(instance, offset), value);
+    }
+
+    @NoThrow
+    public static int atomicGetAndAddI32(Object instance, int offset, int delta) {
+        return atomicAddI32(addr(instance, offset), delta);
+    }
+
+    @NoThrow
+    public static int atomicGetAndSetI32(Object instance, int offset, int value) {
+        return atomicExchangeI32(addr(instance, offset), value);
+    }
+
+    @NoThrow
+    public static boolean atomicCompareAndSetI32(Object instance, int offset, int expected, int value) {
+        return atomicCompareExchangeI32(addr(instance, offset), expected, value) == expected;
+    }
+
+    @NoThrow
+    public static long atomicGetI64(Object instance, int offset) {
+        return atomicLoadI64(addr(instance, offset));
+    }
+
+    @NoThrow
+    public static void atomicSetI64(Object instance, int offset, long value) {
+        atomicStoreI64(addr(instance, offset), value);
+    }
+
+    @NoThrow
+    public static long atomicGetAndAddI64(Object instance, int offset, long delta) {
+        return atomicAddI64(addr(instance, offset), delta);
+    }
+
+    @NoThrow
+    public static boolean atomicCompareAndSetI64(Object instance, int offset, long expected, long value) {
+        return atomicCompareExchangeI64(addr(instance, offset), expected, value) == expected;
+    }
+
+    // atomics on aligned runtime tables, used by JVMShared.resolveInterfaceCached
+
+    @NoThrow
+    public static long atomicGetI64(Pointer address) {
+        return atomicLoadI64(address);
+    }
+
+    @NoThrow
+    public static void atomicSetI64(Pointer address, long value) {
+        atomicStoreI64(address, value);
+    }
+
+    // with JVMFlags.useSharedMemory, FirstMethodIndexer.addAtomicWASM() replaces these by atomic instructions;
+    // the read-modify-write ones return the previous value
+
+    @NoThrow
+    @Alias(names = "atomicLoadI32")
+    @JavaScriptWASM(code = "")
+    private static native int atomicLoadI32(Pointer addr);
+
+    @NoThrow
+    @Alias(names = "atomicStoreI32")
+    @JavaScriptWASM(code = "")
+    private static native void atomicStoreI32(Pointer addr, int value);
+
+    @NoThrow
+    @Alias(names = "atomicAddI32")
+    @JavaScriptWASM(code = "")
+    private static native int atomicAddI32(Pointer addr, int delta);
+
+    @NoThrow
+    @Alias(names = "atomicExchangeI32")
+    @JavaScriptWASM(code = "")
+    private static native int atomicExchangeI32(Pointer addr, int value);
+
+    @NoThrow
+    @Alias(names = "atomicCompareExchangeI32")
+    @JavaScriptWASM(code = "")
+    private static native int atomicCompareExchangeI32(Pointer addr, int expected, int value);
+
+    @NoThrow
+    @Alias(names = "atomicLoadI64")
+    @JavaScriptWASM(code = "")
+    private static native long atomicLoadI64(Pointer addr);
+
+    @NoThrow
+    @Alias(names = "atomicStoreI64")
+    @JavaScriptWASM(code = "")
+    private static native void atomicStoreI64(Pointer addr, long value);
+
+    @NoThrow
+    @Alias(names = "atomicAddI64")
+    @JavaScriptWASM(code = "")
+    private static native long atomicAddI64(Pointer addr, long delta);
+
+    @NoThrow
+    @Alias(names = "atomicCompareExchangeI64")
+    @JavaScriptWASM(code = "")
+    private static native long atomicCompareExchangeI64(Pointer addr, long expected, long value);
+
+    /**
+     * blocks the current worker while the value at addr equals expected, timeoutNanos < 0 waits forever;
+     * returns 0 when woken up, 1 if the value wasn't expected, and 2 on timeout.
+     * Browsers don't allow this on their main thread.
+     */
+    @NoThrow
+    @Alias(names = "atomicWaitI32")
+    @JavaScriptWASM(code = "")
+    static native int atomicWaitI32(Pointer addr, int expected, long timeoutNanos);
+
+    /**
+     * wakes up at most count workers waiting on addr, and returns how many were woken up
+     */
+    @NoThrow
+    @Alias(names = "atomicNotify")
+    @JavaScriptWASM(code = "")
+    static native int atomicNotify(Pointer addr, int count);
+
+    // thread-local allocation buffers
+
+    @NoThrow
+    @Alias(names = "isWorkerThread")
+    @JavaScriptWASM(code = "return 0;")
+    private static native boolean isWorkerThread();
+
+    /**
+     * bump-allocates size bytes from the TLAB of the current worker; returns null, if it is full
+     */
+    @NoThrow
+    @Alias(names = "allocateInTLAB")
+    @JavaScriptWASM(code = "return 0;")
+    private static native Pointer allocateInTLAB(Pointer size);
+
+    /**
+     * replaces the TLAB of the current worker; the rest of the old one is formatted by formatFreeRegion()
+     */
+    @NoThrow
+    @Alias(names = "refillTLAB")
+    @JavaScriptWASM(code = "")
+    private static native void refillTLAB(Pointer start, Pointer end);
+
+    /**
+     * returns the next candidate for GCTraversal.markThreadStacks() in ascending order, or null after the last one
+     */
+    @NoThrow
+    @Alias(names = "nextStackRoot")
+    @JavaScriptWASM(code = "return 0;")
+    public static native Pointer nextStackRoot();
+
+    /**
+     * returns null on the main thread, and for large instances
+     */
+    @NoThrow
+    public static Pointer mallocInTLAB(Pointer size) {
+        if (unsignedLessThan(ptrTo(MAX_TLAB_INSTANCE_SIZE), size)) return null;
+        if (useSharedMemory) return WorkerThreads.mallocInTLAB(size);
+        Pointer ptr = allocateInTLAB(size);
+        if (ptr == null && isWorkerThread()) {
+            Pointer start = GarbageCollector.allocateNewSpace(ptrTo(TLAB_SIZE));
+            refillTLAB(start, add(start, TLAB_SIZE));
+            ptr = allocateInTLAB(size);
+        }
+        return ptr;
+    }
+
+    /**
+     * turns the unused rest of a TLAB into a byte[], which isn't referenced, so the heap stays walkable,
+     * and the next sweep reclaims it
+     */
+    @Export
+    @NoThrow
+    @Alias(names = "formatFreeRegion")
+    public static void formatFreeRegion(Pointer start, Pointer end) {
+        long size = diff(end, start);
+        if (size < arrayOverhead) return;
+        writeI32AtOffset(start, 0, BYTE_ARRAY_CLASS); // generation 0 -> unused
+        writeI32AtOffset(start, objectOverhead, (int) (size - arrayOverhead));
+    }
+
+    /**
+     * entry point of each native thread
+     */
+    @Export
+    @Alias(names = "runThread")
+    public static void runThread(Thread thread) {
+        try {
+            thread.run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+        ThreadLocal2.removeWorkerValues(thread);
+    }
+}
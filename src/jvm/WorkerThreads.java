@@ -0,0 +1,406 @@
+package jvm;
+
+import annotations.Alias;
+import annotations.Export;
+import annotations.JavaScriptWASM;
+import annotations.NoThrow;
+import annotations.UnsafePointerField;
+import jvm.gc.GarbageCollector;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static jvm.JVMShared.arrayOverhead;
+import static jvm.JVMShared.getNextPtr;
+import static jvm.JVMShared.setNextPtr;
+import static jvm.Pointer.*;
+
+/**
+ * Runtime side of JVMFlags.useSharedMemory: java.lang.Thread runs on a pool of Web Workers,
+ * which instantiate the module on the WebAssembly.Memory of the main thread, see targets/wasm/worker.js.
+ * Static fields live in that memory, so they are shared, but WASM globals exist once per instance:
+ * that's why the allocation pointer is published in sharedNextPtr, and why the shadow stack isn't supported.
+ * <p>
+ * The pool grows with the threads: whenever a started thread finds no idle worker, another one is spawned,
+ * so threads, which wait for each other, never wait for a worker.
+ * <p>
+ * The stacks of WASM functions cannot be scanned, so the GC only runs while no worker runs a thread:
+ * the main thread calls stopWorkers() once per frame until it succeeds, collects within that frame, and then calls resumeWorkers().
+ * A long-running thread therefore delays the GC, and a thread, which never finishes, prevents it; index.js warns about that.
+ * <p>
+ * Locks and monitors are spin-locks on int[]s; workers block in memory.atomic.wait32 while they are taken,
+ * but browsers don't allow blocking their main thread, so it spins instead.
+ * Static initializers use these monitors, too: their states are read and set by atomics in the static init table,
+ * so a worker only takes the monitor of a class, while it isn't initialized yet.
+ */
+public class WorkerThreads {
+
+    /**
+     * index 0 is the main thread
+     */
+    private static final int MAX_WORKERS = 64;
+    private static final int MAX_MONITORS = 256;
+
+    // words in state; the signals are incremented, and all their waiters woken up, whenever something changed
+    private static final int QUEUE_LOCK = 0;
+    private static final int MALLOC_LOCK = 1;
+    private static final int MONITOR_LOCK = 2;
+    private static final int QUEUE_SIGNAL = 3;
+    private static final int FINISHED_SIGNAL = 4;
+    private static final int MONITOR_SIGNAL = 5;
+    private static final int NOTIFY_SIGNAL = 6;
+    private static final int SLEEP = 7;
+    private static final int GC_REQUESTED = 8;
+    private static final int BUSY_WORKERS = 9;
+    private static final int NUM_WORKERS = 10;
+    private static final int NUM_STATES = 11;
+
+    private static final int[] state = new int[NUM_STATES];
+    private static final int[] lockDepths = new int[NUM_STATES];
+
+    private static final Thread[] currentThreads = new Thread[MAX_WORKERS];
+
+    /**
+     * next and end of the TLAB of each worker
+     */
+    private static final int[] tlabs = new int[MAX_WORKERS * 2];
+
+    /**
+     * address, owner = worker index + 1, and recursion count of each held monitor; address 0 marks a free entry
+     */
+    private static final int[] monitors = new int[MAX_MONITORS * 3];
+
+    // guarded by QUEUE_LOCK
+    private static final ArrayList<Thread> queue = new ArrayList<>();
+    private static final HashSet<Thread> aliveThreads = new HashSet<>();
+
+    /**
+     * the allocation pointer shared by all instances, null until the first allocation
+     */
+    @UnsafePointerField
+    private static Pointer sharedNextPtr;
+
+    @NoThrow
+    @Alias(names = "getWorkerIndex")
+    @JavaScriptWASM(code = "return self.workerIndex|0;")
+    private static native int getWorkerIndex();
+
+    /**
+     * starts a Web Worker, which calls runWorker() with the given index, see targets/wasm/runtime.js
+     */
+    @NoThrow
+    @Alias(names = "spawnWorker")
+    @JavaScriptWASM(code = "spawnWorker(arg0)")
+    private static native void spawnWorker(int workerIndex);
+
+    @NoThrow
+    private static int getOffset(int index) {
+        return arrayOverhead + (index << 2);
+    }
+
+    @NoThrow
+    private static int getState(int index) {
+        return NativeThreads.atomicGetI32(state, getOffset(index));
+    }
+
+    @NoThrow
+    private static void signal(int index) {
+        NativeThreads.atomicGetAndAddI32(state, getOffset(index), 1);
+        NativeThreads.atomicNotify(addr(state, getOffset(index)), Integer.MAX_VALUE);
+    }
+
+    /**
+     * returns once state[index] != expected, after timeoutNanos (unless negative), or spuriously
+     */
+    @NoThrow
+    private static void waitFor(int index, int expected, long timeoutNanos) {
+        if (getWorkerIndex() != 0) {
+            NativeThreads.atomicWaitI32(addr(state, getOffset(index)), expected, timeoutNanos);
+        } else {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (getState(index) == expected) {
+                if (timeoutNanos >= 0 && System.nanoTime() - deadline >= 0) break;
+            }
+        }
+    }
+
+    /**
+     * reentrant, like the mutexes of the C++ target
+     */
+    @NoThrow
+    private static void lock(int index) {
+        int self = getWorkerIndex() + 1;
+        if (getState(index) != self) {
+            int offset = getOffset(index);
+            while (!NativeThreads.atomicCompareAndSetI32(state, offset, 0, self)) {
+                int owner = getState(index);
+                if (owner != 0) waitFor(index, owner, -1L);
+            }
+        }
+        lockDepths[index]++;
+    }
+
+    @NoThrow
+    private static void unlock(int index) {
+        if (--lockDepths[index] == 0) {
+            int offset = getOffset(index);
+            NativeThreads.atomicSetI32(state, offset, 0);
+            NativeThreads.atomicNotify(addr(state, offset), 1);
+        }
+    }
+
+    @NoThrow
+    public static void lockMalloc() {
+        lock(MALLOC_LOCK);
+        if (sharedNextPtr != null) setNextPtr(sharedNextPtr);
+    }
+
+    @NoThrow
+    public static void unlockMalloc() {
+        if (lockDepths[MALLOC_LOCK] == 1) sharedNextPtr = getNextPtr();
+        unlock(MALLOC_LOCK);
+    }
+
+    // threads
+
+    @NoThrow
+    static void startThread(Thread thread) {
+        lock(QUEUE_LOCK);
+        aliveThreads.add(thread);
+        queue.add(thread);
+        // workers, which were spawned, but don't run a thread yet, will take one
+        int idleWorkers = state[NUM_WORKERS] - state[BUSY_WORKERS];
+        int newWorker = 0;
+        if (idleWorkers < queue.size() && state[NUM_WORKERS] < MAX_WORKERS - 1) {
+            newWorker = ++state[NUM_WORKERS];
+        }
+        unlock(QUEUE_LOCK);
+        if (newWorker != 0) spawnWorker(newWorker);
+        signal(QUEUE_SIGNAL);
+    }
+
+    @NoThrow
+    static boolean isAlive(Thread thread) {
+        lock(QUEUE_LOCK);
+        boolean alive = aliveThreads.contains(thread);
+        unlock(QUEUE_LOCK);
+        return alive;
+    }
+
+    @NoThrow
+    static void join(Thread thread, long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (true) {
+            int seen = getState(FINISHED_SIGNAL);
+            if (!isAlive(thread)) return;
+            long remaining = deadline - System.nanoTime();
+            if (timeoutMillis > 0 && remaining <= 0) return;
+            waitFor(FINISHED_SIGNAL, seen, timeoutMillis > 0 ? remaining : -1L);
+        }
+    }
+
+    @NoThrow
+    static Thread currentThread() {
+        return currentThreads[getWorkerIndex()];
+    }
+
+    @NoThrow
+    static void sleep(long millis) {
+        // nobody signals SLEEP, so this always runs into the timeout
+        waitFor(SLEEP, 0, Math.max(millis, 0L) * 1_000_000L);
+    }
+
+    /**
+     * entry point of each worker; takes threads from the queue forever
+     */
+    @Export
+    @Alias(names = "runWorker")
+    public static void runWorker() {
+        int index = getWorkerIndex();
+        while (true) {
+            Thread thread = takeThread();
+            currentThreads[index] = thread;
+            NativeThreads.runThread(thread);
+            currentThreads[index] = null;
+            lock(QUEUE_LOCK);
+            aliveThreads.remove(thread);
+            state[BUSY_WORKERS]--;
+            unlock(QUEUE_LOCK);
+            signal(FINISHED_SIGNAL);
+        }
+    }
+
+    @NoThrow
+    private static Thread takeThread() {
+        while (true) {
+            int seen = getState(QUEUE_SIGNAL);
+            Thread thread = null;
+            lock(QUEUE_LOCK);
+            if (state[GC_REQUESTED] == 0 && !queue.isEmpty()) {
+                thread = queue.remove(0);
+                state[BUSY_WORKERS]++;
+            }
+            unlock(QUEUE_LOCK);
+            if (thread != null) return thread;
+            waitFor(QUEUE_SIGNAL, seen, -1L);
+        }
+    }
+
+    /**
+     * called by the main thread before each GC; once it returns true, no worker runs a thread until resumeWorkers().
+     * If a worker runs a thread, nothing changes, and the main thread tries again in its next frame:
+     * holding back queued threads instead would deadlock, if the running one waits for them.
+     */
+    @Export
+    @NoThrow
+    @Alias(names = "stopWorkers")
+    public static boolean stopWorkers() {
+        lock(QUEUE_LOCK);
+        boolean stopped = state[BUSY_WORKERS] == 0;
+        if (stopped) state[GC_REQUESTED] = 1;
+        unlock(QUEUE_LOCK);
+        if (stopped) {
+            if (sharedNextPtr != null) setNextPtr(sharedNextPtr);
+            // the heap must be walkable
+            for (int i = 2; i < tlabs.length; i += 2) {
+                NativeThreads.formatFreeRegion(ptrTo(tlabs[i]), ptrTo(tlabs[i + 1]));
+                tlabs[i] = tlabs[i + 1] = 0;
+            }
+        }
+        return stopped;
+    }
+
+    @Export
+    @NoThrow
+    @Alias(names = "resumeWorkers")
+    public static void resumeWorkers() {
+        // the GC may have moved the allocation pointer back
+        sharedNextPtr = getNextPtr();
+        lock(QUEUE_LOCK);
+        state[GC_REQUESTED] = 0;
+        unlock(QUEUE_LOCK);
+        signal(QUEUE_SIGNAL);
+    }
+
+    /**
+     * returns null on the main thread
+     */
+    @NoThrow
+    static Pointer mallocInTLAB(Pointer size) {
+        int index = getWorkerIndex() << 1;
+        if (index == 0) return null;
+        Pointer ptr = ptrTo(tlabs[index]);
+        Pointer end = ptrTo(tlabs[index + 1]);
+        if (ptr == null || unsignedLessThan(end, add(ptr, size))) {
+            NativeThreads.formatFreeRegion(ptr, end);
+            ptr = GarbageCollector.allocateNewSpace(ptrTo(NativeThreads.TLAB_SIZE));
+            tlabs[index + 1] = (int) getAddrS(add(ptr, NativeThreads.TLAB_SIZE));
+        }
+        tlabs[index] = (int) getAddrS(add(ptr, size));
+        return ptr;
+    }
+
+    // monitors
+
+    @NoThrow
+    private static int findMonitor(int address) {
+        for (int i = 0; i < monitors.length; i += 3) {
+            if (monitors[i] == address) return i;
+        }
+        return -1;
+    }
+
+    @NoThrow
+    private static boolean tryEnter(int address, int self, int count) {
+        lock(MONITOR_LOCK);
+        int i = findMonitor(address);
+        boolean entered = false;
+        if (i < 0) {
+            i = findMonitor(0);
+            if (i >= 0) {
+                monitors[i] = address;
+                monitors[i + 1] = self;
+                monitors[i + 2] = count;
+                entered = true;
+            } // else the table is full, and we have to wait for another monitor to be released
+        } else if (monitors[i + 1] == self) {
+            monitors[i + 2] += count;
+            entered = true;
+        }
+        unlock(MONITOR_LOCK);
+        return entered;
+    }
+
+    @NoThrow
+    private static void enter(Object lock, int count) {
+        int address = (int) getAddrS(lock);
+        int self = getWorkerIndex() + 1;
+        while (true) {
+            int seen = getState(MONITOR_SIGNAL);
+            if (tryEnter(address, self, count)) return;
+            waitFor(MONITOR_SIGNAL, seen, -1L);
+        }
+    }
+
+    /**
+     * releases the monitor completely, and returns its recursion count, or 0, if we didn't own it
+     */
+    @NoThrow
+    private static int release(Object lock, boolean all) {
+        int self = getWorkerIndex() + 1;
+        lock(MONITOR_LOCK);
+        int i = findMonitor((int) getAddrS(lock));
+        int count = 0;
+        if (i >= 0 && monitors[i + 1] == self) {
+            count = all ? monitors[i + 2] : 1;
+            if ((monitors[i + 2] -= count) == 0) {
+                monitors[i] = monitors[i + 1] = 0;
+            }
+        }
+        unlock(MONITOR_LOCK);
+        if (count > 0) signal(MONITOR_SIGNAL);
+        return count;
+    }
+
+    @NoThrow
+    static void monitorEnter(Object lock) {
+        enter(lock, 1);
+    }
+
+    @NoThrow
+    static boolean tryMonitorEnter(Object lock) {
+        return tryEnter((int) getAddrS(lock), getWorkerIndex() + 1, 1);
+    }
+
+    @NoThrow
+    static void monitorExit(Object lock) {
+        release(lock, false);
+    }
+
+    @NoThrow
+    static boolean holdsLock(Object lock) {
+        lock(MONITOR_LOCK);
+        int i = findMonitor((int) getAddrS(lock));
+        boolean holds = i >= 0 && monitors[i + 1] == getWorkerIndex() + 1;
+        unlock(MONITOR_LOCK);
+        return holds;
+    }
+
+    /**
+     * notify() wakes up all waiters, which Java allows as spurious wakeups
+     */
+    @NoThrow
+    static void wait(Object lock, long timeoutMillis) {
+        // read before releasing the monitor, so a notify() in between isn't lost
+        int seen = getState(NOTIFY_SIGNAL);
+        int count = release(lock, true);
+        if (count == 0) return; // not the owner
+        waitFor(NOTIFY_SIGNAL, seen, timeoutMillis > 0 ? timeoutMillis * 1_000_000L : -1L);
+        enter(lock, count);
+    }
+
+    @NoThrow
+    static void notify(Object lock) {
+        signal(NOTIFY_SIGNAL);
+    }
+}
@@ -1,7 +1,14 @@
 package jvm.custom;
 
 import annotations.NoThrow;
+import jvm.NativeThreads;
 
+import static jvm.JVMFlags.useNativeThreads;
+import static utils.StaticFieldOffsets.OFFSET_ATOMIC_INT_VALUE;
+
+/**
+ * java.util.concurrent.atomic.AtomicInteger; with JVMFlags.useNativeThreads, value is only accessed using atomic natives
+ */
 @SuppressWarnings("unused")
 public class AtomicInt extends Number {
     private int value = 0;
@@ -15,6 +22,7 @@ public class AtomicInt extends Number {
 
     @NoThrow
     public int getAndAdd(int added) {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI32(this, OFFSET_ATOMIC_INT_VALUE, added);
         int v = value;
         value = v + added;
         return v;
@@ -22,6 +30,7 @@ public class AtomicInt extends Number {
 
     @NoThrow
     public int getAndSet(int set) {
+        if (useNativeThreads) return NativeThreads.atomicGetAndSetI32(this, OFFSET_ATOMIC_INT_VALUE, set);
         int v = value;
         value = set;
         return v;
@@ -29,6 +38,7 @@ public class AtomicInt extends Number {
 
     @NoThrow
     public int addAndGet(int added) {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI32(this, OFFSET_ATOMIC_INT_VALUE, added) + added;
         int v = value + added;
         value = v;
         return v;
@@ -36,36 +46,46 @@ public class AtomicInt extends Number {
 
     @NoThrow
     public int getAndIncrement() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI32(this, OFFSET_ATOMIC_INT_VALUE, 1);
         return value++;
     }
 
     @NoThrow
     public int getAndDecrement() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI32(this, OFFSET_ATOMIC_INT_VALUE, -1);
         return value--;
     }
 
     @NoThrow
     public int incrementAndGet() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI32(this, OFFSET_ATOMIC_INT_VALUE, 1) + 1;
         return ++value;
     }
 
     @NoThrow
     public int decrementAndGet() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI32(this, OFFSET_ATOMIC_INT_VALUE, -1) - 1;
         return --value;
     }
 
     @NoThrow
     public int get() {
+        if (useNativeThreads) return NativeThreads.atomicGetI32(this, OFFSET_ATOMIC_INT_VALUE);
         return value;
     }
 
     @NoThrow
     public void set(int newValue) {
+        if (useNativeThreads) {
+            NativeThreads.atomicSetI32(this, OFFSET_ATOMIC_INT_VALUE, newValue);
+            return;
+        }
         value = newValue;
     }
 
     @NoThrow
     public boolean compareAndSet(int test, int newValue) {
+        if (useNativeThreads) return NativeThreads.atomicCompareAndSetI32(this, OFFSET_ATOMIC_INT_VALUE, test, newValue);
         boolean result = test == value;
         if (result) value = newValue;
         return result;
@@ -73,21 +93,21 @@ public class AtomicInt extends Number {
 
     @Override
     public int intValue() {
-        return value;
+        return get();
     }
 
     @Override
     public long longValue() {
-        return value;
+        return get();
     }
 
     @Override
     public float floatValue() {
-        return value;
+        return get();
     }
 
     @Override
     public double doubleValue() {
-        return value;
+        return get();
     }
 }
@@ -1,7 +1,14 @@
 package jvm.custom;
 
 import annotations.NoThrow;
+import jvm.NativeThreads;
 
+import static jvm.JVMFlags.useNativeThreads;
+import static utils.StaticFieldOffsets.OFFSET_ATOMIC_LONG_VALUE;
+
+/**
+ * java.util.concurrent.atomic.AtomicLong; with JVMFlags.useNativeThreads, value is only accessed using atomic natives
+ */
 @SuppressWarnings("unused")
 public class AtomicLong extends Number {
     private long value = 0;
@@ -15,6 +22,7 @@ public class AtomicLong extends Number {
 
     @NoThrow
     public long getAndAdd(long added) {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI64(this, OFFSET_ATOMIC_LONG_VALUE, added);
         long v = value;
         value = v + added;
         return v;
@@ -22,6 +30,7 @@ public class AtomicLong extends Number {
 
     @NoThrow
     public long addAndGet(long added) {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI64(this, OFFSET_ATOMIC_LONG_VALUE, added) + added;
         long v = value + added;
         value = v;
         return v;
@@ -29,36 +38,46 @@ public class AtomicLong extends Number {
 
     @NoThrow
     public long getAndIncrement() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI64(this, OFFSET_ATOMIC_LONG_VALUE, 1L);
         return value++;
     }
 
     @NoThrow
     public long getAndDecrement() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI64(this, OFFSET_ATOMIC_LONG_VALUE, -1L);
         return value--;
     }
 
     @NoThrow
     public long incrementAndGet() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI64(this, OFFSET_ATOMIC_LONG_VALUE, 1L) + 1;
         return ++value;
     }
 
     @NoThrow
     public long decrementAndGet() {
+        if (useNativeThreads) return NativeThreads.atomicGetAndAddI64(this, OFFSET_ATOMIC_LONG_VALUE, -1L) - 1;
         return --value;
     }
 
     @NoThrow
     public long get() {
+        if (useNativeThreads) return NativeThreads.atomicGetI64(this, OFFSET_ATOMIC_LONG_VALUE);
         return value;
     }
 
     @NoThrow
     public void set(long newValue) {
+        if (useNativeThreads) {
+            NativeThreads.atomicSetI64(this, OFFSET_ATOMIC_LONG_VALUE, newValue);
+            return;
+        }
         value = newValue;
     }
 
     @NoThrow
     public boolean compareAndSet(long test, long newValue) {
+        if (useNativeThreads) return NativeThreads.atomicCompareAndSetI64(this, OFFSET_ATOMIC_LONG_VALUE, test, newValue);
         boolean result = test == value;
         if (result) value = newValue;
         return result;
@@ -66,22 +85,22 @@ public class AtomicLong extends Number {
 
     @Override
     public int intValue() {
-        return (int) value;
+        return (int) get();
     }
 
     @Override
     public long longValue() {
-        return value;
+        return get();
     }
 
     @Override
     public float floatValue() {
-        return value;
+        return get();
     }
 
     @Override
     public double doubleValue() {
-        return value;
+        return get();
     }
 
 }
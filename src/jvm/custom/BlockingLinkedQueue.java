@@ -0,0 +1,138 @@
+package jvm.custom;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import static jvm.JVMFlags.useNativeThreads;
+
+/**
+ * java.util.concurrent.LinkedBlockingQueue and ConcurrentLinkedQueue with JVMFlags.useNativeThreads:
+ * each access locks the queue, and take() waits until another thread adds an element;
+ * iterating needs to be synchronized on the queue by the caller
+ */
+@SuppressWarnings("unused")
+public class BlockingLinkedQueue<E> extends LinkedList<E> {
+
+    public BlockingLinkedQueue() {
+        super();
+    }
+
+    public BlockingLinkedQueue(int capacity) {
+        super();
+    }
+
+    public BlockingLinkedQueue(Collection<? extends E> src) {
+        super(src);
+    }
+
+    @Override
+    public synchronized boolean add(E element) {
+        boolean added = super.add(element);
+        notifyAll();
+        return added;
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends E> elements) {
+        boolean added = super.addAll(elements);
+        notifyAll();
+        return added;
+    }
+
+    @Override
+    public synchronized void addFirst(E element) {
+        super.addFirst(element);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void addLast(E element) {
+        super.addLast(element);
+        notifyAll();
+    }
+
+    @Override
+    public boolean offer(E element) {
+        return add(element);
+    }
+
+    public boolean offer(E element, long timeout, TimeUnit unit) {
+        return add(element);
+    }
+
+    public void put(E element) {
+        add(element);
+    }
+
+    @Override
+    public synchronized E poll() {
+        return super.poll();
+    }
+
+    @Override
+    public synchronized E peek() {
+        return super.peek();
+    }
+
+    @Override
+    public synchronized E remove() {
+        return super.remove();
+    }
+
+    @Override
+    public synchronized boolean remove(Object element) {
+        return super.remove(element);
+    }
+
+    @Override
+    public synchronized E removeFirst() {
+        return super.removeFirst();
+    }
+
+    @Override
+    public synchronized boolean contains(Object element) {
+        return super.contains(element);
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return super.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return super.isEmpty();
+    }
+
+    public synchronized E take() throws InterruptedException {
+        if (!useNativeThreads && super.isEmpty()) {
+            throw new IllegalStateException("Nobody can add elements while waiting without threads");
+        }
+        while (super.isEmpty()) {
+            wait();
+        }
+        return super.removeFirst();
+    }
+
+    public synchronized E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (useNativeThreads) {
+            long endTime = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (super.isEmpty()) {
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                wait(remaining);
+            }
+        }
+        return super.poll();
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,101 @@
+package jvm.custom;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import static jvm.JVMFlags.useNativeThreads;
+
+/**
+ * java.util.concurrent.PriorityBlockingQueue with JVMFlags.useNativeThreads, see BlockingLinkedQueue
+ */
+@SuppressWarnings("unused")
+public class BlockingPriorityQueue<E> extends PriorityQueue<E> {
+
+    public BlockingPriorityQueue() {
+        super();
+    }
+
+    public BlockingPriorityQueue(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    public BlockingPriorityQueue(int initialCapacity, Comparator<? super E> comparator) {
+        super(initialCapacity, comparator);
+    }
+
+    public BlockingPriorityQueue(Collection<? extends E> src) {
+        super(src);
+    }
+
+    @Override
+    public synchronized boolean add(E element) {
+        boolean added = super.add(element);
+        notifyAll();
+        return added;
+    }
+
+    @Override
+    public synchronized boolean offer(E element) {
+        boolean added = super.offer(element);
+        notifyAll();
+        return added;
+    }
+
+    public void put(E element) {
+        offer(element);
+    }
+
+    @Override
+    public synchronized E poll() {
+        return super.poll();
+    }
+
+    @Override
+    public synchronized E peek() {
+        return super.peek();
+    }
+
+    @Override
+    public synchronized boolean remove(Object element) {
+        return super.remove(element);
+    }
+
+    @Override
+    public synchronized boolean contains(Object element) {
+        return super.contains(element);
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return super.size();
+    }
+
+    public synchronized E take() throws InterruptedException {
+        if (!useNativeThreads && super.isEmpty()) {
+            throw new IllegalStateException("Nobody can add elements while waiting without threads");
+        }
+        while (super.isEmpty()) {
+            wait();
+        }
+        return super.poll();
+    }
+
+    public synchronized E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (useNativeThreads) {
+            long endTime = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (super.isEmpty()) {
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                wait(remaining);
+            }
+        }
+        return super.poll();
+    }
+}
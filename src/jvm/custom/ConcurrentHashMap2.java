@@ -0,0 +1,134 @@
+package jvm.custom;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * java.util.concurrent.ConcurrentHashMap with JVMFlags.useNativeThreads: each access locks the map;
+ * iterating keySet(), values() or entrySet() needs to be synchronized on the map by the caller, like for Collections.synchronizedMap()
+ */
+@SuppressWarnings("unused")
+public class ConcurrentHashMap2<K, V> extends HashMap<K, V> {
+
+    public ConcurrentHashMap2() {
+        super();
+    }
+
+    public ConcurrentHashMap2(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    public ConcurrentHashMap2(int initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor);
+    }
+
+    public ConcurrentHashMap2(int initialCapacity, float loadFactor, int concurrencyLevel) {
+        super(initialCapacity, loadFactor);
+    }
+
+    public ConcurrentHashMap2(Map<? extends K, ? extends V> src) {
+        super(src);
+    }
+
+    @Override
+    public synchronized V get(Object key) {
+        return super.get(key);
+    }
+
+    @Override
+    public synchronized V getOrDefault(Object key, V defaultValue) {
+        return super.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return super.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean containsValue(Object value) {
+        return super.containsValue(value);
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        return super.put(key, value);
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends K, ? extends V> src) {
+        super.putAll(src);
+    }
+
+    @Override
+    public synchronized V putIfAbsent(K key, V value) {
+        return super.putIfAbsent(key, value);
+    }
+
+    @Override
+    public synchronized V remove(Object key) {
+        return super.remove(key);
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        return super.remove(key, value);
+    }
+
+    @Override
+    public synchronized V replace(K key, V value) {
+        return super.replace(key, value);
+    }
+
+    @Override
+    public synchronized boolean replace(K key, V oldValue, V newValue) {
+        return super.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return super.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public synchronized V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return super.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public synchronized V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return super.compute(key, remappingFunction);
+    }
+
+    @Override
+    public synchronized V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        return super.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public synchronized void forEach(BiConsumer<? super K, ? super V> action) {
+        super.forEach(action);
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return super.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return super.isEmpty();
+    }
+
+    public long mappingCount() {
+        return size();
+    }
+}
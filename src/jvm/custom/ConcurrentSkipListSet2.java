@@ -0,0 +1,105 @@
+package jvm.custom;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * java.util.concurrent.ConcurrentSkipListSet with JVMFlags.useNativeThreads: each access locks the set;
+ * iterating it needs to be synchronized on the set by the caller, like for Collections.synchronizedSortedSet()
+ */
+@SuppressWarnings("unused")
+public class ConcurrentSkipListSet2<E> extends TreeSet<E> {
+
+    public ConcurrentSkipListSet2() {
+        super();
+    }
+
+    public ConcurrentSkipListSet2(Comparator<? super E> comparator) {
+        super(comparator);
+    }
+
+    public ConcurrentSkipListSet2(Collection<? extends E> src) {
+        super(src);
+    }
+
+    public ConcurrentSkipListSet2(SortedSet<E> src) {
+        super(src);
+    }
+
+    @Override
+    public synchronized boolean add(E element) {
+        return super.add(element);
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends E> src) {
+        return super.addAll(src);
+    }
+
+    @Override
+    public synchronized boolean remove(Object element) {
+        return super.remove(element);
+    }
+
+    @Override
+    public synchronized boolean contains(Object element) {
+        return super.contains(element);
+    }
+
+    @Override
+    public synchronized E first() {
+        return super.first();
+    }
+
+    @Override
+    public synchronized E last() {
+        return super.last();
+    }
+
+    @Override
+    public synchronized E pollFirst() {
+        return super.pollFirst();
+    }
+
+    @Override
+    public synchronized E pollLast() {
+        return super.pollLast();
+    }
+
+    @Override
+    public synchronized E lower(E element) {
+        return super.lower(element);
+    }
+
+    @Override
+    public synchronized E floor(E element) {
+        return super.floor(element);
+    }
+
+    @Override
+    public synchronized E ceiling(E element) {
+        return super.ceiling(element);
+    }
+
+    @Override
+    public synchronized E higher(E element) {
+        return super.higher(element);
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return super.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return super.isEmpty();
+    }
+}
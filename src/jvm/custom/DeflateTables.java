@@ -0,0 +1,83 @@
+package jvm.custom;
+
+/**
+ * Constants of the DEFLATE format (RFC 1951), shared by Inflater and Deflater.
+ */
+final class DeflateTables {
+
+    private DeflateTables() {
+    }
+
+    static final int WINDOW_SIZE = 1 << 15;
+    static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    static final int MIN_MATCH = 3;
+    static final int MAX_MATCH = 258;
+    static final int MAX_BITS = 15;
+
+    static final int END_OF_BLOCK = 256;
+    static final int NUM_LIT_LEN = 288;
+    static final int NUM_DIST = 32;
+    static final int NUM_CODE_LEN = 19;
+
+    static final short[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+
+    static final byte[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+
+    static final int[] DIST_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+    };
+
+    static final byte[] DIST_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+
+    /**
+     * order, in which the code lengths of the code length alphabet are stored
+     */
+    static final byte[] CODE_LEN_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    static void fillFixedLitLenLengths(byte[] lengths) {
+        for (int i = 0; i < 144; i++) lengths[i] = 8;
+        for (int i = 144; i < 256; i++) lengths[i] = 9;
+        for (int i = 256; i < 280; i++) lengths[i] = 7;
+        for (int i = 280; i < NUM_LIT_LEN; i++) lengths[i] = 8;
+    }
+
+    static void fillFixedDistLengths(byte[] lengths) {
+        for (int i = 0; i < NUM_DIST; i++) lengths[i] = 5;
+    }
+
+    static int reverseBits(int code, int length) {
+        return Integer.reverse(code) >>> (32 - length);
+    }
+
+    /**
+     * java.util.zip.Adler32 uses native code, so the checksum of the zlib-wrapper is computed here
+     */
+    static int updateAdler32(int adler, byte[] bytes, int offset, int length) {
+        int a = adler & 0xffff, b = adler >>> 16;
+        while (length > 0) {
+            // zlib uses 5552 with unsigned ints; with signed ints, b cannot overflow within 3850 bytes
+            int n = Math.min(length, 3850);
+            length -= n;
+            for (int end = offset + n; offset < end; offset++) {
+                a += bytes[offset] & 0xff;
+                b += a;
+            }
+            a %= 65521;
+            b %= 65521;
+        }
+        return (b << 16) | a;
+    }
+}
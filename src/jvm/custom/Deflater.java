@@ -1,29 +1,752 @@
 package jvm.custom;
 
+import java.util.Arrays;
+
+import static jvm.custom.DeflateTables.*;
+
+/**
+ * Streaming DEFLATE encoder (RFC 1950/1951), which replaces java.util.zip.Deflater, because that one uses native code.
+ * Levels 1-3 use greedy matching, levels 4-9 lazy matching with longer hash chains, like zlib.
+ * Each block is written as fixed, dynamic or stored block, whichever is smallest.
+ * All buffers are allocated once per instance, so compressing doesn't allocate.
+ */
 @SuppressWarnings("unused")
 public class Deflater {
-    int deflate(byte[] bytes, int i0, int i1) {
-        return 0;
+
+    public static final int DEFLATED = 8;
+    public static final int NO_COMPRESSION = 0;
+    public static final int BEST_SPEED = 1;
+    public static final int BEST_COMPRESSION = 9;
+    public static final int DEFAULT_COMPRESSION = -1;
+    public static final int FILTERED = 1;
+    public static final int HUFFMAN_ONLY = 2;
+    public static final int DEFAULT_STRATEGY = 0;
+    public static final int NO_FLUSH = 0;
+    public static final int SYNC_FLUSH = 2;
+    public static final int FULL_FLUSH = 3;
+
+    private static final int HASH_BITS = 15;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    private static final int HASH_MASK = HASH_SIZE - 1;
+    private static final int MIN_LOOKAHEAD = MAX_MATCH + MIN_MATCH + 1;
+    private static final int MAX_DIST = WINDOW_SIZE - MIN_LOOKAHEAD;
+    // length 3 matches this far away are more expensive than their literals
+    private static final int TOO_FAR = 4096;
+
+    private static final int NUM_LIT_LEN_USED = 286;
+    private static final int NUM_DIST_USED = 30;
+    private static final int MAX_BLOCK_SYMBOLS = 1 << 14;
+
+    // good length, lazy length (max insert length for greedy levels), nice length, max chain; like zlib
+    private static final short[][] CONFIGS = {
+            {0, 0, 0, 0},
+            {4, 4, 8, 4}, {4, 5, 16, 8}, {4, 6, 32, 32},
+            {4, 4, 16, 16}, {8, 16, 32, 32}, {8, 16, 128, 128},
+            {8, 32, 128, 256}, {32, 128, 258, 1024}, {32, 258, 258, 4096}
+    };
+
+    private static final byte[] fixedLitLenLengths = new byte[NUM_LIT_LEN];
+    private static final short[] fixedLitLenCodes = new short[NUM_LIT_LEN];
+    private static final byte[] fixedDistLengths = new byte[NUM_DIST];
+    private static final short[] fixedDistCodes = new short[NUM_DIST];
+
+    private static final byte[] LENGTH_SYMBOLS = new byte[MAX_MATCH - MIN_MATCH + 1];
+
+    static {
+        for (int symbol = 0; symbol < 29; symbol++) {
+            int end = symbol < 28 ? LENGTH_BASE[symbol + 1] : MAX_MATCH + 1;
+            for (int length = LENGTH_BASE[symbol]; length < end; length++) {
+                LENGTH_SYMBOLS[length - MIN_MATCH] = (byte) symbol;
+            }
+        }
+        fillFixedLitLenLengths(fixedLitLenLengths);
+        fillFixedDistLengths(fixedDistLengths);
+        HuffmanEncoder.buildCodes(fixedLitLenLengths, NUM_LIT_LEN, fixedLitLenCodes);
+        HuffmanEncoder.buildCodes(fixedDistLengths, NUM_DIST, fixedDistCodes);
+    }
+
+    /**
+     * length-limited Huffman codes; frequencies are halved, until the code fits into the limit
+     */
+    static final class HuffmanEncoder {
+
+        private final long[] sorted;
+        private final int[] weights, parents, depths;
+
+        HuffmanEncoder(int maxSymbols) {
+            sorted = new long[maxSymbols];
+            weights = new int[2 * maxSymbols];
+            parents = new int[2 * maxSymbols];
+            depths = new int[2 * maxSymbols];
+        }
+
+        void buildLengths(int[] frequencies, int numSymbols, int maxBits, byte[] lengths) {
+            Arrays.fill(lengths, 0, numSymbols, (byte) 0);
+            for (int shift = 0; ; shift++) {
+                int n = 0;
+                for (int i = 0; i < numSymbols; i++) {
+                    int frequency = frequencies[i];
+                    if (frequency > 0) {
+                        sorted[n++] = ((long) Math.max(frequency >>> shift, 1) << 16) | i;
+                    }
+                }
+                if (n == 0) return;
+                if (n == 1) {
+                    // a single code would be incomplete; inflaters are happier with two codes
+                    int symbol = (int) sorted[0] & 0xffff;
+                    lengths[symbol] = 1;
+                    lengths[symbol == 0 ? 1 : 0] = 1;
+                    return;
+                }
+                Arrays.sort(sorted, 0, n);
+                // two-queue algorithm: leaves are sorted, and internal nodes are created in increasing order
+                for (int i = 0; i < n; i++) {
+                    weights[i] = (int) (sorted[i] >>> 16);
+                }
+                int nextLeaf = 0, nextNode = n;
+                for (int node = n; node < 2 * n - 1; node++) {
+                    int a = nextLeaf < n && (nextNode >= node || weights[nextLeaf] <= weights[nextNode]) ? nextLeaf++ : nextNode++;
+                    int b = nextLeaf < n && (nextNode >= node || weights[nextLeaf] <= weights[nextNode]) ? nextLeaf++ : nextNode++;
+                    weights[node] = weights[a] + weights[b];
+                    parents[a] = node;
+                    parents[b] = node;
+                }
+                int root = 2 * n - 2, maxDepth = 0;
+                depths[root] = 0;
+                for (int node = root - 1; node >= 0; node--) {
+                    int depth = depths[parents[node]] + 1;
+                    depths[node] = depth;
+                    if (node < n && depth > maxDepth) maxDepth = depth;
+                }
+                if (maxDepth <= maxBits) {
+                    for (int i = 0; i < n; i++) {
+                        lengths[(int) sorted[i] & 0xffff] = (byte) depths[i];
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * canonical codes, bit-reversed, because DEFLATE writes them starting with the most significant bit
+         */
+        static void buildCodes(byte[] lengths, int numSymbols, short[] codes) {
+            int[] counts = new int[MAX_BITS + 1];
+            for (int i = 0; i < numSymbols; i++) counts[lengths[i]]++;
+            counts[0] = 0;
+            int[] nextCode = new int[MAX_BITS + 1];
+            int code = 0;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                code = (code + counts[len - 1]) << 1;
+                nextCode[len] = code;
+            }
+            for (int i = 0; i < numSymbols; i++) {
+                int len = lengths[i];
+                codes[i] = len == 0 ? 0 : (short) reverseBits(nextCode[len]++, len);
+            }
+        }
+    }
+
+    private int level, strategy;
+    private final boolean nowrap;
+
+    private byte[] input;
+    private int inputPos, inputEnd;
+    private boolean finishCalled, isFinished, headerWritten, wasFlushed;
+
+    // two windows, so there is always MAX_DIST history in front of the current position
+    private final byte[] window = new byte[2 * WINDOW_SIZE];
+    private final int[] head = new int[HASH_SIZE];
+    private final int[] prev = new int[WINDOW_SIZE];
+    private int strStart, lookahead;
+    private int matchLength, matchDistance, prevLength, prevDistance;
+    private boolean matchAvailable;
+
+    private final short[] symbolLitLens = new short[MAX_BLOCK_SYMBOLS];
+    private final char[] symbolDists = new char[MAX_BLOCK_SYMBOLS];
+    private int numSymbols, numMatches;
+    private final int[] litLenFrequencies = new int[NUM_LIT_LEN];
+    private final int[] distFrequencies = new int[NUM_DIST];
+    private final int[] codeLenFrequencies = new int[NUM_CODE_LEN];
+
+    private final HuffmanEncoder encoder = new HuffmanEncoder(NUM_LIT_LEN);
+    private final byte[] litLenLengths = new byte[NUM_LIT_LEN];
+    private final short[] litLenCodes = new short[NUM_LIT_LEN];
+    private final byte[] distLengths = new byte[NUM_DIST];
+    private final short[] distCodes = new short[NUM_DIST];
+    private final byte[] codeLenLengths = new byte[NUM_CODE_LEN];
+    private final short[] codeLenCodes = new short[NUM_CODE_LEN];
+    private final byte[] allLengths = new byte[NUM_LIT_LEN_USED + NUM_DIST_USED];
+    private final byte[] runSymbols = new byte[NUM_LIT_LEN_USED + NUM_DIST_USED];
+    private final byte[] runExtras = new byte[NUM_LIT_LEN_USED + NUM_DIST_USED];
+
+    // a single block is at most 16k symbols * 48 bits, plus its header
+    private final byte[] pending = new byte[1 << 17];
+    private int pendingPos, pendingEnd;
+    private long bitBuffer;
+    private int bitCount;
+
+    private int adler = 1, dictionaryId;
+    private boolean hasDictionary;
+    private long bytesRead, bytesWritten;
+
+    public Deflater() {
+        this(DEFAULT_COMPRESSION, false);
+    }
+
+    public Deflater(int level) {
+        this(level, false);
+    }
+
+    public Deflater(int level, boolean nowrap) {
+        this.nowrap = nowrap;
+        setLevel(level);
+        Arrays.fill(head, -1);
+    }
+
+    public void setInput(byte[] bytes, int offset, int length) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        input = bytes;
+        inputPos = offset;
+        inputEnd = offset + length;
+        if (length > 0) wasFlushed = false;
+    }
+
+    public void setInput(byte[] bytes) {
+        setInput(bytes, 0, bytes.length);
+    }
+
+    public void setDictionary(byte[] bytes, int offset, int length) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (headerWritten || strStart != 0 || lookahead != 0) {
+            throw new IllegalStateException("Dictionary must be set before compressing");
+        }
+        dictionaryId = updateAdler32(1, bytes, offset, length);
+        hasDictionary = true;
+        int n = Math.min(length, MAX_DIST);
+        System.arraycopy(bytes, offset + length - n, window, 0, n);
+        for (int i = 0; i + MIN_MATCH <= n; i++) {
+            insertString(i);
+        }
+        strStart = n;
+    }
+
+    public void setDictionary(byte[] bytes) {
+        setDictionary(bytes, 0, bytes.length);
+    }
+
+    public void setStrategy(int strategy) {
+        if (strategy < DEFAULT_STRATEGY || strategy > HUFFMAN_ONLY) {
+            throw new IllegalArgumentException();
+        }
+        this.strategy = strategy;
+    }
+
+    public void setLevel(int level) {
+        if ((level < 0 || level > 9) && level != DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.level = level == DEFAULT_COMPRESSION ? 6 : level;
+    }
+
+    public boolean needsInput() {
+        return inputPos >= inputEnd;
+    }
+
+    public void finish() {
+        finishCalled = true;
+    }
+
+    public boolean finished() {
+        return isFinished && pendingPos >= pendingEnd;
+    }
+
+    public int deflate(byte[] bytes) {
+        return deflate(bytes, 0, bytes.length, NO_FLUSH);
+    }
+
+    public int deflate(byte[] bytes, int offset, int length) {
+        return deflate(bytes, offset, length, NO_FLUSH);
     }
 
-    int deflate(byte[] bytes, int i0, int i1, int i2) {
-        return 0;
+    public int deflate(byte[] bytes, int offset, int length, int flush) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (flush != NO_FLUSH && flush != SYNC_FLUSH && flush != FULL_FLUSH) {
+            throw new IllegalArgumentException();
+        }
+        int outputPos = offset, outputEnd = offset + length;
+        while (true) {
+            int n = Math.min(pendingEnd - pendingPos, outputEnd - outputPos);
+            if (n > 0) {
+                System.arraycopy(pending, pendingPos, bytes, outputPos, n);
+                pendingPos += n;
+                outputPos += n;
+            }
+            if (pendingPos < pendingEnd || isFinished) break;
+            pendingPos = pendingEnd = 0;
+            if (!compress(flush)) break;
+        }
+        bytesWritten += outputPos - offset;
+        return outputPos - offset;
     }
 
-    void end() {
+    public int getAdler() {
+        return adler;
     }
 
-    void finish() {
+    public int getTotalIn() {
+        return (int) bytesRead;
     }
 
-    boolean finished() {
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public int getTotalOut() {
+        return (int) bytesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void reset() {
+        input = null;
+        inputPos = inputEnd = 0;
+        finishCalled = isFinished = headerWritten = wasFlushed = hasDictionary = false;
+        Arrays.fill(head, -1);
+        strStart = lookahead = 0;
+        matchAvailable = false;
+        matchLength = prevLength = MIN_MATCH - 1;
+        numSymbols = numMatches = 0;
+        Arrays.fill(litLenFrequencies, 0);
+        Arrays.fill(distFrequencies, 0);
+        pendingPos = pendingEnd = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+        adler = 1;
+        bytesRead = bytesWritten = 0;
+    }
+
+    public void end() {
+        input = null;
+    }
+
+    /**
+     * writes at most one block into pending; returns false, if nothing can be done without more input or output
+     */
+    private boolean compress(int flush) {
+        if (!headerWritten) {
+            headerWritten = true;
+            if (!nowrap) writeHeader();
+            return true;
+        }
+        boolean flushAll = finishCalled || (flush != NO_FLUSH && !wasFlushed);
+        boolean isLazy = level > 3 && strategy != HUFFMAN_ONLY;
+        if (matchAvailable && !isLazy) {
+            // the level was changed
+            recordLiteral(window[strStart - 1]);
+            matchAvailable = false;
+        }
+        if (level == 0 || strategy == HUFFMAN_ONLY) findLiterals();
+        else if (isLazy) findMatchesLazy(flushAll);
+        else findMatchesGreedy(flushAll);
+
+        if (numSymbols >= MAX_BLOCK_SYMBOLS - 1) {
+            writeBlock(false);
+            return true;
+        }
+        if (!flushAll || lookahead > 0 || inputPos < inputEnd) return false;
+        if (matchAvailable) {
+            recordLiteral(window[strStart - 1]);
+            matchAvailable = false;
+        }
+        if (finishCalled) {
+            writeBlock(true);
+            alignToByte();
+            if (!nowrap) writeInt(adler);
+            isFinished = true;
+        } else {
+            if (numSymbols > 0) writeBlock(false);
+            // empty stored block, so the receiver gets everything up to here
+            writeBits(0, 3);
+            alignToByte();
+            writeBits(0, 16);
+            writeBits(0xffff, 16);
+            if (flush == FULL_FLUSH) Arrays.fill(head, -1);
+            wasFlushed = true;
+        }
         return true;
     }
 
-    boolean needsInput() {
-        return false;
+    private void writeHeader() {
+        int levelFlags = level <= 1 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int header = (0x78 << 8) | (levelFlags << 6);
+        if (hasDictionary) header |= 0x20;
+        header += 31 - header % 31;
+        writeBits(header >>> 8, 8);
+        writeBits(header & 0xff, 8);
+        if (hasDictionary) writeInt(dictionaryId);
+    }
+
+    private void writeInt(int value) {
+        // big endian
+        writeBits((value >>> 24) & 0xff, 8);
+        writeBits((value >>> 16) & 0xff, 8);
+        writeBits((value >>> 8) & 0xff, 8);
+        writeBits(value & 0xff, 8);
+    }
+
+    /**
+     * copies input into the window, and slides it, when the current position reaches the upper half
+     */
+    private void fillWindow() {
+        if (strStart >= WINDOW_SIZE + MAX_DIST) {
+            System.arraycopy(window, WINDOW_SIZE, window, 0, WINDOW_SIZE);
+            strStart -= WINDOW_SIZE;
+            for (int i = 0; i < HASH_SIZE; i++) {
+                int value = head[i];
+                head[i] = value >= WINDOW_SIZE ? value - WINDOW_SIZE : -1;
+            }
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                int value = prev[i];
+                prev[i] = value >= WINDOW_SIZE ? value - WINDOW_SIZE : -1;
+            }
+        }
+        int n = Math.min(inputEnd - inputPos, window.length - strStart - lookahead);
+        if (n > 0) {
+            System.arraycopy(input, inputPos, window, strStart + lookahead, n);
+            if (!nowrap) adler = updateAdler32(adler, input, inputPos, n);
+            inputPos += n;
+            lookahead += n;
+            bytesRead += n;
+        }
+    }
+
+    /**
+     * makes sure, that there is enough lookahead for a match; returns false, if the block must wait for more input
+     */
+    private boolean prepareLookahead(boolean flushAll) {
+        if (lookahead < MIN_LOOKAHEAD) {
+            fillWindow();
+            if (lookahead < MIN_LOOKAHEAD && !flushAll) return false;
+        }
+        return lookahead > 0;
+    }
+
+    private int insertString(int pos) {
+        byte[] window = this.window;
+        int hash = (((window[pos] & 0xff) << 10) ^ ((window[pos + 1] & 0xff) << 5) ^ (window[pos + 2] & 0xff)) & HASH_MASK;
+        int candidate = head[hash];
+        prev[pos & WINDOW_MASK] = candidate;
+        head[hash] = pos;
+        return candidate;
+    }
+
+    /**
+     * searches the hash chain for a match longer than bestLength; sets matchDistance, if one is found
+     */
+    private int longestMatch(int candidate, int bestLength) {
+        short[] config = CONFIGS[level];
+        int chainLength = config[3];
+        if (prevLength >= config[0]) chainLength >>= 2;
+        int niceLength = Math.min(config[2], lookahead);
+        int maxLength = Math.min(MAX_MATCH, lookahead);
+        if (bestLength >= maxLength) return bestLength;
+        int limit = strStart - MAX_DIST;
+        byte[] window = this.window;
+        int scan = strStart;
+        while (candidate >= 0 && candidate > limit && chainLength-- > 0) {
+            if (window[candidate + bestLength] == window[scan + bestLength] && window[candidate] == window[scan]) {
+                int length = 1;
+                while (length < maxLength && window[candidate + length] == window[scan + length]) length++;
+                if (length > bestLength) {
+                    bestLength = length;
+                    matchDistance = scan - candidate;
+                    if (length >= niceLength) break;
+                }
+            }
+            int next = prev[candidate & WINDOW_MASK];
+            if (next >= candidate) break;
+            candidate = next;
+        }
+        return bestLength;
+    }
+
+    private void findLiterals() {
+        while (numSymbols < MAX_BLOCK_SYMBOLS - 1) {
+            if (lookahead == 0) {
+                fillWindow();
+                if (lookahead == 0) return;
+            }
+            recordLiteral(window[strStart++]);
+            lookahead--;
+        }
+    }
+
+    private void findMatchesGreedy(boolean flushAll) {
+        int maxInsertLength = CONFIGS[level][1];
+        while (numSymbols < MAX_BLOCK_SYMBOLS - 1) {
+            if (!prepareLookahead(flushAll)) return;
+            int length = 0;
+            if (lookahead >= MIN_MATCH) {
+                int candidate = insertString(strStart);
+                if (candidate >= 0 && strStart - candidate <= MAX_DIST) {
+                    length = longestMatch(candidate, MIN_MATCH - 1);
+                }
+            }
+            if (length >= MIN_MATCH) {
+                recordMatch(length, matchDistance);
+                lookahead -= length;
+                if (length <= maxInsertLength && lookahead >= MIN_MATCH) {
+                    for (int i = 1; i < length; i++) insertString(strStart + i);
+                }
+                strStart += length;
+            } else {
+                recordLiteral(window[strStart++]);
+                lookahead--;
+            }
+        }
+    }
+
+    private void findMatchesLazy(boolean flushAll) {
+        int maxLazyLength = CONFIGS[level][1];
+        while (numSymbols < MAX_BLOCK_SYMBOLS - 1) {
+            if (!prepareLookahead(flushAll)) return;
+            int candidate = -1;
+            if (lookahead >= MIN_MATCH) candidate = insertString(strStart);
+            prevLength = matchLength;
+            prevDistance = matchDistance;
+            matchLength = MIN_MATCH - 1;
+            if (candidate >= 0 && prevLength < maxLazyLength && strStart - candidate <= MAX_DIST) {
+                matchLength = longestMatch(candidate, prevLength);
+                if (matchLength <= prevLength) {
+                    matchLength = MIN_MATCH - 1;
+                } else if (matchLength == MIN_MATCH && matchDistance > TOO_FAR) {
+                    matchLength = MIN_MATCH - 1;
+                }
+            }
+            if (prevLength >= MIN_MATCH && matchLength <= prevLength) {
+                // the previous match is better; it started one byte before
+                int maxInsert = strStart + lookahead - MIN_MATCH;
+                recordMatch(prevLength, prevDistance);
+                lookahead -= prevLength - 1;
+                for (int i = prevLength - 2; i > 0; i--) {
+                    if (++strStart <= maxInsert) insertString(strStart);
+                }
+                matchAvailable = false;
+                matchLength = MIN_MATCH - 1;
+                strStart++;
+            } else {
+                if (matchAvailable) recordLiteral(window[strStart - 1]);
+                matchAvailable = true;
+                strStart++;
+                lookahead--;
+            }
+        }
+    }
+
+    private void recordLiteral(byte value) {
+        int symbol = value & 0xff;
+        symbolLitLens[numSymbols] = (short) symbol;
+        symbolDists[numSymbols++] = 0;
+        litLenFrequencies[symbol]++;
+    }
+
+    private void recordMatch(int length, int distance) {
+        symbolLitLens[numSymbols] = (short) (length - MIN_MATCH);
+        symbolDists[numSymbols++] = (char) distance;
+        litLenFrequencies[lengthSymbol(length - MIN_MATCH) + 257]++;
+        distFrequencies[distSymbol(distance)]++;
+        numMatches++;
+    }
+
+    private static int lengthSymbol(int length) {
+        // length is relative to MIN_MATCH
+        return LENGTH_SYMBOLS[length];
+    }
+
+    private static int distSymbol(int distance) {
+        if (distance <= 4) return distance - 1;
+        // two symbols per power of two
+        int log2 = 31 - Integer.numberOfLeadingZeros(distance - 1);
+        return 2 * log2 + (((distance - 1) >>> (log2 - 1)) & 1);
+    }
+
+    private void writeBlock(boolean isLast) {
+        litLenFrequencies[END_OF_BLOCK]++;
+
+        encoder.buildLengths(litLenFrequencies, NUM_LIT_LEN_USED, MAX_BITS, litLenLengths);
+        encoder.buildLengths(distFrequencies, NUM_DIST_USED, MAX_BITS, distLengths);
+        int numLitLen = NUM_LIT_LEN_USED;
+        while (numLitLen > 257 && litLenLengths[numLitLen - 1] == 0) numLitLen--;
+        int numDist = NUM_DIST_USED;
+        while (numDist > 1 && distLengths[numDist - 1] == 0) numDist--;
+        int numRuns = encodeLengths(numLitLen, numDist);
+        encoder.buildLengths(codeLenFrequencies, NUM_CODE_LEN, 7, codeLenLengths);
+        int numCodeLengths = NUM_CODE_LEN;
+        while (numCodeLengths > 4 && codeLenLengths[CODE_LEN_ORDER[numCodeLengths - 1]] == 0) numCodeLengths--;
+
+        long extraBits = 0;
+        for (int i = 0; i < 29; i++) extraBits += (long) litLenFrequencies[257 + i] * LENGTH_EXTRA[i];
+        for (int i = 0; i < 30; i++) extraBits += (long) distFrequencies[i] * DIST_EXTRA[i];
+
+        long dynamicBits = 3 + 14 + 3 * numCodeLengths + extraBits;
+        for (int i = 0; i < numRuns; i++) {
+            int symbol = runSymbols[i];
+            dynamicBits += codeLenLengths[symbol] + (symbol == 16 ? 2 : symbol == 17 ? 3 : symbol == 18 ? 7 : 0);
+        }
+        long fixedBits = 3 + extraBits;
+        for (int i = 0; i < NUM_LIT_LEN_USED; i++) {
+            dynamicBits += (long) litLenFrequencies[i] * litLenLengths[i];
+            fixedBits += (long) litLenFrequencies[i] * fixedLitLenLengths[i];
+        }
+        for (int i = 0; i < NUM_DIST_USED; i++) {
+            dynamicBits += (long) distFrequencies[i] * distLengths[i];
+            fixedBits += (long) distFrequencies[i] * fixedDistLengths[i];
+        }
+        // stored blocks can be rebuilt from the symbols, if there are only literals
+        long storedBits = numMatches == 0 ? 3 + 7 + 32 + 8L * numSymbols : Long.MAX_VALUE;
+
+        int last = isLast ? 1 : 0;
+        if (storedBits <= fixedBits && storedBits <= dynamicBits) {
+            writeBits(last, 3);
+            alignToByte();
+            writeBits(numSymbols, 16);
+            writeBits(~numSymbols & 0xffff, 16);
+            for (int i = 0; i < numSymbols; i++) {
+                pending[pendingEnd++] = (byte) symbolLitLens[i];
+            }
+        } else if (fixedBits <= dynamicBits) {
+            writeBits(last | (1 << 1), 3);
+            writeSymbols(fixedLitLenCodes, fixedLitLenLengths, fixedDistCodes, fixedDistLengths);
+        } else {
+            HuffmanEncoder.buildCodes(litLenLengths, NUM_LIT_LEN_USED, litLenCodes);
+            HuffmanEncoder.buildCodes(distLengths, NUM_DIST_USED, distCodes);
+            HuffmanEncoder.buildCodes(codeLenLengths, NUM_CODE_LEN, codeLenCodes);
+            writeBits(last | (2 << 1), 3);
+            writeBits(numLitLen - 257, 5);
+            writeBits(numDist - 1, 5);
+            writeBits(numCodeLengths - 4, 4);
+            for (int i = 0; i < numCodeLengths; i++) {
+                writeBits(codeLenLengths[CODE_LEN_ORDER[i]], 3);
+            }
+            for (int i = 0; i < numRuns; i++) {
+                int symbol = runSymbols[i];
+                writeBits(codeLenCodes[symbol], codeLenLengths[symbol]);
+                if (symbol == 16) writeBits(runExtras[i], 2);
+                else if (symbol == 17) writeBits(runExtras[i], 3);
+                else if (symbol == 18) writeBits(runExtras[i], 7);
+            }
+            writeSymbols(litLenCodes, litLenLengths, distCodes, distLengths);
+        }
+
+        numSymbols = 0;
+        numMatches = 0;
+        Arrays.fill(litLenFrequencies, 0);
+        Arrays.fill(distFrequencies, 0);
+    }
+
+    /**
+     * run-length encodes the code lengths of both alphabets, and counts the frequencies of the code length symbols
+     */
+    private int encodeLengths(int numLitLen, int numDist) {
+        System.arraycopy(litLenLengths, 0, allLengths, 0, numLitLen);
+        System.arraycopy(distLengths, 0, allLengths, numLitLen, numDist);
+        Arrays.fill(codeLenFrequencies, 0);
+        int total = numLitLen + numDist, numRuns = 0;
+        for (int i = 0; i < total; ) {
+            int value = allLengths[i];
+            int runLength = 1;
+            while (i + runLength < total && allLengths[i + runLength] == value) runLength++;
+            i += runLength;
+            if (value == 0) {
+                while (runLength >= 11) {
+                    int n = Math.min(runLength, 138);
+                    numRuns = addRun(numRuns, 18, n - 11);
+                    runLength -= n;
+                }
+                if (runLength >= 3) {
+                    numRuns = addRun(numRuns, 17, runLength - 3);
+                    runLength = 0;
+                }
+            } else {
+                numRuns = addRun(numRuns, value, 0);
+                runLength--;
+                while (runLength >= 3) {
+                    int n = Math.min(runLength, 6);
+                    numRuns = addRun(numRuns, 16, n - 3);
+                    runLength -= n;
+                }
+            }
+            while (runLength-- > 0) {
+                numRuns = addRun(numRuns, value, 0);
+            }
+        }
+        return numRuns;
+    }
+
+    private int addRun(int numRuns, int symbol, int extra) {
+        runSymbols[numRuns] = (byte) symbol;
+        runExtras[numRuns] = (byte) extra;
+        codeLenFrequencies[symbol]++;
+        return numRuns + 1;
+    }
+
+    private void writeSymbols(short[] litLenCodes, byte[] litLenLengths, short[] distCodes, byte[] distLengths) {
+        for (int i = 0; i < numSymbols; i++) {
+            int litLen = symbolLitLens[i];
+            int distance = symbolDists[i];
+            if (distance == 0) {
+                writeBits(litLenCodes[litLen] & 0xffff, litLenLengths[litLen]);
+            } else {
+                int lengthSymbol = lengthSymbol(litLen);
+                int code = lengthSymbol + 257;
+                writeBits(litLenCodes[code] & 0xffff, litLenLengths[code]);
+                int numExtra = LENGTH_EXTRA[lengthSymbol];
+                if (numExtra > 0) writeBits(litLen + MIN_MATCH - LENGTH_BASE[lengthSymbol], numExtra);
+                int distSymbol = distSymbol(distance);
+                writeBits(distCodes[distSymbol] & 0xffff, distLengths[distSymbol]);
+                numExtra = DIST_EXTRA[distSymbol];
+                if (numExtra > 0) writeBits(distance - DIST_BASE[distSymbol], numExtra);
+            }
+        }
+        writeBits(litLenCodes[END_OF_BLOCK] & 0xffff, litLenLengths[END_OF_BLOCK]);
+    }
+
+    private void writeBits(int value, int numBits) {
+        bitBuffer |= (long) value << bitCount;
+        bitCount += numBits;
+        if (bitCount >= 32) {
+            byte[] pending = this.pending;
+            int i = pendingEnd;
+            long bits = bitBuffer;
+            pending[i] = (byte) bits;
+            pending[i + 1] = (byte) (bits >>> 8);
+            pending[i + 2] = (byte) (bits >>> 16);
+            pending[i + 3] = (byte) (bits >>> 24);
+            pendingEnd = i + 4;
+            bitBuffer = bits >>> 32;
+            bitCount -= 32;
+        }
     }
 
-    void setInput(byte[] bytes, int i0, int i1) {
+    private void alignToByte() {
+        while (bitCount > 0) {
+            pending[pendingEnd++] = (byte) bitBuffer;
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+        bitBuffer = 0;
+        bitCount = 0;
     }
 }
@@ -1,32 +1,552 @@
 package jvm.custom;
 
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static jvm.custom.DeflateTables.*;
+
+/**
+ * Streaming DEFLATE decoder (RFC 1950/1951), which replaces java.util.zip.Inflater, because that one uses native code.
+ * Huffman codes are decoded using a table for codes up to FAST_BITS, and canonical decoding for longer ones.
+ * Bytes are decoded straight into the caller's array; the last 32 kiB are kept in a window for back-references.
+ * When input or output runs out in the middle of a symbol, the state machine stops, and continues with the next call.
+ */
 @SuppressWarnings("unused")
 public class Inflater {
 
-    void end() {
+    private static final int FAST_BITS = 10;
+    private static final int FAST_SIZE = 1 << FAST_BITS;
+    private static final int FAST_MASK = FAST_SIZE - 1;
+
+    private static final int HEADER = 0, DICTIONARY_ID = 1, DICTIONARY = 2, BLOCK = 3, STORED = 4, STORED_COPY = 5,
+            TABLE = 6, CODE_LENGTHS = 7, LENGTHS = 8, LIT_LEN = 9, LENGTH_BITS = 10, DIST = 11, DIST_BITS = 12,
+            COPY = 13, CHECK = 14, DONE = 15;
+
+    static final class HuffmanTable {
+
+        // symbol << 4 | length, or 0, if the code is longer than FAST_BITS
+        final int[] fast = new int[FAST_SIZE];
+        final short[] counts = new short[MAX_BITS + 1];
+        final short[] symbols = new short[NUM_LIT_LEN];
+        private final short[] offsets = new short[MAX_BITS + 2];
+
+        /**
+         * returns false, if the code is over-subscribed
+         */
+        boolean build(byte[] lengths, int offset, int numSymbols) {
+            Arrays.fill(counts, (short) 0);
+            for (int i = 0; i < numSymbols; i++) {
+                counts[lengths[offset + i]]++;
+            }
+            counts[0] = 0;
+            int left = 1;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                left = (left << 1) - counts[len];
+                if (left < 0) return false;
+            }
+            offsets[1] = 0;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                offsets[len + 1] = (short) (offsets[len] + counts[len]);
+            }
+            for (int i = 0; i < numSymbols; i++) {
+                int len = lengths[offset + i];
+                if (len != 0) symbols[offsets[len]++] = (short) i;
+            }
+            // offsets now point to the end of each length; the fast table is filled in canonical order
+            Arrays.fill(fast, 0);
+            int code = 0, index = 0;
+            for (int len = 1; len <= FAST_BITS; len++) {
+                for (int i = 0, count = counts[len]; i < count; i++) {
+                    int entry = (symbols[index++] << 4) | len;
+                    for (int j = reverseBits(code++, len); j < FAST_SIZE; j += 1 << len) {
+                        fast[j] = entry;
+                    }
+                }
+                code <<= 1;
+            }
+            return true;
+        }
     }
 
-    void finish() {
+    private static final HuffmanTable fixedLitLen = new HuffmanTable();
+    private static final HuffmanTable fixedDist = new HuffmanTable();
+
+    static {
+        byte[] lengths = new byte[NUM_LIT_LEN];
+        fillFixedLitLenLengths(lengths);
+        fixedLitLen.build(lengths, 0, NUM_LIT_LEN);
+        fillFixedDistLengths(lengths);
+        fixedDist.build(lengths, 0, NUM_DIST);
     }
 
-    boolean needsInput() {
-        return true;
+    private final boolean nowrap;
+    private int state;
+
+    private byte[] input;
+    private int inputPos, inputEnd;
+    private long bitBuffer;
+    private int bitCount;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private int windowPos;
+    private boolean windowFull;
+
+    private byte[] output;
+    private int outputPos, outputEnd, checkedPos;
+
+    private boolean isLastBlock;
+    private int storedRemaining;
+    private int numLitLen, numDist, numCodeLengths, lengthIndex, pendingSymbol = -1;
+    private final byte[] lengths = new byte[NUM_LIT_LEN + NUM_DIST];
+    private final HuffmanTable dynamicLitLen = new HuffmanTable();
+    private final HuffmanTable dynamicDist = new HuffmanTable();
+    private HuffmanTable litLenTable, distTable;
+
+    private int matchLength, matchDistance, extraBits;
+
+    private int adler = 1, dictionaryId;
+    private long bytesRead, bytesWritten;
+
+    public Inflater() {
+        this(false);
     }
 
-    boolean finished() {
+    public Inflater(boolean nowrap) {
+        this.nowrap = nowrap;
+        state = nowrap ? BLOCK : HEADER;
+    }
+
+    public void setInput(byte[] bytes, int offset, int length) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        input = bytes;
+        inputPos = offset;
+        inputEnd = offset + length;
+    }
+
+    public void setInput(byte[] bytes) {
+        setInput(bytes, 0, bytes.length);
+    }
+
+    public void setDictionary(byte[] bytes, int offset, int length) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (state == DICTIONARY && updateAdler32(1, bytes, offset, length) != dictionaryId) {
+            throw new IllegalArgumentException("Incorrect dictionary");
+        }
+        int skipped = Math.max(length - WINDOW_SIZE, 0);
+        for (int i = offset + skipped, end = offset + length; i < end; i++) {
+            window[windowPos] = bytes[i];
+            windowPos = (windowPos + 1) & WINDOW_MASK;
+        }
+        if (length >= WINDOW_SIZE) windowFull = true;
+        if (state == DICTIONARY) {
+            // getAdler() returned the dictionary id until now; the trailer only covers the data
+            adler = 1;
+            state = BLOCK;
+        }
+    }
+
+    public void setDictionary(byte[] bytes) {
+        setDictionary(bytes, 0, bytes.length);
+    }
+
+    public int getRemaining() {
+        // whole bytes, which were read into the bit buffer, but haven't been used yet
+        return inputEnd - inputPos + (bitCount >> 3);
+    }
+
+    public boolean needsInput() {
+        return inputPos >= inputEnd;
+    }
+
+    public boolean needsDictionary() {
+        return state == DICTIONARY;
+    }
+
+    public boolean finished() {
+        return state == DONE;
+    }
+
+    public int inflate(byte[] bytes) throws DataFormatException {
+        return inflate(bytes, 0, bytes.length);
+    }
+
+    public int inflate(byte[] bytes, int offset, int length) throws DataFormatException {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        output = bytes;
+        outputPos = offset;
+        outputEnd = offset + length;
+        checkedPos = offset;
+        int inputStart = inputPos, bitsStart = bitCount;
+        try {
+            decode();
+        } finally {
+            updateChecksum();
+            bytesRead += (inputPos - inputStart) - ((bitCount - bitsStart) >> 3);
+            bytesWritten += outputPos - offset;
+            output = null;
+        }
+        return outputPos - offset;
+    }
+
+    public int getAdler() {
+        return adler;
+    }
+
+    public int getTotalIn() {
+        return (int) bytesRead;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public int getTotalOut() {
+        return (int) bytesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void reset() {
+        state = nowrap ? BLOCK : HEADER;
+        input = null;
+        inputPos = inputEnd = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+        windowPos = 0;
+        windowFull = false;
+        isLastBlock = false;
+        pendingSymbol = -1;
+        adler = 1;
+        bytesRead = bytesWritten = 0;
+    }
+
+    public void end() {
+        input = null;
+    }
+
+    private void updateChecksum() {
+        if (!nowrap && outputPos > checkedPos) {
+            adler = updateAdler32(adler, output, checkedPos, outputPos - checkedPos);
+        }
+        checkedPos = outputPos;
+    }
+
+    /**
+     * loads bytes into the bit buffer, until it has at least n bits; returns false, if the input ran out
+     */
+    private boolean need(int n) {
+        while (bitCount < n) {
+            if (inputPos >= inputEnd) return false;
+            bitBuffer |= (long) (input[inputPos++] & 0xff) << bitCount;
+            bitCount += 8;
+        }
         return true;
     }
 
-    void setInput(byte[] bytes, int i0, int i1) {
-        // meaning of i0,i1 unchecked!
+    private int take(int n) {
+        int value = (int) bitBuffer & ((1 << n) - 1);
+        bitBuffer >>>= n;
+        bitCount -= n;
+        return value;
+    }
+
+    /**
+     * returns the next symbol, or -1, if more input is needed
+     */
+    private int decodeSymbol(HuffmanTable table) throws DataFormatException {
+        need(MAX_BITS); // as much as possible; the end of the stream might be shorter
+        int entry = table.fast[(int) bitBuffer & FAST_MASK];
+        if (entry != 0) {
+            int length = entry & 15;
+            if (length > bitCount) return -1;
+            bitBuffer >>>= length;
+            bitCount -= length;
+            return entry >>> 4;
+        }
+        // canonical decoding, one bit at a time
+        short[] counts = table.counts;
+        int code = 0, first = 0, index = 0;
+        for (int length = 1; length <= MAX_BITS; length++) {
+            if (length > bitCount) return -1;
+            code |= (int) (bitBuffer >>> (length - 1)) & 1;
+            int count = counts[length];
+            if (code - first < count) {
+                bitBuffer >>>= length;
+                bitCount -= length;
+                return table.symbols[index + code - first];
+            }
+            index += count;
+            first = (first + count) << 1;
+            code <<= 1;
+        }
+        throw new DataFormatException("invalid code");
     }
 
-    boolean needsDictionary() {
-        return false;
+    private void emit(int value) {
+        byte b = (byte) value;
+        output[outputPos++] = b;
+        window[windowPos] = b;
+        windowPos = (windowPos + 1) & WINDOW_MASK;
+        if (windowPos == 0) windowFull = true;
     }
 
-    int inflate(byte[] bytes, int i0, int i1) {
-        return 0;
+    private void decode() throws DataFormatException {
+        while (true) {
+            switch (state) {
+                case HEADER: {
+                    if (!need(16)) return;
+                    int cmf = take(8), flg = take(8);
+                    if ((cmf & 15) != 8 || (cmf >>> 4) > 7) throw new DataFormatException("unknown compression method");
+                    if (((cmf << 8) | flg) % 31 != 0) throw new DataFormatException("incorrect header check");
+                    state = (flg & 0x20) != 0 ? DICTIONARY_ID : BLOCK;
+                    break;
+                }
+                case DICTIONARY_ID: {
+                    if (!need(32)) return;
+                    int id = 0;
+                    for (int i = 0; i < 4; i++) id = (id << 8) | take(8);
+                    dictionaryId = id;
+                    adler = id;
+                    state = DICTIONARY;
+                    break;
+                }
+                case DICTIONARY:
+                    return; // waiting for setDictionary()
+                case BLOCK: {
+                    if (isLastBlock) {
+                        state = nowrap ? DONE : CHECK;
+                        break;
+                    }
+                    if (!need(3)) return;
+                    isLastBlock = take(1) != 0;
+                    switch (take(2)) {
+                        case 0:
+                            take(bitCount & 7); // stored blocks start at a byte boundary
+                            state = STORED;
+                            break;
+                        case 1:
+                            litLenTable = fixedLitLen;
+                            distTable = fixedDist;
+                            state = LIT_LEN;
+                            break;
+                        case 2:
+                            state = TABLE;
+                            break;
+                        default:
+                            throw new DataFormatException("invalid block type");
+                    }
+                    break;
+                }
+                case STORED: {
+                    if (!need(32)) return;
+                    int length = take(16), inverse = take(16);
+                    if (length != (~inverse & 0xffff)) throw new DataFormatException("invalid stored block lengths");
+                    storedRemaining = length;
+                    state = STORED_COPY;
+                    break;
+                }
+                case STORED_COPY: {
+                    // bytes, which are still in the bit buffer, come first
+                    while (storedRemaining > 0 && bitCount >= 8 && outputPos < outputEnd) {
+                        emit(take(8));
+                        storedRemaining--;
+                    }
+                    int n = Math.min(storedRemaining, Math.min(inputEnd - inputPos, outputEnd - outputPos));
+                    if (n > 0) {
+                        System.arraycopy(input, inputPos, output, outputPos, n);
+                        copyToWindow(input, inputPos, n);
+                        inputPos += n;
+                        outputPos += n;
+                        storedRemaining -= n;
+                    }
+                    if (storedRemaining > 0) return;
+                    state = BLOCK;
+                    break;
+                }
+                case TABLE: {
+                    if (!need(14)) return;
+                    numLitLen = take(5) + 257;
+                    numDist = take(5) + 1;
+                    numCodeLengths = take(4) + 4;
+                    if (numLitLen > 286 || numDist > 30) throw new DataFormatException("too many length or distance symbols");
+                    lengthIndex = 0;
+                    state = CODE_LENGTHS;
+                    break;
+                }
+                case CODE_LENGTHS: {
+                    while (lengthIndex < numCodeLengths) {
+                        if (!need(3)) return;
+                        lengths[CODE_LEN_ORDER[lengthIndex++]] = (byte) take(3);
+                    }
+                    while (lengthIndex < NUM_CODE_LEN) {
+                        lengths[CODE_LEN_ORDER[lengthIndex++]] = 0;
+                    }
+                    // the distance table isn't needed yet, so it decodes the code lengths
+                    if (!dynamicDist.build(lengths, 0, NUM_CODE_LEN)) {
+                        throw new DataFormatException("invalid code lengths set");
+                    }
+                    lengthIndex = 0;
+                    pendingSymbol = -1;
+                    state = LENGTHS;
+                    break;
+                }
+                case LENGTHS: {
+                    if (!decodeLengths()) return;
+                    if (lengths[END_OF_BLOCK] == 0) throw new DataFormatException("invalid code -- missing end-of-block");
+                    if (!dynamicLitLen.build(lengths, 0, numLitLen)) {
+                        throw new DataFormatException("invalid literal/lengths set");
+                    }
+                    if (!dynamicDist.build(lengths, numLitLen, numDist)) {
+                        throw new DataFormatException("invalid distances set");
+                    }
+                    litLenTable = dynamicLitLen;
+                    distTable = dynamicDist;
+                    state = LIT_LEN;
+                    break;
+                }
+                case LIT_LEN: {
+                    HuffmanTable table = litLenTable;
+                    while (true) {
+                        if (outputPos >= outputEnd) return;
+                        int symbol = decodeSymbol(table);
+                        if (symbol < 0) return;
+                        if (symbol < END_OF_BLOCK) {
+                            emit(symbol);
+                        } else if (symbol == END_OF_BLOCK) {
+                            state = BLOCK;
+                            break;
+                        } else {
+                            symbol -= 257;
+                            if (symbol >= 29) throw new DataFormatException("invalid literal/length code");
+                            matchLength = LENGTH_BASE[symbol];
+                            extraBits = LENGTH_EXTRA[symbol];
+                            state = LENGTH_BITS;
+                            break;
+                        }
+                    }
+                    break;
+                }
+                case LENGTH_BITS: {
+                    if (!need(extraBits)) return;
+                    matchLength += take(extraBits);
+                    state = DIST;
+                    break;
+                }
+                case DIST: {
+                    int symbol = decodeSymbol(distTable);
+                    if (symbol < 0) return;
+                    if (symbol >= 30) throw new DataFormatException("invalid distance code");
+                    matchDistance = DIST_BASE[symbol];
+                    extraBits = DIST_EXTRA[symbol];
+                    state = DIST_BITS;
+                    break;
+                }
+                case DIST_BITS: {
+                    if (!need(extraBits)) return;
+                    matchDistance += take(extraBits);
+                    if (!windowFull && matchDistance > windowPos) {
+                        throw new DataFormatException("invalid distance too far back");
+                    }
+                    state = COPY;
+                    break;
+                }
+                case COPY: {
+                    int n = Math.min(matchLength, outputEnd - outputPos);
+                    int src = (windowPos - matchDistance) & WINDOW_MASK;
+                    byte[] window = this.window, output = this.output;
+                    if (matchDistance >= n && src + n <= WINDOW_SIZE && windowPos + n < WINDOW_SIZE) {
+                        // no overlap and no wrap-around
+                        System.arraycopy(window, src, output, outputPos, n);
+                        System.arraycopy(window, src, window, windowPos, n);
+                        outputPos += n;
+                        windowPos += n;
+                    } else {
+                        for (int i = 0; i < n; i++) {
+                            byte b = window[src];
+                            src = (src + 1) & WINDOW_MASK;
+                            output[outputPos++] = b;
+                            window[windowPos] = b;
+                            windowPos = (windowPos + 1) & WINDOW_MASK;
+                            if (windowPos == 0) windowFull = true;
+                        }
+                    }
+                    matchLength -= n;
+                    if (matchLength > 0) return;
+                    state = LIT_LEN;
+                    break;
+                }
+                case CHECK: {
+                    updateChecksum();
+                    take(bitCount & 7);
+                    if (!need(32)) return;
+                    int expected = 0;
+                    for (int i = 0; i < 4; i++) expected = (expected << 8) | take(8);
+                    if (expected != adler) throw new DataFormatException("incorrect data check");
+                    state = DONE;
+                    break;
+                }
+                default:
+                    return;
+            }
+        }
     }
 
+    /**
+     * decodes the code lengths of the literal/length- and distance-alphabets; returns false, if more input is needed
+     */
+    private boolean decodeLengths() throws DataFormatException {
+        int total = numLitLen + numDist;
+        while (lengthIndex < total) {
+            int symbol = pendingSymbol;
+            if (symbol < 0) {
+                symbol = decodeSymbol(dynamicDist);
+                if (symbol < 0) return false;
+                if (symbol < 16) {
+                    lengths[lengthIndex++] = (byte) symbol;
+                    continue;
+                }
+            }
+            // repeat-codes have extra bits, which might not have arrived yet
+            int numExtraBits = symbol == 16 ? 2 : symbol == 17 ? 3 : 7;
+            if (!need(numExtraBits)) {
+                pendingSymbol = symbol;
+                return false;
+            }
+            pendingSymbol = -1;
+            int repeat = take(numExtraBits) + (symbol == 18 ? 11 : 3);
+            byte value = 0;
+            if (symbol == 16) {
+                if (lengthIndex == 0) throw new DataFormatException("invalid bit length repeat");
+                value = lengths[lengthIndex - 1];
+            }
+            if (lengthIndex + repeat > total) throw new DataFormatException("invalid bit length repeat");
+            for (int i = 0; i < repeat; i++) {
+                lengths[lengthIndex++] = value;
+            }
+        }
+        return true;
+    }
+
+    private void copyToWindow(byte[] bytes, int offset, int length) {
+        if (length >= WINDOW_SIZE) {
+            offset += length - WINDOW_SIZE;
+            length = WINDOW_SIZE;
+        }
+        int n = Math.min(length, WINDOW_SIZE - windowPos);
+        System.arraycopy(bytes, offset, window, windowPos, n);
+        System.arraycopy(bytes, offset + n, window, 0, length - n);
+        if (windowPos + length >= WINDOW_SIZE) windowFull = true;
+        windowPos = (windowPos + length) & WINDOW_MASK;
+    }
 }
@@ -2,6 +2,8 @@ package jvm.custom;
 
 import java.util.concurrent.TimeUnit;
 
+import static jvm.JVMFlags.useNativeThreads;
+
 public class Semaphore {
     int capacity = 0;
 
@@ -9,11 +11,16 @@ public class Semaphore {
         this.capacity = value;
     }
 
-    public void acquire() {
+    public void acquire() throws InterruptedException {
         acquire(1);
     }
 
-    public void acquire(int delta) {
+    public synchronized void acquire(int delta) throws InterruptedException {
+        if (useNativeThreads) {
+            while (capacity < delta) {
+                wait();
+            }
+        }
         capacity -= delta;
     }
 
@@ -21,13 +28,22 @@ public class Semaphore {
         release(1);
     }
 
-    public void release(int delta) {
+    public synchronized void release(int delta) {
         capacity += delta;
+        notifyAll();
     }
 
-    public boolean tryAcquire(int delta, long numTimeout, TimeUnit timeoutUnit) {
+    public synchronized boolean tryAcquire(int delta, long numTimeout, TimeUnit timeoutUnit) throws InterruptedException {
+        if (useNativeThreads) {
+            long endTime = System.currentTimeMillis() + timeoutUnit.toMillis(numTimeout);
+            while (capacity < delta) {
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                wait(remaining);
+            }
+        }
         if (capacity >= delta) {
-            acquire(delta);
+            capacity -= delta;
             return true;
         } else return false;
     }
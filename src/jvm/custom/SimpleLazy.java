@@ -21,7 +21,7 @@ public class SimpleLazy<T> implements Lazy<T> {
     private boolean inited;
 
     @Override
-    public T getValue() {
+    public synchronized T getValue() {
         if (!inited) {
             value = generator.invoke();
             inited = true;
@@ -1,9 +1,12 @@
 package jvm.custom;
 
 import annotations.NoThrow;
+import jvm.NativeThreads;
 
+import java.util.HashMap;
 import java.util.function.Supplier;
 
+import static jvm.JVMFlags.useNativeThreads;
 import static jvm.JVMShared.unsafeCast;
 
 // in theory, we could replace all instances of this with the immediate result...
@@ -13,6 +16,7 @@ public class ThreadLocal2<V> {
     @NoThrow
     public ThreadLocal2(Supplier<V> supplier) {
         this.supplier = supplier;
+        if (useNativeThreads) workerSupplier = supplier;
     }
 
     public static <V> ThreadLocal<V> withInitial(Supplier<V> supplier) {
@@ -22,7 +26,20 @@ public class ThreadLocal2<V> {
     private V object;
     private Supplier<V> supplier;
 
+    // with JVMFlags.useNativeThreads, each worker thread gets its own value
+    private Supplier<V> workerSupplier;
+
+    /**
+     * the values of each running worker thread; only the lookup of the thread's own map is locked,
+     * and the map is dropped by removeWorkerValues(), when the thread exits
+     */
+    private static final HashMap<Thread, HashMap<ThreadLocal2<?>, Object>> workerValues = new HashMap<>();
+
     public V get() {
+        if (useNativeThreads) {
+            Thread thread = NativeThreads.currentThread();
+            if (thread != null) return getForWorker(thread);
+        }
         Supplier<V> supplier = this.supplier;
         if (supplier != null) {
             object = supplier.get();
@@ -30,4 +47,29 @@ public class ThreadLocal2<V> {
         }
         return object;
     }
+
+    private V getForWorker(Thread thread) {
+        HashMap<ThreadLocal2<?>, Object> values;
+        synchronized (workerValues) {
+            values = workerValues.get(thread);
+            if (values == null) {
+                values = new HashMap<>();
+                workerValues.put(thread, values);
+            }
+        }
+        // only accessed by its own thread
+        if (values.containsKey(this)) return unsafeCast(values.get(this));
+        V value = workerSupplier.get();
+        values.put(this, value);
+        return value;
+    }
+
+    /**
+     * called by NativeThreads.runThread(), when a thread exits
+     */
+    public static void removeWorkerValues(Thread thread) {
+        synchronized (workerValues) {
+            workerValues.remove(thread);
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package jvm.gc;
+
+import annotations.NoThrow;
+import jvm.Pointer;
+
+import static jvm.JVMShared.*;
+import static jvm.NativeLog.log;
+import static jvm.Pointer.*;
+
+/**
+ * Free-lists with segregated size classes for malloc, filled by the sweep in GCGapFinder.
+ * Each gap stays a byte[], so walking the heap still works; its data starts with the address of the next gap in its class.
+ * Classes below EXACT_LIMIT only hold a single size in steps of 8 bytes, so common object sizes are found in O(1);
+ * larger classes cover powers of two, and are searched first-fit.
+ */
+public class GCFreeLists {
+
+    private static final int SIZE_SHIFT = 3;
+    private static final int NUM_EXACT_CLASSES = 32;
+    private static final int EXACT_LIMIT = NUM_EXACT_CLASSES << SIZE_SHIFT;
+    private static final int NUM_CLASSES = 64; // one bit each in nonEmptyClasses
+    private static final int MAX_SCANNED_GAPS = 16;
+
+    /**
+     * gaps must have space for the link to the next gap
+     */
+    public static final int MIN_GAP_SIZE = arrayOverhead + 8;
+
+    // addresses instead of references, so the GC doesn't mark the gaps as alive
+    private final long[] heads = new long[NUM_CLASSES];
+    private long nonEmptyClasses;
+
+    public int numGaps, numLostGaps;
+    public long freeBytes, lostBytes;
+
+    private static int numReused, numMissed;
+    private static long reusedBytes;
+
+    @NoThrow
+    private static int getClassIndex(int size) {
+        if (size < EXACT_LIMIT) return size >>> SIZE_SHIFT;
+        int log2 = 31 - Integer.numberOfLeadingZeros(size);
+        return Math.min(NUM_EXACT_CLASSES + log2 - 8, NUM_CLASSES - 1);
+    }
+
+    @NoThrow
+    static int getGapSize(Pointer gap) {
+        return readI32AtOffset(gap, objectOverhead) + arrayOverhead;
+    }
+
+    @NoThrow
+    private static long getNext(Pointer gap) {
+        return read64(add(gap, arrayOverhead));
+    }
+
+    @NoThrow
+    private static void setNext(Pointer gap, long next) {
+        write64(add(gap, arrayOverhead), next);
+    }
+
+    @NoThrow
+    public boolean isEmpty() {
+        return nonEmptyClasses == 0;
+    }
+
+    @NoThrow
+    public void clear() {
+        // must not use Arrays.fill, because that uses the stack-ptr, and we might run async
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            heads[i] = 0;
+        }
+        nonEmptyClasses = 0;
+        numGaps = 0;
+        numLostGaps = 0;
+        freeBytes = 0;
+        lostBytes = 0;
+    }
+
+    /**
+     * registers a gap, which already has been converted into a byte[];
+     * gaps, which are too small for a link, stay lost until the next GC
+     */
+    @NoThrow
+    public void insert(Pointer gap, int size) {
+        if (size < MIN_GAP_SIZE) {
+            numLostGaps++;
+            lostBytes += size;
+        } else {
+            int classIndex = getClassIndex(size);
+            setNext(gap, heads[classIndex]);
+            heads[classIndex] = getAddrS(gap);
+            nonEmptyClasses |= 1L << classIndex;
+            numGaps++;
+            freeBytes += size;
+        }
+    }
+
+    @NoThrow
+    private void unlink(Pointer prev, Pointer gap, int classIndex, int size) {
+        long next = getNext(gap);
+        if (prev == null) {
+            heads[classIndex] = next;
+            if (next == 0) nonEmptyClasses &= ~(1L << classIndex);
+        } else setNext(prev, next);
+        numGaps--;
+        freeBytes -= size;
+    }
+
+    /**
+     * finds space for an instance of size bytes;
+     * returns null, if there is none, so the caller falls back to allocateNewSpace()
+     */
+    @NoThrow
+    public Pointer allocate(int size) {
+        long candidates = nonEmptyClasses & (-1L << getClassIndex(size));
+        while (candidates != 0) {
+            int classIndex = Long.numberOfTrailingZeros(candidates);
+            Pointer ptr = allocateFromClass(classIndex, size);
+            if (ptr != null) {
+                numReused++;
+                reusedBytes += size;
+                return ptr;
+            }
+            candidates &= candidates - 1; // try the next larger class
+        }
+        numMissed++;
+        return null;
+    }
+
+    @NoThrow
+    private Pointer allocateFromClass(int classIndex, int size) {
+        Pointer prev = null;
+        Pointer gap = ptrTo(heads[classIndex]);
+        // exact classes are decided by their head, larger ones are searched first-fit
+        for (int i = 0; i < MAX_SCANNED_GAPS && gap != null; i++) {
+            int available = getGapSize(gap);
+            if (available == size) {
+                unlink(prev, gap, classIndex, available);
+                return gap; // the new instance is placed where the gap was
+            } else if (available >= size + arrayOverhead) {
+                // shrink the gap, and place the new instance at its end
+                unlink(prev, gap, classIndex, available);
+                int remaining = available - size;
+                writeI32AtOffset(gap, objectOverhead, remaining - arrayOverhead);
+                insert(gap, remaining);
+                return add(gap, remaining);
+            }
+            prev = gap;
+            gap = ptrTo(getNext(gap));
+        }
+        return null;
+    }
+
+    /**
+     * removes a gap of the largest non-empty class, e.g., to use it for bump allocation;
+     * returns null, if there is none
+     */
+    @NoThrow
+    public Pointer takeLargest() {
+        if (nonEmptyClasses == 0) return null;
+        int classIndex = 63 - Long.numberOfLeadingZeros(nonEmptyClasses);
+        Pointer gap = ptrTo(heads[classIndex]);
+        unlink(null, gap, classIndex, getGapSize(gap));
+        return gap;
+    }
+
+    /**
+     * moves all gaps from other into this
+     */
+    @NoThrow
+    public void addAll(GCFreeLists other) {
+        for (int classIndex = 0; classIndex < NUM_CLASSES; classIndex++) {
+            Pointer gap = ptrTo(other.heads[classIndex]);
+            while (gap != null) {
+                Pointer next = ptrTo(getNext(gap));
+                insert(gap, getGapSize(gap));
+                gap = next;
+            }
+        }
+        other.clear();
+    }
+
+    @NoThrow
+    public void logStatistics() {
+        log("GC-FreeLists:", numGaps, freeBytes, numLostGaps);
+        log("GC-Reuse:", numReused, reusedBytes, numMissed);
+        numReused = 0;
+        reusedBytes = 0;
+        numMissed = 0;
+    }
+}
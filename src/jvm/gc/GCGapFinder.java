@@ -9,7 +9,6 @@ import java.util.ArrayList;
 
 import static jvm.ArrayAccessUnchecked.arrayLengthU;
 import static jvm.JVMShared.unsignedGreaterThanEqual;
-import static jvm.JVMShared.unsignedLessThan;
 import static jvm.JVMShared.*;
 import static jvm.NativeLog.log;
 import static jvm.Pointer.unsignedLessThan;
@@ -29,8 +28,6 @@ public class GCGapFinder {
     private static int nextWeakRefIndex;
     private static Object nextWeakRefInstance;
 
-    private static int smallestGapSize, smallestGapSizeIndex;
-
     private static boolean handleWeakRefs(Object instance) {
 
         // log("handleWeakRefs");
@@ -74,18 +71,13 @@ public class GCGapFinder {
 
     private static boolean wasUsed;
 
-    public static void findLargestGapsInit(byte[][] largestGaps) {
-        // log("Finding largest gaps");
-        // must not use Arrays.fill, because that uses the stack-ptr, and we might run async
-        for (int i = 0, l = largestGaps.length; i < l; i++) {
-            largestGaps[i] = null;
-        }
+    public static void findGapsInit(GCFreeLists freeLists) {
+        // log("Finding gaps");
+        freeLists.clear();
 
         // log("Scanning", instance, endPtr, iter);
         checkStatistics();
 
-        smallestGapSize = arrayOverhead << 1;
-        smallestGapSizeIndex = 0;
         freeMemory = 0;
         currPtr = getAllocationStart();
         endPtr = getNextPtr();
@@ -96,10 +88,10 @@ public class GCGapFinder {
         prepareWeakRefs();
     }
 
-    public static boolean findLargestGapsStep(byte[][] largestGaps, byte[][] gapsInUse) {
+    public static boolean findGapsStep(GCFreeLists freeLists) {
         int remainingBudget = 20_000;
 
-        // - find the largest gaps to reuse the memory there
+        // - find all gaps to reuse the memory there
         // for that, iterate over all allocated memory
         Pointer instancePtr = currPtr;
         Pointer gapStart = GCGapFinder.gapStart;
@@ -123,12 +115,6 @@ public class GCGapFinder {
                 isUsed = handleWeakRefs(instancePtr);
             }
 
-            if (!isUsed && contains(instancePtr, gapsInUse)) {
-                // already considered as a gap, and should not be written;
-                // to not throw them away for one GC iteration, we merge them later
-                isUsed = true;
-            }
-
             if (isUsed != wasUsed) {
                 if (isUsed) {
                     long available = diff(instancePtr, gapStart);
@@ -137,7 +123,7 @@ public class GCGapFinder {
                         // todo if gap.length > 2B, create multiple arrays
                         throwJs("Gap too large to handle");
                     }
-                    handleGap(gapStart, (int) available, largestGaps);
+                    handleGap(gapStart, (int) available, freeLists);
                 } else {
                     gapStart = instancePtr;
                 }
@@ -176,19 +162,19 @@ public class GCGapFinder {
      * iterate over all memory
      * - if instance is unused, free it = create byte[]
      * - if instance is monitored using WeakRef, mark it as still available
-     * - find the largest unused memory spaces for reusing old space
+     * - sort all unused memory spaces into freeLists for reusing old space
      */
     @NoThrow
-    public static void findLargestGaps(byte[][] largestGaps, byte[][] gapsInUse) {
-        findLargestGapsInit(largestGaps);
+    public static void findGaps(GCFreeLists freeLists) {
+        findGapsInit(freeLists);
         while (true) {
-            boolean done = findLargestGapsStep(largestGaps, gapsInUse);
+            boolean done = findGapsStep(freeLists);
             if (done) break;
         }
     }
 
     @NoThrow
-    private static void finishFindingGaps(Pointer endPtr, Pointer gapStart) {
+    static void finishFindingGaps(Pointer endPtr, Pointer gapStart) {
         lockMallocMutex();
         if (getNextPtr() == endPtr) {
             setNextPtr(gapStart);
@@ -198,42 +184,15 @@ public class GCGapFinder {
     }
 
     @NoThrow
-    static void handleGap(Pointer gapStart, int available, byte[][] largestGaps) {
+    static void handleGap(Pointer gapStart, int available, GCFreeLists freeLists) {
         // to do if a gap was > 2B elements, we'd have an issue...
         if (unsignedGreaterThanEqual(available, arrayOverhead)) { // should always be true
             // first step: replace with byte array, so that next time we can skip over it faster
             // log("Replacing Gap", gapStart, available);
             write32(gapStart, BYTE_ARRAY_CLASS); // byte array, generation 0
             writeI32AtOffset(gapStart, objectOverhead, available - arrayOverhead); // length
-            insertGapMaybe(unsafeCast(gapStart), available, largestGaps);
-        }
-    }
-
-    @NoThrow
-    static void insertGapMaybe(byte[] gapStart, int available, byte[][] largestGaps) {
-
-        if (unsignedLessThanEqual(available, smallestGapSize)) {
-            // gap too small for us to care for
-            return;
+            freeLists.insert(gapStart, available);
         }
-
-        int smallestSizeIndex = GCGapFinder.smallestGapSizeIndex;
-        largestGaps[smallestSizeIndex] = gapStart;
-
-        // reevaluate smallest size
-        int smallestSize = available;
-        for (int i = 0; i < 16; i++) {
-            byte[] array = largestGaps[i];
-            int size = array == null ? 0 : array.length;
-            if (unsignedLessThan(size, smallestSize)) {
-                smallestSize = size;
-                smallestSizeIndex = i;
-            }
-        }
-
-        GCGapFinder.smallestGapSize = smallestSize;
-        GCGapFinder.smallestGapSizeIndex = smallestSizeIndex;
-
     }
 
     @NoThrow
@@ -0,0 +1,352 @@
+package jvm.gc;
+
+import annotations.Alias;
+import annotations.Export;
+import annotations.JavaScriptNative;
+import annotations.NoThrow;
+import annotations.UnsafePointerField;
+import jvm.Pointer;
+import jvm.custom.WeakRef;
+
+import static jvm.JVMFlags.useGenerationalGC;
+import static jvm.JVMShared.*;
+import static jvm.NativeLog.log;
+import static jvm.Pointer.unsignedLessThan;
+import static jvm.Pointer.*;
+import static jvm.gc.GCGapFinder.getInstanceSize;
+import static jvm.gc.GCTraversal.*;
+import static jvm.gc.GarbageCollector.*;
+
+/**
+ * Young generation for JVMFlags.useGenerationalGC: new instances are bump-allocated in a fixed region,
+ * and a minor collection only marks instances from there, starting at static fields, JavaScript references and dirty cards.
+ * <p>
+ * Instances cannot be moved, because identity hashes and JavaScript references are based on addresses,
+ * so survivors are promoted in place: marking them makes them old, and the dead space between them is reused.
+ * Once too little space is left, the nursery is handed to the gap allocator, and a new one is created.
+ * <p>
+ * Reference stores into old instances, which point into the nursery, dirty a card (write barrier).
+ * Dirty cards are scanned conservatively; a bitmap of young instance starts filters the candidates.
+ */
+public class GCNursery {
+
+    /**
+     * GC state of instances, which haven't survived a collection yet; GarbageCollector.iteration skips this value
+     */
+    public static final byte YOUNG = -1;
+
+    private static final int NURSERY_SIZE = 4 << 20;
+    private static final int MAX_INSTANCE_SIZE = 64 << 10;
+    private static final int MIN_FREE_SIZE = NURSERY_SIZE >> 2;
+    private static final int CARD_SHIFT = 9;
+    private static final int CARD_SIZE = 1 << CARD_SHIFT;
+    private static final int MAX_NUM_CARDS = 1 << (32 - CARD_SHIFT);
+
+    // the nursery is formatted as a single byte[], so the sweep of the old generation jumps over it
+    @UnsafePointerField
+    private static Pointer start, size;
+
+    // current run of free memory for bump allocation
+    @UnsafePointerField
+    private static Pointer bumpPtr, runEnd;
+
+    // one bit per 8 bytes of the nursery, set for each young instance
+    @UnsafePointerField
+    private static Pointer startBitmap;
+
+    // one byte per card of memory
+    @UnsafePointerField
+    private static Pointer cards;
+    private static int numCards;
+    private static boolean cardsOverflowed;
+
+    private static GCFreeLists runs;
+    private static long allocatedBytes;
+    private static boolean isFull, isMarkingMajor, isCollectingMajor;
+
+    @NoThrow
+    private static void init() {
+        // must exist before start is set, because allocations in the nursery need it
+        if (runs == null) runs = new GCFreeLists();
+        else runs.clear();
+        Pointer region = allocateRawRegion(NURSERY_SIZE - arrayOverhead);
+        start = region;
+        size = ptrTo(NURSERY_SIZE);
+        addRun(add(region, arrayOverhead), NURSERY_SIZE - arrayOverhead);
+
+        if (startBitmap == null) startBitmap = allocateRawRegion(NURSERY_SIZE >> 6);
+        clearRegion(startBitmap);
+        if (cards == null) createCards();
+        allocatedBytes = 0;
+        isFull = false;
+    }
+
+    @NoThrow
+    private static void createCards() {
+        long memoryCards = (getAddrS(getAllocatedSize()) >>> CARD_SHIFT) << 1;
+        numCards = (int) Math.min(memoryCards, MAX_NUM_CARDS);
+        cards = allocateRawRegion(numCards);
+        clearRegion(cards);
+        cardsOverflowed = false;
+    }
+
+    @NoThrow
+    private static void clearRegion(Pointer region) {
+        Pointer data = add(region, arrayOverhead);
+        fill64(data, add(data, readI32AtOffset(region, objectOverhead)), 0);
+    }
+
+    @NoThrow
+    private static void addRun(Pointer run, int runSize) {
+        // dead byte[], so it can be merged with its neighbors in the next sweep
+        write32(run, BYTE_ARRAY_CLASS | (YOUNG << 24));
+        writeI32AtOffset(run, objectOverhead, runSize - arrayOverhead);
+        runs.insert(run, runSize);
+    }
+
+    @NoThrow
+    public static boolean isInNursery(Object instance) {
+        return unsignedLessThan(sub(castToPtr(instance), start), size);
+    }
+
+    /**
+     * returns null, if the instance must be allocated in the old generation
+     */
+    @NoThrow
+    static Pointer allocate(Pointer instanceSize) {
+        Pointer ptr = bumpPtr;
+        if (unsignedLessThan(sub(runEnd, ptr), instanceSize)) {
+            ptr = allocateSlow(instanceSize);
+            if (ptr == null) return null;
+        }
+        bumpPtr = add(ptr, instanceSize);
+        allocatedBytes += getAddrS(instanceSize);
+
+        int index = (int) (diff(ptr, start) >>> 3);
+        Pointer bitmapPtr = add(startBitmap, arrayOverhead + (index >>> 3));
+        write8(bitmapPtr, (byte) (read8(bitmapPtr) | (1 << (index & 7))));
+        return ptr;
+    }
+
+    @NoThrow
+    private static Pointer allocateSlow(Pointer instanceSize) {
+        if (start == null || isMarkingMajor || unsignedLessThan(ptrTo(MAX_INSTANCE_SIZE), instanceSize)) return null;
+        while (true) {
+            sealRun();
+            Pointer run = runs.takeLargest();
+            if (run == null) {
+                isFull = true;
+                return null;
+            }
+            bumpPtr = run;
+            runEnd = add(run, GCFreeLists.getGapSize(run));
+            if (!unsignedLessThan(sub(runEnd, run), instanceSize)) return run;
+        }
+    }
+
+    /**
+     * formats the unused rest of the current run as byte[], so the nursery stays walkable
+     */
+    @NoThrow
+    private static void sealRun() {
+        Pointer ptr = bumpPtr;
+        if (ptr != null && unsignedLessThan(ptr, runEnd)) {
+            // sizes are multiples of 8, so the rest is large enough for a header
+            write32(ptr, BYTE_ARRAY_CLASS | (YOUNG << 24));
+            writeI32AtOffset(ptr, objectOverhead, (int) diff(runEnd, ptr) - arrayOverhead);
+        }
+        bumpPtr = null;
+        runEnd = null;
+    }
+
+    /**
+     * write barrier: remembers old instances, which reference young ones
+     */
+    @NoThrow
+    public static void writeBarrier(Object instance, int offset, Object value) {
+        if (isInNursery(value) && readI8AtOffset(instance, GC_OFFSET) != YOUNG) {
+            markCard(add(castToPtr(instance), offset));
+        }
+    }
+
+    /**
+     * write barrier for bulk copies of references, e.g., System.arraycopy()
+     */
+    @NoThrow
+    public static void writeBarrierRange(Object instance, Pointer dst, long numBytes) {
+        if (start == null || readI8AtOffset(instance, GC_OFFSET) == YOUNG) return;
+        Pointer end = add(dst, numBytes);
+        for (Pointer card = dst; unsignedLessThan(card, end); card = add(card, CARD_SIZE)) {
+            markCard(card);
+        }
+        markCard(sub(end, 1));
+    }
+
+    @NoThrow
+    private static void markCard(Pointer addr) {
+        long card = getAddrS(addr) >>> CARD_SHIFT;
+        if (card < numCards) write8(add(cards, arrayOverhead + card), (byte) 1);
+        else cardsOverflowed = true;
+    }
+
+    @NoThrow
+    @Alias(names = "setFieldPtr")
+    public static void setFieldPtr(Object instance, Object value, int offset) {
+        writePtrAtOffset(instance, offset, value);
+    }
+
+    @NoThrow
+    @Alias(names = "setVIOFieldPtr")
+    public static void setVIOFieldPtr(Object value, Object instance, int offset) {
+        writePtrAtOffset(instance, offset, value);
+    }
+
+    @NoThrow
+    private static boolean isYoungInstanceStart(Pointer ptr) {
+        long offset = diff(ptr, start);
+        if (offset < arrayOverhead || offset >= NURSERY_SIZE || (offset & 7) != 0) return false;
+        int index = (int) (offset >>> 3);
+        return (readI8AtOffset(startBitmap, arrayOverhead + (index >>> 3)) & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * pushes everything, that looks like a reference to a young instance, from dirty cards
+     */
+    @NoThrow
+    private static void scanDirtyCards() {
+        Pointer cardData = add(cards, arrayOverhead);
+        for (int card = 0; card < numCards; card++) {
+            if ((card & 7) == 0 && card + 8 <= numCards && read64(add(cardData, card)) == 0L) {
+                card += 7; // eight clean cards
+                continue;
+            }
+            if (read8(add(cardData, card)) == 0) continue;
+            Pointer ptr = ptrTo((long) card << CARD_SHIFT);
+            Pointer end = add(ptr, CARD_SIZE);
+            while (unsignedLessThan(ptr, end)) {
+                Pointer candidate = read32Ptr(ptr);
+                if (isYoungInstanceStart(candidate)) push(candidate);
+                ptr = add(ptr, 4);
+            }
+        }
+    }
+
+    /**
+     * minor collection, called from the main loop, when the stack is empty;
+     * runs only, when the nursery is half full, and no major collection is in progress
+     */
+    @Export
+    @NoThrow
+    @Alias(names = "minorGC")
+    @JavaScriptNative(code = "")
+    public static void minorGC() {
+        if (!useGenerationalGC || isCollectingMajor) return;
+        if (start == null) {
+            init();
+            return;
+        }
+        if (!isFull && allocatedBytes < (NURSERY_SIZE >> 1)) return;
+        if (cardsOverflowed) {
+            // the heap has grown beyond the card table, so collect everything once
+            createCards();
+            invokeGC();
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        markInit();
+        pushStaticFields();
+        markJSReferences();
+        scanDirtyCards();
+        markAll();
+        sweep();
+        long t1 = System.nanoTime();
+        log("GC-Minor:", (t1 - t0), runs.freeBytes, runs.numGaps);
+
+        if (runs.freeBytes < MIN_FREE_SIZE) {
+            promoteNursery();
+        }
+    }
+
+    /**
+     * hands the nursery with all survivors to the old generation, and its free runs to the gap allocator
+     */
+    @NoThrow
+    private static void promoteNursery() {
+        // the header of the nursery becomes an empty, dead byte[], so the old sweep walks its instances
+        write32(start, BYTE_ARRAY_CLASS | (YOUNG << 24));
+        writeI32AtOffset(start, objectOverhead, 0);
+        freeLists.addAll(runs);
+        GarbageCollectorFlags.hasGaps = !freeLists.isEmpty();
+        init();
+    }
+
+    /**
+     * all young instances have been marked or are dead, so free the dead ones, and promote the rest;
+     * instances are alive, if their state is the current iteration
+     */
+    @NoThrow
+    private static void sweep() {
+        sealRun();
+        runs.clear();
+
+        final byte iteration = GarbageCollector.iteration;
+        final boolean hasWeakRefs = WeakRef.weakRefInstances.size() > 0;
+        Pointer ptr = add(start, arrayOverhead);
+        Pointer end = add(start, size);
+        Pointer gapStart = null;
+        while (unsignedLessThan(ptr, end)) {
+            int classId = readClassId(ptr);
+            Pointer instanceSize = getInstanceSize(ptr, classId);
+            boolean isUsed = readI8AtOffset(ptr, GC_OFFSET) == iteration;
+            if (isUsed) {
+                if (gapStart != null) {
+                    addRun(gapStart, (int) diff(ptr, gapStart));
+                    gapStart = null;
+                }
+            } else {
+                if (hasWeakRefs) unregisterWeakRef(ptr);
+                if (gapStart == null) gapStart = ptr;
+            }
+            ptr = add(ptr, instanceSize);
+        }
+        if (gapStart != null) {
+            addRun(gapStart, (int) diff(end, gapStart));
+        }
+
+        // no young instances are left, so no remembered references are needed anymore
+        clearRegion(startBitmap);
+        clearRegion(cards);
+        allocatedBytes = 0;
+        isFull = false;
+    }
+
+    /**
+     * called before a major collection marks its roots
+     */
+    @NoThrow
+    static void startMajor() {
+        isCollectingMajor = true;
+        if (start == null) return;
+        isMarkingMajor = true;
+        sealRun(); // no allocations while marking, so marked instances stay consistent
+        byte iteration = GarbageCollector.iteration;
+        writeI8AtOffset(start, GC_OFFSET, iteration);
+        writeI8AtOffset(startBitmap, GC_OFFSET, iteration);
+        writeI8AtOffset(cards, GC_OFFSET, iteration);
+    }
+
+    /**
+     * called after a major collection has marked all instances, and before the sweep of the old generation starts
+     */
+    @NoThrow
+    static void finishMajorMarking() {
+        isMarkingMajor = false;
+        if (start != null) sweep();
+    }
+
+    @NoThrow
+    static void finishMajor() {
+        isCollectingMajor = false;
+    }
+}
@@ -0,0 +1,213 @@
+package jvm.gc;
+
+import annotations.NoThrow;
+import annotations.UnsafePointerField;
+import jvm.Pointer;
+import jvm.custom.WeakRef;
+
+import java.util.ArrayList;
+
+import static jvm.JVMShared.*;
+import static jvm.Pointer.unsignedLessThan;
+import static jvm.Pointer.*;
+import static jvm.gc.GCGapFinder.*;
+import static jvm.gc.GarbageCollector.*;
+
+/**
+ * "Sweep" of mark-and-sweep for parallelGC, split into address ranges, which can be swept by different threads.
+ * Ranges must start at an instance, which the mutator doesn't modify, so they are chosen while marking:
+ * each range starts at the first marked instance within a bucket of the heap.
+ * Sweeping a range must not allocate, nor call functions that can throw, because those use the shared stack pointer.
+ */
+public class GCParallelSweep {
+
+    private static final int NUM_BUCKETS = 64;
+
+    private static final long[] firstMarked = new long[NUM_BUCKETS];
+    private static final long[] rangeStarts = new long[NUM_BUCKETS + 1];
+    private static final long[] rangeFreedMemory = new long[NUM_BUCKETS];
+    private static final int[] rangeWeakRefStarts = new int[NUM_BUCKETS + 1];
+    private static final GCFreeLists[] rangeGaps = new GCFreeLists[NUM_BUCKETS];
+    private static int numRanges, bucketShift;
+    static boolean isRecording;
+
+    @UnsafePointerField
+    private static Pointer heapStart, heapEnd;
+
+    // sorted offsets of weakly referenced instances; dead ones are unregistered on the primary thread
+    private static final ArrayList<Object> weakRefKeys = new ArrayList<>(64);
+    private static long[] weakRefOffsets = new long[64];
+    private static boolean[] isWeakRefDead = new boolean[64];
+    private static int numWeakRefs;
+
+    /**
+     * primary thread, before marking
+     */
+    @NoThrow
+    static void prepareMarking() {
+        heapStart = getAllocationStart();
+        long heapSize = diff(getNextPtr(), heapStart);
+        bucketShift = Math.max(64 - Long.numberOfLeadingZeros(heapSize) - 6, 3); // 64 buckets
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            firstMarked[i] = Long.MAX_VALUE;
+            if (rangeGaps[i] == null) rangeGaps[i] = new GCFreeLists();
+        }
+        isRecording = true;
+    }
+
+    /**
+     * called by GCTraversal for each marked instance
+     */
+    @NoThrow
+    static void recordMarked(Object instance) {
+        // the nursery is skipped as a whole, so its instances must not start a range
+        if (GCNursery.isInNursery(instance)) return;
+        long offset = diff(castToPtr(instance), heapStart);
+        int bucket = (int) (offset >>> bucketShift);
+        if (bucket < NUM_BUCKETS && offset < firstMarked[bucket]) {
+            firstMarked[bucket] = offset;
+        }
+    }
+
+    /**
+     * primary thread, after marking
+     */
+    @NoThrow
+    static void finishMarking() {
+        isRecording = false;
+        heapEnd = getNextPtr();
+        prepareWeakRefs();
+    }
+
+    @NoThrow
+    private static void prepareWeakRefs() {
+        lockMallocMutex();
+        WeakRef.weakRefInstances.collectKeys(weakRefKeys);
+        unlockMallocMutex();
+        weakRefKeys.sort(AddressComparator.INSTANCE);
+
+        int size = weakRefKeys.size();
+        if (weakRefOffsets.length < size + 1) {
+            weakRefOffsets = new long[size + 1];
+            isWeakRefDead = new boolean[size + 1];
+        }
+        for (int i = 0; i < size; i++) {
+            weakRefOffsets[i] = diff(castToPtr(weakRefKeys.get(i)), heapStart);
+            isWeakRefDead[i] = false;
+        }
+        weakRefOffsets[size] = Long.MAX_VALUE; // sentinel
+        numWeakRefs = size;
+        weakRefKeys.clear();
+    }
+
+    /**
+     * secondary thread; splits the heap, and returns the number of ranges
+     */
+    @NoThrow
+    static int init() {
+        long heapSize = diff(heapEnd, heapStart);
+        int n = 0;
+        rangeStarts[n++] = 0;
+        for (int bucket = 1; bucket < NUM_BUCKETS; bucket++) {
+            long start = firstMarked[bucket];
+            if (start < heapSize) rangeStarts[n++] = start;
+        }
+        rangeStarts[n] = heapSize;
+
+        // weak refs are sorted, too, so each range gets a slice
+        int weakRefIndex = 0;
+        for (int i = 0; i <= n; i++) {
+            while (weakRefOffsets[weakRefIndex] < rangeStarts[i]) weakRefIndex++;
+            rangeWeakRefStarts[i] = weakRefIndex;
+        }
+        numRanges = n;
+        return n;
+    }
+
+    /**
+     * any thread; sweeps a single range into its own gap lists
+     */
+    @NoThrow
+    static void sweepRange(int rangeIndex) {
+        GCFreeLists gaps = rangeGaps[rangeIndex];
+        gaps.clear();
+
+        final byte iteration = GarbageCollector.iteration;
+        Pointer instancePtr = add(heapStart, rangeStarts[rangeIndex]);
+        Pointer endPtr = add(heapStart, rangeStarts[rangeIndex + 1]);
+        Pointer gapStart = instancePtr;
+        int weakRefIndex = rangeWeakRefStarts[rangeIndex];
+        long nextWeakRef = weakRefOffsets[weakRefIndex];
+        boolean wasUsed = true;
+        long freedMemory = 0;
+
+        while (unsignedLessThan(instancePtr, endPtr)) {
+            int classId = readClassId(instancePtr);
+            Pointer size = getInstanceSize(instancePtr, classId);
+
+            boolean isUsed = readI8AtOffset(instancePtr, GC_OFFSET) == iteration;
+            long offset = diff(instancePtr, heapStart);
+            while (nextWeakRef < offset) {
+                nextWeakRef = weakRefOffsets[++weakRefIndex];
+            }
+            if (nextWeakRef == offset && !isUsed) {
+                // keep it for one more iteration; the primary thread unregisters it
+                isWeakRefDead[weakRefIndex] = true;
+                isUsed = true;
+            }
+
+            if (isUsed != wasUsed) {
+                if (isUsed) {
+                    long available = diff(instancePtr, gapStart);
+                    freedMemory += available;
+                    handleGap(gapStart, (int) available, gaps);
+                } else {
+                    gapStart = instancePtr;
+                }
+                wasUsed = isUsed;
+            }
+            instancePtr = add(instancePtr, size);
+        }
+
+        if (!wasUsed) {
+            if (rangeIndex == numRanges - 1) {
+                finishFindingGaps(endPtr, gapStart);
+            } else {
+                // cannot happen, because the next range starts with a marked instance
+                long available = diff(endPtr, gapStart);
+                freedMemory += available;
+                handleGap(gapStart, (int) available, gaps);
+            }
+        }
+        rangeFreedMemory[rangeIndex] = freedMemory;
+    }
+
+    /**
+     * secondary thread; merges the gaps of all ranges
+     */
+    @NoThrow
+    static void finish(GCFreeLists dst) {
+        lockMallocMutex();
+        dst.clear();
+        long freedMemory = 0;
+        for (int i = 0; i < numRanges; i++) {
+            dst.addAll(rangeGaps[i]);
+            freedMemory += rangeFreedMemory[i];
+        }
+        freeMemory = freedMemory;
+        unlockMallocMutex();
+    }
+
+    /**
+     * primary thread, after the sweep
+     */
+    @NoThrow
+    static void unregisterDeadWeakRefs() {
+        for (int i = 0; i < numWeakRefs; i++) {
+            if (isWeakRefDead[i]) {
+                unregisterWeakRef(add(heapStart, weakRefOffsets[i]));
+            }
+        }
+        numWeakRefs = 0;
+    }
+}
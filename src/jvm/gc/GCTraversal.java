@@ -5,68 +5,157 @@ import annotations.Export;
 import annotations.NoThrow;
 import annotations.UnsafePointerField;
 
+import jvm.NativeThreads;
+import jvm.Pointer;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 
 import static jvm.JVMShared.*;
+import static jvm.JavaLang.memoryCopy;
 import static jvm.JavaReflect.getFieldOffset;
 import static jvm.JavaReflect.getFields;
 import static jvm.NativeLog.log;
+import static jvm.Pointer.*;
+import static jvm.gc.GCGapFinder.getInstanceSize;
 import static jvm.gc.GarbageCollector.GC_OFFSET;
+import static jvm.gc.GarbageCollector.allocateRawRegion;
 import static jvm.gc.GarbageCollector.iteration;
 import static utils.StaticClassIndices.OBJECT_ARRAY;
 
 /**
- * "Mark" of mark-and-sweep
+ * "Mark" of mark-and-sweep.
+ * Instances are marked, when they are pushed onto an explicit worklist, so deep structures like long linked lists
+ * don't overflow the call stack. The worklist lives in raw linear memory, formatted as a byte[], so marking never
+ * allocates Java instances, and the heap stays walkable for GCGapFinder.
  */
 public class GCTraversal {
 
     public static final int[][] instanceFieldOffsets = new int[numClasses()][];
     private static int[] staticFieldOffsets;
 
+    private static final int ENTRY_SIZE = 4; // addresses are stored as i32, like readPtrAtOffset() reads them
+    private static final int INITIAL_CAPACITY = 4096;
+
+    @UnsafePointerField
+    private static Pointer markStack;
+    private static int markStackSize, markStackCapacity;
+
     @NoThrow
     static void traverseStaticInstances() {
         int numStaticFields = staticFieldOffsets.length;
         // validateAllClassIds();
         log("Traversing static instances", getAllocationStart(), getNextPtr(), numStaticFields);
+        pushStaticFields();
+        log("Finished traversing static instances");
+    }
+
+    @NoThrow
+    static void pushStaticFields() {
         for (int offset : staticFieldOffsets) {
-            traverse(readPtrAtOffset(null, offset));
+            push(readPtrAtOffset(null, offset));
         }
-        log("Finished traversing static instances");
     }
 
+    /**
+     * marks all instances, which are referenced by the stacks of stopped native threads;
+     * C++ doesn't tell us, which stack slots are references, so any instance, which contains
+     * a candidate address, is kept alive (conservative scanning)
+     */
+    @NoThrow
+    static void markThreadStacks() {
+        Pointer candidate = NativeThreads.nextStackRoot();
+        Pointer instance = getAllocationStart();
+        Pointer end = getNextPtr();
+        while (candidate != null && unsignedLessThan(instance, end)) {
+            Pointer next = add(instance, getInstanceSize(instance, readClassId(instance)));
+            while (candidate != null && unsignedLessThan(candidate, next)) {
+                if (unsignedGreaterThanEqual(candidate, instance)) push(instance);
+                candidate = NativeThreads.nextStackRoot();
+            }
+            instance = next;
+        }
+    }
+
+    /**
+     * prepares the worklist for a new iteration;
+     * its memory must survive the sweep, so it is marked like an instance
+     */
+    @NoThrow
+    static void markInit() {
+        if (markStack == null) {
+            markStack = allocateMarkStack(INITIAL_CAPACITY);
+            markStackCapacity = INITIAL_CAPACITY;
+        } else {
+            writeI8AtOffset(markStack, GC_OFFSET, iteration);
+        }
+        markStackSize = 0;
+    }
+
+    @NoThrow
+    private static Pointer allocateMarkStack(int capacity) {
+        return allocateRawRegion(capacity * ENTRY_SIZE);
+    }
+
+    @NoThrow
+    private static void growMarkStack() {
+        int newCapacity = markStackCapacity << 1;
+        Pointer newStack = allocateMarkStack(newCapacity);
+        memoryCopy(add(newStack, arrayOverhead), add(markStack, arrayOverhead), ptrTo((long) markStackSize * ENTRY_SIZE));
+        // unmark the old worklist, so the sweep of this iteration reclaims it
+        writeI8AtOffset(markStack, GC_OFFSET, (byte) (iteration - 1));
+        markStack = newStack;
+        markStackCapacity = newCapacity;
+    }
+
+    /**
+     * marks an instance, and schedules its fields for traversal;
+     * called by JavaScript for all instances, that are referenced from there
+     */
     @Export
     @NoThrow
     @Alias(names = "gcMarkUsed")
-    private static void traverse(Object instance) {
+    static void push(Object instance) {
         // check addr for ignored sections and NULL
         if (!isDynamicInstance(instance)) return; // no need for GC
-        byte state = readI8AtOffset(instance, GC_OFFSET);
-
-        int classId = readClassId(instance);
-        /*if (classId >= 0 && classId < numClasses()) {
-            String className = classIdToInstance(classId).getName();
-            log("Traversal", className, getAddr(instance));
-        } else {
-            log("Invalid class ID", getAddr(instance), classId);
-            throw new IllegalStateException();
-        }*/
-
         byte iter = iteration;
-        if (state == iter) return; // already handled
-
+        if (readI8AtOffset(instance, GC_OFFSET) == iter) return; // already handled
         writeI8AtOffset(instance, GC_OFFSET, iter);
-        if (classId == OBJECT_ARRAY) {
-            for (Object instanceI : (Object[]) instance) {
-                traverse(instanceI);
-            }
-        } else {
-            int[] offsets = instanceFieldOffsets[classId];
-            if (offsets == null) return;
-            for (int offset : offsets) {
-                traverse(readPtrAtOffset(instance, offset));
+
+        if (markStackSize == markStackCapacity) growMarkStack();
+        writeI32AtOffset(markStack, arrayOverhead + markStackSize * ENTRY_SIZE, (int) getAddrS(instance));
+        markStackSize++;
+    }
+
+    /**
+     * traverses at most budget instances from the worklist;
+     * returns whether marking is complete
+     */
+    @NoThrow
+    static boolean markStep(int budget) {
+        while (markStackSize > 0 && budget-- > 0) {
+            markStackSize--;
+            Object instance = readPtrAtOffset(markStack, arrayOverhead + markStackSize * ENTRY_SIZE);
+            if (GCParallelSweep.isRecording) GCParallelSweep.recordMarked(instance);
+            int classId = readClassId(instance);
+            if (classId == OBJECT_ARRAY) {
+                for (Object instanceI : (Object[]) instance) {
+                    push(instanceI);
+                }
+            } else {
+                int[] offsets = instanceFieldOffsets[classId];
+                if (offsets == null) continue;
+                for (int offset : offsets) {
+                    push(readPtrAtOffset(instance, offset));
+                }
             }
         }
+        return markStackSize == 0;
+    }
+
+    @NoThrow
+    static void markAll() {
+        markStep(Integer.MAX_VALUE);
     }
 
     private static boolean isCollectable(Field field) {
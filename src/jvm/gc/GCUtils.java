@@ -7,23 +7,10 @@ import static jvm.JVMShared.*;
 import static jvm.NativeLog.log;
 import static jvm.Pointer.add;
 import static jvm.gc.GCGapFinder.getInstanceSize;
-import static jvm.gc.GCGapFinder.insertGapMaybe;
-import static jvm.gc.GarbageCollector.largestGaps;
-import static jvm.gc.GarbageCollector.largestGapsTmp;
 
 @SuppressWarnings("unused")
 public class GCUtils {
 
-    @NoThrow
-    private static void mergeGaps() {
-        for (byte[] gap : largestGapsTmp) {
-            if (gap != null) {
-                int available = gap.length + arrayOverhead;
-                insertGapMaybe(gap, available, largestGaps);
-            }
-        }
-    }
-
     @NoThrow
     public static void validateAllClassIds() {
         Pointer ptr = getAllocationStart();
@@ -2,18 +2,20 @@ package jvm.gc;
 
 import annotations.*;
 import jvm.Pointer;
+import jvm.WorkerThreads;
 import jvm.custom.WeakRef;
 
 import static jvm.JVMFlags.is32Bits;
-import static jvm.JVMShared.unsignedGreaterThanEqual;
+import static jvm.JVMFlags.useNativeThreads;
+import static jvm.JVMFlags.useSharedMemory;
 import static jvm.JVMShared.*;
 import static jvm.JVMValues.failedToAllocateMemory;
 import static jvm.JVMValues.reachedMemoryLimit;
 import static jvm.NativeLog.log;
 import static jvm.Pointer.unsignedLessThan;
 import static jvm.Pointer.*;
-import static jvm.gc.GCGapFinder.findLargestGaps;
-import static jvm.gc.GCTraversal.traverseStaticInstances;
+import static jvm.gc.GCGapFinder.findGaps;
+import static jvm.gc.GCTraversal.*;
 
 public class GarbageCollector {
 
@@ -25,12 +27,16 @@ public class GarbageCollector {
     public static final int GC_OFFSET = 3;
     public static final int BYTE_ARRAY_CLASS = 5;
 
-    public static byte[][] largestGaps = new byte[16][];// 16 pointers
-    static byte[][] largestGapsTmp = new byte[16][];
+    private static final int MARK_BUDGET = 20_000;
+    private static boolean isMarking = false;
+    private static long parallelStartTime;
+
+    public static GCFreeLists freeLists = new GCFreeLists();
+    static GCFreeLists freeListsTmp = new GCFreeLists();
 
     @NoThrow
     @JavaScriptWASM(code = "markJSReferences()")
-    private static native void markJSReferences();
+    static native void markJSReferences();
 
     @Export
     @NoThrow
@@ -43,10 +49,12 @@ public class GarbageCollector {
         long t0 = System.nanoTime();
         traverseAliveInstances();
         long t1 = System.nanoTime();
-        findLargestGaps(largestGaps, null);
-        GarbageCollectorFlags.hasGaps = hasGaps();
+        findGaps(freeLists);
+        GarbageCollectorFlags.hasGaps = !freeLists.isEmpty();
+        GCNursery.finishMajor();
         long t2 = System.nanoTime();
         log("GC-Nanos:", (t1 - t0), (t2 - t1), generation);
+        freeLists.logStatistics();
     }
 
     @Export
@@ -56,11 +64,19 @@ public class GarbageCollector {
     public static void concurrentGC0() {
         nextGeneration();
         long t0 = System.nanoTime();
-        traverseAliveInstances();
-        long t1 = System.nanoTime();
-        GCGapFinder.findLargestGapsInit(largestGaps);
-        long t2 = System.nanoTime();
-        log("GC-Nanos:", (t1 - t0), (t2 - t1), generation);
+        if (GarbageCollectorFlags.incrementalMarking) {
+            // only the roots are marked now, the rest is done step by step in concurrentGC1()
+            markRoots();
+            isMarking = true;
+            long t1 = System.nanoTime();
+            log("GC-Roots:", (t1 - t0), generation);
+        } else {
+            traverseAliveInstances();
+            long t1 = System.nanoTime();
+            GCGapFinder.findGapsInit(freeLists);
+            long t2 = System.nanoTime();
+            log("GC-Nanos:", (t1 - t0), (t2 - t1), generation);
+        }
     }
 
     @Export
@@ -68,9 +84,19 @@ public class GarbageCollector {
     @Alias(names = "concurrentGC1")
     @JavaScriptNative(code = "")
     public static boolean concurrentGC1() {
-        boolean done = GCGapFinder.findLargestGapsStep(largestGaps, null);
+        if (isMarking) {
+            if (markStep(MARK_BUDGET)) {
+                isMarking = false;
+                GCNursery.finishMajorMarking();
+                GCGapFinder.findGapsInit(freeLists);
+            }
+            return false;
+        }
+        boolean done = GCGapFinder.findGapsStep(freeLists);
         if (done) {
-            GarbageCollectorFlags.hasGaps = hasGaps();
+            GarbageCollectorFlags.hasGaps = !freeLists.isEmpty();
+            GCNursery.finishMajor();
+            freeLists.logStatistics();
         }
         return done;
     }
@@ -80,9 +106,13 @@ public class GarbageCollector {
     public static void parallelGC0() {
         nextGeneration();
         long t0 = System.nanoTime();
+        GCParallelSweep.prepareMarking();
         traverseAliveInstances();
-        // if we want to use gaps while collecting gaps,
-        //  we need to jump over the gaps-in-use
+        GCParallelSweep.finishMarking();
+        // the sweep runs in parallel to the mutator, so it must not allocate from the gaps meanwhile,
+        //  because splitting them would modify the heap under the sweeping threads
+        GarbageCollectorFlags.hasGaps = false;
+        freeLists.clear();
         long t1 = System.nanoTime();
         log("GC-Traversal:", (int) (t1 - t0));
     }
@@ -90,48 +120,91 @@ public class GarbageCollector {
     @NoThrow // runs on secondary thread; must not make allocations
     @Alias(names = "parallelGC1")
     public static void parallelGC1() {
-        long t1 = System.nanoTime();
-        findLargestGaps(largestGapsTmp, largestGaps);
+        int numRanges = parallelGC1Init();
+        for (int i = 0; i < numRanges; i++) {
+            parallelGC1Range(i);
+        }
+        parallelGC1Finish();
+    }
+
+    /**
+     * secondary thread; returns the number of ranges, which then can be swept by any number of threads
+     */
+    @NoThrow
+    @Alias(names = "parallelGC1Init")
+    public static int parallelGC1Init() {
+        parallelStartTime = System.nanoTime();
+        return GCParallelSweep.init();
+    }
+
+    @NoThrow // any secondary thread
+    @Alias(names = "parallelGC1Range")
+    public static void parallelGC1Range(int rangeIndex) {
+        GCParallelSweep.sweepRange(rangeIndex);
+    }
+
+    @NoThrow // secondary thread, after all ranges have been swept
+    @Alias(names = "parallelGC1Finish")
+    public static void parallelGC1Finish() {
+        GCParallelSweep.finish(freeListsTmp);
         long t2 = System.nanoTime();
-        log("GC-ParallelGaps:", (int) (t2 - t1), generation);
+        log("GC-ParallelGaps:", (int) (t2 - parallelStartTime), generation);
     }
 
     @NoThrow
     private static void traverseAliveInstances() {
+        markRoots();
+        markAll();
+        GCNursery.finishMajorMarking();
+    }
+
+    @NoThrow
+    private static void markRoots() {
         // this is called from JS/C++-main loop, so the stack is empty and can be skipped
+        GCNursery.startMajor();
+        markInit();
         traverseStaticInstances();
         markJSReferences();
+        // worker threads are stopped at a safepoint, but their stacks aren't empty;
+        // Web Workers are only stopped between two threads, so theirs are
+        if (useNativeThreads && !useSharedMemory) markThreadStacks();
     }
 
     @NoThrow
     private static void nextGeneration() {
         iteration++;
+        if (iteration == GCNursery.YOUNG) iteration++;
         generation++;
     }
 
     @NoThrow // primary thread
     @Alias(names = "parallelGC2")
     public static void parallelGC2() {
-        // mergeGaps();
         swapGaps();
-        GarbageCollectorFlags.hasGaps = hasGaps();
+        freeListsTmp.clear();
+        GCParallelSweep.unregisterDeadWeakRefs();
+        GarbageCollectorFlags.hasGaps = !freeLists.isEmpty();
+        GCNursery.finishMajor();
+        freeLists.logStatistics();
     }
 
     @NoThrow
     private static void swapGaps() {
-        byte[][] tmp = largestGapsTmp;
-        largestGapsTmp = largestGaps;
-        largestGaps = tmp;
+        GCFreeLists tmp = freeListsTmp;
+        freeListsTmp = freeLists;
+        freeLists = tmp;
     }
 
+    /**
+     * allocates memory for GC data structures, which must not be traced;
+     * it is formatted as a byte[], so the heap stays walkable, and must be marked in every iteration to be kept
+     */
     @NoThrow
-    private static boolean hasGaps() {
-        for (byte[] gap : largestGaps) {
-            if (gap != null) {
-                return true;
-            }
-        }
-        return false;
+    static Pointer allocateRawRegion(int dataSize) {
+        Pointer region = allocateNewSpace(ptrTo((long) arrayOverhead + dataSize));
+        writeClass(region, BYTE_ARRAY_CLASS);
+        writeI32AtOffset(region, objectOverhead, dataSize);
+        return region;
     }
 
     public static Pointer allocateNewSpace(Pointer size) {
@@ -191,38 +264,13 @@ public class GarbageCollector {
 
     @NoThrow
     public static Pointer findGap(int size) {
-        final int sizeWithoutHelper = size - arrayOverhead;
-        byte[][] largestGaps = GarbageCollector.largestGaps;
-        for (int i = 0, l = largestGaps.length; i < l; i++) {
-            byte[] array = largestGaps[i];
-            if (array != null) {
-                // three cases:
-                //  a) we fit perfectly
-                //  b) we fit, and let stuff remain
-                //  c) we don't fit
-                int available = array.length;
-                if (available == sizeWithoutHelper) {
-                    // if (printCtr++ < 0) log("GC replacing", size);
-                    largestGaps[i] = null; // nothing is remaining -> set entry to null
-                    freeMemory -= size;
-                    return castToPtr(array); // the new instance is placed where the array was
-                } else if (unsignedGreaterThanEqual(available, size)) {
-                    return findGapFitIntoSpace(castToPtr(array), size, available + arrayOverhead);
-                }
-            }
+        Pointer ptr = freeLists.allocate(size);
+        if (ptr != null) {
+            freeMemory -= size;
+        } else if (freeLists.isEmpty()) {
+            GarbageCollectorFlags.hasGaps = false;
         }
-        return null; // no gap was found
-    }
-
-    @NoThrow
-    private static Pointer findGapFitIntoSpace(final Pointer arrayPtr, final int size, final int available) {
-        final int sizeWithHelper = size + arrayOverhead;
-        // if (printCtr++ < 0) log("GC shrinking", ptr, available, size);
-        // shrink array
-        writeI32AtOffset(arrayPtr, objectOverhead, available - sizeWithHelper);
-        freeMemory -= size;
-        // calculate new pointer, and we're done :D
-        return add(arrayPtr, available - size); // the new object is placed at the end
+        return ptr;
     }
 
     @NoThrow
@@ -248,27 +296,25 @@ public class GarbageCollector {
     }
 
     @NoThrow
-    static boolean contains(Object gapStart, byte[][] gapsInUse) {
-        return gapStart instanceof byte[] && contains((byte[]) gapStart, gapsInUse);
+    public static void lockMallocMutex() {
+        if (useSharedMemory) WorkerThreads.lockMalloc();
+        else lockNativeMallocMutex();
     }
 
     @NoThrow
-    static boolean contains(byte[] gapStart, byte[][] gapsInUse) {
-        if (gapsInUse == null) return false;
-        for (byte[] ptr : gapsInUse) {
-            if (ptr == gapStart) return true;
-        }
-        return false;
+    public static void unlockMallocMutex() {
+        if (useSharedMemory) WorkerThreads.unlockMalloc();
+        else unlockNativeMallocMutex();
     }
 
     @NoThrow
     @Alias(names = "lockMallocMutex")
     @JavaScriptWASM(code = "")
-    public static native void lockMallocMutex();
+    private static native void lockNativeMallocMutex();
 
     @NoThrow
     @Alias(names = "unlockMallocMutex")
     @JavaScriptWASM(code = "")
-    public static native void unlockMallocMutex();
+    private static native void unlockNativeMallocMutex();
 
 }
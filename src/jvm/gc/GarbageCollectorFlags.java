@@ -2,4 +2,10 @@ package jvm.gc;
 
 public class GarbageCollectorFlags {
     public static boolean hasGaps = false;
+
+    /**
+     * whether concurrentGC spreads marking over multiple frames;
+     * without a write barrier, instances, which are moved into already traversed instances meanwhile, would be freed
+     */
+    public static boolean incrementalMarking = false;
 }
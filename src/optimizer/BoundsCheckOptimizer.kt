@@ -0,0 +1,429 @@
+package optimizer
+
+import checkArrayAccess
+import eliminateBoundsChecks
+import jvm.JVMFlags.is32Bits
+import jvm.JVMShared.objectOverhead
+import org.apache.logging.log4j.LogManager
+import useResultForThrowables
+import utils.Builder
+import wasm.instr.*
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Const.Companion.i32Const1
+import wasm.instr.Instructions.I32Add
+import wasm.instr.Instructions.I32EQZ
+import wasm.instr.Instructions.I32GES
+import wasm.instr.Instructions.I32GEU
+import wasm.instr.Instructions.I32GTS
+import wasm.instr.Instructions.I32GTU
+import wasm.instr.Instructions.I32LES
+import wasm.instr.Instructions.I32LEU
+import wasm.instr.Instructions.I32LTS
+import wasm.instr.Instructions.I32LTU
+import wasm.instr.Instructions.I32Load
+import wasm.instr.Instructions.I32Or
+import wasm.instr.Instructions.Unreachable
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Removes array bounds checks (checkArrayAccess), which are proven to be unnecessary:
+ * arr[i] with locals arr and i is safe, if 0 <= i and i < arr.length are known at that point,
+ * e.g., in counted loops like for (i in 0 until arr.size).
+ * Remaining checks with local operands are inlined as compare and trap instead of calling ArrayAccessSafe.
+ * */
+object BoundsCheckOptimizer {
+
+    private val LOGGER = LogManager.getLogger(BoundsCheckOptimizer::class)
+
+    private val uncheckedLoads = mapOf(
+        Call.s8ArrayLoad to Call.s8ArrayLoadU,
+        Call.u16ArrayLoad to Call.u16ArrayLoadU,
+        Call.s16ArrayLoad to Call.s16ArrayLoadU,
+        Call.i32ArrayLoad to Call.i32ArrayLoadU,
+        Call.i64ArrayLoad to Call.i64ArrayLoadU,
+        Call.f32ArrayLoad to Call.f32ArrayLoadU,
+        Call.f64ArrayLoad to Call.f64ArrayLoadU,
+    )
+
+    private val uncheckedStores = mapOf(
+        Call.i8ArrayStore to Call.i8ArrayStoreU,
+        Call.i16ArrayStore to Call.i16ArrayStoreU,
+        Call.i32ArrayStore to Call.i32ArrayStoreU,
+        Call.i64ArrayStore to Call.i64ArrayStoreU,
+        Call.f32ArrayStore to Call.f32ArrayStoreU,
+        Call.f64ArrayStore to Call.f64ArrayStoreU,
+        Call.ptrArrayStore to Call.ptrArrayStoreU,
+    )
+
+    private val unchecked = uncheckedLoads + uncheckedStores
+
+    // translation runs in parallel
+    private val numRemovedChecks = AtomicInteger()
+    private val numInlinedChecks = AtomicInteger()
+    private val numKeptChecks = AtomicInteger()
+
+    fun optimizeBoundsChecks(printer: Builder) {
+        // with results for throwables, each check is followed by handleThrowable(), which we'd have to remove, too
+        if (!checkArrayAccess || !eliminateBoundsChecks || useResultForThrowables) return
+        val analysis = Analysis()
+        analysis.analyze(printer.instrs, Facts())
+        // backwards, so indices within the same list stay valid
+        for (decision in analysis.decisions.asReversed()) {
+            applyDecision(decision)
+        }
+    }
+
+    fun printStatistics() {
+        if (!checkArrayAccess || !eliminateBoundsChecks || useResultForThrowables) return
+        LOGGER.info(
+            "Bounds-Checks: ${numRemovedChecks.get()} removed, " +
+                    "${numInlinedChecks.get()} inlined, ${numKeptChecks.get()} kept"
+        )
+    }
+
+    /**
+     * index < array.length is known for all (index, array) in inBounds,
+     * index >= 0 is known for all index in nonNegative
+     * */
+    private class Facts(
+        val nonNegative: HashSet<String> = HashSet(),
+        val inBounds: HashSet<Pair<String, String>> = HashSet()
+    ) {
+
+        fun copy() = Facts(HashSet(nonNegative), HashSet(inBounds))
+
+        fun isInBounds(index: String, array: String): Boolean {
+            return index in nonNegative && Pair(index, array) in inBounds
+        }
+
+        fun hasUpperBound(index: String): Boolean {
+            return inBounds.any { it.first == index }
+        }
+
+        fun removeBounds(variable: String) {
+            inBounds.removeIf { it.first == variable || it.second == variable }
+        }
+
+        fun kill(variable: String) {
+            nonNegative.remove(variable)
+            removeBounds(variable)
+        }
+
+        fun withBounds(index: String, array: String, nonNegative: Boolean): Facts {
+            val copy = copy()
+            copy.inBounds.add(Pair(index, array))
+            if (nonNegative) copy.nonNegative.add(index)
+            return copy
+        }
+    }
+
+    /**
+     * inlinedOperands = null means the check is proven to be unnecessary
+     * */
+    private class Decision(
+        val instructions: ArrayList<Instruction>, val index: Int,
+        val inlinedOperands: Pair<Instruction, Instruction>?
+    )
+
+    private class Analysis {
+
+        /**
+         * variables, which were assigned values, that might be negative, for each enclosing loop
+         * */
+        val loops = ArrayList<HashSet<String>>()
+
+        /**
+         * facts at jumps out of a switch, by label
+         * */
+        val breaks = HashMap<String, ArrayList<Facts>>()
+
+        val decisions = ArrayList<Decision>()
+        var isRecording = true
+
+        /**
+         * returns the facts at the end of instructions, or null, if the end is unreachable
+         * */
+        fun analyze(instructions: ArrayList<Instruction>, facts0: Facts): Facts? {
+            var facts = facts0
+            for (i in instructions.indices) {
+                when (val instr = instructions[i]) {
+                    is LocalSet, is ParamSet -> write(instructions, i, getVariable(instr)!!, facts)
+                    is Call -> if (isRecording && instr in unchecked) check(instructions, i, instr, facts)
+                    is IfBranch -> {
+                        val (ifTrue, ifFalse) = getConditionFacts(instructions, i, facts)
+                        facts = merge(analyze(instr.ifTrue, ifTrue), analyze(instr.ifFalse, ifFalse))
+                            ?: return null
+                    }
+                    is JumpIf -> {
+                        val (ifTrue, ifFalse) = getConditionFacts(instructions, i, facts)
+                        breaks[instr.label]?.add(ifTrue)
+                        facts = ifFalse
+                    }
+                    is Jump -> {
+                        breaks[instr.label]?.add(facts.copy())
+                        return null
+                    }
+                    is LoopInstr -> facts = analyzeLoop(instr, facts) ?: return null
+                    is SwitchCase -> {
+                        val breakFacts = ArrayList<Facts>()
+                        breaks[instr.label] = breakFacts
+                        var result: Facts? = null
+                        for (case in instr.cases) {
+                            result = merge(result, analyze(case, facts.copy()))
+                        }
+                        breaks.remove(instr.label)
+                        for (breakFact in breakFacts) {
+                            result = merge(result, breakFact)
+                        }
+                        facts = result ?: return null
+                    }
+                    else -> if (instr.isReturning()) return null
+                }
+            }
+            return facts
+        }
+
+        /**
+         * the loop header is reached from before the loop, and from all jumps back to it;
+         * variables, which are written within the loop, only keep being non-negative,
+         * if they are only incremented while being below some array length (so they cannot overflow),
+         * which is assumed first, and then verified until nothing changes anymore
+         * */
+        fun analyzeLoop(loop: LoopInstr, facts: Facts): Facts? {
+            val written = HashSet<String>()
+            collectWrittenVariables(loop.body, written)
+            val candidates = written.filterTo(HashSet()) { it in facts.nonNegative }
+            if (candidates.isNotEmpty()) {
+                val wasRecording = isRecording
+                isRecording = false
+                do {
+                    val unsafe = HashSet<String>()
+                    loops.add(unsafe)
+                    analyze(loop.body, getLoopEntryFacts(facts, written, candidates))
+                    loops.removeAt(loops.lastIndex)
+                } while (candidates.removeAll(unsafe))
+                isRecording = wasRecording
+            }
+            loops.add(HashSet())
+            val result = analyze(loop.body, getLoopEntryFacts(facts, written, candidates))
+            loops.removeAt(loops.lastIndex)
+            return result
+        }
+
+        fun getLoopEntryFacts(facts: Facts, written: Set<String>, candidates: Set<String>): Facts {
+            val entry = facts.copy()
+            for (variable in written) {
+                if (variable in candidates) entry.removeBounds(variable)
+                else entry.kill(variable)
+            }
+            return entry
+        }
+
+        fun write(instructions: List<Instruction>, i: Int, variable: String, facts: Facts) {
+            val isNonNegative = isNonNegativeValue(instructions, i, variable, facts)
+            facts.kill(variable)
+            if (isNonNegative) facts.nonNegative.add(variable)
+            else for (unsafe in loops) unsafe.add(variable)
+        }
+
+        fun check(instructions: ArrayList<Instruction>, i: Int, call: Call, facts: Facts) {
+            val numParams = if (call in uncheckedStores) 3 else 2
+            val operands = findOperands(instructions, i, numParams)
+            if (operands != null && facts.isInBounds(getVariable(operands.first)!!, getVariable(operands.second)!!)) {
+                decisions.add(Decision(instructions, i, null))
+            } else if (operands != null && is32Bits) {
+                decisions.add(Decision(instructions, i, operands))
+            } else numKeptChecks.incrementAndGet()
+        }
+    }
+
+    private fun merge(a: Facts?, b: Facts?): Facts? {
+        if (a == null) return b
+        if (b == null) return a
+        a.nonNegative.retainAll(b.nonNegative)
+        a.inBounds.retainAll(b.inBounds)
+        return a
+    }
+
+    private fun getVariable(instr: Instruction): String? {
+        return when (instr) {
+            is LocalGet -> instr.name
+            is LocalSet -> instr.name
+            // '#' cannot be part of local names
+            is ParamGet -> "#${instr.index}"
+            is ParamSet -> "#${instr.index}"
+            else -> null
+        }
+    }
+
+    private fun isGet(instr: Instruction, variable: String): Boolean {
+        return (instr is LocalGet || instr is ParamGet) && getVariable(instr) == variable
+    }
+
+    private fun isNonNegativeValue(instructions: List<Instruction>, i: Int, variable: String, facts: Facts): Boolean {
+        val value = instructions.getOrNull(i - 1) ?: return false
+        if (value is Const) return value.type == ConstType.I32 && value.value.toInt() >= 0
+        if (value is LocalGet || value is ParamGet) return getVariable(value) in facts.nonNegative
+        if (value == I32Add && i >= 3) {
+            // i = i + 1 cannot overflow, when i < array.length
+            val a = instructions[i - 3]
+            val b = instructions[i - 2]
+            val isIncrement = (isGet(a, variable) && b == i32Const1) || (a == i32Const1 && isGet(b, variable))
+            return isIncrement && variable in facts.nonNegative && facts.hasUpperBound(variable)
+        }
+        return false
+    }
+
+    /**
+     * finds the facts for both branches of a condition on index and array.length,
+     * which was just computed by the instructions before instructions[i]
+     * */
+    private fun getConditionFacts(instructions: List<Instruction>, i: Int, facts: Facts): Pair<Facts, Facts> {
+        if (i >= 4) {
+            val a = instructions[i - 4]
+            val b = instructions[i - 3]
+            val c = instructions[i - 2]
+            val compare = instructions[i - 1]
+            val indexVar: String?
+            val arrayVar: String?
+            val lessThanLength: Boolean // whether the condition is index < array.length
+            val isUnsigned: Boolean
+            if ((a is LocalGet || a is ParamGet) && (b is LocalGet || b is ParamGet) && isArrayLength(c)) {
+                // index <> array.length
+                indexVar = getVariable(a)
+                arrayVar = getVariable(b)
+                lessThanLength = compare == I32LTS || compare == I32LTU
+                isUnsigned = compare == I32LTU || compare == I32GEU
+                if (!lessThanLength && compare != I32GES && compare != I32GEU) return Pair(facts.copy(), facts)
+            } else if ((a is LocalGet || a is ParamGet) && isArrayLength(b) && (c is LocalGet || c is ParamGet)) {
+                // array.length <> index
+                indexVar = getVariable(c)
+                arrayVar = getVariable(a)
+                lessThanLength = compare == I32GTS || compare == I32GTU
+                isUnsigned = compare == I32GTU || compare == I32LEU
+                if (!lessThanLength && compare != I32LES && compare != I32LEU) return Pair(facts.copy(), facts)
+            } else return Pair(facts.copy(), facts)
+            indexVar!!
+            arrayVar!!
+            // unsigned index < length also implies index >= 0
+            return if (lessThanLength) {
+                Pair(facts.withBounds(indexVar, arrayVar, isUnsigned), facts)
+            } else {
+                Pair(facts.copy(), facts.withBounds(indexVar, arrayVar, isUnsigned))
+            }
+        }
+        return Pair(facts.copy(), facts)
+    }
+
+    private fun isArrayLength(instr: Instruction): Boolean {
+        return instr == Call.arrayLength || instr == Call.arrayLengthU
+    }
+
+    private fun collectWrittenVariables(instructions: List<Instruction>, dst: HashSet<String>) {
+        for (instr in instructions) {
+            when (instr) {
+                is LocalSet, is ParamSet -> dst.add(getVariable(instr)!!)
+                is IfBranch -> {
+                    collectWrittenVariables(instr.ifTrue, dst)
+                    collectWrittenVariables(instr.ifFalse, dst)
+                }
+                is LoopInstr -> collectWrittenVariables(instr.body, dst)
+                is SwitchCase -> for (case in instr.cases) collectWrittenVariables(case, dst)
+                else -> {}
+            }
+        }
+    }
+
+    /**
+     * returns (numPopped, numPushed), or null if unknown
+     * */
+    private fun getStackEffect(instr: Instruction): Pair<Int, Int>? {
+        return when (instr) {
+            is Comment -> Pair(0, 0)
+            is Const, is LocalGet, is ParamGet, is GlobalGet -> Pair(0, 1)
+            is LocalSet, is ParamSet, is GlobalSet, Drop -> Pair(1, 0)
+            is BinaryInstruction -> Pair(2, 1)
+            is UnaryInstruction -> Pair(1, 1)
+            Call.stackPush -> Pair(1, 0)
+            Call.stackPop -> Pair(0, 0)
+            Call.arrayLength, Call.arrayLengthU -> Pair(1, 1)
+            is Call -> when (instr) {
+                in uncheckedLoads.keys, in uncheckedLoads.values -> Pair(2, 1)
+                in uncheckedStores.keys, in uncheckedStores.values -> Pair(3, 0)
+                else -> null
+            }
+            else -> null
+        }
+    }
+
+    /**
+     * finds the instructions, which pushed index and array for the call at instructions[callIndex];
+     * both must be plain reads of locals, which aren't written until the call
+     * */
+    private fun findOperands(
+        instructions: List<Instruction>, callIndex: Int, numParams: Int
+    ): Pair<Instruction, Instruction>? {
+        var indexGet: Instruction? = null
+        var depth = numParams - 2 // number of stack slots above the operand, we're looking for
+        val written = HashSet<String>()
+        for (j in callIndex - 1 downTo 0) {
+            val instr = instructions[j]
+            val (numPopped, numPushed) = getStackEffect(instr) ?: return null
+            if (numPushed > depth) {
+                // instr pushes our operand
+                if (depth != 0 || (instr !is LocalGet && instr !is ParamGet)) return null
+                if (indexGet == null) {
+                    indexGet = instr
+                    continue // the array is directly below
+                }
+                val index = getVariable(indexGet)
+                val array = getVariable(instr)
+                return if (index !in written && array !in written) Pair(indexGet, instr) else null
+            }
+            if (instr is LocalSet || instr is ParamSet) written.add(getVariable(instr)!!)
+            depth += numPopped - numPushed
+        }
+        return null
+    }
+
+    private fun applyDecision(decision: Decision) {
+        val instructions = decision.instructions
+        val i = decision.index
+        instructions[i] = unchecked[instructions[i]]!!
+        val operands = decision.inlinedOperands
+        if (operands == null) {
+            numRemovedChecks.incrementAndGet()
+            // the unchecked call cannot throw, so it doesn't need stackPush/stackPop either
+            if (i >= 2 && i + 1 < instructions.size &&
+                instructions[i - 2] is Const &&
+                instructions[i - 1] == Call.stackPush &&
+                instructions[i + 1] == Call.stackPop
+            ) {
+                instructions.removeAt(i + 1)
+                instructions.subList(i - 2, i).clear()
+            }
+        } else {
+            numInlinedChecks.incrementAndGet()
+            val (index, array) = operands
+            // if (index >= array.length, unsigned, so negative indices fail, too || array == null) throw
+            instructions.addAll(
+                i, listOf(
+                    copyGet(index), copyGet(array), i32Const(objectOverhead), I32Add, I32Load, I32GEU,
+                    copyGet(array), I32EQZ, I32Or,
+                    IfBranch(
+                        arrayListOf(copyGet(array), copyGet(index), Call.throwArrayAccess, Unreachable),
+                        ArrayList(), emptyList(), emptyList()
+                    )
+                )
+            )
+        }
+    }
+
+    private fun copyGet(instr: Instruction): Instruction {
+        return when (instr) {
+            is LocalGet -> LocalGet(instr.name)
+            is ParamGet -> ParamGet(instr.index, instr.name)
+            else -> throw IllegalStateException("Expected local.get, got $instr")
+        }
+    }
+}
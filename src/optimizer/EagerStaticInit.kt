@@ -0,0 +1,367 @@
+package optimizer
+
+import canThrowError
+import cannotThrow
+import crashInStatic
+import crashOnAllExceptions
+import dependency.ActuallyUsedIndex
+import gIndex
+import highlevel.FieldGetInstr
+import highlevel.FieldSetInstr
+import highlevel.InvokeStaticInstr
+import highlevel.ResolvedMethodInstr
+import highlevel.UnresolvedMethodInstr
+import org.apache.logging.log4j.LogManager
+import useWASMExceptions
+import utils.*
+import utils.Descriptor.Companion.voidDescriptor
+import wasm.instr.*
+import wasm.parser.FunctionImpl
+
+/**
+ * Whole-program counterpart to StaticInitOptimizer:
+ * - removeImpliedGuards() removes static-init-calls, which every direct caller has already executed;
+ * - initStaticEagerly() calls <clinit>s, whose call closure only touches their own static fields, final fields and runtime state,
+ *   once from JVMShared.staticInit(), in the order of StaticDependencies, so all their other static-init-calls can be removed.
+ * Both matter most in hot loops, where the per-method analysis cannot see the first call.
+ * */
+object EagerStaticInit {
+
+    private val LOGGER = LogManager.getLogger(EagerStaticInit::class)
+
+    private val staticInitSig = MethodSig.c("jvm/JVMShared", "staticInit", voidDescriptor)
+
+    /**
+     * calls, which aren't translated methods, but are known to have no visible side effects
+     * */
+    private val pureImportPrefixes = listOf(
+        "jvm_JVMShared_", "jvm_Pointer_", "jvm_gc_",
+        "java_lang_Math_", "java_lang_StrictMath_", "java_lang_Float_", "java_lang_Double_"
+    )
+
+    var numRemovedGuards = 0
+    var numEagerClasses = 0
+    var numImpliedGuards = 0
+
+    private class Closure(val functions: Set<String>, val initializedClasses: Set<String>)
+
+    fun initStaticEagerly(staticCallOrder: List<MethodSig>) {
+        val staticInit = gIndex.translatedMethods[staticInitSig] ?: return
+
+        val functions = HashMap<String, FunctionImpl>(gIndex.translatedMethods.size + helperMethods.size)
+        for ((_, func) in helperMethods) functions[func.funcName] = func
+        val classByFunction = HashMap<String, String>(gIndex.translatedMethods.size)
+        for ((sig, func) in gIndex.translatedMethods) {
+            functions[func.funcName] = func
+            classByFunction[func.funcName] = sig.className
+        }
+
+        val eagerClasses = ArrayList<String>()
+        val eagerClassSet = HashSet<String>()
+        val initTimeFunctions = HashSet<String>()
+        val clinitNames = HashMap<String, String>() // funcName -> class
+        for (sig in staticCallOrder) {
+            val clazz = sig.className
+            val func = gIndex.translatedMethods[sig] ?: continue
+            if (func.results.isNotEmpty()) continue
+            val closure = findSafeClosure(func.funcName, functions, classByFunction) ?: continue
+            // dependencies must be initialized before us, or be part of the closure
+            if (!closure.initializedClasses.all { it == clazz || it in eagerClassSet }) continue
+            eagerClasses.add(clazz)
+            eagerClassSet.add(clazz)
+            clinitNames[func.funcName] = clazz
+            initTimeFunctions.addAll(closure.functions)
+        }
+        numEagerClasses = eagerClasses.size
+        if (eagerClasses.isEmpty()) return
+
+        val body = ArrayList<Instruction>(eagerClasses.size + 1)
+        for (clazz in eagerClasses) {
+            val sig = MethodSig.staticInit(clazz)
+            ActuallyUsedIndex.add(staticInitSig, sig)
+            body.add(Call(gIndex.translatedMethods[sig]!!.funcName))
+        }
+        body.add(Instructions.Return)
+        gIndex.translatedMethods[staticInitSig] = FunctionImpl(
+            staticInit.funcName, staticInit.params, staticInit.results,
+            emptyList(), body, staticInit.isExported
+        )
+        initTimeFunctions.add(staticInit.funcName)
+
+        val eagerNames = clinitNames.keys
+        for (func in gIndex.translatedMethods.values) {
+            if (func.funcName in initTimeFunctions) continue
+            numRemovedGuards += removeGuards(func.body, eagerNames)
+        }
+        LOGGER.info("Static-Init-Guards: $numRemovedGuards removed, $numEagerClasses/${staticCallOrder.size} classes initialized eagerly")
+    }
+
+    private class CallSite(val caller: String, val calledInit: Set<String>)
+
+    /**
+     * A static-init-call can be removed, if the same call has been executed on every path to it:
+     * either earlier in the same function, or before every direct call to the function.
+     * If that earlier call is still running (cyclic static init), ours would return immediately, too.
+     *
+     * Exported functions, functions in the dynamic function table, and functions without direct callers
+     * may be called from anywhere, so they start with nothing initialized.
+     * Must run after calculateDynamicFunctionTable().
+     * */
+    fun removeImpliedGuards() {
+        val functions = HashMap<String, FunctionImpl>(gIndex.translatedMethods.size + helperMethods.size)
+        for ((_, func) in helperMethods) functions[func.funcName] = func
+        for (func in abstractMethodStubs) functions[func.funcName] = func
+        for (func in gIndex.nthGetterMethods.values) functions[func.funcName] = func
+        for (func in gIndex.translatedMethods.values) functions[func.funcName] = func
+
+        // direct call graph, with which static-init-calls have been executed before each call
+        val callSites = HashMap<String, ArrayList<CallSite>>(functions.size)
+        val callees = HashMap<String, HashSet<String>>(functions.size)
+        for (func in functions.values) {
+            val callerName = func.funcName
+            collectCalledInit(func.body, HashSet()) { calleeName, calledInit ->
+                if (calleeName in functions) {
+                    callSites.getOrPut(calleeName, ::ArrayList).add(CallSite(callerName, calledInit))
+                    callees.getOrPut(callerName, ::HashSet).add(calleeName)
+                }
+            }
+        }
+
+        // must-analysis: null = not yet known = everything, shrinks until stable
+        val calledOnEntry = HashMap<String, Set<String>?>(functions.size)
+        val entryPoints = HashSet<String>(functionTable)
+        for (func in functions.values) {
+            if (func.isExported || func.funcName !in callSites) entryPoints.add(func.funcName)
+        }
+        val remaining = ArrayDeque<String>()
+        for (name in functions.keys) {
+            if (name in entryPoints) {
+                calledOnEntry[name] = emptySet()
+                remaining.add(name)
+            } else calledOnEntry[name] = null
+        }
+        while (remaining.isNotEmpty()) {
+            val caller = remaining.removeFirst()
+            for (callee in callees[caller] ?: continue) {
+                if (callee in entryPoints) continue
+                var calledInit: HashSet<String>? = null
+                for (site in callSites[callee]!!) {
+                    val before = calledOnEntry[site.caller] ?: continue
+                    val atSite = HashSet<String>(before.size + site.calledInit.size)
+                    atSite.addAll(before)
+                    atSite.addAll(site.calledInit)
+                    if (calledInit == null) calledInit = atSite
+                    else calledInit.retainAll(atSite)
+                }
+                if (calledInit != null && calledInit != calledOnEntry[callee]) {
+                    calledOnEntry[callee] = calledInit
+                    remaining.add(callee)
+                }
+            }
+        }
+
+        for (func in functions.values) {
+            val calledInit = calledOnEntry[func.funcName] ?: continue // unreachable
+            numImpliedGuards += removeImpliedGuards(func.body, HashSet(calledInit))
+        }
+        LOGGER.info("Static-Init-Guards: $numImpliedGuards removed, because every caller initialized their class")
+    }
+
+    /**
+     * walks the structured control flow, and reports each direct call with the static-init-calls,
+     * which have been executed on all paths to it;
+     * jumps only go back to the start of a loop or out of a switch, so the set after them is the one from before
+     * */
+    private fun collectCalledInit(
+        instructions: List<Instruction>, calledInit: HashSet<String>,
+        callback: (String, Set<String>) -> Unit
+    ) {
+        for (instr in instructions) {
+            when (instr) {
+                is IfBranch -> {
+                    val ifTrue = HashSet(calledInit)
+                    collectCalledInit(instr.ifTrue, ifTrue, callback)
+                    val ifFalse = HashSet(calledInit)
+                    collectCalledInit(instr.ifFalse, ifFalse, callback)
+                    ifTrue.retainAll(ifFalse)
+                    calledInit.addAll(ifTrue)
+                }
+                is LoopInstr -> collectCalledInit(instr.body, HashSet(calledInit), callback)
+                is SwitchCase -> for (case in instr.cases) collectCalledInit(case, HashSet(calledInit), callback)
+                is ResolvedMethodInstr, is Call -> {
+                    val callName = if (instr is Call) instr.name else (instr as ResolvedMethodInstr).callName
+                    callback(callName, if (calledInit.isEmpty()) emptySet() else HashSet(calledInit))
+                    if (isStaticInitCall(instr)) calledInit.add(callName)
+                }
+            }
+        }
+    }
+
+    internal fun removeImpliedGuards(instructions: ArrayList<Instruction>, calledInit: HashSet<String>): Int {
+        var numRemoved = 0
+        var i = 0
+        while (i < instructions.size) {
+            when (val instr = instructions[i]) {
+                is IfBranch -> {
+                    val ifTrue = HashSet(calledInit)
+                    numRemoved += removeImpliedGuards(instr.ifTrue, ifTrue)
+                    val ifFalse = HashSet(calledInit)
+                    numRemoved += removeImpliedGuards(instr.ifFalse, ifFalse)
+                    ifTrue.retainAll(ifFalse)
+                    calledInit.addAll(ifTrue)
+                }
+                is LoopInstr -> numRemoved += removeImpliedGuards(instr.body, HashSet(calledInit))
+                is SwitchCase -> for (case in instr.cases) {
+                    numRemoved += removeImpliedGuards(case, HashSet(calledInit))
+                }
+                is ResolvedMethodInstr, is Call -> if (isStaticInitCall(instr)) {
+                    val callName = if (instr is Call) instr.name else (instr as ResolvedMethodInstr).callName
+                    if (!calledInit.add(callName) && canRemoveGuard(instr)) {
+                        i = removeGuard(instructions, i)
+                        numRemoved++
+                        continue
+                    }
+                }
+            }
+            i++
+        }
+        return numRemoved
+    }
+
+    private fun isStaticInitCall(instr: Instruction): Boolean {
+        return when (instr) {
+            is InvokeStaticInstr -> instr.original.name == STATIC_INIT
+            is Call -> instr.name.startsWith("static_")
+            else -> false
+        }
+    }
+
+    /**
+     * with useResultForThrowables, a static-init-call, which can throw, is followed by its Throwable-handling;
+     * that handling consumes the call's result, and isn't removed with it, so such guards must stay
+     * */
+    private fun canRemoveGuard(instr: Instruction): Boolean {
+        if (useWASMExceptions) return true
+        return when (instr) {
+            is InvokeStaticInstr -> !canThrowError(instr.original)
+            is Call -> crashOnAllExceptions || crashInStatic || instr.name in cannotThrow
+            else -> false
+        }
+    }
+
+    /**
+     * removes the static-init-call at index i, with its stackPush/stackPop, if present;
+     * returns the index of the next instruction
+     * */
+    private fun removeGuard(instructions: ArrayList<Instruction>, i: Int): Int {
+        return if (instructions[i] is Call && i >= 2 && i + 1 < instructions.size &&
+            instructions[i - 2] is Const &&
+            instructions[i - 1] == Call.stackPush &&
+            instructions[i + 1] == Call.stackPop
+        ) {
+            instructions.subList(i - 2, i + 2).clear()
+            i - 2
+        } else {
+            instructions.removeAt(i)
+            i
+        }
+    }
+
+    /**
+     * returns all functions reachable from funcName, or null, if any of them may have visible side effects
+     * */
+    private fun findSafeClosure(
+        funcName: String, functions: Map<String, FunctionImpl>,
+        classByFunction: Map<String, String>
+    ): Closure? {
+        val visited = HashSet<String>()
+        val initializedClasses = HashSet<String>()
+        val remaining = ArrayList<String>()
+        visited.add(funcName)
+        remaining.add(funcName)
+        while (remaining.isNotEmpty()) {
+            val name = remaining.removeAt(remaining.lastIndex)
+            val func = functions[name] ?: continue
+            val clazz = classByFunction[name]
+            val isClinit = clazz != null && func.funcName == methodName(MethodSig.staticInit(clazz))
+            val isSafe = visitCalls(func.body) { instr ->
+                when (instr) {
+                    is UnresolvedMethodInstr, is CallIndirect, is Throw -> false
+                    is FieldGetInstr -> isSafeStaticAccess(instr.fieldSig, clazz, isClinit, true)
+                    is FieldSetInstr -> isSafeStaticAccess(instr.fieldSig, clazz, isClinit, false)
+                    is ResolvedMethodInstr, is Call -> {
+                        val callName = if (instr is Call) instr.name else (instr as ResolvedMethodInstr).callName
+                        if (instr is InvokeStaticInstr && instr.original.name == STATIC_INIT) {
+                            initializedClasses.add(instr.original.className)
+                        } else if (callName.startsWith("static_")) {
+                            initializedClasses.add(classByFunction[callName] ?: callName)
+                        }
+                        if (callName == Call.panic.name || callName.startsWith("getStaticField") ||
+                            callName.startsWith("setStaticField")
+                        ) clazz?.startsWith("jvm/") == true
+                        else if (callName in functions) {
+                            if (visited.add(callName)) remaining.add(callName)
+                            true
+                        } else pureImportPrefixes.any { callName.startsWith(it) }
+                    }
+                    else -> true
+                }
+            }
+            if (!isSafe) return null
+        }
+        return Closure(visited, initializedClasses)
+    }
+
+    private fun isSafeStaticAccess(field: FieldSig, clazz: String?, isClinit: Boolean, isRead: Boolean): Boolean {
+        return !field.isStatic || field.clazz.startsWith("jvm/") ||
+                (isClinit && field.clazz == clazz) ||
+                (isRead && field.isFinal)
+    }
+
+    private fun visitCalls(instructions: List<Instruction>, callback: (Instruction) -> Boolean): Boolean {
+        for (instr in instructions) {
+            val isSafe = when (instr) {
+                is IfBranch -> visitCalls(instr.ifTrue, callback) && visitCalls(instr.ifFalse, callback)
+                is LoopInstr -> visitCalls(instr.body, callback)
+                is SwitchCase -> instr.cases.all { visitCalls(it, callback) }
+                else -> callback(instr)
+            }
+            if (!isSafe) return false
+        }
+        return true
+    }
+
+    /**
+     * removes static-init-calls to eagerly initialized classes, with their stackPush/stackPop, if present
+     * */
+    private fun removeGuards(instructions: ArrayList<Instruction>, eagerNames: Set<String>): Int {
+        var numRemoved = 0
+        var i = 0
+        while (i < instructions.size) {
+            when (val instr = instructions[i]) {
+                is InvokeStaticInstr -> {
+                    if (instr.original.name == STATIC_INIT && instr.callName in eagerNames && canRemoveGuard(instr)) {
+                        instructions.removeAt(i)
+                        numRemoved++
+                        continue
+                    }
+                }
+                is Call -> {
+                    if (instr.name in eagerNames && canRemoveGuard(instr)) {
+                        i = removeGuard(instructions, i)
+                        numRemoved++
+                        continue
+                    }
+                }
+                is IfBranch -> {
+                    numRemoved += removeGuards(instr.ifTrue, eagerNames)
+                    numRemoved += removeGuards(instr.ifFalse, eagerNames)
+                }
+                is LoopInstr -> numRemoved += removeGuards(instr.body, eagerNames)
+                is SwitchCase -> for (case in instr.cases) numRemoved += removeGuards(case, eagerNames)
+            }
+            i++
+        }
+        return numRemoved
+    }
+}
@@ -4,6 +4,7 @@ import me.anno.utils.algorithms.Recursion
 import wasm.instr.*
 import wasm.parser.FunctionImpl
 import wasm2cpp.instr.ExprIfBranch
+import wasm2cpp.instr.ExprSwitch
 
 fun interface InstructionReplacer {
 
@@ -25,6 +26,8 @@ fun interface InstructionReplacer {
                         remaining.add(instr.ifFalse)
                     }
                     is LoopInstr -> remaining.add(instr.body)
+                    is SwitchCase -> remaining.addAll(instr.cases)
+                    is ExprSwitch -> remaining.addAll(instr.cases)
                     is BreakableInstruction -> throw NotImplementedError()
                 }
             }
@@ -0,0 +1,386 @@
+package optimizer
+
+import jvm.JVMFlags.is32Bits
+import jvm.JVMShared.arrayOverhead
+import org.apache.logging.log4j.LogManager
+import utils.WASMTypes.*
+import wasm.instr.*
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Const.Companion.i32Const1
+import wasm.instr.Instructions.I32Add
+import wasm.instr.Instructions.I32And
+import wasm.instr.Instructions.I32EQZ
+import wasm.instr.Instructions.I32GES
+import wasm.instr.Instructions.I32GTS
+import wasm.instr.Instructions.I32LES
+import wasm.instr.Instructions.I32LTS
+import wasm.instr.Instructions.I32Shl
+import wasm.instr.Instructions.I32Sub
+import wasm.instr.SIMDInstructions.V128Load
+import wasm.instr.SIMDInstructions.V128Store
+import wasm.instr.SIMDInstructions.binaryLaneInstructions
+import wasm.instr.SIMDInstructions.getSplat
+import wasm.instr.SIMDInstructions.shiftLaneInstructions
+import wasm.instr.SIMDInstructions.unaryLaneInstructions
+import wasm.parser.FunctionImpl
+import wasm.parser.Module
+
+/**
+ * Vectorizes counted loops over arrays for the SIMD flavor (buildSIMDFlavor):
+ * while (i < bound) { a[i] = b[i] * c[i] + d; ...; i++ }
+ * with only unchecked accesses at index i (see BoundsCheckOptimizer), and elements of the same size,
+ * gets a v128-copy in front of it, which handles 16 bytes per iteration;
+ * the original loop then handles the remaining elements.
+ *
+ * Lanes are independent, because all accesses use the same index, and different arrays never overlap;
+ * two variables may still reference the same array, but then each element is still only touched by its own iteration.
+ * The vector loop only runs iterations, which the scalar loop would have run, too, so it accesses the same elements.
+ * */
+object LoopVectorizer {
+
+    private val LOGGER = LogManager.getLogger(LoopVectorizer::class)
+
+    private class ArrayAccess(val type: String, val numBytes: Int)
+
+    private val loads = mapOf(
+        Call.i32ArrayLoadU to ArrayAccess(i32, 4),
+        Call.i64ArrayLoadU to ArrayAccess(i64, 8),
+        Call.f32ArrayLoadU to ArrayAccess(f32, 4),
+        Call.f64ArrayLoadU to ArrayAccess(f64, 8),
+    )
+
+    private val stores = mapOf(
+        Call.i32ArrayStoreU to ArrayAccess(i32, 4),
+        Call.i64ArrayStoreU to ArrayAccess(i64, 8),
+        Call.f32ArrayStoreU to ArrayAccess(f32, 4),
+        Call.f64ArrayStoreU to ArrayAccess(f64, 8),
+    )
+
+    /**
+     * expression tree of a loop statement
+     * */
+    private sealed class Expr(val type: String)
+    private class Scalar(type: String, val instr: Instruction) : Expr(type)
+    private class Load(type: String, val array: ValueGet) : Expr(type)
+    private class Lane(type: String, val instr: SIMDInstr, val operands: List<Expr>) : Expr(type)
+    private class Shift(type: String, val instr: SIMDInstr, val value: Expr, val shift: Scalar) : Expr(type)
+    private class Store(val array: ValueGet, val value: Expr)
+
+    private class Context(val index: String, val types: Map<String, String>) {
+        var numBytes = 0
+
+        fun isInvariant(instr: Instruction): Boolean {
+            return (instr is ValueGet && instr.name != index && instr.name in types) || instr is Const
+        }
+
+        fun useElementSize(type: String): Boolean {
+            val size = if (type == i32 || type == f32) 4 else 8
+            if (numBytes == 0) numBytes = size
+            return numBytes == size
+        }
+    }
+
+    private var numVectorizedLoops = 0
+
+    /**
+     * returns a copy of the module, whose functions are vectorized where possible
+     * */
+    fun vectorize(module: Module): Module {
+        val result = Module()
+        result.memorySizeInBlocks = module.memorySizeInBlocks
+        result.imports.addAll(module.imports)
+        result.dataSections.addAll(module.dataSections)
+        result.functionTable.addAll(module.functionTable)
+        result.types.putAll(module.types)
+        result.globals.putAll(module.globals)
+        result.functions.ensureCapacity(module.functions.size)
+        for (function in module.functions) {
+            result.functions.add(vectorize(function))
+        }
+        return result
+    }
+
+    fun vectorize(functions: List<FunctionImpl>): List<FunctionImpl> {
+        return functions.map { vectorize(it) }
+    }
+
+    fun vectorize(function: FunctionImpl): FunctionImpl {
+        // v128 addresses are computed in i32
+        if (!is32Bits) return function
+        val types = HashMap<String, String>()
+        for (param in function.params) types[param.name] = param.wasmType.wasmName
+        for (local in function.locals) types[local.name] = local.wasmType.wasmName
+        val body = vectorize(function.body, types) ?: return function
+        return function.withBody(body)
+    }
+
+    fun printStatistics() {
+        LOGGER.info("Vectorized $numVectorizedLoops loops")
+    }
+
+    /**
+     * returns null, if nothing was changed
+     * */
+    private fun vectorize(instructions: ArrayList<Instruction>, types: Map<String, String>): ArrayList<Instruction>? {
+        var result: ArrayList<Instruction>? = null
+        for (i in instructions.indices) {
+            val instr = instructions[i]
+            val replacement: List<Instruction>? = when (instr) {
+                is LoopInstr -> {
+                    val body = vectorize(instr.body, types)
+                    val loop = if (body != null) instr.withBody(body) else instr
+                    val vectorLoop = createVectorLoop(loop, types)
+                    if (vectorLoop != null) listOf(vectorLoop, loop)
+                    else if (body != null) listOf(loop)
+                    else null
+                }
+                is IfBranch -> {
+                    val ifTrue = vectorize(instr.ifTrue, types)
+                    val ifFalse = vectorize(instr.ifFalse, types)
+                    if (ifTrue != null || ifFalse != null) {
+                        listOf(IfBranch(ifTrue ?: instr.ifTrue, ifFalse ?: instr.ifFalse, instr.params, instr.results))
+                    } else null
+                }
+                is SwitchCase -> {
+                    val cases = instr.cases.map { vectorize(it, types) }
+                    if (cases.any { it != null }) {
+                        listOf(SwitchCase(instr.label, instr.table, cases.mapIndexed { j, case -> case ?: instr.cases[j] }))
+                    } else null
+                }
+                else -> null
+            }
+            if (replacement != null && result == null) {
+                result = ArrayList(instructions.size + 1)
+                result.addAll(instructions.subList(0, i))
+            }
+            if (replacement != null) result!!.addAll(replacement)
+            else result?.add(instr)
+        }
+        return result
+    }
+
+    /**
+     * matches loop $L { i <> bound; if { statements; i = i + 1; br $L } }
+     * */
+    private fun createVectorLoop(loop: LoopInstr, types: Map<String, String>): LoopInstr? {
+        val body = loop.body.filter { it !is Comment }
+        val branch = body.lastOrNull() as? IfBranch ?: return null
+        var condition = body.subList(0, body.size - 1)
+        var negated = false
+        if (condition.lastOrNull() == I32EQZ) {
+            condition = condition.subList(0, condition.size - 1)
+            negated = true
+        }
+        if (condition.size < 3) return null
+        val compare = condition.last()
+        val first = condition.first()
+        val beforeCompare = condition[condition.size - 2]
+        val indexGet: ValueGet
+        val bound: List<Instruction>
+        val isLess: Boolean // i < bound
+        when {
+            first is ValueGet && (compare == I32LTS || compare == I32GES) -> {
+                indexGet = first
+                bound = condition.subList(1, condition.size - 1)
+                isLess = compare == I32LTS
+            }
+            beforeCompare is ValueGet && (compare == I32GTS || compare == I32LES) -> {
+                indexGet = beforeCompare
+                bound = condition.subList(0, condition.size - 2)
+                isLess = compare == I32GTS
+            }
+            else -> return null
+        }
+        val index = indexGet.name
+        if (types[index] != i32) return null
+        val continueBranch = if (isLess != negated) {
+            if (branch.ifFalse.any { it !is Comment }) return null
+            branch.ifTrue
+        } else {
+            if (branch.ifTrue.any { it !is Comment }) return null
+            branch.ifFalse
+        }
+        val statements = continueBranch.filter { it !is Comment }
+
+        val context = Context(index, types)
+        if (!isInvariantBound(bound, context)) return null
+        if (!isIncrementAndJump(statements, index, loop)) return null
+        val stores = parseStatements(statements.subList(0, statements.size - 5), context) ?: return null
+        if (stores.isEmpty()) return null
+
+        val numBytes = context.numBytes
+        val numLanes = 16 / numBytes
+        val vectorLoop = LoopInstr("${loop.label}Simd", ArrayList(), emptyList(), emptyList())
+        val vectorBody = ArrayList<Instruction>()
+        for (store in stores) {
+            appendAddress(store.array, indexGet, numBytes, vectorBody)
+            appendExpr(store.value, indexGet, numBytes, vectorBody)
+            vectorBody.add(V128Store)
+        }
+        // params and locals are indexed differently, so the original instructions are reused
+        vectorBody.add(indexGet)
+        vectorBody.add(i32Const(numLanes))
+        vectorBody.add(I32Add)
+        vectorBody.add(statements[statements.size - 2])
+        vectorBody.add(Jump(vectorLoop))
+        // i < bound - (lanes-1); array lengths are never negative, but other bounds might underflow
+        val loopBody = vectorLoop.body
+        loopBody.add(indexGet)
+        loopBody.addAll(bound)
+        loopBody.add(i32Const(numLanes - 1))
+        loopBody.add(I32Sub)
+        loopBody.add(I32LTS)
+        if (bound.size == 1) {
+            loopBody.addAll(bound)
+            loopBody.add(i32Const(numLanes - 1))
+            loopBody.add(I32GES)
+            loopBody.add(I32And)
+        }
+        loopBody.add(IfBranch(vectorBody))
+        numVectorizedLoops++
+        return vectorLoop
+    }
+
+    private fun isInvariantBound(bound: List<Instruction>, context: Context): Boolean {
+        return when (bound.size) {
+            1 -> bound[0] is ValueGet && context.isInvariant(bound[0])
+            2 -> bound[0] is ValueGet && context.isInvariant(bound[0]) &&
+                    (bound[1] == Call.arrayLength || bound[1] == Call.arrayLengthU)
+            else -> false
+        }
+    }
+
+    private fun isIncrementAndJump(statements: List<Instruction>, index: String, loop: LoopInstr): Boolean {
+        if (statements.size < 5) return false
+        val n = statements.size
+        val a = statements[n - 5]
+        val b = statements[n - 4]
+        val isIncrement = (isGet(a, index) && b == i32Const1) || (a == i32Const1 && isGet(b, index))
+        val set = statements[n - 2]
+        val jump = statements[n - 1]
+        return isIncrement && statements[n - 3] == I32Add &&
+                set is ValueSet && set.name == index &&
+                jump is Jump && jump.label == loop.label
+    }
+
+    private fun isGet(instr: Instruction, variable: String): Boolean {
+        return instr is ValueGet && instr.name == variable
+    }
+
+    /**
+     * parses the statements into stores of lane-wise expressions, or returns null, if that's not possible
+     * */
+    private fun parseStatements(statements: List<Instruction>, context: Context): List<Store>? {
+        val stack = ArrayList<Any>() // Expr, or the ValueGet of the index
+        val result = ArrayList<Store>()
+        for (instr in statements) {
+            when (instr) {
+                is ValueGet -> {
+                    if (instr.name == context.index) stack.add(instr)
+                    else {
+                        val type = context.types[instr.name] ?: return null
+                        stack.add(Scalar(type, instr))
+                    }
+                }
+                is Const -> stack.add(Scalar(instr.type.wasmName, instr))
+                is Call -> {
+                    val load = loads[instr]
+                    val store = stores[instr]
+                    if (load != null) {
+                        if (stack.size < 2 || !context.useElementSize(load.type)) return null
+                        val indexGet = stack.removeLast()
+                        val array = getArray(stack.removeLast(), context) ?: return null
+                        if (!isGet(indexGet as? Instruction ?: return null, context.index)) return null
+                        stack.add(Load(load.type, array))
+                    } else if (store != null) {
+                        if (stack.size != 3 || !context.useElementSize(store.type)) return null
+                        val value = getLaneOperand(stack.removeLast(), store.type, context) ?: return null
+                        val indexGet = stack.removeLast()
+                        val array = getArray(stack.removeLast(), context) ?: return null
+                        if (!isGet(indexGet as? Instruction ?: return null, context.index)) return null
+                        result.add(Store(array, value))
+                    } else return null
+                }
+                else -> {
+                    val binary = binaryLaneInstructions[instr]
+                    val shift = shiftLaneInstructions[instr]
+                    val unary = unaryLaneInstructions[instr]
+                    when {
+                        binary != null -> {
+                            instr as BinaryInstruction
+                            if (stack.size < 2) return null
+                            val b = getLaneOperand(stack.removeLast(), instr.popType, context) ?: return null
+                            val a = getLaneOperand(stack.removeLast(), instr.popType, context) ?: return null
+                            if (!context.useElementSize(instr.pushType)) return null
+                            stack.add(Lane(instr.pushType, binary, listOf(a, b)))
+                        }
+                        shift != null -> {
+                            instr as BinaryInstruction
+                            if (stack.size < 2) return null
+                            val b = stack.removeLast() as? Scalar ?: return null
+                            val a = getLaneOperand(stack.removeLast(), instr.popType, context) ?: return null
+                            if (b.type != i32 || !context.isInvariant(b.instr)) return null
+                            stack.add(Shift(a.type, shift, a, b))
+                        }
+                        unary != null -> {
+                            instr as UnaryInstruction
+                            if (stack.isEmpty()) return null
+                            val a = getLaneOperand(stack.removeLast(), instr.popType, context) ?: return null
+                            if (!context.useElementSize(instr.pushType)) return null
+                            stack.add(Lane(instr.pushType, unary, listOf(a)))
+                        }
+                        else -> return null
+                    }
+                }
+            }
+        }
+        return if (stack.isEmpty()) result else null
+    }
+
+    /**
+     * scalars become splats, so they must have the lane type, too
+     * */
+    private fun getLaneOperand(operand: Any, type: String, context: Context): Expr? {
+        if (operand !is Expr || operand.type != type) return null
+        if (operand is Scalar && (!context.isInvariant(operand.instr) || !context.useElementSize(type))) return null
+        return operand
+    }
+
+    private fun getArray(operand: Any, context: Context): ValueGet? {
+        val array = (operand as? Scalar)?.instr as? ValueGet ?: return null
+        return if (context.types[array.name] == i32) array else null
+    }
+
+    private fun appendAddress(array: ValueGet, index: ValueGet, numBytes: Int, dst: ArrayList<Instruction>) {
+        // array + arrayOverhead + (i << log2(numBytes))
+        dst.add(array)
+        dst.add(index)
+        dst.add(i32Const(numBytes.countTrailingZeroBits()))
+        dst.add(I32Shl)
+        dst.add(I32Add)
+        dst.add(i32Const(arrayOverhead))
+        dst.add(I32Add)
+    }
+
+    private fun appendExpr(expr: Expr, index: ValueGet, numBytes: Int, dst: ArrayList<Instruction>) {
+        when (expr) {
+            is Scalar -> {
+                dst.add(expr.instr)
+                dst.add(getSplat(expr.type))
+            }
+            is Load -> {
+                appendAddress(expr.array, index, numBytes, dst)
+                dst.add(V128Load)
+            }
+            is Lane -> {
+                for (operand in expr.operands) appendExpr(operand, index, numBytes, dst)
+                dst.add(expr.instr)
+            }
+            is Shift -> {
+                appendExpr(expr.value, index, numBytes, dst)
+                dst.add(expr.shift.instr)
+                dst.add(expr.instr)
+            }
+        }
+    }
+}
@@ -200,6 +200,11 @@ object ReplaceOptimizer {
                     is LoopInstr -> {
                         optimizeUsingReplacements2(instr.body)
                     }
+                    is SwitchCase -> {
+                        for (case in instr.cases) {
+                            optimizeUsingReplacements2(case)
+                        }
+                    }
                     else -> {
                         val replacements = replacementsByInstr[instr]
                             ?: continue
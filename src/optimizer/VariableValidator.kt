@@ -1,6 +1,5 @@
 package optimizer
 
-import jvm.custom.ThreadLocal2
 import wasm.instr.*
 import wasm.parser.FunctionImpl
 import wasm.parser.LocalVariable
@@ -12,7 +11,7 @@ import wasm.parser.LocalVariable
 class VariableValidator {
 
     companion object {
-        private val instances = ThreadLocal2 { VariableValidator() }
+        private val instances = ThreadLocal.withInitial { VariableValidator() }
         val INSTANCE: VariableValidator get() = instances.get()
     }
 
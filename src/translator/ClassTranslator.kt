@@ -3,8 +3,11 @@ package translator
 import dIndex
 import hIndex
 import hierarchy.FirstClassIndexer
+import hierarchy.PrimitiveCallSiteVisitor
+import hierarchy.PrimitiveLambdaSpecializer
 import org.objectweb.asm.*
 import replaceClass
+import specializePrimitiveLambdas
 import utils.MethodSig
 import utils.methodName
 
@@ -59,7 +62,10 @@ class ClassTranslator(val clazz: String) : ClassVisitor(FirstClassIndexer.API_LE
             val sig = MethodSig.c(clazz, name, descriptor)
             val alias = hIndex.getAlias(sig)
             if (sig !in dIndex.methodsWithForbiddenDependencies && sig in dIndex.usedMethods && alias == sig) {
-                MethodTranslator(access, clazz, name, sig.descriptor)
+                val translator = MethodTranslator(access, clazz, name, sig.descriptor)
+                if (specializePrimitiveLambdas) {
+                    PrimitiveCallSiteVisitor(translator, PrimitiveLambdaSpecializer::getSpecialization)
+                } else translator
             } else null
         } else {
             writer.visitMethod(access, name, descriptor, signature, exceptions)
@@ -0,0 +1,545 @@
+package translator
+
+import highlevel.*
+import utils.FieldSig
+import utils.InterfaceSig
+import utils.MethodSig
+import utils.Param
+import utils.WASMType
+import wasm.instr.*
+import wasm.instr.Const.Companion.f32Const
+import wasm.instr.Const.Companion.f64Const
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Const.Companion.i64Const
+import wasm.parser.FunctionImpl
+import wasm.parser.LocalVariable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+/**
+ * Binary format for translated functions, used by TranslationCache.
+ * Only instructions, that MethodTranslator creates, are supported; others throw UnsupportedInstructionException,
+ * and their class just isn't cached.
+ * */
+object FunctionSerializer {
+
+    class UnsupportedInstructionException(instr: Instruction) :
+        IllegalArgumentException("Cannot serialize ${instr.javaClass.name}: $instr")
+
+    private const val SIMPLE = 0
+    private const val COMMENT = 1
+    private const val CONST = 2
+    private const val CALL = 3
+    private const val CALL_INDIRECT = 4
+    private const val LOCAL_GET = 5
+    private const val LOCAL_SET = 6
+    private const val PARAM_GET = 7
+    private const val PARAM_SET = 8
+    private const val GLOBAL_GET = 9
+    private const val GLOBAL_SET = 10
+    private const val IF_BRANCH = 11
+    private const val LOOP = 12
+    private const val SWITCH = 13
+    private const val JUMP = 14
+    private const val JUMP_IF = 15
+    private const val THROW = 16
+    private const val STRING_CONST = 17
+    private const val PTR_DUP = 18
+    private const val FIELD_GET = 19
+    private const val FIELD_SET = 20
+    private const val INVOKE_STATIC = 21
+    private const val INVOKE_SPECIAL = 22
+    private const val INVOKE_FINAL = 23
+    private const val INVOKE_INTERFACE = 24
+    private const val INVOKE_DYNAMIC = 25
+    private const val PSEUDO_HIGH_LEVEL = 26
+
+    private const val NTH_GETTER_PREFIX = "getNth_"
+
+    private val wasmTypes = WASMType.values()
+
+    /**
+     * strings are written once, and referenced by index afterward
+     * */
+    class Writer(val output: DataOutputStream) {
+
+        private val stringIndices = HashMap<String, Int>()
+        private val breakables = ArrayList<BreakableInstruction>()
+
+        fun writeInt(value: Int) {
+            output.writeInt(value)
+        }
+
+        fun writeBoolean(value: Boolean) {
+            output.writeBoolean(value)
+        }
+
+        fun writeString(value: String) {
+            val index = stringIndices[value]
+            if (index != null) {
+                output.writeInt(index)
+            } else {
+                output.writeInt(stringIndices.size)
+                stringIndices[value] = stringIndices.size
+                val bytes = value.toByteArray()
+                output.writeInt(bytes.size)
+                output.write(bytes)
+            }
+        }
+
+        fun writeStrings(values: List<String>) {
+            output.writeInt(values.size)
+            for (i in values.indices) writeString(values[i])
+        }
+
+        fun writeMethodSig(sig: MethodSig) {
+            writeString(sig.className)
+            writeString(sig.name)
+            writeString(sig.descriptor.raw)
+        }
+
+        private fun writeMethodSigs(sigs: Collection<MethodSig>) {
+            output.writeInt(sigs.size)
+            for (sig in sigs) writeMethodSig(sig)
+        }
+
+        fun writeInterfaceSig(sig: InterfaceSig) {
+            writeString(sig.name)
+            writeString(sig.descriptor.raw)
+        }
+
+        private fun writeFieldSig(sig: FieldSig) {
+            writeString(sig.clazz)
+            writeString(sig.name)
+            writeString(sig.jvmType)
+            output.writeBoolean(sig.isStatic)
+        }
+
+        fun writeFuncType(type: FuncType) {
+            output.writeInt(type.params.size)
+            for (param in type.params) output.writeByte(param.ordinal)
+            output.writeInt(type.results.size)
+            for (result in type.results) output.writeByte(result.ordinal)
+        }
+
+        fun writeFunction(impl: FunctionImpl) {
+            if (impl.javaClass != FunctionImpl::class.java) {
+                throw IllegalArgumentException("Cannot serialize ${impl.javaClass.name}")
+            }
+            writeString(impl.funcName)
+            output.writeInt(impl.params.size)
+            for (param in impl.params) {
+                writeString(param.name)
+                writeString(param.jvmType)
+                output.writeByte(param.wasmType.ordinal)
+            }
+            writeStrings(impl.results)
+            output.writeInt(impl.locals.size)
+            for (local in impl.locals) {
+                writeString(local.name)
+                writeString(local.jvmType)
+                output.writeByte(local.wasmType.ordinal)
+            }
+            output.writeBoolean(impl.isExported)
+            writeInstructions(impl.body)
+        }
+
+        private fun writeInstructions(instructions: List<Instruction>) {
+            output.writeInt(instructions.size)
+            for (i in instructions.indices) {
+                writeInstruction(instructions[i])
+            }
+        }
+
+        private fun writeSimple(instr: SimpleInstr) {
+            // simple instructions are singletons, and found by their name
+            if (SimpleInstr.simpleInstructions[instr.name] !== instr) {
+                throw UnsupportedInstructionException(instr)
+            }
+            writeString(instr.name)
+        }
+
+        private fun writeBreakable(instr: BreakableInstruction, writeBody: () -> Unit) {
+            breakables.add(instr)
+            writeBody()
+            breakables.removeAt(breakables.lastIndex)
+        }
+
+        private fun writeJump(instr: Jumping) {
+            // jumps are resolved by label when reading, so they must target an enclosing block
+            val label = instr.label
+            if (breakables.lastOrNull { it.label == label } !== instr.owner) throw UnsupportedInstructionException(instr)
+            writeString(label)
+        }
+
+        private fun writeInstruction(instr: Instruction) {
+            val output = output
+            when (instr) {
+                is SimpleInstr -> {
+                    output.writeByte(SIMPLE)
+                    writeSimple(instr)
+                }
+                is Comment -> {
+                    output.writeByte(COMMENT)
+                    writeString(instr.text)
+                }
+                is Const -> {
+                    output.writeByte(CONST)
+                    output.writeByte(instr.type.ordinal)
+                    when (instr.type) {
+                        WASMType.I32 -> output.writeInt(instr.value.toInt())
+                        WASMType.I64 -> output.writeLong(instr.value.toLong())
+                        WASMType.F32 -> output.writeInt(instr.value.toFloat().toRawBits())
+                        WASMType.F64 -> output.writeLong(instr.value.toDouble().toRawBits())
+                    }
+                }
+                is Call -> {
+                    output.writeByte(CALL)
+                    writeString(instr.name)
+                }
+                is CallIndirect -> {
+                    output.writeByte(CALL_INDIRECT)
+                    writeFuncType(instr.type)
+                    val options = instr.options
+                    output.writeBoolean(options != null)
+                    if (options != null) writeMethodSigs(options)
+                }
+                is LocalGet -> {
+                    output.writeByte(LOCAL_GET)
+                    writeString(instr.name)
+                }
+                is LocalSet -> {
+                    output.writeByte(LOCAL_SET)
+                    writeString(instr.name)
+                }
+                is ParamGet -> {
+                    output.writeByte(PARAM_GET)
+                    output.writeInt(instr.index)
+                    writeString(instr.name)
+                }
+                is ParamSet -> {
+                    output.writeByte(PARAM_SET)
+                    output.writeInt(instr.index)
+                    writeString(instr.name)
+                }
+                is GlobalGet -> {
+                    output.writeByte(GLOBAL_GET)
+                    writeString(instr.name)
+                }
+                is GlobalSet -> {
+                    output.writeByte(GLOBAL_SET)
+                    writeString(instr.name)
+                }
+                is IfBranch -> {
+                    output.writeByte(IF_BRANCH)
+                    writeStrings(instr.params)
+                    writeStrings(instr.results)
+                    writeInstructions(instr.ifTrue)
+                    writeInstructions(instr.ifFalse)
+                }
+                is LoopInstr -> {
+                    output.writeByte(LOOP)
+                    writeString(instr.label)
+                    writeStrings(instr.params)
+                    writeStrings(instr.results)
+                    writeBreakable(instr) { writeInstructions(instr.body) }
+                }
+                is SwitchCase -> {
+                    output.writeByte(SWITCH)
+                    writeString(instr.label)
+                    output.writeInt(instr.table.size)
+                    for (case in instr.table) output.writeInt(case)
+                    output.writeInt(instr.cases.size)
+                    writeBreakable(instr) {
+                        for (case in instr.cases) writeInstructions(case)
+                    }
+                }
+                is Jump -> {
+                    output.writeByte(JUMP)
+                    writeJump(instr)
+                }
+                is JumpIf -> {
+                    output.writeByte(JUMP_IF)
+                    writeJump(instr)
+                }
+                is Throw -> {
+                    output.writeByte(THROW)
+                    writeString(instr.tag)
+                }
+                is StringConst -> {
+                    output.writeByte(STRING_CONST)
+                    writeString(instr.string)
+                    output.writeInt(instr.address)
+                }
+                is PtrDupInstr -> output.writeByte(PTR_DUP)
+                is FieldGetInstr -> {
+                    output.writeByte(FIELD_GET)
+                    writeFieldSig(instr.fieldSig)
+                    writeSimple(instr.loadInstr)
+                    writeString(instr.loadCall.name)
+                }
+                is FieldSetInstr -> {
+                    output.writeByte(FIELD_SET)
+                    writeFieldSig(instr.fieldSig)
+                    writeSimple(instr.storeInstr)
+                    writeString(instr.storeCall.name)
+                    output.writeBoolean(instr.reversed)
+                }
+                is InvokeStaticInstr, is InvokeSpecialInstr, is InvokeFinalInstr -> {
+                    instr as ResolvedMethodInstr
+                    output.writeByte(
+                        when (instr) {
+                            is InvokeStaticInstr -> INVOKE_STATIC
+                            is InvokeSpecialInstr -> INVOKE_SPECIAL
+                            else -> INVOKE_FINAL
+                        }
+                    )
+                    writeMethodSig(instr.original)
+                    writeMethodSig(instr.resolved)
+                    output.writeInt(instr.stackPushId)
+                }
+                is InvokeInterfaceInstr -> {
+                    output.writeByte(INVOKE_INTERFACE)
+                    writeUnresolved(instr)
+                    output.writeInt(instr.interfaceId)
+                    output.writeInt(instr.cacheSlot)
+                }
+                is InvokeDynamicInstr -> {
+                    output.writeByte(INVOKE_DYNAMIC)
+                    writeUnresolved(instr)
+                    output.writeInt(instr.dynMethodIdOffset)
+                }
+                is PseudoHighLevelInstr -> {
+                    output.writeByte(PSEUDO_HIGH_LEVEL)
+                    writeInstructions(instr.body)
+                }
+                else -> throw UnsupportedInstructionException(instr)
+            }
+        }
+
+        private fun writeUnresolved(instr: UnresolvedMethodInstr) {
+            writeMethodSig(instr.original)
+            writeMethodSigs(instr.resolvedMethods)
+            writeFuncType(instr.funcType)
+            output.writeInt(instr.stackPushId)
+        }
+    }
+
+    class Reader(val input: DataInputStream) {
+
+        private val strings = ArrayList<String>()
+        private val breakables = ArrayList<BreakableInstruction>()
+
+        fun readInt(): Int = input.readInt()
+
+        fun readBoolean(): Boolean = input.readBoolean()
+
+        fun readString(): String {
+            val index = input.readInt()
+            if (index < strings.size) return strings[index]
+            if (index != strings.size) throw IOException("Invalid string index")
+            val bytes = ByteArray(input.readInt())
+            input.readFully(bytes)
+            val value = String(bytes)
+            strings.add(value)
+            return value
+        }
+
+        fun readStrings(): List<String> {
+            return List(input.readInt()) { readString() }
+        }
+
+        fun readMethodSig(): MethodSig {
+            val className = readString()
+            val name = readString()
+            return MethodSig.c(className, name, readString())
+        }
+
+        private fun readMethodSigs(): Set<MethodSig> {
+            val size = input.readInt()
+            val result = HashSet<MethodSig>(size)
+            for (i in 0 until size) result.add(readMethodSig())
+            return result
+        }
+
+        fun readInterfaceSig(): InterfaceSig {
+            val name = readString()
+            return InterfaceSig.c(name, readString())
+        }
+
+        private fun readFieldSig(): FieldSig {
+            val clazz = readString()
+            val name = readString()
+            val jvmType = readString()
+            return FieldSig(clazz, name, jvmType, input.readBoolean())
+        }
+
+        private fun readWASMType(): WASMType {
+            return wasmTypes[input.readUnsignedByte()]
+        }
+
+        fun readFuncType(): FuncType {
+            val params = List(input.readInt()) { readWASMType() }
+            val results = List(input.readInt()) { readWASMType() }
+            return FuncType(params, results)
+        }
+
+        fun readFunction(): FunctionImpl {
+            val funcName = readString()
+            val params = List(input.readInt()) {
+                val name = readString()
+                val jvmType = readString()
+                Param(name, jvmType, readWASMType())
+            }
+            val results = readStrings()
+            val locals = List(input.readInt()) {
+                val name = readString()
+                val jvmType = readString()
+                LocalVariable(name, jvmType, readWASMType())
+            }
+            val isExported = input.readBoolean()
+            return FunctionImpl(funcName, params, results, locals, readInstructions(), isExported)
+        }
+
+        private fun readInstructions(): ArrayList<Instruction> {
+            val size = input.readInt()
+            val result = ArrayList<Instruction>(size)
+            for (i in 0 until size) {
+                result.add(readInstruction())
+            }
+            return result
+        }
+
+        private fun readSimple(): SimpleInstr {
+            val name = readString()
+            return SimpleInstr.simpleInstructions[name]
+                ?: throw IOException("Unknown instruction $name")
+        }
+
+        private fun findBreakable(): BreakableInstruction {
+            val label = readString()
+            return breakables.lastOrNull { it.label == label }
+                ?: throw IOException("Unknown label $label")
+        }
+
+        private fun readCall(): Call {
+            val name = readString()
+            if (name.startsWith(NTH_GETTER_PREFIX)) {
+                // nth-getters are generated on demand
+                val types = FuncType.parse(name.substring(NTH_GETTER_PREFIX.length) + "X").params
+                GeneratorIndex.getNth(types)
+            }
+            return Call(name)
+        }
+
+        private fun readInstruction(): Instruction {
+            val input = input
+            return when (val tag = input.readUnsignedByte()) {
+                SIMPLE -> readSimple()
+                COMMENT -> Comment(readString())
+                CONST -> when (readWASMType()) {
+                    WASMType.I32 -> i32Const(input.readInt())
+                    WASMType.I64 -> i64Const(input.readLong())
+                    WASMType.F32 -> f32Const(Float.fromBits(input.readInt()))
+                    WASMType.F64 -> f64Const(Double.fromBits(input.readLong()))
+                }
+                CALL -> readCall()
+                CALL_INDIRECT -> {
+                    val type = readFuncType()
+                    if (input.readBoolean()) CallIndirect(type, readMethodSigs())
+                    else CallIndirect(type)
+                }
+                LOCAL_GET -> LocalGet(readString())
+                LOCAL_SET -> LocalSet(readString())
+                PARAM_GET, PARAM_SET -> {
+                    val index = input.readInt()
+                    val name = readString()
+                    val isDefaultName = index < Param.names.size && Param.names[index] == name
+                    if (tag == PARAM_GET) {
+                        if (isDefaultName) ParamGet[index] else ParamGet(index, name)
+                    } else {
+                        if (isDefaultName) ParamSet[index] else ParamSet(index, name)
+                    }
+                }
+                GLOBAL_GET -> GlobalGet(readString())
+                GLOBAL_SET -> GlobalSet(readString())
+                IF_BRANCH -> {
+                    val params = readStrings()
+                    val results = readStrings()
+                    val ifTrue = readInstructions()
+                    IfBranch(ifTrue, readInstructions(), params, results)
+                }
+                LOOP -> {
+                    val label = readString()
+                    val params = readStrings()
+                    val results = readStrings()
+                    val loop = LoopInstr(label, ArrayList(), params, results)
+                    breakables.add(loop)
+                    loop.body = readInstructions()
+                    breakables.removeAt(breakables.lastIndex)
+                    loop
+                }
+                SWITCH -> {
+                    val label = readString()
+                    val table = IntArray(input.readInt()) { input.readInt() }
+                    val cases = List(input.readInt()) { ArrayList<Instruction>() }
+                    val switch = SwitchCase(label, table, cases)
+                    breakables.add(switch)
+                    for (case in cases) case.addAll(readInstructions())
+                    breakables.removeAt(breakables.lastIndex)
+                    switch
+                }
+                JUMP -> Jump(findBreakable())
+                JUMP_IF -> JumpIf(findBreakable())
+                THROW -> Throw(readString())
+                STRING_CONST -> {
+                    val string = readString()
+                    StringConst(string, input.readInt())
+                }
+                PTR_DUP -> PtrDupInstr
+                FIELD_GET -> {
+                    val fieldSig = readFieldSig()
+                    val loadInstr = readSimple() as LoadInstr
+                    FieldGetInstr(fieldSig, loadInstr, Call(readString()))
+                }
+                FIELD_SET -> {
+                    val fieldSig = readFieldSig()
+                    val storeInstr = readSimple() as StoreInstr
+                    val storeCall = Call(readString())
+                    FieldSetInstr(fieldSig, storeInstr, storeCall, input.readBoolean())
+                }
+                INVOKE_STATIC, INVOKE_SPECIAL, INVOKE_FINAL -> {
+                    val original = readMethodSig()
+                    val resolved = readMethodSig()
+                    val stackPushId = input.readInt()
+                    when (tag) {
+                        INVOKE_STATIC -> InvokeStaticInstr(original, resolved, stackPushId)
+                        INVOKE_SPECIAL -> InvokeSpecialInstr(original, resolved, stackPushId)
+                        else -> InvokeFinalInstr(original, resolved, stackPushId)
+                    }
+                }
+                INVOKE_INTERFACE -> {
+                    val original = readMethodSig()
+                    val resolvedMethods = readMethodSigs()
+                    val funcType = readFuncType()
+                    val stackPushId = input.readInt()
+                    val interfaceId = input.readInt()
+                    InvokeInterfaceInstr(
+                        original, resolvedMethods, funcType,
+                        stackPushId, interfaceId, input.readInt()
+                    )
+                }
+                INVOKE_DYNAMIC -> {
+                    val original = readMethodSig()
+                    val resolvedMethods = readMethodSigs()
+                    val funcType = readFuncType()
+                    val stackPushId = input.readInt()
+                    InvokeDynamicInstr(original, resolvedMethods, funcType, stackPushId, input.readInt())
+                }
+                PSEUDO_HIGH_LEVEL -> PseudoHighLevelInstr(readInstructions())
+                else -> throw IOException("Unknown instruction tag $tag")
+            }
+        }
+    }
+}
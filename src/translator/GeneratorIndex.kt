@@ -28,6 +28,7 @@ import wasm.instr.Instruction
 import wasm.instr.Instructions.Return
 import wasm.instr.ParamGet
 import wasm.parser.FunctionImpl
+import java.util.concurrent.ConcurrentHashMap
 
 object GeneratorIndex {
 
@@ -51,6 +52,8 @@ object GeneratorIndex {
     val stringOutput = ByteArrayOutputStream2()
     fun getString(str: String): Int {
         if (stringStart < 0) throw IllegalStateException("Strings must not be requested before the start is defined")
+        val log = translationLog.get()
+        if (log != null) return log.getString(str)
         val ptr = getString(str, stringStart, stringOutput)
         stringOffset = stringStart + stringOutput.size()
         return ptr
@@ -109,15 +112,54 @@ object GeneratorIndex {
     // return name of that type
     fun getType(static: Boolean, descriptor: Descriptor, canThrow: Boolean): FuncType {
         val wasmType = descriptorToFuncType(static, descriptor, canThrow)
-        types.add(wasmType)
+        val log = translationLog.get()
+        if (log != null) log.addType(wasmType)
+        else types.add(wasmType)
         return wasmType
     }
 
     val translatedMethods = HashMap<MethodSig, FunctionImpl>(8192)
 
-    val nthGetterMethods = HashMap<List<WASMType>, FunctionImpl>(64)
+    /**
+     * set while a class is translated on a worker thread (parallelTranslation);
+     * order-dependent index updates are collected there, and replayed in class order afterward
+     * */
+    val translationLog = ThreadLocal<TranslationLog?>()
+
+    fun addTranslatedMethod(sig: MethodSig, impl: FunctionImpl) {
+        val log = translationLog.get()
+        if (log != null) log.addTranslatedMethod(sig, impl)
+        else translatedMethods[sig] = impl
+    }
+
+    /**
+     * registers a called method in its owner class;
+     * when translating with a log, this happens once all classes have been translated
+     * */
+    fun addCalledMethod(owner: String, sig: MethodSig, isStatic: Boolean) {
+        val log = translationLog.get()
+        if (log != null) log.addCalledMethod(owner, sig, isStatic)
+        else {
+            val methodsByOwner = hIndex.methodsByClass.getOrPut(owner) { HashSet() }
+            if (methodsByOwner.add(sig) && isStatic) {
+                hIndex.staticMethods.add(sig)
+            }
+        }
+    }
+
+    /**
+     * counts instanceOf/checkCast against an interface
+     * */
+    fun addInterfaceCheck(clazz: String) {
+        val log = translationLog.get()
+        if (log != null) log.addInterfaceCheck(clazz)
+        else DynIndex.checkedInterfaces.merge(clazz, 1, Int::plus)
+    }
+
+    // concurrent, because getNth() is called by the translator, which might run on multiple threads
+    val nthGetterMethods = ConcurrentHashMap<List<WASMType>, FunctionImpl>(64)
     fun getNth(typeStack: List<WASMType>): String {
-        return nthGetterMethods.getOrPut(typeStack) {
+        return nthGetterMethods.computeIfAbsent(typeStack) {
             val name0 = typeStack.joinToString("") {
                 when (it) {
                     WASMType.I32 -> "i"
@@ -386,6 +428,7 @@ object GeneratorIndex {
         assertEquals(ptr, alignPointer(ptr, alignment1))
     }
 
+    @Synchronized
     fun getFieldOffsets(clazz0: String, static: Boolean): ClassOffsets {
         val clazz = replaceClass(clazz0)
         // best sort all fields, and then call this function for all cases, so we get aligned accesses :)
@@ -426,6 +469,8 @@ object GeneratorIndex {
 
     val interfaceIndex = HashMap<InterfaceSig, Int>()
     fun getInterfaceIndex(key: InterfaceSig): Int {
+        val log = translationLog.get()
+        if (log != null) return log.getInterfaceIndex(key)
         // clazz isn't really needed, because there cannot be collisions
         return interfaceIndex.getOrPut(key) {
             // println("interface#${interfaceIndex.size} by $clazz: $name, $descriptor")
@@ -433,4 +478,14 @@ object GeneratorIndex {
         }
     }
 
+    /**
+     * number of inline caches for invokeinterface, see JVMShared.resolveInterfaceCached()
+     * */
+    var numInterfaceCacheSlots = 0
+    fun getInterfaceCacheSlot(): Int {
+        val log = translationLog.get()
+        if (log != null) return log.getInterfaceCacheSlot()
+        return numInterfaceCacheSlots++
+    }
+
 }
\ No newline at end of file
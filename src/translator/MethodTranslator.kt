@@ -17,6 +17,7 @@ import gIndex
 import graphing.StackValidator.validateInputOutputStacks
 import graphing.StackValidator.validateStack
 import graphing.StructuralAnalysis
+import graphing.SwitchTree
 import hIndex
 import hierarchy.DelayedLambdaUpdate
 import hierarchy.DelayedLambdaUpdate.Companion.getSynthClassName
@@ -24,6 +25,9 @@ import hierarchy.FirstClassIndexer
 import highlevel.*
 import ignoreNonCriticalNullPointers
 import jvm.JVMFlags.is32Bits
+import jvm.JVMFlags.useGenerationalGC
+import jvm.JVMFlags.useInterfaceCaches
+import jvm.JVMFlags.useNativeThreads
 import me.anno.io.Streams.writeLE32
 import me.anno.utils.assertions.assertEquals
 import me.anno.utils.assertions.assertFail
@@ -33,6 +37,7 @@ import me.anno.utils.structures.lists.Lists.pop
 import me.anno.utils.types.Booleans.hasFlag
 import me.anno.utils.types.Booleans.toInt
 import me.anno.utils.types.Strings.shorten
+import optimizer.BoundsCheckOptimizer.optimizeBoundsChecks
 import optimizer.ReplaceOptimizer.optimizeUsingReplacements
 import optimizer.VariableValidator
 import org.apache.logging.log4j.LogManager
@@ -57,6 +62,7 @@ import translator.LoadStoreHelper.getStoreCall
 import translator.LoadStoreHelper.getStoreInstr
 import translator.LoadStoreHelper.getVIOStoreCall
 import useHighLevelInstructions
+import useNativeStackTraces
 import useResultForThrowables
 import useWASMExceptions
 import utils.*
@@ -143,6 +149,8 @@ import wasm.instr.Instructions.Unreachable
 import wasm.parser.FunctionImpl
 import wasm.parser.LocalVariable
 import kotlin.collections.set
+import kotlin.math.max
+import kotlin.math.min
 
 /**
  * convert instructions from JVM into WASM
@@ -160,19 +168,43 @@ class MethodTranslator(
 
         val stackTraceTable = ByteArrayOutputStream2(1024)
 
+        /**
+         * function name -> stackTraceTable-index, for useNativeStackTraces;
+         * hashed in appendNativeTraceTable() with a seed, which has no collisions
+         * */
+        val nativeTraceEntries = HashMap<String, Int>()
+
+        val NATIVE_TRACE_SEED = 0x811c9dc5.toInt()
+
+        /**
+         * FNV-1a with the offset basis as seed, must match captureNativeFrames() in JavaThrowable and jvm2wasm-base.cpp
+         * */
+        fun hashFunctionName(funcName: String, seed: Int): Int {
+            var hash = seed
+            for (c in funcName) {
+                hash = (hash xor c.code) * 0x01000193
+            }
+            return hash
+        }
+
         var comments = true
         var renameVariables = true
 
         private var printOps = false
         private var commentStackOps = false
 
+        /**
+         * dense switches up to this range may become a br_table
+         * */
+        private const val MAX_SWITCH_TABLE_SIZE = 1024L
+
         private val notStackPushedMethods = listOf(
             "stackPush", "stackPop", "printStackTraceLine",
             "createGCFieldTable", "findFieldsByClass", "setStackTrace",
             "calloc", "findGap", "allocateNewSpace", "writeClass",
             "Throwable_printStackTrace_V", "getStackDepth",
             "instanceOfExact", "instanceOfNonInterface", "isChildOrSameClassNonInterface",
-            "resolveInterface", "resolveInterfaceByClass",
+            "resolveInterface", "resolveInterfaceByClass", "resolveInterfaceCached",
             "readPtrAtOffset",
             "new_java_lang_String_ACIIV", "rCl", "r8", "r16", "r32", "r64", "r32f", "r64f",
             "w8", "w16", "w32", "w64", "w32f", "w64f"
@@ -190,11 +222,26 @@ class MethodTranslator(
     val variables = LocalVariables()
     private val labelNames = HashMap<Label, Int>()
     private val nodes = ArrayList<TranslatorNode>()
+    val switchTrees = ArrayList<SwitchTree>()
     private var currentNode = TranslatorNode(createLabel())
     var printer = currentNode.printer
 
     private val isStatic = access.hasFlag(ACC_STATIC)
 
+    /**
+     * synchronized methods lock their instance or class; only with JVMFlags.useNativeThreads.
+     * The monitor is released before each Return, normal ones and those in returnIfThrowable()
+     * */
+    private val isSynchronized = useNativeThreads && access.hasFlag(ACC_SYNCHRONIZED)
+
+    /**
+     * with JVMFlags.useNativeThreads, <clinit> holds the monitor of its class from wasStaticInited() until endStaticInit(),
+     * which is called before each Return, so other threads wait until the class is initialized
+     * */
+    private val isGuardedStaticInit = useNativeThreads && name == STATIC_INIT
+
+    private val unlocksOnReturn = isSynchronized || isGuardedStaticInit
+
     val sig = MethodSig.c(clazz, name, descriptor)
     val canThrowError = canThrowError(sig)
 
@@ -216,7 +263,7 @@ class MethodTranslator(
 
     var isLookingAtSpecial = false
 
-    private val enableStackPush = enableTracing &&
+    private val enableStackPush = enableTracing && !useNativeStackTraces &&
             (canThrowError || crashOnAllExceptions) &&
             sig.name !in notStackPushedMethods
 
@@ -253,6 +300,30 @@ class MethodTranslator(
                         )
                     )
             }
+            if (isSynchronized) {
+                appendMethodLock(printer)
+                printer.append1(Call.monitorEnter)
+            }
+        }
+    }
+
+    private fun appendMethodLock(printer: Builder) {
+        if (isStatic) {
+            printer.append(i32Const(gIndex.getClassId(clazz)))
+            printer.append(Call.findClass)
+        } else {
+            printer.append(ParamGet[0])
+        }
+    }
+
+    /**
+     * releases what the method entered, before any Return
+     * */
+    private fun methodUnlock(): List<Instruction> {
+        return when {
+            isGuardedStaticInit -> listOf(i32Const(gIndex.getClassId(clazz)), Call.endStaticInit)
+            isStatic -> listOf(i32Const(gIndex.getClassId(clazz)), Call.findClass, Call.monitorExit)
+            else -> listOf(ParamGet[0], Call.monitorExit)
         }
     }
 
@@ -541,7 +612,8 @@ class MethodTranslator(
                 stackPush()
                 printer.pop(ptrType).pop(i32).pop(ptrType)
                     .append1(
-                        if (checkArrayAccess) if (is32Bits) Call.i32ArrayStore else Call.i64ArrayStore
+                        if (useGenerationalGC) if (checkArrayAccess) Call.ptrArrayStore else Call.ptrArrayStoreU
+                        else if (checkArrayAccess) if (is32Bits) Call.i32ArrayStore else Call.i64ArrayStore
                         else if (is32Bits) Call.i32ArrayStoreU else Call.i64ArrayStoreU
                     )
                 stackPop()
@@ -583,6 +655,8 @@ class MethodTranslator(
                     currentNode.outputStack = listOf(ptrType)
                 }
 
+                if (unlocksOnReturn) printer.append(methodUnlock())
+
                 if (canThrowError(sig) && !useWASMExceptions) {
                     printer.append(if (is32Bits) i32Const0 else i64Const0) // no Throwable, normal exit
                 }
@@ -811,10 +885,10 @@ class MethodTranslator(
                 handleThrowable(true)
                 stack.clear() // after must-throw, stack will be empty
             }
-            // MONITOR_ENTER -> printer.pop(ptrType).append(Call.monitorEnter) // monitor enter
-            // MONITOR_EXIT -> printer.pop(ptrType).append(Call.monitorExit) // monitor exit
-            MONITOR_ENTER -> printer.pop(ptrType).drop() // monitor enter
-            MONITOR_EXIT -> printer.pop(ptrType).drop() // monitor exit
+            MONITOR_ENTER -> if (useNativeThreads) printer.pop(ptrType).append1(Call.monitorEnter)
+            else printer.pop(ptrType).drop() // without threads, locking is a no-op
+            MONITOR_EXIT -> if (useNativeThreads) printer.pop(ptrType).append1(Call.monitorExit)
+            else printer.pop(ptrType).drop()
             else -> throw NotImplementedError("unknown op ${OpCode[opcode]}\n")
         }
     }
@@ -883,7 +957,12 @@ class MethodTranslator(
                 }
                 if (comments) printer.comment("set field #$i")
 
-                printer.append(FieldSetInstr(fieldSig, getStoreInstr(type), getVIOStoreCall(type), true))
+                if (useGenerationalGC && !isNativeType(type)) {
+                    // the instance might not be young, so the write barrier is needed here, too
+                    printer.append(i32Const(offset)).append(Call.setVIOFieldPtr)
+                } else {
+                    printer.append(FieldSetInstr(fieldSig, getStoreInstr(type), getVIOStoreCall(type), true))
+                }
                 printer.pop(type)
             }
 
@@ -994,12 +1073,14 @@ class MethodTranslator(
     }
 
     var line = 0
+    private var firstLine = -1
 
     @Boring
     override fun visitLineNumber(line: Int, start: Label?) {
         if (printOps) println("Line $line: [${if (start != null) getLabel(start) else "?"}]")
         if (comments) printer.comment("line $line")
         this.line = line
+        if (firstLine < 0) firstLine = line
     }
 
     override fun visitLocalVariable(
@@ -1085,9 +1166,8 @@ class MethodTranslator(
 
         val sig1 = hIndex.getAlias(sig0)
 
-        val methodsByOwner = hIndex.methodsByClass.getOrPut(owner) { HashSet() }
-        if (sig1 == sig0 && methodsByOwner.add(sig0) && isStatic) {
-            hIndex.staticMethods.add(sig0)
+        if (sig1 == sig0) {
+            gIndex.addCalledMethod(owner, sig0, isStatic)
         }
 
         var calledCanThrow = canThrowError(sig1)
@@ -1113,7 +1193,8 @@ class MethodTranslator(
                 getCaller(printer)
                 val interfaceId = gIndex.getInterfaceIndex(InterfaceSig.c(name, sig0.descriptor))
                 val funcType = gIndex.getType(false, sig0.descriptor, calledCanThrow)
-                printer.append(InvokeInterfaceInstr(sig0, options, funcType, getStackPushId(), interfaceId))
+                val cacheSlot = if (useInterfaceCaches) gIndex.getInterfaceCacheSlot() else -1
+                printer.append(InvokeInterfaceInstr(sig0, options, funcType, getStackPushId(), interfaceId, cacheSlot))
                 if (comments) printer.comment("invoke interface $owner, $name, $descriptor")
 
                 afterDynamicCall(splitArgs, ret)
@@ -1361,20 +1442,56 @@ class MethodTranslator(
     }
 
     override fun visitLookupSwitchInsn(default0: Label, keys: IntArray, labels0: Array<out Label>) {
-        // implement this in wasm text
-        // and implement this possible to be decoded as a tree:
-        // we replace it for now with standard instructions
+        // the graph only knows binary branches, so the switch becomes a balanced compare-tree;
+        // StructuralAnalysis may turn dense trees back into a br_table
         val default = getLabel(default0)
         val labels = labels0.map { getLabel(it) }
         if (printOps) println("  [lookup] switch [$default], [${keys.joinToString()}], [${labels.joinToString()}]")
         val helper = variables.defineLocalVar("switch", WASMType.I32, "int")
         printer.pop(i32)
         printer.append(helper.localSet)
-        for (i in keys.indices) {
-            printer.append(helper.localGet).append(i32Const(keys[i])).append(I32EQ)
-            afterJump(labels[i], false)
+        // keys, which go to the default, don't need a comparison
+        val usedKeys = keys.indices.filter { labels[it] != default }
+        if (usedKeys.isEmpty()) {
+            afterJump(default, true)
+            return
+        }
+        val treePrinters = ArrayList<Builder>()
+        appendSwitchTree(helper, keys, labels, usedKeys, 0, usedKeys.size, default, treePrinters)
+        val min = keys[usedKeys.first()]
+        val max = keys[usedKeys.last()]
+        val range = max.toLong() - min.toLong() + 1
+        if (usedKeys.size >= 3 && range <= min(2L * usedKeys.size, MAX_SWITCH_TABLE_SIZE)) {
+            switchTrees.add(SwitchTree(treePrinters, min, max))
+        }
+    }
+
+    /**
+     * binary search over usedKeys[i0 until i1], which are sorted;
+     * a few keys at the leaves are compared linearly
+     * */
+    private fun appendSwitchTree(
+        helper: LocalVariableOrParam, keys: IntArray, labels: List<Int>,
+        usedKeys: List<Int>, i0: Int, i1: Int, default: Int, treePrinters: ArrayList<Builder>
+    ) {
+        if (i1 - i0 <= 3) {
+            for (i in i0 until i1) {
+                val ki = usedKeys[i]
+                treePrinters.add(printer)
+                printer.append(helper.localGet).append(i32Const(keys[ki])).append(I32EQ)
+                afterJump(labels[ki], false)
+            }
+            afterJump(default, true)
+        } else {
+            val mid = (i0 + i1) ushr 1
+            val lowerHalf = createLabel()
+            treePrinters.add(printer)
+            printer.append(helper.localGet).append(i32Const(keys[usedKeys[mid]])).append(I32LTS)
+            afterJump(lowerHalf, false)
+            appendSwitchTree(helper, keys, labels, usedKeys, mid, i1, default, treePrinters)
+            visitLabel(lowerHalf)
+            appendSwitchTree(helper, keys, labels, usedKeys, i0, mid, default, treePrinters)
         }
-        afterJump(default, true)
     }
 
     override fun visitTryCatchAnnotation(
@@ -1552,6 +1669,8 @@ class MethodTranslator(
         val printer = currentNode.printer
         val retType = descriptor.wasmReturnType
         if (mustThrow) {
+            // the Throwable stays on the stack, monitorExit only consumes the lock
+            if (unlocksOnReturn) printer.append(methodUnlock())
             if (retType != null) {
                 printer.append(Const.zero[retType]!!)
                     .append(Call("swapi32$retType"))
@@ -1562,11 +1681,12 @@ class MethodTranslator(
             printer.append(tmp.localSet)
             printer.append(tmp.localGet)
             val ifTrue = if (retType == null) {
-                arrayListOf(tmp.localGet, Return)
+                arrayListOf<Instruction>(tmp.localGet, Return)
             } else {
                 val zeroResult = Const.zero[retType]!!
-                arrayListOf(zeroResult, tmp.localGet, Return)
+                arrayListOf<Instruction>(zeroResult, tmp.localGet, Return)
             }
+            if (unlocksOnReturn) ifTrue.addAll(0, methodUnlock())
             printer.append(IfBranch(ifTrue))
         }
     }
@@ -1624,13 +1744,21 @@ class MethodTranslator(
         }
     }
 
+    private fun countInterfaceCheck(clazz: String) {
+        if (hIndex.isInterfaceClass(clazz)) {
+            gIndex.addInterfaceCheck(clazz)
+        }
+    }
+
     private fun Builder.printCastClass(clazz: String) {
+        countInterfaceCheck(clazz)
         append(i32Const(gIndex.getClassId(clazz)))
         append(if (hasConstructableChildClasses(clazz)) Call.checkCast else Call.checkCastExact)
     }
 
     private fun Builder.appendInstanceOf(clazz: String) {
         if (clazz in dIndex.constructableClasses) {
+            countInterfaceCheck(clazz)
             append(i32Const(gIndex.getClassId(clazz)))
             append(
                 if (hasConstructableChildClasses(clazz)) {
@@ -1924,7 +2052,12 @@ class MethodTranslator(
                 if (fieldOffset != null) {
                     val storeCall = getStoreCall(type)
                     // we'd need to call a function twice, so call a generic functions for this
-                    if (useHighLevelInstructions) {
+                    if (useGenerationalGC && !isNativeType(type)) {
+                        // write barrier for the card table
+                        printer
+                            .append(i32Const(fieldOffset))
+                            .append(Call.setFieldPtr)
+                    } else if (useHighLevelInstructions) {
                         val storeInstr = getStoreInstr(type)
                         printer.append(FieldSetInstr(sig, storeInstr, storeCall, false))
                     } else {
@@ -1962,13 +2095,15 @@ class MethodTranslator(
                 val funcHead = createFuncHead()
                 variableValidator.validate(jointBuilder.instrs, funcHead.locals)
                 optimizeUsingReplacements(jointBuilder)
+                optimizeBoundsChecks(jointBuilder)
 
                 val impl = FunctionImpl(
                     funcHead.funcName, funcHead.params, funcHead.results,
                     funcHead.locals.filter { it.name in variableValidator.both }, jointBuilder.instrs,
                     funcHead.isExported
                 )
-                gIndex.translatedMethods[sig] = impl
+                if (enableTracing && useNativeStackTraces) addNativeTraceEntry(funcHead.funcName)
+                gIndex.addTranslatedMethod(sig, impl)
                 if (isLookingAtSpecial) {
                     throw IllegalStateException("Looking at special '$sig'")
                 }
@@ -1979,6 +2114,13 @@ class MethodTranslator(
         }
     }
 
+    private fun addNativeTraceEntry(funcName: String) {
+        stackTraceTable.writeLE32(gIndex.getString(sig.className))
+        stackTraceTable.writeLE32(gIndex.getString(sig.name))
+        stackTraceTable.writeLE32(max(firstLine, 0))
+        nativeTraceEntries[funcName] = stackTraceTable.size() / 12 - 1
+    }
+
     private var lastLine = -1
     private fun getStackPushId(): Int {
         if (!enableStackPush) return -1
@@ -0,0 +1,457 @@
+package translator
+
+import cacheFolder
+import dependency.DependencyIndex
+import hierarchy.Annota
+import hierarchy.DelayedLambdaUpdate
+import hierarchy.HierarchyIndex
+import hierarchy.PrimitiveCallSiteVisitor.PrimitiveCallSite
+import hierarchy.PrimitiveLambdaSpecializer
+import jvm.JVMFlags
+import org.apache.logging.log4j.LogManager
+import org.objectweb.asm.ClassReader
+import replaceClassNullable
+import utils.DynIndex
+import utils.FieldSig
+import utils.MethodSig
+import java.io.*
+import java.lang.reflect.Modifier
+import java.security.MessageDigest
+import java.util.SortedSet
+import java.util.TreeSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Stores the TranslationLog of each class on disk, so unchanged classes don't need to be translated in the next build.
+ * An entry is keyed by the hash of the class file, a global key for the compiler code and all flags,
+ * and the dependency hashes of all classes and method names, which the class file references:
+ * each entry of the indices, which the translation reads, is hashed into the buckets of the classes and methods it belongs to.
+ * Editing one method therefore only invalidates its class and the classes depending on what changed in the indices.
+ *
+ * Hierarchy indexing and dependency resolution still run in full on every build, because the keys are computed from them.
+ * */
+object TranslationCache {
+
+    private val LOGGER = LogManager.getLogger(TranslationCache::class)
+
+    /**
+     * must be incremented, when the format of TranslationLog or FunctionSerializer changes
+     * */
+    private const val VERSION = 2
+
+    /**
+     * entries, which weren't used in this build, are kept this long, so switching between targets doesn't clear the cache
+     * */
+    private const val MAX_UNUSED_AGE = 7L * 24 * 3600 * 1000
+
+    // constant pool tags
+    private const val CONSTANT_CLASS = 7
+    private const val CONSTANT_FIELD = 9
+    private const val CONSTANT_METHOD = 10
+    private const val CONSTANT_INTERFACE_METHOD = 11
+    private const val CONSTANT_METHOD_TYPE = 16
+
+    private val folder = File(cacheFolder, "translation")
+    private var globalKey = ByteArray(0)
+
+    /**
+     * sum of all index entries, which cannot be attributed to a class or method name
+     * */
+    private var sharedHash = 0L
+
+    /**
+     * class name or method name -> sum of all index entries belonging to it
+     * */
+    private val dependencyHashes = HashMap<String, Long>(1 shl 14)
+    private val knownClasses = HashSet<String>(1 shl 14)
+
+    private var openTime = 0L
+
+    private val usedFiles = ConcurrentHashMap.newKeySet<String>()
+    private val numHits = AtomicInteger()
+    private val numMisses = AtomicInteger()
+    private val numUncacheable = AtomicInteger()
+
+    /**
+     * must be called after all indices, which the translation reads, have been completed
+     * */
+    fun open() {
+        folder.mkdirs()
+        val t0 = System.nanoTime()
+        globalKey = computeGlobalKey()
+        computeDependencyHashes()
+        val t1 = System.nanoTime()
+        LOGGER.info(
+            "Computed translation cache keys in ${(t1 - t0) / 1_000_000} ms, " +
+                    "${dependencyHashes.size} dependency hashes"
+        )
+        openTime = t1
+    }
+
+    fun load(clazz: String, classBytes: ByteArray): TranslationLog? {
+        val name = getFileName(clazz, classBytes)
+        usedFiles.add(name)
+        val file = File(folder, name)
+        if (!file.exists()) {
+            numMisses.incrementAndGet()
+            return null
+        }
+        return try {
+            val log = DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                TranslationLog.read(FunctionSerializer.Reader(input))
+            }
+            if (log.clazz != clazz) throw IOException("Expected $clazz, got ${log.clazz}")
+            file.setLastModified(System.currentTimeMillis())
+            numHits.incrementAndGet()
+            log
+        } catch (e: Exception) {
+            LOGGER.warn("Ignoring cached translation of $clazz: $e")
+            numMisses.incrementAndGet()
+            null
+        }
+    }
+
+    /**
+     * must be called before the log is replayed
+     * */
+    fun store(log: TranslationLog, classBytes: ByteArray) {
+        val name = getFileName(log.clazz, classBytes)
+        val tmp = File(folder, "$name.${Thread.currentThread().id}.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { output ->
+                log.write(FunctionSerializer.Writer(output))
+            }
+            val file = File(folder, name)
+            if (!tmp.renameTo(file)) {
+                file.delete()
+                if (!tmp.renameTo(file)) throw IOException("Failed renaming $tmp")
+            }
+        } catch (e: FunctionSerializer.UnsupportedInstructionException) {
+            numUncacheable.incrementAndGet()
+            tmp.delete()
+        } catch (e: IOException) {
+            LOGGER.warn("Failed caching translation of ${log.clazz}: $e")
+            tmp.delete()
+        }
+    }
+
+    fun close() {
+        val now = System.currentTimeMillis()
+        var numRemoved = 0
+        for (file in folder.listFiles() ?: emptyArray()) {
+            if (file.name !in usedFiles && now - file.lastModified() > MAX_UNUSED_AGE) {
+                if (file.delete()) numRemoved++
+            }
+        }
+        // the time of an incremental rebuild is the translation time with mostly hits
+        LOGGER.info(
+            "Translation cache: ${numHits.get()} hits, ${numMisses.get()} misses, " +
+                    "${numUncacheable.get()} uncacheable, $numRemoved removed, " +
+                    "translated in ${(System.nanoTime() - openTime) / 1_000_000} ms"
+        )
+        usedFiles.clear()
+        dependencyHashes.clear()
+        knownClasses.clear()
+        numHits.set(0)
+        numMisses.set(0)
+        numUncacheable.set(0)
+    }
+
+    /**
+     * the key of an entry; it changes, whenever the class file, the compiler, or any of its dependencies changes
+     * */
+    internal fun getFileName(clazz: String, classBytes: ByteArray): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(globalKey)
+        digest.update(sharedHash)
+        digest.update(classBytes)
+        for (dependency in findDependencies(clazz, classBytes)) {
+            digest.update(dependency.toByteArray())
+            digest.update(dependencyHashes[dependency] ?: 0L)
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) } + ".bin"
+    }
+
+    /**
+     * compiler code, flags and other plain values
+     * */
+    private fun computeGlobalKey(): ByteArray {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(VERSION.toLong())
+        hashCompilerCode(digest)
+        for (clazz in indexClasses) {
+            for (field in clazz.declaredFields.sortedBy { it.name }) {
+                if (isHashedType(field.type) && !isCollection(field.type)) hashField(field, null, digest)
+            }
+        }
+        return digest.digest()
+    }
+
+    private val indexClasses
+        get() = listOf(
+            Class.forName("JVM2WASMKt"), JVMFlags::class.java, MethodTranslator::class.java,
+            HierarchyIndex::class.java, DependencyIndex::class.java, DynIndex::class.java,
+            GeneratorIndex::class.java
+        )
+
+    /**
+     * splits the indices, which the translation reads, by the classes and method names they belong to
+     * */
+    private fun computeDependencyHashes() {
+        sharedHash = 0L
+        dependencyHashes.clear()
+        knownClasses.clear()
+        knownClasses.addAll(HierarchyIndex.classFlags.keys)
+        knownClasses.addAll(HierarchyIndex.superClass.keys)
+        knownClasses.addAll(GeneratorIndex.classIndex.keys)
+        for (clazz in indexClasses) {
+            // most GeneratorIndex-collections are written by the translation itself
+            if (clazz == GeneratorIndex::class.java) continue
+            for (field in clazz.declaredFields.sortedBy { it.name }) {
+                if (Modifier.isStatic(field.modifiers) && isCollection(field.type)) {
+                    field.isAccessible = true
+                    addToDependencyHashes(field.name, field.get(null), null)
+                }
+            }
+        }
+        addToDependencyHashes("classNames", GeneratorIndex.classNames, null)
+        addToDependencyHashes("dynMethodIndices", GeneratorIndex.dynMethodIndices) { it }
+        addToDependencyHashes("fieldOffsets", GeneratorIndex.fieldOffsets) { it shr 1 }
+        addToDependencyHashes("needingBridgeUpdate", DelayedLambdaUpdate.needingBridgeUpdate, null)
+        addToDependencyHashes("specializations", PrimitiveLambdaSpecializer.specializations, null)
+    }
+
+    /**
+     * @param classIdByKey for maps, which are keyed by class id
+     * */
+    private fun addToDependencyHashes(name: String, value: Any?, classIdByKey: ((Int) -> Int)?) {
+        val nameHash = hashString(name)
+        when (value) {
+            is Map<*, *> -> for ((k, v) in value) {
+                val hash = mix(nameHash + mix(hashValue(k) * 31 + hashValue(v)))
+                val owner = if (classIdByKey != null && k is Int) {
+                    GeneratorIndex.classNames.getOrNull(classIdByKey(k))
+                } else k
+                if (!addToOwners(owner, hash) && !addToOwners(v, hash)) sharedHash += hash
+            }
+            is List<*> -> for (i in value.indices) {
+                val element = value[i]
+                val hash = mix(nameHash + mix(i * 31L + hashValue(element)))
+                if (!addToOwners(element, hash)) sharedHash += hash
+            }
+            is Collection<*> -> for (element in value) {
+                val hash = mix(nameHash + hashValue(element))
+                if (!addToOwners(element, hash)) sharedHash += hash
+            }
+            else -> sharedHash += mix(nameHash + hashValue(value))
+        }
+    }
+
+    /**
+     * adds the hash to the classes and method names of value, and returns whether there were any
+     * */
+    private fun addToOwners(value: Any?, hash: Long): Boolean {
+        return when (value) {
+            is MethodSig -> {
+                addToDependency(value.className, hash)
+                addToDependency(methodDependency(value.name), hash)
+                true
+            }
+            is FieldSig -> {
+                addToDependency(value.clazz, hash)
+                true
+            }
+            is String -> if (value in knownClasses) {
+                addToDependency(value, hash)
+                true
+            } else false
+            is DelayedLambdaUpdate -> addToOwners(value.calledMethod, hash)
+            is PrimitiveCallSite -> addToOwners(value.method, hash)
+            else -> false
+        }
+    }
+
+    private fun addToDependency(name: String, hash: Long) {
+        dependencyHashes[name] = (dependencyHashes[name] ?: 0L) + hash
+    }
+
+    /**
+     * classes and method names, which the constant pool references, and all super classes and interfaces of those classes;
+     * a call can resolve to any method with the same name, so those are dependencies, too
+     * */
+    private fun findDependencies(clazz: String, classBytes: ByteArray): SortedSet<String> {
+        val reader = ClassReader(classBytes)
+        val buffer = CharArray(reader.maxStringLength)
+        val classes = HashSet<String>()
+        val dependencies = TreeSet<String>()
+        classes.add(clazz)
+        for (i in 1 until reader.itemCount) {
+            val offset = reader.getItem(i)
+            if (offset == 0) continue // second half of a long or double
+            when (classBytes[offset - 1].toInt()) {
+                CONSTANT_CLASS -> {
+                    val name = reader.readUTF8(offset, buffer)
+                    if (name.startsWith('[')) addDescriptorTypes(name, classes)
+                    else classes.add(name)
+                }
+                CONSTANT_FIELD, CONSTANT_METHOD, CONSTANT_INTERFACE_METHOD -> {
+                    val nameAndType = reader.getItem(reader.readUnsignedShort(offset + 2))
+                    val name = reader.readUTF8(nameAndType, buffer)
+                    val descriptor = reader.readUTF8(nameAndType + 2, buffer)
+                    if (classBytes[offset - 1].toInt() != CONSTANT_FIELD) dependencies.add(methodDependency(name))
+                    addDescriptorTypes(descriptor, classes)
+                }
+                CONSTANT_METHOD_TYPE -> addDescriptorTypes(reader.readUTF8(offset, buffer), classes)
+            }
+        }
+        val remaining = ArrayList(classes)
+        while (remaining.isNotEmpty()) {
+            val name = remaining.removeAt(remaining.lastIndex)
+            val replaced = replaceClassNullable(name)
+            if (replaced != null && classes.add(replaced)) remaining.add(replaced)
+            val superClass = HierarchyIndex.superClass[name]
+            if (superClass != null && classes.add(superClass)) remaining.add(superClass)
+            for (interfaceI in HierarchyIndex.interfaces[name] ?: emptyList()) {
+                if (classes.add(interfaceI)) remaining.add(interfaceI)
+            }
+        }
+        dependencies.addAll(classes)
+        return dependencies
+    }
+
+    /**
+     * methods are grouped by name only, because descriptors may be rewritten by class replacements;
+     * the dot keeps them apart from class names
+     * */
+    private fun methodDependency(name: String): String = ".$name"
+
+    private fun addDescriptorTypes(descriptor: String, dst: HashSet<String>) {
+        var i = descriptor.indexOf('L')
+        while (i >= 0) {
+            val end = descriptor.indexOf(';', i)
+            if (end < 0) break
+            dst.add(descriptor.substring(i + 1, end))
+            i = descriptor.indexOf('L', end)
+        }
+    }
+
+    /**
+     * the translation result depends on the compiler itself, so its class files are part of the key;
+     * the translated runtime classes are hashed one by one anyway
+     * */
+    private fun hashCompilerCode(digest: MessageDigest) {
+        val location = TranslationCache::class.java.protectionDomain?.codeSource?.location
+        val file = location?.let { File(it.toURI()) }
+        when {
+            file == null || !file.exists() -> digest.update(System.nanoTime()) // unknown code: never hit
+            file.isFile -> {
+                digest.update(file.length())
+                digest.update(file.lastModified())
+            }
+            else -> {
+                val translatedPackages = listOf("jvm/", "engine/", "java/")
+                val classFiles = file.walk()
+                    .filter { it.isFile && it.name.endsWith(".class") }
+                    .map { it.relativeTo(file).invariantSeparatorsPath to it }
+                    .filter { (path, _) -> translatedPackages.none { path.startsWith(it) } }
+                    .sortedBy { it.first }
+                for ((path, classFile) in classFiles) {
+                    digest.update(path.toByteArray())
+                    digest.update(classFile.length())
+                    digest.update(classFile.lastModified())
+                }
+            }
+        }
+    }
+
+    private fun hashField(field: java.lang.reflect.Field, instance: Any?, digest: MessageDigest) {
+        if (!Modifier.isStatic(field.modifiers)) return
+        field.isAccessible = true
+        digest.update(field.name.toByteArray())
+        digest.update(hashValue(field.get(instance)))
+    }
+
+    private fun isCollection(type: Class<*>): Boolean {
+        return Map::class.java.isAssignableFrom(type) ||
+                Collection::class.java.isAssignableFrom(type) ||
+                type.isArray
+    }
+
+    private fun isHashedType(type: Class<*>): Boolean {
+        return type.isPrimitive || type == String::class.java || type.isEnum || isCollection(type)
+    }
+
+    private val hasOwnToString = HashMap<Class<*>, Boolean>()
+
+    /**
+     * order-independent for sets and maps, because hash maps may be iterated in any order
+     * */
+    private fun hashValue(value: Any?): Long {
+        return when (value) {
+            null -> mix(0x9e3779b97f4a7c15uL.toLong())
+            is String -> hashString(value)
+            is Number, is Boolean, is Char, is Enum<*> -> hashString(value.toString())
+            is Map<*, *> -> {
+                var sum = value.size.toLong()
+                for ((k, v) in value) sum += mix(hashValue(k) * 31 + hashValue(v))
+                mix(sum)
+            }
+            is List<*> -> {
+                var hash = 1L
+                for (i in value.indices) hash = hash * 1000003 + hashValue(value[i])
+                mix(hash)
+            }
+            is Collection<*> -> {
+                var sum = value.size.toLong()
+                for (element in value) sum += mix(hashValue(element))
+                mix(sum)
+            }
+            is Array<*> -> hashValue(value.asList())
+            is IntArray -> hashValue(value.asList())
+            is LongArray -> hashValue(value.asList())
+            is ByteArray -> hashValue(value.asList())
+            is BooleanArray -> hashValue(value.asList())
+            is CharArray -> hashValue(value.asList())
+            is ShortArray -> hashValue(value.asList())
+            is FloatArray -> hashValue(value.asList())
+            is DoubleArray -> hashValue(value.asList())
+            // annotation properties may contain arrays, whose toString() isn't stable
+            is Annota -> hashValue(listOf(value.clazz, value.properties))
+            is GeneratorIndex.ClassOffsets -> hashValue(listOf(value.offset, value.staticOffsetPtr, value.fields))
+            is DelayedLambdaUpdate -> hashValue(
+                listOf(value.calledMethod, value.descriptor, value.bridgeMethod, value.usesSelf, value.specializedBridges)
+            )
+            else -> {
+                val clazz = value.javaClass
+                val ownToString = hasOwnToString.getOrPut(clazz) {
+                    clazz.getMethod("toString").declaringClass != Any::class.java
+                }
+                // identity-based toString() would never match again
+                hashString(if (ownToString) value.toString() else clazz.name)
+            }
+        }
+    }
+
+    private fun hashString(str: String): Long {
+        var hash = -0x340d631b7bdddcdbL // FNV-1a offset basis
+        for (i in str.indices) {
+            hash = (hash xor str[i].code.toLong()) * 0x100000001b3L
+        }
+        return mix(hash)
+    }
+
+    private fun mix(value: Long): Long {
+        // splitmix64 finalizer
+        var z = value
+        z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+        z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+        return z xor (z ushr 31)
+    }
+
+    private fun MessageDigest.update(value: Long) {
+        for (i in 0 until 8) {
+            update((value ushr (i * 8)).toByte())
+        }
+    }
+}
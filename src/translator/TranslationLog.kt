@@ -0,0 +1,207 @@
+package translator
+
+import dependency.ActuallyUsedIndex
+import highlevel.InvokeInterfaceInstr
+import optimizer.InstructionReplacer
+import utils.InterfaceSig
+import utils.MethodSig
+import utils.StringBuilder2
+import wasm.instr.FuncType
+import wasm.instr.StringConst
+import wasm.parser.FunctionImpl
+
+/**
+ * Records the order-dependent side effects of translating a single class on a worker thread:
+ * string constants, interface ids, interface cache slots, function types, dependency updates, and the translated methods themselves.
+ * All of them are plain data, so TranslationCache can store the log on disk, and replay it in later builds.
+ *
+ * Replaying all logs in class order assigns the same indices as the serial translation,
+ * so the generated WAT is identical, byte by byte.
+ * */
+class TranslationLog(val clazz: String) {
+
+    companion object {
+        /**
+         * placeholder for string addresses and interface ids, which are only known after replaying
+         * */
+        const val UNRESOLVED = -1
+
+        fun read(reader: FunctionSerializer.Reader): TranslationLog {
+            val log = TranslationLog(reader.readString())
+            log.strings.addAll(reader.readStrings())
+            repeat(reader.readInt()) { log.interfaces.add(reader.readInterfaceSig()) }
+            log.numCacheSlots = reader.readInt()
+            repeat(reader.readInt()) { log.types.add(reader.readFuncType()) }
+            repeat(reader.readInt()) {
+                log.useCallers.add(reader.readMethodSig())
+                log.useCalled.add(reader.readString())
+            }
+            repeat(reader.readInt()) {
+                val owner = reader.readString()
+                val sig = reader.readMethodSig()
+                log.calledMethods.add(CalledMethod(owner, sig, reader.readBoolean()))
+            }
+            log.checkedInterfaces.addAll(reader.readStrings())
+            repeat(reader.readInt()) {
+                val sig = reader.readMethodSig()
+                log.methods.add(sig to reader.readFunction())
+            }
+            return log
+        }
+    }
+
+    /**
+     * interface cache slots are counted per class, and offset by this when replaying
+     * */
+    private var numCacheSlots = 0
+    private var cacheSlotBase = 0
+
+    private val resolver = InstructionReplacer { instructions ->
+        for (i in instructions.indices) {
+            when (val instr = instructions[i]) {
+                is StringConst -> {
+                    if (instr.address == UNRESOLVED) {
+                        instructions[i] = StringConst(instr.string, GeneratorIndex.getString(instr.string))
+                    }
+                }
+                is InvokeInterfaceInstr -> {
+                    if (instr.interfaceId == UNRESOLVED) {
+                        val sig = instr.original
+                        val interfaceId = GeneratorIndex.getInterfaceIndex(InterfaceSig.c(sig.name, sig.descriptor))
+                        val cacheSlot = if (instr.cacheSlot >= 0) cacheSlotBase + instr.cacheSlot else -1
+                        instructions[i] = InvokeInterfaceInstr(
+                            sig, instr.resolvedMethods, instr.funcType,
+                            instr.stackPushId, interfaceId, cacheSlot
+                        )
+                    }
+                }
+            }
+        }
+    }
+
+    private class CalledMethod(val owner: String, val sig: MethodSig, val isStatic: Boolean)
+
+    private val strings = ArrayList<String>()
+    private val interfaces = ArrayList<InterfaceSig>()
+    private val types = ArrayList<FuncType>()
+    private val useCallers = ArrayList<MethodSig>()
+    private val useCalled = ArrayList<String>()
+    private val calledMethods = ArrayList<CalledMethod>()
+    private val checkedInterfaces = ArrayList<String>()
+    private val methods = ArrayList<Pair<MethodSig, FunctionImpl>>()
+
+    fun getString(str: String): Int {
+        strings.add(str)
+        return UNRESOLVED
+    }
+
+    fun getInterfaceIndex(sig: InterfaceSig): Int {
+        interfaces.add(sig)
+        return UNRESOLVED
+    }
+
+    fun getInterfaceCacheSlot(): Int {
+        return numCacheSlots++
+    }
+
+    fun addType(type: FuncType) {
+        types.add(type)
+    }
+
+    fun addUse(caller: MethodSig, calledName: String) {
+        useCallers.add(caller)
+        useCalled.add(calledName)
+    }
+
+    fun addCalledMethod(owner: String, sig: MethodSig, isStatic: Boolean) {
+        calledMethods.add(CalledMethod(owner, sig, isStatic))
+    }
+
+    fun addInterfaceCheck(clazz: String) {
+        checkedInterfaces.add(clazz)
+    }
+
+    fun addTranslatedMethod(sig: MethodSig, impl: FunctionImpl) {
+        methods.add(sig to impl)
+    }
+
+    /**
+     * must be called before replay(), because that resolves the placeholders in the translated methods
+     * */
+    fun write(writer: FunctionSerializer.Writer) {
+        writer.writeString(clazz)
+        writer.writeStrings(strings)
+        writer.writeInt(interfaces.size)
+        for (i in interfaces.indices) writer.writeInterfaceSig(interfaces[i])
+        writer.writeInt(numCacheSlots)
+        writer.writeInt(types.size)
+        for (i in types.indices) writer.writeFuncType(types[i])
+        writer.writeInt(useCallers.size)
+        for (i in useCallers.indices) {
+            writer.writeMethodSig(useCallers[i])
+            writer.writeString(useCalled[i])
+        }
+        writer.writeInt(calledMethods.size)
+        for (i in calledMethods.indices) {
+            val called = calledMethods[i]
+            writer.writeString(called.owner)
+            writer.writeMethodSig(called.sig)
+            writer.writeBoolean(called.isStatic)
+        }
+        writer.writeStrings(checkedInterfaces)
+        writer.writeInt(methods.size)
+        for (i in methods.indices) {
+            val (sig, impl) = methods[i]
+            writer.writeMethodSig(sig)
+            writer.writeFunction(impl)
+        }
+    }
+
+    /**
+     * everything replay() applies, as text, for comparing two translations of the same class;
+     * must be called before replay(), like write()
+     * */
+    fun dump(): String {
+        val builder = StringBuilder2()
+        builder.append(clazz).append('\n')
+        for (str in strings) builder.append("string ").append(str).append('\n')
+        for (sig in interfaces) builder.append("interface ").append(sig.toString()).append('\n')
+        builder.append("cacheSlots ").append(numCacheSlots).append('\n')
+        for (type in types) builder.append("type ").append(type.toString()).append('\n')
+        for (i in useCallers.indices) {
+            builder.append("use ").append(useCallers[i].toString()).append(' ').append(useCalled[i]).append('\n')
+        }
+        for (called in calledMethods) {
+            builder.append("call ").append(called.owner).append(' ').append(called.sig.toString())
+                .append(' ').append(called.isStatic.toString()).append('\n')
+        }
+        for (checked in checkedInterfaces) builder.append("check ").append(checked).append('\n')
+        for ((sig, impl) in methods) {
+            builder.append("method ").append(sig.toString()).append('\n')
+            impl.toString(builder)
+        }
+        return builder.toString()
+    }
+
+    /**
+     * must be called on the main thread, in the same order, in which the serial translation would visit the classes
+     * */
+    fun replay() {
+        for (i in strings.indices) GeneratorIndex.getString(strings[i])
+        for (i in interfaces.indices) GeneratorIndex.getInterfaceIndex(interfaces[i])
+        cacheSlotBase = GeneratorIndex.numInterfaceCacheSlots
+        GeneratorIndex.numInterfaceCacheSlots += numCacheSlots
+        GeneratorIndex.types.addAll(types)
+        for (i in useCallers.indices) ActuallyUsedIndex.add(useCallers[i], useCalled[i])
+        for (i in calledMethods.indices) {
+            val called = calledMethods[i]
+            GeneratorIndex.addCalledMethod(called.owner, called.sig, called.isStatic)
+        }
+        for (i in checkedInterfaces.indices) GeneratorIndex.addInterfaceCheck(checkedInterfaces[i])
+        for (i in methods.indices) {
+            val (sig, impl) = methods[i]
+            resolver.process(impl)
+            GeneratorIndex.translatedMethods[sig] = impl
+        }
+    }
+}
@@ -29,6 +29,7 @@ object Annotations {
     val NO_THROW: String = getClassName(NoThrow::class)
     val ALIAS: String = getClassName(Alias::class)
     val REV_ALIAS: String = getClassName(RevAlias::class)
+    val USES_GL: String = getClassName(UsesGL::class)
 
     private fun <V: Annotation> getClassName(clazz: KClass<V>): String {
         return clazz.java.name.replace('.', '/')
@@ -3,6 +3,7 @@ package utils
 import gIndex
 import globals
 import interpreter.WASMEngine
+import interpreter.bytecode.BytecodeEngine
 import interpreter.functions.TrackCallocInstr
 import interpreter.memory.MemoryOptimizer
 import interpreter.memory.StaticInitRemover
@@ -22,6 +23,18 @@ object CallStaticInit {
 
     private val LOGGER = LogManager.getLogger(CallStaticInit::class)
 
+    /**
+     * run static init on pre-decoded bytecode instead of walking the instruction tree;
+     * opt-in, until compareInterpreters has confirmed identical heaps on real projects
+     * */
+    var useBytecodeInterpreter = false
+
+    /**
+     * additionally run static init on the tree-walker first, log the speed of both interpreters,
+     * and crash if they don't produce the same heap and globals
+     * */
+    var compareInterpreters = false
+
     private var time0 = 0L
     private var instr0 = 0L
     private var memory0 = 0
@@ -34,7 +47,11 @@ object CallStaticInit {
         memory0 = engine.globals["allocationPointer"]!!.toInt()
     }
 
-    private fun printStats(engine: WASMEngine, name: String, i: Int) {
+    private fun getInterpreterName(bytecode: BytecodeEngine?): String {
+        return if (bytecode != null) "bytecode" else "tree-walker"
+    }
+
+    private fun printStats(engine: WASMEngine, bytecode: BytecodeEngine?, name: String, i: Int) {
 
         debugInfo.append("[$i] $name\n")
 
@@ -78,7 +95,8 @@ object CallStaticInit {
                 "   " +
                         "${((instrI - instr0) / 1e6f).f1()} MInstr, " +
                         "${ceil((timeI - time0) / 1e6f).toInt()} ms, " +
-                        "${((instrI - instr0) * 1e3f / (timeI - time0)).toInt()} MInstr/s\n"
+                        "${((instrI - instr0) * 1e3f / (timeI - time0)).toInt()} MInstr/s " +
+                        "(${getInterpreterName(bytecode)})\n"
             )
 
         if (memory1 - memory0 > minLogSize) {
@@ -90,9 +108,56 @@ object CallStaticInit {
         time0 = timeI
     }
 
-    private fun callMethod(engine: WASMEngine, name: String, i: Int) {
-        engine.executeFunction(name)
-        if (printDebug) printStats(engine, name, i)
+    private fun callMethod(engine: WASMEngine, bytecode: BytecodeEngine?, name: String, i: Int, printStats: Boolean) {
+        if (bytecode != null) bytecode.executeFunction(name)
+        else engine.executeFunction(name)
+        if (printDebug && printStats) printStats(engine, bytecode, name, i)
+    }
+
+    private fun callStaticInit(
+        engine: WASMEngine, bytecode: BytecodeEngine?,
+        staticInitFunctions: List<MethodSig>, printStats: Boolean
+    ) {
+        callMethod(engine, bytecode, "init", -1, printStats)
+        for (i in staticInitFunctions.indices) {
+            val sig = staticInitFunctions[i]
+            callMethod(engine, bytecode, methodName(sig), i, printStats)
+        }
+    }
+
+    /**
+     * runs static init on a throwaway tree-walker, so its speed can be compared to the bytecode interpreter
+     * */
+    private fun measureTreeWalker(ptr: Int, staticInitFunctions: List<MethodSig>, clock: Clock): WASMEngine {
+        val engine = createEngine(ptr)
+        val time0i = System.nanoTime()
+        callStaticInit(engine, null, staticInitFunctions, false)
+        val timeI = System.nanoTime()
+        TrackCallocInstr.arraySize.fill(0)
+        TrackCallocInstr.counters.clear()
+        clock.stop("calls, ${(engine.instructionCounter * 1e3f / (timeI - time0i)).f1()} MInstr/s (tree-walker)")
+        return engine
+    }
+
+    /**
+     * the heap after static init becomes the data section, so both interpreters must produce it byte by byte
+     * */
+    private fun checkIdenticalHeaps(treeWalker: WASMEngine, bytecode: WASMEngine) {
+        for ((name, value) in treeWalker.globals) {
+            val other = bytecode.globals[name]
+            if (value != other) {
+                throw IllegalStateException("Global $name differs after static init: $value (tree-walker) vs $other (bytecode)")
+            }
+        }
+        val end = treeWalker.globals["allocationPointer"]!!.toInt()
+        val a = treeWalker.bytes
+        val b = bytecode.bytes
+        for (i in 0 until end) {
+            if (a[i] != b[i]) {
+                throw IllegalStateException("Heap differs after static init at $i: ${a[i]} (tree-walker) vs ${b[i]} (bytecode)")
+            }
+        }
+        LOGGER.info("Both interpreters produced identical heaps, ${end.toLong().formatFileSize()}")
     }
 
     private fun createEngine(originalMemory: Int): WASMEngine {
@@ -119,8 +184,13 @@ object CallStaticInit {
 
         val clock = Clock(LOGGER)
 
+        val treeWalker = if (compareInterpreters && useBytecodeInterpreter) {
+            measureTreeWalker(ptr, staticInitFunctions, clock)
+        } else null
+
         // create VM
         val engine = createEngine(ptr)
+        val bytecode = if (useBytecodeInterpreter) BytecodeEngine(engine) else null
 
         // call all static init functions;
         // partially sort these methods by dependencies
@@ -129,11 +199,8 @@ object CallStaticInit {
 
         LOGGER.info("Total static init functions: ${staticInitFunctions.size}")
         initStats(engine, time0i)
-        callMethod(engine, "init", -1)
-        for (i in staticInitFunctions.indices) {
-            val sig = staticInitFunctions[i]
-            callMethod(engine, methodName(sig), i)
-        }
+        callStaticInit(engine, bytecode, staticInitFunctions, true)
+        if (treeWalker != null) checkIdenticalHeaps(treeWalker, engine)
 
         if (printDebug) {
             debugFolder.getChild("callStaticInit.txt")
@@ -147,7 +214,10 @@ object CallStaticInit {
         LOGGER.info("Base Memory: ($allocationStart) ${allocationStart.formatFileSize()}")
         LOGGER.info("Allocated ${(allocationPointer - allocationStart).formatFileSize()} during StaticInit")
         LOGGER.info("Executed ${engine.instructionCounter} instructions for StaticInit")
-        clock.stop("calls, ${(engine.instructionCounter * 1e3f / (timeI - time0i)).f1()} MInstr/s")
+        clock.stop(
+            "calls, ${(engine.instructionCounter * 1e3f / (timeI - time0i)).f1()} MInstr/s " +
+                    "(${getInterpreterName(bytecode)})"
+        )
 
         val ptr1: Int
         if (true) {
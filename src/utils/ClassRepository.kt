@@ -0,0 +1,296 @@
+package utils
+
+import mapClassPathJars
+import org.apache.logging.log4j.LogManager
+import org.objectweb.asm.ClassReader
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.Inflater
+import java.util.zip.ZipFile
+
+/**
+ * Single source of class files for all ASM passes:
+ * indexing, dynamic index, translation, and the translation cache.
+ *
+ * Parsed ClassReaders are kept in an LRU cache, so classes, which are visited by multiple passes,
+ * are only read and parsed once. With mapClassPathJars, jars of the class path are memory-mapped,
+ * and their central directory is indexed once, instead of going through the system class loader for each class.
+ * */
+object ClassRepository {
+
+    private val LOGGER = LogManager.getLogger(ClassRepository::class)
+
+    /**
+     * upper bound for the estimated memory of cached readers;
+     * a reader keeps its bytes, the constant pool offsets and the decoded UTF8 constants
+     * */
+    var maxCachedMemory = 256L shl 20
+
+    private const val MEMORY_PER_BYTE = 3
+
+    private class CachedClass(val bytes: ByteArray, val reader: ClassReader) {
+        val memory get() = bytes.size.toLong() * MEMORY_PER_BYTE
+    }
+
+    /**
+     * in access order, so the first entries are the least recently used ones
+     * */
+    private val cache = LinkedHashMap<String, CachedClass>(1024, 0.75f, true)
+
+    private var cachedMemory = 0L
+    private var numEvictions = 0
+    private val numHits = AtomicInteger()
+    private val numMisses = AtomicInteger()
+    private val missingClasses = ConcurrentHashMap.newKeySet<String>()
+
+    private val classPath by lazy { openClassPath() }
+
+    /**
+     * returns a shared reader; ClassReader.accept() doesn't modify it, so it can be used by multiple threads
+     * */
+    fun getReader(clazz: String): ClassReader = getClass(clazz).reader
+
+    /**
+     * the class file of clazz; must not be modified
+     * */
+    fun getBytes(clazz: String): ByteArray = getClass(clazz).bytes
+
+    private fun getClass(clazz: String): CachedClass {
+        synchronized(cache) {
+            val cached = cache[clazz]
+            if (cached != null) {
+                numHits.incrementAndGet()
+                return cached
+            }
+        }
+        numMisses.incrementAndGet()
+        val bytes = readBytes(clazz)
+        val loaded = CachedClass(bytes, ClassReader(bytes))
+        synchronized(cache) {
+            cachedMemory += loaded.memory
+            val previous = cache.put(clazz, loaded)
+            if (previous != null) cachedMemory -= previous.memory
+            evictUntilWithinBudget()
+        }
+        return loaded
+    }
+
+    /**
+     * removeEldestEntry() could only drop one entry per insert, so a large class,
+     * or a lowered maxCachedMemory, would keep the cache over budget forever
+     * */
+    private fun evictUntilWithinBudget() {
+        val iterator = cache.values.iterator()
+        // the newest entry stays, even if it alone is over budget
+        while (cachedMemory > maxCachedMemory && cache.size > 1) {
+            cachedMemory -= iterator.next().memory
+            iterator.remove()
+            numEvictions++
+        }
+    }
+
+    private fun readBytes(clazz: String): ByteArray {
+        if (clazz in missingClasses) throw FileNotFoundException("Class not found: $clazz")
+        val path = "$clazz.class"
+        // the parent of the system class loader comes first, like in its delegation;
+        // that is the extension class loader in Java 8, and the platform class loader since Java 9
+        val bytes = ClassLoader.getSystemClassLoader().parent?.getResourceAsStream(path)?.use { it.readBytes() }
+            ?: (if (mapClassPathJars) classPath.read(path) else null)
+            ?: ClassLoader.getSystemResourceAsStream(path)?.use { it.readBytes() }
+        if (bytes == null) {
+            missingClasses.add(clazz)
+            throw FileNotFoundException("Class not found: $clazz")
+        }
+        return bytes
+    }
+
+    fun logStatistics() {
+        LOGGER.info(
+            "Class repository: ${numHits.get()} hits, ${numMisses.get()} misses, $numEvictions evictions, " +
+                    "${cachedMemory shr 20} MiB cached"
+        )
+    }
+
+    private fun openClassPath(): ClassPath {
+        val entries = System.getProperty("java.class.path").split(File.pathSeparatorChar)
+            .filter { it.isNotEmpty() }.map { File(it) }
+            .mapNotNull { file ->
+                try {
+                    when {
+                        file.isDirectory -> DirectoryEntry(file)
+                        file.isFile -> MappedJar.open(file) ?: ZipFileEntry(ZipFile(file))
+                        else -> null
+                    }
+                } catch (e: IOException) {
+                    LOGGER.warn("Cannot open class path entry $file: $e")
+                    null
+                }
+            }
+        return ClassPath(entries)
+    }
+
+    private class ClassPath(val entries: List<ClassPathEntry>) {
+        fun read(path: String): ByteArray? {
+            for (i in entries.indices) {
+                return entries[i].read(path) ?: continue
+            }
+            return null
+        }
+    }
+
+    private interface ClassPathEntry {
+        fun read(path: String): ByteArray?
+    }
+
+    private class DirectoryEntry(val folder: File) : ClassPathEntry {
+        override fun read(path: String): ByteArray? {
+            val file = File(folder, path)
+            return if (file.isFile) file.readBytes() else null
+        }
+    }
+
+    private class ZipFileEntry(val zip: ZipFile) : ClassPathEntry {
+        override fun read(path: String): ByteArray? {
+            val entry = zip.getEntry(path) ?: return null
+            return zip.getInputStream(entry).use { it.readBytes() }
+        }
+    }
+
+    /**
+     * reads entries directly from a memory-mapped jar, using its central directory;
+     * jars with ZIP64-records, or larger than 2 GiB, use ZipFile instead.
+     *
+     * Multi-release jars resolve like on a Java runtime of TARGET_JAVA_VERSION:
+     * META-INF/versions/N/ replaces the base entry for the highest N <= TARGET_JAVA_VERSION.
+     * */
+    private class MappedJar(
+        private val buffer: MappedByteBuffer,
+        private val entries: HashMap<String, Int>
+    ) : ClassPathEntry {
+
+        companion object {
+
+            private const val END_OF_CENTRAL_DIR = 0x06054b50
+            private const val CENTRAL_DIR_ENTRY = 0x02014b50
+            private const val LOCAL_HEADER = 0x04034b50
+            private const val STORED = 0
+            private const val DEFLATED = 8
+
+            private const val VERSIONS_PREFIX = "META-INF/versions/"
+
+            /**
+             * the runtime library implements Java 8, so versioned classes for Java 9+ must not be used
+             * */
+            private const val TARGET_JAVA_VERSION = 8
+
+            fun open(file: File): MappedJar? {
+                if (file.length() >= Int.MAX_VALUE) return null
+                val buffer = RandomAccessFile(file, "r").use { raf ->
+                    raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                }
+                buffer.order(ByteOrder.LITTLE_ENDIAN)
+                val end = findEndOfCentralDir(buffer) ?: return null
+                val numEntries = buffer.getShort(end + 10).toInt() and 0xffff
+                val dirOffset = buffer.getInt(end + 16)
+                if (numEntries == 0xffff || dirOffset == -1) return null // ZIP64
+                val entries = HashMap<String, Int>(numEntries * 2)
+                val versions = HashMap<String, Int>()
+                var ptr = dirOffset
+                repeat(numEntries) {
+                    if (buffer.getInt(ptr) != CENTRAL_DIR_ENTRY) return null
+                    val nameLength = buffer.getShort(ptr + 28).toInt() and 0xffff
+                    val extraLength = buffer.getShort(ptr + 30).toInt() and 0xffff
+                    val commentLength = buffer.getShort(ptr + 32).toInt() and 0xffff
+                    val name = ByteArray(nameLength)
+                    copy(buffer, ptr + 46, name)
+                    // only classes are read from here, resources are loaded by the class loader
+                    if (name.size > 6 && String(name, nameLength - 6, 6, Charsets.UTF_8) == ".class") {
+                        addEntry(entries, versions, String(name, Charsets.UTF_8), ptr)
+                    }
+                    ptr += 46 + nameLength + extraLength + commentLength
+                }
+                return MappedJar(buffer, entries)
+            }
+
+            private fun addEntry(entries: HashMap<String, Int>, versions: HashMap<String, Int>, name: String, ptr: Int) {
+                if (!name.startsWith(VERSIONS_PREFIX)) {
+                    // a versioned entry, which was seen first, wins
+                    if (name !in versions) entries[name] = ptr
+                    return
+                }
+                val slash = name.indexOf('/', VERSIONS_PREFIX.length)
+                if (slash < 0) return
+                val version = name.substring(VERSIONS_PREFIX.length, slash).toIntOrNull() ?: return
+                if (version > TARGET_JAVA_VERSION) return
+                val baseName = name.substring(slash + 1)
+                val previous = versions[baseName]
+                if (previous == null || version > previous) {
+                    versions[baseName] = version
+                    entries[baseName] = ptr
+                }
+            }
+
+            /**
+             * absolute bulk get without ByteBuffer.get(int, byte[]), which needs Java 13
+             * */
+            fun copy(buffer: ByteBuffer, offset: Int, dst: ByteArray) {
+                val view = buffer.duplicate()
+                view.position(offset)
+                view.get(dst)
+            }
+
+            private fun findEndOfCentralDir(buffer: MappedByteBuffer): Int? {
+                // the record is 22 bytes, followed by a comment of up to 65535 bytes
+                val last = buffer.limit() - 22
+                for (ptr in last downTo maxOf(last - 65535, 0)) {
+                    if (buffer.getInt(ptr) == END_OF_CENTRAL_DIR) return ptr
+                }
+                return null
+            }
+        }
+
+        override fun read(path: String): ByteArray? {
+            val entry = entries[path] ?: return null
+            val method = buffer.getShort(entry + 10).toInt() and 0xffff
+            val compressedSize = buffer.getInt(entry + 20)
+            val size = buffer.getInt(entry + 24)
+            val localHeader = buffer.getInt(entry + 42)
+            if (buffer.getInt(localHeader) != LOCAL_HEADER) throw IOException("Corrupt jar entry $path")
+            val nameLength = buffer.getShort(localHeader + 26).toInt() and 0xffff
+            val extraLength = buffer.getShort(localHeader + 28).toInt() and 0xffff
+            val data = localHeader + 30 + nameLength + extraLength
+            return when (method) {
+                STORED -> ByteArray(size).also { copy(buffer, data, it) }
+                DEFLATED -> {
+                    // setInput(ByteBuffer) needs Java 11, so the compressed bytes are copied
+                    val compressed = ByteArray(compressedSize)
+                    copy(buffer, data, compressed)
+                    val inflater = Inflater(true)
+                    try {
+                        inflater.setInput(compressed, 0, compressedSize)
+                        val bytes = ByteArray(size)
+                        var length = 0
+                        while (length < size) {
+                            val n = inflater.inflate(bytes, length, size - length)
+                            if (n == 0 && (inflater.finished() || inflater.needsInput())) break
+                            length += n
+                        }
+                        if (length != size) throw IOException("Truncated jar entry $path")
+                        bytes
+                    } finally {
+                        inflater.end()
+                    }
+                }
+                else -> throw IOException("Unsupported compression $method of $path")
+            }
+        }
+    }
+}
@@ -1,34 +1,188 @@
 package utils
 
+import buildSIMDFlavor
+import globals
+import highlevel.HighLevelInstruction
+import jvm.JVMFlags.useSharedMemory
+import me.anno.io.files.FileReference
 import me.anno.utils.Clock
+import me.anno.utils.structures.arrays.ByteArrayList
+import memorySizeInBlocks
+import optimizer.LoopVectorizer
 import org.apache.logging.log4j.LogManager
 import targetsFolder
 import translator.GeneratorIndex
+import validateWASMFromMemory
+import wasm.instr.IfBranch
+import wasm.instr.Instruction
+import wasm.instr.Jump
+import wasm.instr.JumpIf
+import wasm.instr.LoopInstr
+import wasm.instr.SwitchCase
 import wasm.parser.FunctionImpl
+import wasm.parser.Module
 import wasm.parser.WATParser
 import wasm.writer.WASMWriter.writeWASM
+import writeWASMFromMemory
+import kotlin.math.min
 
 private val LOGGER = LogManager.getLogger("CompileInvoker")
 
 val wasmFolder = targetsFolder.getChild("wasm")
 val wasmTextFile = wasmFolder.getChild("jvm2wasm.wat")
 val wasmOutputFile = wasmFolder.getChild("jvm2wasm.wasm")
+val wasmSIMDOutputFile = wasmFolder.getChild("jvm2wasm-simd.wasm")
+val wasmWorkerOutputFile = wasmFolder.getChild("jvm2wasm-worker.wasm")
+val wasmSIMDWorkerOutputFile = wasmFolder.getChild("jvm2wasm-simd-worker.wasm")
 val debugFolder = wasmFolder.getSibling("debug").apply {
     delete()
     mkdirs()
 }
 
-fun compileToWASM(printer: StringBuilder2, clock: Clock) {
+/**
+ * printer is the whole module as WAT, or null, if writeWAT is disabled;
+ * functions are all functions of the module in printed order
+ * */
+fun compileToWASM(printer: StringBuilder2?, functions: List<FunctionImpl>, clock: Clock) {
     LOGGER.info("[Writing Output]")
-    wasmTextFile.writeBytes(printer.values, 0, printer.size)
-    clock.stop("Write WAT")
+    if (printer != null) {
+        wasmTextFile.writeBytes(printer.values, 0, printer.size)
+        clock.stop("Write WAT")
+    }
 
+    val module = if (writeWASMFromMemory) {
+        createModuleFromMemory(functions)
+    } else {
+        if (printer == null) throw IllegalStateException("Either writeWAT or writeWASMFromMemory must be enabled")
+        parseWAT(printer)
+    }
+    val wasmBytes = writeWASM(module)
+    if (writeWASMFromMemory) {
+        clock.stop("Write WASM from Memory")
+        if (validateWASMFromMemory && printer != null) {
+            checkIdenticalToWAT(wasmBytes, printer)
+            clock.stop("Validate WASM from Memory")
+        }
+    }
+    wasmOutputFile.writeBytes(wasmBytes.values, 0, wasmBytes.size)
+    clock.stop("Write WASM")
+    if (useSharedMemory) writeWorkerFlavor(module, wasmWorkerOutputFile)
+
+    if (buildSIMDFlavor) {
+        val simdModule = LoopVectorizer.vectorize(module)
+        val simdBytes = writeWASM(simdModule)
+        LoopVectorizer.printStatistics()
+        wasmSIMDOutputFile.writeBytes(simdBytes.values, 0, simdBytes.size)
+        clock.stop("Write SIMD WASM")
+        if (useSharedMemory) writeWorkerFlavor(simdModule, wasmSIMDWorkerOutputFile)
+    }
+}
+
+/**
+ * With JVMFlags.useSharedMemory, each Web Worker instantiates the module on the memory of the main thread.
+ * Active data segments would be copied again, and reset the heap image, so the worker flavor has none;
+ * everything else must stay identical, so function indices in the image are valid in all instances.
+ * */
+private fun writeWorkerFlavor(module: Module, dst: FileReference) {
+    val worker = Module()
+    worker.memorySizeInBlocks = module.memorySizeInBlocks
+    worker.imports.addAll(module.imports)
+    worker.functionTable.addAll(module.functionTable)
+    worker.types.putAll(module.types)
+    worker.globals.putAll(module.globals)
+    worker.functions.addAll(module.functions)
+    val bytes = writeWASM(worker)
+    dst.writeBytes(bytes.values, 0, bytes.size)
+}
+
+private fun parseWAT(printer: StringBuilder2): Module {
     // todo why/how is there a difference between using the values directly, and parsing them????
     val parser = WATParser()
     parser.parse(printer.toString())
-    val wasmBytes = writeWASM(parser)
-    wasmOutputFile.writeBytes(wasmBytes.values, 0, wasmBytes.size)
-    clock.stop("Write WASM")
+    return parser
+}
+
+private fun writeWASMFromWAT(printer: StringBuilder2): ByteArrayList {
+    return writeWASM(parseWAT(printer))
+}
+
+private fun checkIdenticalToWAT(fromMemory: ByteArrayList, printer: StringBuilder2) {
+    val fromWAT = writeWASMFromWAT(printer)
+    // Arrays.mismatch() with ranges needs Java 9
+    val a = fromMemory.values
+    val b = fromWAT.values
+    val minSize = min(fromMemory.size, fromWAT.size)
+    var mismatch = -1
+    for (i in 0 until minSize) {
+        if (a[i] != b[i]) {
+            mismatch = i
+            break
+        }
+    }
+    if (mismatch < 0 && fromMemory.size != fromWAT.size) mismatch = minSize
+    if (mismatch >= 0) {
+        throw IllegalStateException(
+            "WASM from memory differs from WASM from WAT at byte $mismatch, " +
+                    "sizes: ${fromMemory.size} vs ${fromWAT.size}"
+        )
+    }
+    LOGGER.info("Validated WASM from memory, ${fromMemory.size} bytes are identical")
+}
+
+/**
+ * creates the same module, that WATParser would create from the printed WAT
+ * */
+private fun createModuleFromMemory(functions: List<FunctionImpl>): Module {
+    val module = Module()
+    module.memorySizeInBlocks = memorySizeInBlocks
+    module.imports.addAll(imports)
+    module.dataSections.addAll(dataSections)
+    module.functionTable.addAll(functionTable)
+    // globals are printed in sorted order, and the parser inserts them into a new map in that order
+    for (global in globals.values.sortedBy { it.name }) {
+        module.globals[global.name] = global
+    }
+    module.functions.ensureCapacity(functions.size)
+    for (i in functions.indices) {
+        val function = functions[i]
+        module.functions.add(function.withBody(lowerInstructions(function.body, ArrayList(function.body.size))))
+    }
+    return module
+}
+
+/**
+ * WATParser only produces low-level instructions, and a new instance for each jump;
+ * jumps must not be shared, because they store their relative depth
+ * */
+private fun lowerInstructions(src: List<Instruction>, dst: ArrayList<Instruction>): ArrayList<Instruction> {
+    for (i in src.indices) {
+        when (val instr = src[i]) {
+            is HighLevelInstruction -> lowerInstructions(instr.toLowLevel(), dst)
+            is IfBranch -> dst.add(
+                IfBranch(
+                    lowerInstructions(instr.ifTrue, ArrayList(instr.ifTrue.size)),
+                    lowerInstructions(instr.ifFalse, ArrayList(instr.ifFalse.size)),
+                    instr.params, instr.results
+                )
+            )
+            is LoopInstr -> dst.add(
+                LoopInstr(
+                    instr.label, lowerInstructions(instr.body, ArrayList(instr.body.size)),
+                    instr.params, instr.results
+                )
+            )
+            is SwitchCase -> dst.add(
+                SwitchCase(
+                    instr.label, instr.table,
+                    instr.cases.map { lowerInstructions(it, ArrayList(it.size)) }
+                )
+            )
+            is Jump -> dst.add(Jump(instr.owner))
+            is JumpIf -> dst.add(JumpIf(instr.owner))
+            else -> dst.add(instr)
+        }
+    }
+    return dst
 }
 
 fun collectAllMethods(clock: Clock): ArrayList<FunctionImpl> {
@@ -43,4 +197,3 @@ fun collectAllMethods(clock: Clock): ArrayList<FunctionImpl> {
     clock.stop("Collecting Methods")
     return functions
 }
-
@@ -3,6 +3,7 @@ package utils
 import canThrowError
 import cannotThrow
 import dIndex
+import enableTracing
 import fieldsRWRequired
 import gIndex
 import hIndex
@@ -29,19 +30,31 @@ import me.anno.utils.types.Booleans.toInt
 import me.anno.utils.types.Strings.titlecase
 import org.apache.logging.log4j.LogManager
 import org.objectweb.asm.*
+import parallelTranslation
 import replaceClass
 import resolvedMethods
 import translator.ClassTranslator
 import translator.FoundBetterReader
 import translator.MethodTranslator
+import translator.TranslationCache
+import translator.TranslationLog
+import useTranslationCache
 import utils.CommonInstructions.INVOKE_VIRTUAL
 import utils.Descriptor.Companion.voidDescriptor
 import utils.MethodResolver.resolveMethod
+import utils.Param.Companion.toParams2
+import validateParallelTranslation
+import wasm.instr.Call
+import wasm.instr.Const
 import wasm.instr.Instruction
 import wasm.parser.FunctionImpl
 import wasm.parser.Import
 import wasm.parser.WATParser
+import writeWAT
 import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import kotlin.math.max
 
 private val LOGGER = LogManager.getLogger("Compiling")
 
@@ -49,7 +62,7 @@ private val LOGGER = LogManager.getLogger("Compiling")
 fun indexHierarchyFromEntryPoints() {
     listEntryPoints { clazz ->
         if (hIndex.doneClasses.add(clazz)) {
-            ClassReader(clazz)
+            ClassRepository.getReader(clazz)
                 .accept(FirstClassIndexer(clazz), 0)
         }
     }
@@ -57,7 +70,7 @@ fun indexHierarchyFromEntryPoints() {
     listLibrary { clazz ->
         if (hIndex.doneClasses.add(clazz)) {
             try {
-                ClassReader(clazz)
+                ClassRepository.getReader(clazz)
                     .accept(FirstClassIndexer(clazz), 0)
             } catch (e: Exception) {
                 throw RuntimeException(clazz, e)
@@ -462,27 +475,112 @@ fun generateJavaScriptFile(missingMethods: HashSet<MethodSig>): Map<String, Pair
 
 fun translateMethods(classesToLoad: List<String>, filterClass: (String) -> Boolean) {
     LOGGER.info("[translateMethods]")
-    for (clazz in classesToLoad) {
-        if (filterClass(clazz)) try {
-            ClassReader(clazz).accept(
+    if ((parallelTranslation || useTranslationCache) && enableTracing) {
+        // stack push ids are assigned while translating, and are baked into call sites
+        LOGGER.warn("Parallel translation and the translation cache don't support enableTracing, translating serially")
+    }
+    if ((parallelTranslation || useTranslationCache) && !enableTracing) {
+        translateMethodsWithLogs(classesToLoad.filter(filterClass))
+    } else {
+        for (clazz in classesToLoad) {
+            if (filterClass(clazz)) translateClass(clazz, ClassRepository.getReader(clazz))
+        }
+    }
+}
+
+private fun translateClass(clazz: String, reader: ClassReader) {
+    try {
+        reader.accept(
+            ClassTranslator(clazz),
+            ClassReader.EXPAND_FRAMES
+        )
+    } catch (e: FoundBetterReader) {
+        try {
+            e.reader.accept(
                 ClassTranslator(clazz),
                 ClassReader.EXPAND_FRAMES
             )
-        } catch (e: FoundBetterReader) {
-            try {
-                e.reader.accept(
-                    ClassTranslator(clazz),
-                    ClassReader.EXPAND_FRAMES
-                )
-            } catch (e: IOException) {
-                throw IOException(clazz, e)
-            }
         } catch (e: IOException) {
             throw IOException(clazz, e)
         }
+    } catch (e: IOException) {
+        throw IOException(clazz, e)
     }
 }
 
+/**
+ * string-, interface- and type-indices depend on the translation order,
+ * so they are recorded per class, and replayed in class order afterward;
+ * this allows translating each class as its own task on a fork-join pool,
+ * and loading classes from TranslationCache instead of translating them
+ * */
+private fun translateMethodsWithLogs(classesToLoad: List<String>) {
+    if (useTranslationCache) TranslationCache.open()
+    val logs = arrayOfNulls<TranslationLog>(classesToLoad.size)
+    fun translateOrLoad(index: Int) {
+        val clazz = classesToLoad[index]
+        val bytes = ClassRepository.getBytes(clazz)
+        val cached = if (useTranslationCache) TranslationCache.load(clazz, bytes) else null
+        logs[index] = cached ?: TranslationLog(clazz).also { log ->
+            gIndex.translationLog.set(log)
+            try {
+                translateClass(clazz, ClassRepository.getReader(clazz))
+            } finally {
+                gIndex.translationLog.remove()
+            }
+            if (useTranslationCache) TranslationCache.store(log, bytes)
+        }
+    }
+    if (parallelTranslation) {
+        val pool = ForkJoinPool(max(Runtime.getRuntime().availableProcessors(), 1))
+        try {
+            val tasks = classesToLoad.indices.map { index ->
+                pool.submit { translateOrLoad(index) }
+            }
+            for (task in tasks) {
+                try {
+                    task.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            pool.shutdown()
+        }
+        LOGGER.info("Translated ${logs.size} classes on ${pool.parallelism} threads, replaying indices")
+        if (validateParallelTranslation) checkIdenticalToSerialTranslation(classesToLoad, logs)
+    } else {
+        for (index in classesToLoad.indices) {
+            translateOrLoad(index)
+        }
+    }
+    for (log in logs) {
+        log!!.replay()
+    }
+    if (useTranslationCache) TranslationCache.close()
+}
+
+/**
+ * translates each class again, on the main thread, and compares it to the log from the fork-join pool;
+ * replay() only depends on the logs and their order, so equal logs produce the same output as the serial translation
+ * */
+private fun checkIdenticalToSerialTranslation(classesToLoad: List<String>, logs: Array<TranslationLog?>) {
+    for (index in classesToLoad.indices) {
+        val clazz = classesToLoad[index]
+        val serial = TranslationLog(clazz)
+        gIndex.translationLog.set(serial)
+        try {
+            translateClass(clazz, ClassRepository.getReader(clazz))
+        } finally {
+            gIndex.translationLog.remove()
+        }
+        if (serial.dump() != logs[index]!!.dump()) {
+            throw IllegalStateException("Parallel translation of $clazz differs from the serial one")
+        }
+    }
+    LOGGER.info("Parallel translation of ${classesToLoad.size} classes is identical to the serial one")
+}
+
 fun buildSyntheticMethods() {
     LOGGER.info("[buildSyntheticMethods]")
     for ((name, dlu) in DelayedLambdaUpdate.needingBridgeUpdate) {
@@ -578,10 +676,16 @@ fun findClassesToLoad(aliasedMethods: List<MethodSig>): List<String> {
         }!!
 }
 
+/**
+ * stubs for abstract methods, which are used, but never implemented;
+ * in the same order as they are printed
+ * */
+val abstractMethodStubs = ArrayList<FunctionImpl>()
+
 fun printAbstractMethods(bodyPrinter: StringBuilder2, missingMethods: HashSet<MethodSig>) {
     // todo we could (space-)optimize this and only create one method per call-signature
     LOGGER.info("[printAbstractMethods]")
-    if (MethodTranslator.comments) bodyPrinter.append(";; not implemented, abstract\n")
+    if (writeWAT && MethodTranslator.comments) bodyPrinter.append(";; not implemented, abstract\n")
     for (func in dIndex.usedMethods
         .filter {
             hIndex.isAbstract(it) &&
@@ -592,22 +696,21 @@ fun printAbstractMethods(bodyPrinter: StringBuilder2, missingMethods: HashSet<Me
     ) {
         val canThrow = canThrowError(func)
         val desc = func.descriptor
-        // export? no, nobody should call these
-        bodyPrinter.append("(func $").append(methodName(func)).append(" (param")
-        for (param in desc.wasmParams) {
-            bodyPrinter.append(' ').append(param)
+        val returnType = desc.wasmReturnType
+        val results = ArrayList<String>(2)
+        val body = ArrayList<Instruction>(2)
+        if (returnType != null) {
+            results.add(returnType.wasmName)
+            body.add(Const.zero[returnType]!!)
         }
-        bodyPrinter.append(") (result")
-        val returnType = desc.returnType
-        val hasReturnType = returnType != null
-        if (hasReturnType) bodyPrinter.append(' ').append(jvm2wasmTyped(returnType!!))
-        if (canThrow) bodyPrinter.append(' ').append(ptrType)
-        bodyPrinter.append(")")
-        if (hasReturnType || canThrow) {
-            if (hasReturnType) bodyPrinter.append(" ").append(jvm2wasmTyped(returnType!!)).append(".const 0")
-            if (canThrow) bodyPrinter.append(" call \$throwAME")
+        if (canThrow) {
+            results.add(ptrType)
+            body.add(Call("throwAME"))
         }
-        bodyPrinter.append(")\n")
+        // export? no, nobody should call these
+        val stub = FunctionImpl(methodName(func), desc.wasmParams.toParams2(), results, emptyList(), body, false)
+        abstractMethodStubs.add(stub)
+        if (writeWAT) stub.toString(bodyPrinter)
     }
 }
 
@@ -665,7 +768,8 @@ fun printNativeMethods(importPrinter: StringBuilder2, missingMethods: HashSet<Me
                     it !in hIndex.jvmImplementedMethods
         }
         .sortedBy { methodName(it) }) {
-        importPrinter.import2(sig)
+        // buffered GL calls are implemented in WASM instead
+        if (!GLCommandEncoder.isBuffered(sig)) importPrinter.import2(sig)
         if (!missingMethods.add(sig))
             throw IllegalStateException()
     }
@@ -698,7 +802,7 @@ fun createDynamicIndex(classesToLoad: List<String>, filterClass: (String) -> Boo
     val dynIndex = HashMap<String, HashSet<MethodSig>>()
     for (clazz in classesToLoad) {
         if (filterClass(clazz)) try {
-            ClassReader(clazz).accept(
+            ClassRepository.getReader(clazz).accept(
                 object : ClassVisitor(FirstClassIndexer.API_LEVEL) {
                     override fun visitMethod(
                         access: Int,
@@ -793,15 +897,19 @@ fun createDynamicIndex(classesToLoad: List<String>, filterClass: (String) -> Boo
 
 val helperMethods = HashMap<String, FunctionImpl>()
 
-fun printMethodImplementations(bodyPrinter: StringBuilder2, usedMethods: Set<String>) {
-    LOGGER.info("[printMethodImplementations]")
+/**
+ * finds all translated methods and helper methods, that need to be written into the module, in their final order
+ * */
+fun collectMethodImplementations(usedMethods: Set<String>): List<FunctionImpl> {
+    LOGGER.info("[collectMethodImplementations]")
+    val implementations = ArrayList<FunctionImpl>(gIndex.translatedMethods.size + helperMethods.size)
     val notActuallyUsed = ArrayList<String>()
     for ((sig, impl) in gIndex.translatedMethods
         .entries.sortedBy { it.value.funcName }) {
         val name = methodName(sig)
         // not truly used, even tho marked as such...
         if (name in usedMethods) {
-            impl.toString(bodyPrinter)
+            implementations.add(impl)
         } else if (!name.startsWith("new_") && !name.startsWith("static_") &&
             sig !in hIndex.getterMethods && sig !in hIndex.setterMethods
         ) {
@@ -811,9 +919,14 @@ fun printMethodImplementations(bodyPrinter: StringBuilder2, usedMethods: Set<Str
     if (notActuallyUsed.isNotEmpty()) {
         LOGGER.warn("Not actually used, #${notActuallyUsed.size}: ${notActuallyUsed.joinToString(", ")}")
     }
-    for (impl in helperMethods
-        .values.sortedBy { it.funcName }) {
-        impl.toString(bodyPrinter)
+    implementations.addAll(helperMethods.values.sortedBy { it.funcName })
+    return implementations
+}
+
+fun printMethodImplementations(bodyPrinter: StringBuilder2, implementations: List<FunctionImpl>) {
+    LOGGER.info("[printMethodImplementations]")
+    for (i in implementations.indices) {
+        implementations[i].toString(bodyPrinter)
     }
 }
 
@@ -5,6 +5,8 @@ import gIndex
 import hIndex
 import jvm.JVMFlags.ptrSize
 import jvm.JVMFlags.ptrSizeBits
+import jvm.JVMFlags.useNativeThreads
+import jvm.JVMFlags.useSharedMemory
 import jvm.JVMShared.*
 import me.anno.utils.assertions.assertEquals
 import utils.Descriptor.Companion.voidDescriptor
@@ -120,6 +122,12 @@ object DefaultClassLayouts {
 
         eq(reader, "lock", object0, 0, OFFSET_READER_LOCK)
 
+        if (useNativeThreads) {
+            // accessed by address for atomics
+            eq("jvm/custom/AtomicInt", "value", "int", 0, OFFSET_ATOMIC_INT_VALUE)
+            eq("jvm/custom/AtomicLong", "value", "long", intSize, OFFSET_ATOMIC_LONG_VALUE)
+        }
+
         // for sun/misc
         gIndex.getFieldOffset(thread, "threadLocalRandomSeed", "long", false)
         gIndex.getFieldOffset(thread, "threadLocalRandomSecondarySeed", "long", false)
@@ -131,6 +139,8 @@ object DefaultClassLayouts {
         hIndex.finalFields[FieldSig("jvm/JVMShared", "trackAllocations", "boolean", true)] = trackAllocations
         hIndex.finalFields[FieldSig("jvm/JVMFlags", "ptrSize", "int", true)] = ptrSize
         hIndex.finalFields[FieldSig("jvm/JVMFlags", "ptrSizeBits", "int", true)] = ptrSizeBits
+        hIndex.finalFields[FieldSig("jvm/JVMFlags", "useNativeThreads", "boolean", true)] = useNativeThreads
+        hIndex.finalFields[FieldSig("jvm/JVMFlags", "useSharedMemory", "boolean", true)] = useSharedMemory
 
         eq(gIndex.getInterfaceIndex(InterfaceSig.c(STATIC_INIT, voidDescriptor)), 0)
         gIndex.getFieldOffset(constructor, "clazz", clazz, false)
@@ -5,6 +5,7 @@ import me.anno.utils.assertions.assertNull
 import me.anno.utils.assertions.assertTrue
 import replaceClass
 import utils.NativeTypes.nativeMapping
+import java.util.concurrent.ConcurrentHashMap
 
 class Descriptor private constructor(val params: List<String>, val returnType: String?, val raw: String) {
 
@@ -34,11 +35,13 @@ class Descriptor private constructor(val params: List<String>, val returnType: S
 
         // 26k entries... how is there sooo many values??? maybe we don't need to cache it...
         // we call this a million times, so each entry 40 times -> definitely worth it :)
-        private val descriptorCache = HashMap<String, Descriptor>(1 shl 15)
-        private val typeCache = HashMap<String, String>(1 shl 10)
+        // concurrent, because methods may be translated in parallel
+        private val descriptorCache = ConcurrentHashMap<String, Descriptor>(1 shl 15)
+        private val typeCache = ConcurrentHashMap<String, String>(1 shl 10)
 
         fun c(descriptor: String): Descriptor {
-            return descriptorCache.getOrPut(descriptor) {
+            // computeIfAbsent instead of getOrPut, so all threads get the same instance; Descriptors are compared by identity
+            return descriptorCache.computeIfAbsent(descriptor) {
                 parseDescriptor(descriptor, emptyMap())
             }
         }
@@ -46,7 +49,7 @@ class Descriptor private constructor(val params: List<String>, val returnType: S
         val voidDescriptor = c("()V")
 
         fun parseType(descriptor: String): String {
-            return typeCache.getOrPut(descriptor) {
+            return typeCache.computeIfAbsent(descriptor) {
                 parseTypeImpl(descriptor)
             }
         }
@@ -6,6 +6,7 @@ import translator.JavaTypes.convertTypeToWASM
 import utils.WASMTypes.i32
 import utils.WASMTypes.i64
 import wasm.instr.FuncType
+import java.util.concurrent.ConcurrentHashMap
 
 // could be changed to i64 in the future, if more browsers support 64 bit wasm
 // quite a few bits expect i32 though... hard to change now
@@ -112,7 +113,7 @@ fun methodName(clazz: String, sig: InterfaceSig): String {
     return methodName(MethodSig.c(clazz, sig.name, sig.descriptor.raw))
 }
 
-private val methodName2Cache = HashMap<Triple<String, String, String>, String>(1 shl 14)
+private val methodName2Cache = ConcurrentHashMap<Triple<String, String, String>, String>(1 shl 14)
 
 fun methodName2(sig: MethodSig): String {
     return methodName2(sig.className, sig.name, sig.descriptor.raw)
@@ -120,7 +121,7 @@ fun methodName2(sig: MethodSig): String {
 
 fun methodName2(clazz: String, name: String, args: String): String {
     val clazz2 = if (NativeTypes.isObjectArray(clazz)) "[]" else clazz
-    return methodName2Cache.getOrPut(Triple(clazz2, name, args)) {
+    return methodName2Cache.computeIfAbsent(Triple(clazz2, name, args)) {
         when (name) {
             STATIC_INIT -> "static|$clazz2|()V"
             INSTANCE_INIT -> "new|$clazz2|$args"
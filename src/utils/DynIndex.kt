@@ -5,6 +5,9 @@ import dependency.ActuallyUsedIndex
 import gIndex
 import hIndex
 import implementedMethods
+import jvm.JVMShared.MAX_DISPLAY_DEPTH
+import jvm.JVMShared.MAX_INTERFACE_BITS
+import jvm.JVMShared.NO_DISPLAY
 import jvm.JVMShared.objectOverhead
 import me.anno.io.Streams.writeLE32
 import me.anno.utils.algorithms.Recursion
@@ -16,6 +19,7 @@ import translator.GeneratorIndex.alignPointer
 import utils.Descriptor.Companion.voidDescriptor
 import utils.MethodResolver.resolveMethod
 import utils.PrintUsed.printUsed
+import kotlin.math.min
 
 object DynIndex {
 
@@ -386,6 +390,83 @@ object DynIndex {
         return ptr
     }
 
+    var typeDisplayTablePtr = 0
+    var typeDisplayStride = 0
+
+    /**
+     * interfaces, which are tested by instanceof/checkcast, and how often;
+     * the most common ones get a bit in the type display table
+     * */
+    val checkedInterfaces = HashMap<String, Int>()
+
+    /**
+     * one row per class for constant-time instanceOf, see JVMShared.isChildOrSameClass():
+     * [0]: depth for classes, -1-bit for interfaces with a bit, NO_DISPLAY otherwise,
+     * [1..MAX_DISPLAY_DEPTH]: super classes by depth (Cohen display), including the class itself,
+     * then a bitset of all implemented interfaces, which got a bit
+     * */
+    fun appendTypeDisplayTable(printer: StringBuilder2, ptr0: Int, numClasses: Int): Int {
+        val interfaceBits = checkedInterfaces.entries
+            .filter { (clazz, _) -> (gIndex.getClassIdOrNull(clazz) ?: numClasses) < numClasses }
+            .sortedWith(compareByDescending<Map.Entry<String, Int>> { it.value }.thenBy { it.key })
+            .take(MAX_INTERFACE_BITS)
+            .withIndex().associate { (bit, entry) -> entry.key to bit }
+
+        val numWords = (interfaceBits.size + 31) ushr 5
+        val rowSize = 1 + MAX_DISPLAY_DEPTH + numWords
+        typeDisplayTablePtr = ptr0
+        typeDisplayStride = rowSize * 4
+        LOGGER.info("[appendTypeDisplayTable]: ${interfaceBits.size} interface bits, $typeDisplayStride bytes/class")
+
+        val row = IntArray(rowSize)
+        val data = ByteArrayOutputStream2(numClasses * typeDisplayStride)
+        for (classId in 0 until numClasses) {
+            row.fill(0)
+            val clazz = gIndex.classNames[classId]
+            if (clazz in NativeTypes.nativeTypes) {
+                row[0] = NO_DISPLAY
+            } else if (hIndex.isInterfaceClass(clazz)) {
+                val bit = interfaceBits[clazz]
+                row[0] = if (bit != null) -1 - bit else NO_DISPLAY
+                if (bit != null) setInterfaceBit(row, bit)
+            } else {
+                val superClasses = getSuperClassChain(clazz)
+                row[0] = superClasses.size
+                for (depth in 1..min(superClasses.size, MAX_DISPLAY_DEPTH)) {
+                    row[depth] = gIndex.getClassId(superClasses[superClasses.size - depth])
+                }
+            }
+            if (clazz !in NativeTypes.nativeTypes) {
+                for (interfaceName in getInterfaces(clazz, numClasses)) {
+                    val bit = interfaceBits[interfaceName] ?: continue
+                    setInterfaceBit(row, bit)
+                }
+            }
+            for (value in row) data.writeLE32(value)
+        }
+        return appendData(printer, ptr0, data)
+    }
+
+    private fun setInterfaceBit(row: IntArray, bit: Int) {
+        val index = 1 + MAX_DISPLAY_DEPTH + (bit ushr 5)
+        row[index] = row[index] or (1 shl bit)
+    }
+
+    /**
+     * super classes from clazz up to, but excluding java/lang/Object;
+     * unknown super classes are treated like java/lang/Object, just like in the inheritance table
+     * */
+    private fun getSuperClassChain(clazz: String): List<String> {
+        val result = ArrayList<String>()
+        var superClass: String? = clazz
+        while (superClass != null && superClass != "java/lang/Object") {
+            result.add(superClass)
+            superClass = hIndex.superClass[superClass]
+            assertTrue(result.size < 1000) { "Cyclic super classes of $clazz" }
+        }
+        return result
+    }
+
     private fun findImplementedInterfaceMethods(
         clazz: String, interfaces: Set<String>
     ): HashMap<Int, MethodSig> {
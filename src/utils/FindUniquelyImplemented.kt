@@ -6,13 +6,15 @@ import me.anno.utils.Clock
 import me.anno.utils.algorithms.Recursion
 import me.anno.utils.structures.maps.CountMap
 import org.apache.logging.log4j.LogManager
+import java.util.concurrent.ConcurrentHashMap
 
 private val LOGGER = LogManager.getLogger("FindUniquelyImplemented")
 
-private val childImplementationMap = HashMap<MethodSig, HashSet<MethodSig>>(1 shl 12)
+private val childImplementationMap = ConcurrentHashMap<MethodSig, HashSet<MethodSig>>(1 shl 12)
 fun findConstructableChildImplementations(sig: MethodSig): Set<MethodSig> {
     return if (sig.className in dIndex.constructableClasses) {
-        childImplementationMap.getOrPut(sig) {
+        // recursive, so computeIfAbsent cannot be used; putIfAbsent still publishes a single instance
+        childImplementationMap[sig] ?: run {
             val variants = HashSet<MethodSig>()
             val mapped = hIndex.getAlias(sig)
             if (mapped in hIndex.jvmImplementedMethods || mapped in hIndex.customImplementedMethods) {
@@ -24,7 +26,7 @@ fun findConstructableChildImplementations(sig: MethodSig): Set<MethodSig> {
                     variants.addAll(findConstructableChildImplementations(sig.withClass(child)))
                 }
             }
-            variants
+            childImplementationMap.putIfAbsent(sig, variants) ?: variants
         }
     } else emptySet()
 }
@@ -0,0 +1,125 @@
+package utils
+
+import canThrowError
+import dIndex
+import hIndex
+import useGLCommandBuffer
+import utils.NativeHelperFunctions.register
+import wasm.instr.Call
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Const.Companion.i64Const
+import wasm.instr.Instruction
+import wasm.instr.Instructions.I32_REINTERPRET_F32
+import wasm.instr.Instructions.I32_WRAP_I64
+import wasm.instr.Instructions.I64ShrU
+import wasm.instr.Instructions.Return
+import wasm.instr.ParamGet
+
+/**
+ * Instead of importing GL calls, which don't return anything, and only take primitive arguments,
+ * WASM functions are generated, which encode them into jvm/GLCommandBuffer.
+ * JavaScript decodes them in a single loop in glFlush(), using the glCommands-function from index0.js.
+ * */
+object GLCommandEncoder {
+
+    private const val GL_CLASS = "jvm/LWJGLxOpenGL"
+    private val begin = Call("glCommandBegin")
+    private val put = Call("glCommandPut")
+
+    private val bufferableTypes = setOf("boolean", "byte", "short", "char", "int", "float", "long")
+
+    /**
+     * buffered calls, index = command id
+     * */
+    val bufferedCalls: List<MethodSig> by lazy { findBufferedCalls() }
+    private val bufferedSet by lazy { bufferedCalls.toHashSet() }
+
+    private fun getCode(sig: MethodSig): String? {
+        return hIndex.getAnnotation(sig, Annotations.JAVASCRIPT_FOR_WASM)?.properties?.get("code") as? String
+    }
+
+    private fun findBufferedCalls(): List<MethodSig> {
+        if (!useGLCommandBuffer) return emptyList()
+        return dIndex.usedMethods.filter { sig ->
+            val code = getCode(sig)
+            sig.className == GL_CLASS && code != null &&
+                    hIndex.isNative(sig) && hIndex.isStatic(sig) && !canThrowError(sig) &&
+                    sig.descriptor.returnType == null &&
+                    // glFlush() and glFinish() are expected to block
+                    sig.descriptor.params.isNotEmpty() &&
+                    sig.descriptor.params.all { it in bufferableTypes } &&
+                    "return" !in code && "throw" !in code
+        }.sortedBy { methodName(it) }
+    }
+
+    fun isBuffered(sig: MethodSig): Boolean {
+        return sig in bufferedSet
+    }
+
+    /**
+     * GL calls, which aren't buffered, and natives marked with @UsesGL must see all previous GL calls
+     * */
+    fun needsFlush(sig: MethodSig): Boolean {
+        return bufferedCalls.isNotEmpty() && !isBuffered(sig) &&
+                (sig.className == GL_CLASS || hIndex.hasAnnotation(sig, Annotations.USES_GL))
+    }
+
+    private fun getNumWords(params: List<String>): Int {
+        return params.size + params.count { it == "long" }
+    }
+
+    fun appendEncoderFunctions() {
+        for ((commandId, sig) in bufferedCalls.withIndex()) {
+            val params = sig.descriptor.params
+            val body = ArrayList<Instruction>(3 + params.size * 3)
+            body.add(i32Const(commandId))
+            body.add(i32Const(getNumWords(params)))
+            body.add(begin)
+            for (i in params.indices) {
+                when (params[i]) {
+                    "float" -> body.addAll(listOf(ParamGet[i], I32_REINTERPRET_F32, put))
+                    "long" -> body.addAll(
+                        listOf(
+                            ParamGet[i], I32_WRAP_I64, put,
+                            ParamGet[i], i64Const(32), I64ShrU, I32_WRAP_I64, put
+                        )
+                    )
+                    else -> body.addAll(listOf(ParamGet[i], put))
+                }
+            }
+            body.add(Return)
+            for (name in methodNames(sig).distinct()) {
+                register(name, params, emptyList(), body)
+            }
+        }
+    }
+
+    /**
+     * appends glCommands(id,i32,f32,i), which executes a single command, and returns the index of the next one
+     * */
+    fun appendDecoder(printer: StringBuilder2) {
+        if (bufferedCalls.isEmpty()) return
+        printer.append("  \n  // Buffered GL calls, executed by glFlush():\n")
+        printer.append("  glCommands(id,i32,f32,i) {\n")
+        printer.append("    switch(id) {\n")
+        for ((commandId, sig) in bufferedCalls.withIndex()) {
+            val params = sig.descriptor.params
+            printer.append("      case ").append(commandId).append(": {")
+            var offset = 0
+            for (j in params.indices) {
+                printer.append(" let arg").append(j).append(" = ")
+                when (params[j]) {
+                    "float" -> printer.append("f32[i+").append(offset).append("];")
+                    "long" -> printer.append("BigInt(i32[i+").append(offset).append("]>>>0)|(BigInt(i32[i+")
+                        .append(offset + 1).append("])<<32n);")
+                    else -> printer.append("i32[i+").append(offset).append("];")
+                }
+                offset += if (params[j] == "long") 2 else 1
+            }
+            printer.append(' ').append(getCode(sig)!!).append("; return i+").append(offset).append(" }\n")
+        }
+        printer.append("      default: throw ('Unknown GL command '+id);\n")
+        printer.append("    }\n")
+        printer.append("  },\n")
+    }
+}
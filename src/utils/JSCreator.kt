@@ -1,6 +1,9 @@
 package utils
 
+import buildSIMDFlavor
 import jvm.JVMFlags.is32Bits
+import jvm.JVMFlags.useSharedMemory
+import maxSharedMemoryPages
 import org.apache.logging.log4j.LogManager
 
 private val LOGGER = LogManager.getLogger("JSCreator")
@@ -27,8 +30,11 @@ fun writeJavaScriptImportsFile(
     for ((name, codeSig) in jsImplemented.toSortedMap()) {
         val (sig, js) = codeSig
         jsHeader(name, sig)
-        printer.append(") {").append(js).append("},\n")
+        printer.append(") {")
+        if (GLCommandEncoder.needsFlush(sig)) printer.append("glFlush();")
+        printer.append(js).append("},\n")
     }
+    GLCommandEncoder.appendDecoder(printer)
 
     printer.append("  \n  // Not properly implemented:\n")
     for ((name, sig) in jsPseudoImplemented.toSortedMap()) {
@@ -37,7 +43,10 @@ fun writeJavaScriptImportsFile(
     }
     printer.append("  \n  // Initially required memory in 64 kiB pages:\n")
     printer.append("  initialMemorySize: ").append(numPages).append(",\n")
-    printer.append("  is32Bits: ").append(is32Bits).append('\n')
+    printer.append("  is32Bits: ").append(is32Bits).append(",\n")
+    printer.append("  hasSIMDFlavor: ").append(buildSIMDFlavor && is32Bits).append(",\n")
+    printer.append("  useSharedMemory: ").append(useSharedMemory).append(",\n")
+    printer.append("  maximumMemorySize: ").append(maxSharedMemoryPages).append('\n')
     printer.append("}\nexport { lib as \"autoJS\" }")
     wasmFolder.getChild("index0.js")
         .writeBytes(printer.values, 0, printer.size)
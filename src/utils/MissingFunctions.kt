@@ -22,6 +22,9 @@ object MissingFunctions {
             if (name in dIndex.constructableClasses) {
                 usedButNotImplemented.remove(methodName(dlu.calledMethod))
                 usedButNotImplemented.remove(methodName(dlu.bridgeMethod))
+                for (bridge in dlu.specializedBridges) {
+                    usedButNotImplemented.remove(methodName(bridge))
+                }
             }
         }
 
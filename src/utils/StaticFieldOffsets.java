@@ -54,4 +54,8 @@ public class StaticFieldOffsets {
 
     public static final int OFFSET_READER_LOCK = objectOverhead;
 
+    // only registered with JVMFlags.useNativeThreads
+    public static final int OFFSET_ATOMIC_INT_VALUE = objectOverhead;
+    public static final int OFFSET_ATOMIC_LONG_VALUE = objectOverhead + intSize; // aligned
+
 }
@@ -7,6 +7,11 @@ public class WASMTypes {
     public static final String i32 = "i32";
     public static final String i64 = "i64";
 
+    /**
+     * only used on the operand stack, by the SIMD flavor
+     */
+    public static final String v128 = "v128";
+
     public static final int numWASMTypes = 4;
 
     public static boolean isWASMType(String name) {
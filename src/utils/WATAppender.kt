@@ -1,11 +1,15 @@
 package utils
 
 import dIndex
+import enableTracing
+import byteStrings
+import compressResourcesMinSize
 import gIndex
 import hIndex
 import implementedMethods
 import jvm.JVMFlags.is32Bits
 import jvm.JVMFlags.ptrSize
+import jvm.JVMFlags.useNativeThreads
 import jvm.JVMShared.*
 import me.anno.io.Streams.writeLE32
 import me.anno.io.Streams.writeLE64
@@ -23,14 +27,18 @@ import translator.GeneratorIndex.alignPointer
 import translator.GeneratorIndex.checkAlignment
 import translator.GeneratorIndex.stringStart
 import translator.MethodTranslator
+import useNativeStackTraces
 import utils.Annotations.appendAnnotations
 import utils.MethodResolver.resolveMethod
 import utils.StaticClassIndices.BYTE_ARRAY
 import utils.StaticClassIndices.OBJECT_ARRAY
 import utils.StaticFieldOffsets.*
 import wasm.parser.DataSection
+import writeWAT
 import java.io.OutputStream
+import java.util.zip.Deflater
 import kotlin.math.abs
+import kotlin.math.max
 
 private val LOGGER = LogManager.getLogger("WATAppender")
 
@@ -463,41 +471,134 @@ fun appendStackTraceTable(printer: StringBuilder2, ptr0: Int): Int {
     return appendData(printer, ptr0, MethodTranslator.stackTraceTable)
 }
 
+var nativeTraceTablePtr = 0
+fun appendNativeTraceTable(printer: StringBuilder2, ptr0: Int): Int {
+    if (!enableTracing || !useNativeStackTraces) return ptr0
+    val entries = MethodTranslator.nativeTraceEntries
+    LOGGER.info("[appendNativeTraceTable]: ${entries.size} functions")
+    nativeTraceTablePtr = ptr0
+    val (seed, byHash) = findNativeTraceSeed(entries)
+    // length, seed, [function name hash, stack trace index]x, sorted by hash for binary search
+    val data = ByteArrayOutputStream2(8 + entries.size * 8)
+    data.writeLE32(byHash.size)
+    data.writeLE32(seed)
+    for (hash in byHash.keys.sorted()) {
+        data.writeLE32(hash)
+        data.writeLE32(byHash[hash]!!)
+    }
+    return appendData(printer, ptr0, data)
+}
+
+/**
+ * two functions with the same hash cannot be told apart at runtime, so try other seeds until all hashes are unique
+ * */
+private fun findNativeTraceSeed(entries: Map<String, Int>): Pair<Int, Map<Int, Int>> {
+    val byHash = HashMap<Int, Int>(entries.size)
+    for (attempt in 0 until 256) {
+        val seed = MethodTranslator.NATIVE_TRACE_SEED + attempt
+        byHash.clear()
+        val isUnique = entries.all { (funcName, index) ->
+            byHash.put(MethodTranslator.hashFunctionName(funcName, seed), index) == null
+        }
+        if (isUnique) {
+            if (attempt > 0) LOGGER.info("[appendNativeTraceTable]: resolved hash collisions with seed #$attempt")
+            return seed to byHash
+        }
+    }
+    throw IllegalStateException("Function name hashes of ${entries.size} functions collide for all seeds")
+}
+
+var interfaceCacheTablePtr = 0
+fun appendInterfaceCacheTable(ptr0: Int): Int {
+    val numSlots = gIndex.numInterfaceCacheSlots
+    LOGGER.info("[appendInterfaceCacheTable]: $numSlots slots")
+    // entries are read and written as aligned 64-bit words, atomically with threads
+    val ptr = alignPointer(ptr0, 8)
+    interfaceCacheTablePtr = ptr
+    // two entries of (classId + 1, function index) per slot; memory starts zeroed, so no data is needed
+    return ptr + numSlots * 16
+}
+
 var resourceTablePtr = 0
+
+/**
+ * mask, number of resources, then an open-addressed hash table of
+ * [hash, inflatedSize or -1, String path or null, byte[] data]x, with a load factor of at most 1/2;
+ * the hash is String.hashCode() over the chars, which the runtime sees, see JavaReflect.getResourceHash()
+ * */
 fun appendResourceTable(printer: StringBuilder2, ptr0: Int): Int {
-    LOGGER.info("[appendResourceTable]")
     resourceTablePtr = ptr0
     val resources = resources
-    val elementSize = 2 * ptrSize
+    val numSlots = max(Integer.highestOneBit(resources.size) shl 2, 1)
+    LOGGER.info("[appendResourceTable]: ${resources.size} resources, $numSlots slots")
+    val slotSize = 2 * intSize + 2 * ptrSize
     val stringOverhead = objectOverhead + arrayOverhead
-    val tableSizeGuess = resources.size * elementSize + intSize +
+    val tableSizeGuess = 2 * intSize + numSlots * slotSize +
             resources.sumOf { (path, data) ->
                 path.length + data.size
             } + resources.size * (arrayOverhead + stringOverhead)
     val table = ByteArrayOutputStream2(tableSizeGuess)
+    table.writeLE32(numSlots - 1)
     table.writeLE32(resources.size)
-    table.fill(0, resources.size * elementSize)
-    // append names without stride for better cache locality:
-    val names = resources.map { (path, _) ->
-        gIndex.getString(path, ptr0, table)
-    }
-    for (i in resources.indices) {
-        val resource = resources[i]
-        val keyPtr = names[i]
+    table.fill(0, numSlots * slotSize)
+    val usedSlots = BooleanArray(numSlots)
+    var savedBytes = 0
+    for ((path, value) in resources) {
+        val hash = getResourceHash(path)
+        var slot = hash and (numSlots - 1)
+        while (usedSlots[slot]) slot = (slot + 1) and (numSlots - 1)
+        usedSlots[slot] = true
+
+        val keyPtr = gIndex.getString(path, ptr0, table)
+        val deflated = if (value.size >= compressResourcesMinSize) deflate(value) else null
+        // only worth inflating, if a significant part is saved
+        val stored = if (deflated != null && deflated.size < value.size - (value.size shr 3)) deflated else value
+        savedBytes += value.size - stored.size
+
+        alignBuffer(table, ptrSize)
         val valuePtr = ptr0 + table.position
-        val value = resource.second
         table.writeClass(BYTE_ARRAY)
-        table.writeLE32(value.size)
-        table.write(value)
-        val pos = table.position
-        table.position = i * elementSize + intSize
-        table.writePointer(keyPtr)
-        table.writePointer(valuePtr)
-        table.position = pos
+        table.writeLE32(stored.size)
+        table.write(stored)
+
+        val slotStart = 2 * intSize + slot * slotSize
+        table.writeLE32At(hash, slotStart)
+        table.writeLE32At(if (stored === value) -1 else value.size, slotStart + intSize)
+        table.writePointerAt(keyPtr, slotStart + 2 * intSize)
+        table.writePointerAt(valuePtr, slotStart + 2 * intSize + ptrSize)
     }
+    if (savedBytes > 0) LOGGER.info("Compressing resources saved ${savedBytes.formatFileSize()}")
     return appendData(printer, ptr0, table)
 }
 
+private fun getResourceHash(path: String): Int {
+    if (!byteStrings) return path.hashCode()
+    // strings are stored as UTF-8, and charAt() returns the unsigned bytes
+    var hash = 0
+    for (byte in path.toByteArray()) {
+        hash = hash * 31 + (byte.toInt() and 255)
+    }
+    return hash
+}
+
+private fun deflate(data: ByteArray): ByteArray {
+    // raw DEFLATE, which jvm.custom.Inflater(nowrap = true) reads
+    val deflater = Deflater(Deflater.BEST_COMPRESSION, true)
+    try {
+        deflater.setInput(data)
+        deflater.finish()
+        val result = ByteArrayOutputStream2(data.size / 2 + 64)
+        val buffer = ByteArray(4096)
+        while (!deflater.finished()) {
+            val length = deflater.deflate(buffer)
+            result.write(buffer, 0, length)
+        }
+        return result.toByteArray()
+    } finally {
+        deflater.end()
+    }
+}
+
 fun appendFunctionTypes(printer: StringBuilder2) {
     // append all wasm types
     // (type $ft (func (param i32)))
@@ -537,6 +638,8 @@ fun appendStaticInstanceTable(printer: StringBuilder2, ptr0: Int, numClasses: In
     staticFieldOffsetsPtr = ptr0
     staticInitFlagsPtr = ptr0 + 4 * numClasses // 4 bytes for offset to static memory
     staticFieldsStartPtr = alignPointer(staticInitFlagsPtr + numClasses) // 1 byte for flag for init
+    // NativeThreads reads and writes the flags as whole words
+    if (useNativeThreads) assertEquals(0, staticInitFlagsPtr and 3)
     var ptr = staticFieldsStartPtr
     val staticFieldOffsets = ByteArrayOutputStream2(numClasses * 4)
     for (i in 0 until numClasses) {
@@ -599,9 +702,11 @@ fun appendData(printer: StringBuilder2, startIndex: Int, data: ByteArray): Int {
     checkNoOtherSectionOverlaps(startIndex, data.size)
 
     dataSections.add(DataSection(startIndex, data))
-    printer.append("(data ($ptrType.const ${startIndex}) \"")
-    writeData(printer, data)
-    printer.append("\")\n")
+    if (writeWAT) {
+        printer.append("(data ($ptrType.const ${startIndex}) \"")
+        writeData(printer, data)
+        printer.append("\")\n")
+    }
     return startIndex + data.size
 }
 
@@ -0,0 +1,126 @@
+package wasm.instr
+
+import interpreter.WASMEngine
+import utils.WASMType
+import utils.WASMTypes.i32
+import utils.WASMTypes.i64
+import utils.ptrType
+import wasm.writer.Opcode
+
+/**
+ * Instruction from the threads proposal, encoded as Opcode.ATOMIC_PREFIX, then the opcode as u32-leb128, then a memarg.
+ * All of them take the address first, which must be aligned to numBytes.
+ * WASMEngine only ever runs a single thread, so it executes them like plain loads and stores.
+ * */
+abstract class AtomicInstr(
+    name: String, opcode: Opcode, val wasmType: WASMType, val numBytes: Int,
+    val params: List<String>, val results: List<String>
+) : SimpleInstr(name, opcode) {
+
+    fun checkAddress(engine: WASMEngine, addr: Int) {
+        if (addr < 0 || addr + numBytes > engine.bytes.size || addr % numBytes != 0) {
+            throw IllegalStateException("Segfault! Tried to $name at $addr, capacity: ${engine.bytes.size}")
+        }
+    }
+
+    fun load(engine: WASMEngine, addr: Int): Number {
+        checkAddress(engine, addr)
+        return if (wasmType == WASMType.I64) engine.buffer.getLong(addr) else engine.buffer.getInt(addr)
+    }
+
+    fun store(engine: WASMEngine, addr: Int, value: Number) {
+        checkAddress(engine, addr)
+        if (wasmType == WASMType.I64) engine.buffer.putLong(addr, value.toLong())
+        else engine.buffer.putInt(addr, value.toInt())
+    }
+}
+
+class AtomicLoadInstr(name: String, opcode: Opcode, wasmType: WASMType, numBytes: Int) :
+    AtomicInstr(name, opcode, wasmType, numBytes, listOf(ptrType), listOf(wasmType.wasmName)) {
+    override fun execute(engine: WASMEngine): String? {
+        val addr = engine.pop().toInt()
+        engine.push(load(engine, addr))
+        return null
+    }
+}
+
+class AtomicStoreInstr(name: String, opcode: Opcode, wasmType: WASMType, numBytes: Int) :
+    AtomicInstr(name, opcode, wasmType, numBytes, listOf(ptrType, wasmType.wasmName), emptyList()) {
+    override fun execute(engine: WASMEngine): String? {
+        val value = engine.pop()
+        val addr = engine.pop().toInt()
+        store(engine, addr, value)
+        return null
+    }
+}
+
+/**
+ * read-modify-write; returns the previous value
+ * */
+class AtomicRMWInstr(
+    name: String, opcode: Opcode, wasmType: WASMType, numBytes: Int,
+    val impl: (oldValue: Number, operand: Number) -> Number
+) : AtomicInstr(name, opcode, wasmType, numBytes, listOf(ptrType, wasmType.wasmName), listOf(wasmType.wasmName)) {
+    override fun execute(engine: WASMEngine): String? {
+        val operand = engine.pop()
+        val addr = engine.pop().toInt()
+        val oldValue = load(engine, addr)
+        store(engine, addr, impl(oldValue, operand))
+        engine.push(oldValue)
+        return null
+    }
+}
+
+/**
+ * takes (addr, expected, replacement), and returns the previous value, which equals expected on success
+ * */
+class AtomicCompareExchangeInstr(name: String, opcode: Opcode, wasmType: WASMType, numBytes: Int) : AtomicInstr(
+    name, opcode, wasmType, numBytes,
+    listOf(ptrType, wasmType.wasmName, wasmType.wasmName), listOf(wasmType.wasmName)
+) {
+    override fun execute(engine: WASMEngine): String? {
+        val replacement = engine.pop()
+        val expected = engine.pop()
+        val addr = engine.pop().toInt()
+        val oldValue = load(engine, addr)
+        if (oldValue.toLong() == expected.toLong()) store(engine, addr, replacement)
+        engine.push(oldValue)
+        return null
+    }
+}
+
+/**
+ * memory.atomic.wait32/64 take (addr, expected, timeout in nanoseconds, negative = forever),
+ * and return 0 = woken, 1 = value wasn't expected, 2 = timed out
+ * */
+class AtomicWaitInstr(name: String, opcode: Opcode, wasmType: WASMType, numBytes: Int) : AtomicInstr(
+    name, opcode, wasmType, numBytes,
+    listOf(ptrType, wasmType.wasmName, i64), listOf(i32)
+) {
+    override fun execute(engine: WASMEngine): String? {
+        val timeout = engine.pop().toLong()
+        val expected = engine.pop()
+        val addr = engine.pop().toInt()
+        if (load(engine, addr).toLong() != expected.toLong()) {
+            engine.push(1)
+        } else if (timeout >= 0) {
+            engine.push(2) // nobody else could notify us
+        } else {
+            throw IllegalStateException("$name would wait forever at $addr")
+        }
+        return null
+    }
+}
+
+/**
+ * memory.atomic.notify takes (addr, max number of waiters to wake up), and returns the number of woken waiters
+ * */
+class AtomicNotifyInstr(name: String, opcode: Opcode) :
+    AtomicInstr(name, opcode, WASMType.I32, 4, listOf(ptrType, i32), listOf(i32)) {
+    override fun execute(engine: WASMEngine): String? {
+        engine.pop() // count
+        checkAddress(engine, engine.pop().toInt())
+        engine.push(0)
+        return null
+    }
+}
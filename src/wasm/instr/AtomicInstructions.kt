@@ -0,0 +1,37 @@
+package wasm.instr
+
+import utils.WASMType
+import wasm.writer.Opcode
+
+/**
+ * the subset of the threads proposal, which WorkerThreads and the atomic natives of NativeThreads need,
+ * see FirstMethodIndexer.addAtomicWASM()
+ * */
+object AtomicInstructions {
+
+    val I32AtomicLoad = AtomicLoadInstr("i32.atomic.load", Opcode.I32_ATOMIC_LOAD, WASMType.I32, 4)
+    val I64AtomicLoad = AtomicLoadInstr("i64.atomic.load", Opcode.I64_ATOMIC_LOAD, WASMType.I64, 8)
+    val I32AtomicStore = AtomicStoreInstr("i32.atomic.store", Opcode.I32_ATOMIC_STORE, WASMType.I32, 4)
+    val I64AtomicStore = AtomicStoreInstr("i64.atomic.store", Opcode.I64_ATOMIC_STORE, WASMType.I64, 8)
+
+    val I32AtomicRMWAdd = AtomicRMWInstr("i32.atomic.rmw.add", Opcode.I32_ATOMIC_RMW_ADD, WASMType.I32, 4) { a, b ->
+        a.toInt() + b.toInt()
+    }
+    val I64AtomicRMWAdd = AtomicRMWInstr("i64.atomic.rmw.add", Opcode.I64_ATOMIC_RMW_ADD, WASMType.I64, 8) { a, b ->
+        a.toLong() + b.toLong()
+    }
+    val I32AtomicRMWXchg = AtomicRMWInstr("i32.atomic.rmw.xchg", Opcode.I32_ATOMIC_RMW_XCHG, WASMType.I32, 4) { _, b ->
+        b.toInt()
+    }
+    val I64AtomicRMWXchg = AtomicRMWInstr("i64.atomic.rmw.xchg", Opcode.I64_ATOMIC_RMW_XCHG, WASMType.I64, 8) { _, b ->
+        b.toLong()
+    }
+
+    val I32AtomicRMWCmpxchg =
+        AtomicCompareExchangeInstr("i32.atomic.rmw.cmpxchg", Opcode.I32_ATOMIC_RMW_CMPXCHG, WASMType.I32, 4)
+    val I64AtomicRMWCmpxchg =
+        AtomicCompareExchangeInstr("i64.atomic.rmw.cmpxchg", Opcode.I64_ATOMIC_RMW_CMPXCHG, WASMType.I64, 8)
+
+    val MemoryAtomicWait32 = AtomicWaitInstr("memory.atomic.wait32", Opcode.MEMORY_ATOMIC_WAIT32, WASMType.I32, 4)
+    val MemoryAtomicNotify = AtomicNotifyInstr("memory.atomic.notify", Opcode.MEMORY_ATOMIC_NOTIFY)
+}
@@ -0,0 +1,33 @@
+package wasm.instr
+
+import interpreter.WASMEngine
+import wasm.writer.Opcode
+
+/**
+ * memory.copy and memory.fill from the bulk-memory proposal;
+ * they take (dst: ptr, srcOrValue, length: ptr), and are encoded after Opcode.MISC_PREFIX
+ * */
+class BulkMemoryInstr(
+    name: String, opcode: Opcode, val valueType: String,
+    val impl: (memory: ByteArray, dst: Int, srcOrValue: Int, length: Int) -> Unit
+) : SimpleInstr(name, opcode) {
+
+    /**
+     * memory.copy has a source address, which must be bounds-checked, too
+     * */
+    val isCopy get() = opcode == Opcode.MEMORY_COPY
+
+    override fun execute(engine: WASMEngine): String? {
+        val length = engine.pop().toInt()
+        val srcOrValue = engine.pop().toInt()
+        val dst = engine.pop().toInt()
+        val memory = engine.bytes
+        if (length < 0 || dst < 0 || dst + length > memory.size ||
+            (isCopy && (srcOrValue < 0 || srcOrValue + length > memory.size))
+        ) {
+            throw IllegalStateException("Segfault! Tried to $name $dst += $length, capacity: ${memory.size}")
+        }
+        impl(memory, dst, srcOrValue, length)
+        return null
+    }
+}
@@ -57,8 +57,13 @@ data class Call(val name: String) : Instruction {
         val f64ArrayStore = Call("f64ArrayStore")
         val f64ArrayStoreU = Call("f64ArrayStoreU")
 
+        // reference stores with write barrier
+        val ptrArrayStore = Call("ptrArrayStore")
+        val ptrArrayStoreU = Call("ptrArrayStoreU")
+
         val arrayLength = Call("arrayLength")
         val arrayLengthU = Call("arrayLengthU")
+        val throwArrayAccess = Call("throwArrayAccess")
 
         val resolveIndirect = Call("resolveIndirect")
         val resolveIndirectFail = Call("resolveIndirectFail")
@@ -69,6 +74,7 @@ data class Call(val name: String) : Instruction {
         val setFieldI64 = Call("setFieldI64")
         val setFieldF32 = Call("setFieldF32")
         val setFieldF64 = Call("setFieldF64")
+        val setFieldPtr = Call("setFieldPtr")
 
         // value-instance-offset setters
         val setVIOFieldI8 = Call("setVIOFieldI8")
@@ -77,6 +83,7 @@ data class Call(val name: String) : Instruction {
         val setVIOFieldI64 = Call("setVIOFieldI64")
         val setVIOFieldF32 = Call("setVIOFieldF32")
         val setVIOFieldF64 = Call("setVIOFieldF64")
+        val setVIOFieldPtr = Call("setVIOFieldPtr")
 
         val setStaticFieldI8 = Call("setStaticFieldI8")
         val setStaticFieldI16 = Call("setStaticFieldI16")
@@ -151,6 +158,14 @@ data class Call(val name: String) : Instruction {
         val d2i = Call("d2i")
         val d2l = Call("d2l")
 
+        /**
+         * only used with JVMFlags.useNativeThreads
+         * */
+        val monitorEnter = Call("monitorEnter")
+        val monitorExit = Call("monitorExit")
+        val endStaticInit = Call("endStaticInit")
+
         val resolveInterface = Call("resolveInterface")
+        val resolveInterfaceCached = Call("resolveInterfaceCached")
     }
 }
\ No newline at end of file
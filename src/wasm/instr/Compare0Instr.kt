@@ -10,9 +10,30 @@ class Compare0Instr(name: String, operator: BinaryOperator, type: String, opcode
     override fun execute(engine: WASMEngine): String? {
         val stack = engine.stack
         val i1 = stack.pop()!!
-        @Suppress("UNCHECKED_CAST")
-        val i0 = stack.pop()!! as Comparable<Number>
-        stack.add(if (impl(i0.compareTo(i1))) 1 else 0)
+        val i0 = stack.pop()!!
+        val result = if (i0 is Float || i0 is Double) {
+            compareIEEE(i0.toDouble(), i1.toDouble())
+        } else {
+            @Suppress("UNCHECKED_CAST")
+            impl((i0 as Comparable<Number>).compareTo(i1))
+        }
+        stack.add(if (result) 1 else 0)
         return null
     }
+
+    /**
+     * compareTo() orders NaN after everything, and -0.0 before 0.0;
+     * WASM follows IEEE 754: all comparisons with NaN are false except ne, and -0.0 equals 0.0
+     * */
+    private fun compareIEEE(a: Double, b: Double): Boolean {
+        return when (operator) {
+            BinaryOperator.GREATER_EQUAL -> a >= b
+            BinaryOperator.LESS_EQUAL -> a <= b
+            BinaryOperator.GREATER -> a > b
+            BinaryOperator.LESS -> a < b
+            BinaryOperator.NOT_EQUAL -> a != b
+            BinaryOperator.EQUAL -> a == b
+            else -> throw NotImplementedError(operator.symbol)
+        }
+    }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package wasm.instr
 
 import utils.WASMType
 import utils.WASMTypes.*
+import utils.ptrType
 import wasm.instr.NumberCastInstruction.Companion.f32BitsToI32
 import wasm.instr.NumberCastInstruction.Companion.f64BitsToI64
 import wasm.instr.NumberCastInstruction.Companion.i32BitsToF32
@@ -42,8 +43,16 @@ object Instructions {
     val F32Store = StoreInstr("f32.store", WASMType.F32, 4, Opcode.F32_STORE) { m, v -> m.putFloat(v.toFloat()) }
     val F64Store = StoreInstr("f64.store", WASMType.F64, 8, Opcode.F64_STORE) { m, v -> m.putDouble(v.toDouble()) }
 
-    val I32Load8U = LoadInstr("i32.load8_u", WASMType.I32, 1, Opcode.I32_LOAD8U) { it.get().toInt() }
-    val I32Load8S = LoadInstr("i32.load8_s", WASMType.I32, 1, Opcode.I32_LOAD8S) { it.get().toInt().and(0xff) }
+    // memory.copy has memmove-semantics, so overlapping ranges are fine
+    val MemoryCopy = BulkMemoryInstr("memory.copy", Opcode.MEMORY_COPY, ptrType) { m, dst, src, length ->
+        System.arraycopy(m, src, m, dst, length)
+    }
+    val MemoryFill = BulkMemoryInstr("memory.fill", Opcode.MEMORY_FILL, i32) { m, dst, value, length ->
+        m.fill(value.toByte(), dst, dst + length)
+    }
+
+    val I32Load8U = LoadInstr("i32.load8_u", WASMType.I32, 1, Opcode.I32_LOAD8U) { it.get().toInt().and(0xff) }
+    val I32Load8S = LoadInstr("i32.load8_s", WASMType.I32, 1, Opcode.I32_LOAD8S) { it.get().toInt() }
     val I32Load16U =
         LoadInstr("i32.load16_u", WASMType.I32, 2, Opcode.I32_LOAD16U) { it.getShort().toInt().and(0xffff) }
     val I32Load16S = LoadInstr("i32.load16_s", WASMType.I32, 2, Opcode.I32_LOAD16S) { it.getShort() }
@@ -78,7 +87,8 @@ object Instructions {
     val F32_DEMOTE_F64 = NumberCastInstruction("f32.demote_f64", f64, f32, Opcode.F32_DEMOTE_F64, Number::toFloat)
 
     val I64_EXTEND_I32S = NumberCastInstruction("i64.extend_i32_s", i32, i64, Opcode.I64_EXTEND_I32S, Number::toLong)
-    val I64_EXTEND_I32U = NumberCastInstruction("i64.extend_i32_u", i32, i64, Opcode.I64_EXTEND_I32U, Number::toLong)
+    val I64_EXTEND_I32U =
+        NumberCastInstruction("i64.extend_i32_u", i32, i64, Opcode.I64_EXTEND_I32U) { it.toInt().toLong().and(0xffffffffL) }
     val I32_WRAP_I64 = NumberCastInstruction("i32.wrap_i64", i64, i32, Opcode.I32_WRAP_I64, Number::toInt)
     val F32_CONVERT_I32S =
         NumberCastInstruction("f32.convert_i32_s", i32, f32, Opcode.F32_CONVERT_I32S, Number::toFloat)
@@ -0,0 +1,153 @@
+package wasm.instr
+
+import interpreter.WASMEngine
+import utils.WASMTypes.*
+import utils.ptrType
+import wasm.writer.Opcode
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * how the 16 bytes of a v128 are split into lanes
+ * */
+enum class LaneShape(val laneType: String, val numLanes: Int) {
+    I32X4(i32, 4),
+    I64X2(i64, 2),
+    F32X4(f32, 4),
+    F64X2(f64, 2);
+
+    val laneSize get() = 16 / numLanes
+}
+
+/**
+ * v128 on the stack of WASMEngine, which only stores numbers
+ * */
+class V128(val bytes: ByteArray = ByteArray(16)) : Number() {
+
+    private val buffer: ByteBuffer get() = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+
+    fun getLane(shape: LaneShape, lane: Int): Number {
+        val offset = lane * shape.laneSize
+        return when (shape) {
+            LaneShape.I32X4 -> buffer.getInt(offset)
+            LaneShape.I64X2 -> buffer.getLong(offset)
+            LaneShape.F32X4 -> buffer.getFloat(offset)
+            LaneShape.F64X2 -> buffer.getDouble(offset)
+        }
+    }
+
+    fun setLane(shape: LaneShape, lane: Int, value: Number) {
+        val offset = lane * shape.laneSize
+        when (shape) {
+            LaneShape.I32X4 -> buffer.putInt(offset, value.toInt())
+            LaneShape.I64X2 -> buffer.putLong(offset, value.toLong())
+            LaneShape.F32X4 -> buffer.putFloat(offset, value.toFloat())
+            LaneShape.F64X2 -> buffer.putDouble(offset, value.toDouble())
+        }
+    }
+
+    private fun notScalar(): Nothing = throw UnsupportedOperationException("v128 is not a scalar")
+
+    override fun toByte(): Byte = notScalar()
+    override fun toShort(): Short = notScalar()
+    override fun toInt(): Int = notScalar()
+    override fun toLong(): Long = notScalar()
+    override fun toFloat(): Float = notScalar()
+    override fun toDouble(): Double = notScalar()
+
+    override fun toString(): String {
+        return bytes.joinToString(" ", "v128(", ")") { (it.toInt() and 0xff).toString(16) }
+    }
+
+    companion object {
+        fun create(shape: LaneShape, lane: (Int) -> Number): V128 {
+            val value = V128()
+            for (i in 0 until shape.numLanes) {
+                value.setLane(shape, i, lane(i))
+            }
+            return value
+        }
+    }
+}
+
+/**
+ * Instruction from the fixed-width SIMD proposal, encoded as Opcode.SIMD_PREFIX, then the opcode as u32-leb128.
+ * v128 values only ever live on the operand stack (LoopVectorizer doesn't need v128 locals),
+ * so these don't extend BinaryInstruction or UnaryInstruction, which the scalar passes match on.
+ * */
+abstract class SIMDInstr(
+    name: String, opcode: Opcode,
+    val params: List<String>, val results: List<String>
+) : SimpleInstr(name, opcode)
+
+class V128LoadInstr(name: String, opcode: Opcode) : SIMDInstr(name, opcode, listOf(ptrType), listOf(v128)) {
+    override fun execute(engine: WASMEngine): String? {
+        val addr = engine.pop().toInt()
+        val bytes = engine.bytes
+        if (addr < 0 || addr + 16 > bytes.size) {
+            throw IllegalStateException("Segfault! Tried to $name at $addr, capacity: ${bytes.size}")
+        }
+        engine.push(V128(bytes.copyOfRange(addr, addr + 16)))
+        return null
+    }
+}
+
+class V128StoreInstr(name: String, opcode: Opcode) : SIMDInstr(name, opcode, listOf(ptrType, v128), emptyList()) {
+    override fun execute(engine: WASMEngine): String? {
+        val value = engine.pop() as V128
+        val addr = engine.pop().toInt()
+        val bytes = engine.bytes
+        if (addr < 0 || addr + 16 > bytes.size) {
+            throw IllegalStateException("Segfault! Tried to $name at $addr, capacity: ${bytes.size}")
+        }
+        value.bytes.copyInto(bytes, addr)
+        return null
+    }
+}
+
+class SplatInstr(name: String, opcode: Opcode, val shape: LaneShape) :
+    SIMDInstr(name, opcode, listOf(shape.laneType), listOf(v128)) {
+    override fun execute(engine: WASMEngine): String? {
+        val value = engine.pop()
+        engine.push(V128.create(shape) { value })
+        return null
+    }
+}
+
+class LaneUnaryInstr(
+    name: String, opcode: Opcode, val srcShape: LaneShape, val dstShape: LaneShape,
+    val impl: (Number) -> Number
+) : SIMDInstr(name, opcode, listOf(v128), listOf(v128)) {
+    override fun execute(engine: WASMEngine): String? {
+        val a = engine.pop() as V128
+        engine.push(V128.create(dstShape) { impl(a.getLane(srcShape, it)) })
+        return null
+    }
+}
+
+class LaneBinaryInstr(
+    name: String, opcode: Opcode, val shape: LaneShape,
+    val impl: (Number, Number) -> Number
+) : SIMDInstr(name, opcode, listOf(v128, v128), listOf(v128)) {
+    override fun execute(engine: WASMEngine): String? {
+        val b = engine.pop() as V128
+        val a = engine.pop() as V128
+        engine.push(V128.create(shape) { impl(a.getLane(shape, it), b.getLane(shape, it)) })
+        return null
+    }
+}
+
+/**
+ * shifts all lanes by the same scalar amount, modulo the lane size in bits, like the scalar shifts
+ * */
+class LaneShiftInstr(
+    name: String, opcode: Opcode, val shape: LaneShape,
+    val impl: (Number, Int) -> Number
+) : SIMDInstr(name, opcode, listOf(v128, i32), listOf(v128)) {
+    override fun execute(engine: WASMEngine): String? {
+        val shift = engine.pop().toInt()
+        val a = engine.pop() as V128
+        engine.push(V128.create(shape) { impl(a.getLane(shape, it), shift) })
+        return null
+    }
+}
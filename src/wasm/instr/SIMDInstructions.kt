@@ -0,0 +1,130 @@
+package wasm.instr
+
+import wasm.instr.Instructions.F32Add
+import wasm.instr.Instructions.F32Div
+import wasm.instr.Instructions.F32Mul
+import wasm.instr.Instructions.F32Sub
+import wasm.instr.Instructions.F64Add
+import wasm.instr.Instructions.F64Div
+import wasm.instr.Instructions.F64Mul
+import wasm.instr.Instructions.F64Sub
+import wasm.instr.Instructions.I32Add
+import wasm.instr.Instructions.I32And
+import wasm.instr.Instructions.I32Mul
+import wasm.instr.Instructions.I32Or
+import wasm.instr.Instructions.I32Shl
+import wasm.instr.Instructions.I32ShrS
+import wasm.instr.Instructions.I32ShrU
+import wasm.instr.Instructions.I32Sub
+import wasm.instr.Instructions.I32XOr
+import wasm.instr.Instructions.I64Add
+import wasm.instr.Instructions.I64And
+import wasm.instr.Instructions.I64Mul
+import wasm.instr.Instructions.I64Or
+import wasm.instr.Instructions.I64Sub
+import wasm.instr.Instructions.I64XOr
+import wasm.writer.Opcode
+import kotlin.math.*
+
+/**
+ * the subset of the SIMD proposal, which LoopVectorizer emits
+ * */
+object SIMDInstructions {
+
+    val V128Load = V128LoadInstr("v128.load", Opcode.V128_LOAD)
+    val V128Store = V128StoreInstr("v128.store", Opcode.V128_STORE)
+
+    val I32X4Splat = SplatInstr("i32x4.splat", Opcode.I32X4_SPLAT, LaneShape.I32X4)
+    val I64X2Splat = SplatInstr("i64x2.splat", Opcode.I64X2_SPLAT, LaneShape.I64X2)
+    val F32X4Splat = SplatInstr("f32x4.splat", Opcode.F32X4_SPLAT, LaneShape.F32X4)
+    val F64X2Splat = SplatInstr("f64x2.splat", Opcode.F64X2_SPLAT, LaneShape.F64X2)
+
+    // bitwise operations don't care about the lane shape
+    val V128And = LaneBinaryInstr("v128.and", Opcode.V128_AND, LaneShape.I64X2) { a, b -> a.toLong() and b.toLong() }
+    val V128Or = LaneBinaryInstr("v128.or", Opcode.V128_OR, LaneShape.I64X2) { a, b -> a.toLong() or b.toLong() }
+    val V128XOr = LaneBinaryInstr("v128.xor", Opcode.V128_XOR, LaneShape.I64X2) { a, b -> a.toLong() xor b.toLong() }
+
+    val I32X4Add = LaneBinaryInstr("i32x4.add", Opcode.I32X4_ADD, LaneShape.I32X4) { a, b -> a.toInt() + b.toInt() }
+    val I32X4Sub = LaneBinaryInstr("i32x4.sub", Opcode.I32X4_SUB, LaneShape.I32X4) { a, b -> a.toInt() - b.toInt() }
+    val I32X4Mul = LaneBinaryInstr("i32x4.mul", Opcode.I32X4_MUL, LaneShape.I32X4) { a, b -> a.toInt() * b.toInt() }
+    val I32X4Shl = LaneShiftInstr("i32x4.shl", Opcode.I32X4_SHL, LaneShape.I32X4) { a, b -> a.toInt() shl b }
+    val I32X4ShrS = LaneShiftInstr("i32x4.shr_s", Opcode.I32X4_SHR_S, LaneShape.I32X4) { a, b -> a.toInt() shr b }
+    val I32X4ShrU = LaneShiftInstr("i32x4.shr_u", Opcode.I32X4_SHR_U, LaneShape.I32X4) { a, b -> a.toInt() ushr b }
+
+    val I64X2Add = LaneBinaryInstr("i64x2.add", Opcode.I64X2_ADD, LaneShape.I64X2) { a, b -> a.toLong() + b.toLong() }
+    val I64X2Sub = LaneBinaryInstr("i64x2.sub", Opcode.I64X2_SUB, LaneShape.I64X2) { a, b -> a.toLong() - b.toLong() }
+    val I64X2Mul = LaneBinaryInstr("i64x2.mul", Opcode.I64X2_MUL, LaneShape.I64X2) { a, b -> a.toLong() * b.toLong() }
+
+    val F32X4Add = LaneBinaryInstr("f32x4.add", Opcode.F32X4_ADD, LaneShape.F32X4) { a, b -> a.toFloat() + b.toFloat() }
+    val F32X4Sub = LaneBinaryInstr("f32x4.sub", Opcode.F32X4_SUB, LaneShape.F32X4) { a, b -> a.toFloat() - b.toFloat() }
+    val F32X4Mul = LaneBinaryInstr("f32x4.mul", Opcode.F32X4_MUL, LaneShape.F32X4) { a, b -> a.toFloat() * b.toFloat() }
+    val F32X4Div = LaneBinaryInstr("f32x4.div", Opcode.F32X4_DIV, LaneShape.F32X4) { a, b -> a.toFloat() / b.toFloat() }
+    val F32X4Min = LaneBinaryInstr("f32x4.min", Opcode.F32X4_MIN, LaneShape.F32X4) { a, b -> min(a.toFloat(), b.toFloat()) }
+    val F32X4Max = LaneBinaryInstr("f32x4.max", Opcode.F32X4_MAX, LaneShape.F32X4) { a, b -> max(a.toFloat(), b.toFloat()) }
+    val F32X4Abs = LaneUnaryInstr("f32x4.abs", Opcode.F32X4_ABS, LaneShape.F32X4, LaneShape.F32X4) { abs(it.toFloat()) }
+    val F32X4Neg = LaneUnaryInstr("f32x4.neg", Opcode.F32X4_NEG, LaneShape.F32X4, LaneShape.F32X4) { -it.toFloat() }
+    val F32X4Sqrt = LaneUnaryInstr("f32x4.sqrt", Opcode.F32X4_SQRT, LaneShape.F32X4, LaneShape.F32X4) { sqrt(it.toFloat()) }
+    val F32X4Floor = LaneUnaryInstr("f32x4.floor", Opcode.F32X4_FLOOR, LaneShape.F32X4, LaneShape.F32X4) { floor(it.toFloat()) }
+    val F32X4Ceil = LaneUnaryInstr("f32x4.ceil", Opcode.F32X4_CEIL, LaneShape.F32X4, LaneShape.F32X4) { ceil(it.toFloat()) }
+    val F32X4ConvertI32X4S = LaneUnaryInstr(
+        "f32x4.convert_i32x4_s", Opcode.F32X4_CONVERT_I32X4_S,
+        LaneShape.I32X4, LaneShape.F32X4
+    ) { it.toInt().toFloat() }
+
+    val F64X2Add = LaneBinaryInstr("f64x2.add", Opcode.F64X2_ADD, LaneShape.F64X2) { a, b -> a.toDouble() + b.toDouble() }
+    val F64X2Sub = LaneBinaryInstr("f64x2.sub", Opcode.F64X2_SUB, LaneShape.F64X2) { a, b -> a.toDouble() - b.toDouble() }
+    val F64X2Mul = LaneBinaryInstr("f64x2.mul", Opcode.F64X2_MUL, LaneShape.F64X2) { a, b -> a.toDouble() * b.toDouble() }
+    val F64X2Div = LaneBinaryInstr("f64x2.div", Opcode.F64X2_DIV, LaneShape.F64X2) { a, b -> a.toDouble() / b.toDouble() }
+    val F64X2Min = LaneBinaryInstr("f64x2.min", Opcode.F64X2_MIN, LaneShape.F64X2) { a, b -> min(a.toDouble(), b.toDouble()) }
+    val F64X2Max = LaneBinaryInstr("f64x2.max", Opcode.F64X2_MAX, LaneShape.F64X2) { a, b -> max(a.toDouble(), b.toDouble()) }
+    val F64X2Abs = LaneUnaryInstr("f64x2.abs", Opcode.F64X2_ABS, LaneShape.F64X2, LaneShape.F64X2) { abs(it.toDouble()) }
+    val F64X2Neg = LaneUnaryInstr("f64x2.neg", Opcode.F64X2_NEG, LaneShape.F64X2, LaneShape.F64X2) { -it.toDouble() }
+    val F64X2Sqrt = LaneUnaryInstr("f64x2.sqrt", Opcode.F64X2_SQRT, LaneShape.F64X2, LaneShape.F64X2) { sqrt(it.toDouble()) }
+    val F64X2Floor = LaneUnaryInstr("f64x2.floor", Opcode.F64X2_FLOOR, LaneShape.F64X2, LaneShape.F64X2) { floor(it.toDouble()) }
+    val F64X2Ceil = LaneUnaryInstr("f64x2.ceil", Opcode.F64X2_CEIL, LaneShape.F64X2, LaneShape.F64X2) { ceil(it.toDouble()) }
+
+    fun getSplat(type: String): SplatInstr = when (type) {
+        LaneShape.I32X4.laneType -> I32X4Splat
+        LaneShape.I64X2.laneType -> I64X2Splat
+        LaneShape.F32X4.laneType -> F32X4Splat
+        else -> F64X2Splat
+    }
+
+    /**
+     * lane-wise equivalents of scalar binary instructions;
+     * lazy, because SimpleInstr loads this object while Instructions is still being initialized,
+     * so its fields would be null in these maps
+     * */
+    val binaryLaneInstructions: Map<Instruction, SIMDInstr> by lazy {
+        mapOf(
+            I32Add to I32X4Add, I32Sub to I32X4Sub, I32Mul to I32X4Mul,
+            I32And to V128And, I32Or to V128Or, I32XOr to V128XOr,
+            I64Add to I64X2Add, I64Sub to I64X2Sub, I64Mul to I64X2Mul,
+            I64And to V128And, I64Or to V128Or, I64XOr to V128XOr,
+            F32Add to F32X4Add, F32Sub to F32X4Sub, F32Mul to F32X4Mul, F32Div to F32X4Div,
+            Instructions.F32_MIN to F32X4Min, Instructions.F32_MAX to F32X4Max,
+            F64Add to F64X2Add, F64Sub to F64X2Sub, F64Mul to F64X2Mul, F64Div to F64X2Div,
+            Instructions.F64_MIN to F64X2Min, Instructions.F64_MAX to F64X2Max,
+        )
+    }
+
+    /**
+     * lane-wise equivalents of scalar shifts; the shift amount stays scalar
+     * */
+    val shiftLaneInstructions: Map<Instruction, SIMDInstr> by lazy {
+        mapOf(I32Shl to I32X4Shl, I32ShrS to I32X4ShrS, I32ShrU to I32X4ShrU)
+    }
+
+    /**
+     * lane-wise equivalents of scalar unary instructions
+     * */
+    val unaryLaneInstructions: Map<Instruction, SIMDInstr> by lazy {
+        mapOf(
+            Instructions.F32_ABS to F32X4Abs, Instructions.F32_NEG to F32X4Neg, Instructions.F32_SQRT to F32X4Sqrt,
+            Instructions.F32_FLOOR to F32X4Floor, Instructions.F32_CEIL to F32X4Ceil,
+            Instructions.F64_ABS to F64X2Abs, Instructions.F64_NEG to F64X2Neg, Instructions.F64_SQRT to F64X2Sqrt,
+            Instructions.F64_FLOOR to F64X2Floor, Instructions.F64_CEIL to F64X2Ceil,
+            Instructions.F32_CONVERT_I32S to F32X4ConvertI32X4S,
+        )
+    }
+}
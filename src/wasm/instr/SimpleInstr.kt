@@ -16,6 +16,8 @@ abstract class SimpleInstr(val name: String, val opcode: Opcode) : Instruction {
             // ensure all instructions are loaded
             Instructions.I64_ROTR
             Drop
+            SIMDInstructions.V128Load
+            AtomicInstructions.I32AtomicLoad
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package wasm.instr
+
+import interpreter.WASMEngine
+import utils.StringBuilder2
+
+/**
+ * br_table: pops an i32 index, and executes cases[table[index]], or the last case (default), if the index is out of range;
+ * cases don't fall through: if they don't return or jump, execution continues after the switch.
+ *
+ * In WASM, this is a block per case, and br_table jumps to the end of the block, after which the case is placed:
+ * (block $L (block $Lc(n-1) ... (block $Lc0 br_table ...) case0 br $L) ... case(n-1))
+ * */
+class SwitchCase(
+    override var label: String,
+    val table: IntArray,
+    val cases: List<ArrayList<Instruction>>
+) : Instruction, BreakableInstruction {
+
+    /**
+     * the WASM blocks carry the index, so br_table can consume it in the innermost block
+     * */
+    override val params: List<String> get() = indexParams
+    override val results: List<String> get() = emptyList()
+
+    var typeIndex = -1
+
+    init {
+        if (label.startsWith('$')) throw IllegalArgumentException(label)
+        if (cases.isEmpty()) throw IllegalArgumentException("Switch needs at least a default case")
+        for (case in table) {
+            if (case !in cases.indices) throw IllegalArgumentException("Invalid case $case, only ${cases.size} exist")
+        }
+    }
+
+    fun getCaseLabel(caseIndex: Int): String = "${label}c$caseIndex"
+
+    override fun toString(): String {
+        val builder = StringBuilder2()
+        toString(0, builder)
+        return builder.toString()
+    }
+
+    override fun toString(depth: Int, builder: StringBuilder2) {
+        for (i in 0 until depth) builder.append("  ")
+        builder.append("(block $").append(label).append(" (param i32)\n")
+        for (ci in cases.lastIndex downTo 0) {
+            for (i in 0..depth) builder.append("  ")
+            builder.append("(block $").append(getCaseLabel(ci)).append(" (param i32)\n")
+        }
+        for (i in 0..depth) builder.append("  ")
+        builder.append("br_table")
+        for (ci in table) {
+            builder.append(" $").append(getCaseLabel(ci))
+        }
+        builder.append(" $").append(getCaseLabel(cases.lastIndex)).append(")\n")
+        for (ci in cases.indices) {
+            val case = cases[ci]
+            for (instr in case) {
+                instr.toString(depth + 1, builder)
+                builder.append("\n")
+            }
+            if (ci < cases.lastIndex && !isReturning(case)) {
+                for (i in 0..depth) builder.append("  ")
+                builder.append("br $").append(label).append("\n")
+            }
+            for (i in 0 until depth) builder.append("  ")
+            builder.append(")")
+            if (ci < cases.lastIndex) builder.append("\n")
+        }
+    }
+
+    override fun isReturning(): Boolean {
+        return cases.all(::isReturning)
+    }
+
+    override fun equals(other: Any?): Boolean {
+        return other === this ||
+                other is SwitchCase &&
+                other.label == label &&
+                other.table.contentEquals(table) &&
+                other.cases == cases
+    }
+
+    override fun hashCode(): Int {
+        return label.hashCode()
+    }
+
+    override fun execute(engine: WASMEngine): String? {
+        val index = engine.pop() as Int
+        val caseIndex = if (index >= 0 && index < table.size) table[index] else cases.lastIndex
+        val label1 = engine.executeInstructions(cases[caseIndex])
+        return if (label1 == label) null else label1
+    }
+
+    companion object {
+        private val indexParams = listOf("int")
+
+        /**
+         * whether a case needs no jump to the end of the switch
+         * */
+        fun isReturning(case: List<Instruction>): Boolean {
+            return case.lastOrNull { it !is Comment }?.isReturning() ?: false
+        }
+    }
+}
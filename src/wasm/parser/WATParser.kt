@@ -128,6 +128,8 @@ class WATParser : Module() {
                             assertEquals(TokenType.NUMBER, list.getType(i))
                             memorySizeInBlocks = list.getString(i).toInt()
                             i++
+                            // maximum and "shared" with JVMFlags.useSharedMemory, see WASMWriter
+                            while (list.getType(i) == TokenType.NUMBER || list.getType(i) == TokenType.NAME) i++
                         }
                         "import" -> {
                             // (import "jvm" "fcmpl" (func $fcmpl (param f32 f32) (result i32)))
@@ -320,6 +322,50 @@ class WATParser : Module() {
         return readParams(list, i0, "result")
     }
 
+    /**
+     * (block $L (param i32) (block $Lc(n-1) (param i32) ... (block $Lc0 (param i32) br_table ...) case0 br $L) ... case(n-1))
+     * */
+    private fun parseSwitchCase(list: TokenList, label: String, i0: Int): Pair<Int, SwitchCase> {
+        var i = readParams(list, i0).first
+        val caseLabels = ArrayList<String>()
+        while (list.getType(i) == TokenType.OPEN_BRACKET) {
+            list.consume(TokenType.NAME, "block", i + 1)
+            caseLabels.add(list.consume(TokenType.DOLLAR, i + 2))
+            i = readParams(list, i + 3).first
+        }
+        caseLabels.reverse() // innermost block belongs to the first case
+        list.consume(TokenType.NAME, "br_table", i++)
+        val targets = ArrayList<Int>()
+        while (list.getType(i) == TokenType.DOLLAR) {
+            val caseIndex = caseLabels.indexOf(list.getString(i++))
+            assertTrue(caseIndex >= 0)
+            targets.add(caseIndex)
+        }
+        list.consume(TokenType.CLOSE_BRACKET, i++)
+        assertEquals(caseLabels.lastIndex, targets.removeLast()) // default is the last case
+
+        // cases end with a jump to the outer block, which is implicit in SwitchCase
+        val switchLabel = label
+        val exit = object : BreakableInstruction {
+            override val label: String get() = switchLabel
+            override val params: List<String> get() = emptyList()
+            override val results: List<String> get() = emptyList()
+        }
+        breakableByLabel[label] = exit
+        val cases = ArrayList<ArrayList<Instruction>>(caseLabels.size)
+        for (ci in caseLabels.indices) {
+            val (j, case) = parseFunctionBlock(list, i)
+            i = j
+            val lastInstr = case.lastOrNull()
+            if (lastInstr is Jump && lastInstr.owner === exit) {
+                case.removeLast()
+            }
+            cases.add(case)
+        }
+        assertEquals(exit, breakableByLabel.remove(label))
+        return i to SwitchCase(label, targets.toIntArray(), cases)
+    }
+
     private fun parseFunctionBlock(list: TokenList, i0: Int): FunctionBlock {
         val result = ArrayList<Instruction>()
         var i = i0
@@ -388,6 +434,13 @@ class WATParser : Module() {
                             result.add(instr)
                             return FunctionBlock(j, result)
                         }
+                        "block" -> {
+                            // only used by br_table, see SwitchCase
+                            val label = list.consume(TokenType.DOLLAR, i++)
+                            val (j, instr) = parseSwitchCase(list, label, i)
+                            result.add(instr)
+                            return FunctionBlock(j, result)
+                        }
                         "br" -> {
                             val label = list.consume(TokenType.DOLLAR, i++)
                             result.add(Jump(breakableByLabel[label]!!))
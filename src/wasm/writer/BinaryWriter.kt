@@ -1,6 +1,7 @@
 package wasm.writer
 
 import jvm.JVMFlags.is32Bits
+import jvm.JVMFlags.useBulkMemory
 import me.anno.utils.assertions.assertEquals
 import me.anno.utils.assertions.assertTrue
 import me.anno.utils.structures.arrays.ByteArrayList
@@ -226,6 +227,30 @@ class BinaryWriter(val stream: ByteArrayList, val module: Module) {
                 writeS32Leb128(alignment) // todo is this alignment ok???
                 writeS32Leb128(0) // this would be the memory index, I think
             }
+            is BulkMemoryInstr -> {
+                writeOpcode(Opcode.MISC_PREFIX)
+                writeU32Leb128(instr.opcode.opcode)
+                if (instr.isCopy) stream.write(0) // source memory index
+                stream.write(0) // destination memory index
+            }
+            is V128LoadInstr, is V128StoreInstr -> {
+                writeOpcode(Opcode.SIMD_PREFIX)
+                writeU32Leb128((instr as SimpleInstr).opcode.opcode)
+                // array elements are only guaranteed to be 4-byte-aligned
+                writeU32Leb128(2)
+                writeU32Leb128(0) // offset
+            }
+            is SIMDInstr -> {
+                writeOpcode(Opcode.SIMD_PREFIX)
+                writeU32Leb128(instr.opcode.opcode)
+            }
+            is AtomicInstr -> {
+                writeOpcode(Opcode.ATOMIC_PREFIX)
+                writeU32Leb128(instr.opcode.opcode)
+                // atomic accesses must be naturally aligned
+                writeU32Leb128(instr.numBytes.countTrailingZeroBits())
+                writeU32Leb128(0) // offset
+            }
             is SimpleInstr -> writeOpcode(instr.opcode)
             is ParamGet -> {
                 writeOpcode(Opcode.LOCAL_GET)
@@ -307,6 +332,7 @@ class BinaryWriter(val stream: ByteArrayList, val module: Module) {
                 writeExprList(func, instr.body)
                 writeOpcode(Opcode.END)
             }
+            is SwitchCase -> writeSwitchCase(func, instr)
             is Jump -> {
                 assertTrue(instr.depth >= 0)
                 writeOpcode(Opcode.BR)
@@ -321,6 +347,35 @@ class BinaryWriter(val stream: ByteArrayList, val module: Module) {
         }
     }
 
+    private fun writeSwitchCase(func: FunctionImpl?, instr: SwitchCase) {
+        assertTrue(instr.typeIndex >= 0)
+        val cases = instr.cases
+        // outer block, and one block per case
+        for (i in 0..cases.size) {
+            writeOpcode(Opcode.BLOCK)
+            writeS32Leb128(instr.typeIndex)
+        }
+        // within the innermost block, the block of case i is i levels up
+        writeOpcode(Opcode.BR_TABLE)
+        val table = instr.table
+        writeU32Leb128(table.size)
+        for (i in table.indices) {
+            writeU32Leb128(table[i])
+        }
+        writeU32Leb128(cases.lastIndex)
+        writeOpcode(Opcode.END)
+        for (i in cases.indices) {
+            val case = cases[i]
+            writeExprList(func, case)
+            if (i < cases.lastIndex && !SwitchCase.isReturning(case)) {
+                // jump to the end of the outer block
+                writeOpcode(Opcode.BR)
+                writeU32Leb128(cases.lastIndex - i)
+            }
+            writeOpcode(Opcode.END)
+        }
+    }
+
     private fun writeExprList(func: FunctionImpl?, expressions: List<Instruction>) {
         for (i in expressions.indices) {
             writeExpr(func, expressions[i])
@@ -633,6 +688,15 @@ class BinaryWriter(val stream: ByteArrayList, val module: Module) {
         endSection(ptr)
     }
 
+    /**
+     * part of the bulk-memory proposal, must come before the code section
+     * */
+    private fun writeDataCountSection() {
+        if (!useBulkMemory) return
+        val ptr = beginSection(SectionType.DATA_COUNT, module.dataSections.size)
+        endSection(ptr)
+    }
+
     /**
      * Needed for 64-bit memory. In Chrome, you need to also enable experimental WASM in
      * chrome://flags/#enable-experimental-webassembly-features
@@ -661,7 +725,7 @@ class BinaryWriter(val stream: ByteArrayList, val module: Module) {
         writeExportsSection()
         // writeStartsSection()
         writeElemSection()
-        // bulk-memory-DataCount-section
+        writeDataCountSection()
         writeCodeSection()
         writeDataSections()
         // append code metadata?
@@ -195,7 +195,71 @@ enum class Opcode(val opcode: Int) {
     I32_EXTEND_16S(0xc1),
     I64_EXTEND_8S(0xc2),
     I64_EXTEND_16S(0xc3),
-    I64_EXTEND_32S(0xc4)
+    I64_EXTEND_32S(0xc4),
+
+    // bulk memory, encoded as MISC_PREFIX, then the sub-opcode as u32-leb128
+    MISC_PREFIX(0xfc),
+    MEMORY_COPY(0x0a),
+    MEMORY_FILL(0x0b),
+
+    // fixed-width SIMD, encoded as SIMD_PREFIX, then the sub-opcode as u32-leb128
+    SIMD_PREFIX(0xfd),
+    V128_LOAD(0x00),
+    V128_STORE(0x0b),
+    I32X4_SPLAT(0x11),
+    I64X2_SPLAT(0x12),
+    F32X4_SPLAT(0x13),
+    F64X2_SPLAT(0x14),
+    V128_AND(0x4e),
+    V128_OR(0x50),
+    V128_XOR(0x51),
+    F32X4_CEIL(0x67),
+    F32X4_FLOOR(0x68),
+    F64X2_CEIL(0x74),
+    F64X2_FLOOR(0x75),
+    I32X4_SHL(0xab),
+    I32X4_SHR_S(0xac),
+    I32X4_SHR_U(0xad),
+    I32X4_ADD(0xae),
+    I32X4_SUB(0xb1),
+    I32X4_MUL(0xb5),
+    I64X2_ADD(0xce),
+    I64X2_SUB(0xd1),
+    I64X2_MUL(0xd5),
+    F32X4_ABS(0xe0),
+    F32X4_NEG(0xe1),
+    F32X4_SQRT(0xe3),
+    F32X4_ADD(0xe4),
+    F32X4_SUB(0xe5),
+    F32X4_MUL(0xe6),
+    F32X4_DIV(0xe7),
+    F32X4_MIN(0xe8),
+    F32X4_MAX(0xe9),
+    F64X2_ABS(0xec),
+    F64X2_NEG(0xed),
+    F64X2_SQRT(0xef),
+    F64X2_ADD(0xf0),
+    F64X2_SUB(0xf1),
+    F64X2_MUL(0xf2),
+    F64X2_DIV(0xf3),
+    F64X2_MIN(0xf4),
+    F64X2_MAX(0xf5),
+    F32X4_CONVERT_I32X4_S(0xfa),
+
+    // threads, encoded as ATOMIC_PREFIX, then the sub-opcode as u32-leb128, then a memarg
+    ATOMIC_PREFIX(0xfe),
+    MEMORY_ATOMIC_NOTIFY(0x00),
+    MEMORY_ATOMIC_WAIT32(0x01),
+    I32_ATOMIC_LOAD(0x10),
+    I64_ATOMIC_LOAD(0x11),
+    I32_ATOMIC_STORE(0x17),
+    I64_ATOMIC_STORE(0x18),
+    I32_ATOMIC_RMW_ADD(0x1e),
+    I64_ATOMIC_RMW_ADD(0x1f),
+    I32_ATOMIC_RMW_XCHG(0x41),
+    I64_ATOMIC_RMW_XCHG(0x42),
+    I32_ATOMIC_RMW_CMPXCHG(0x48),
+    I64_ATOMIC_RMW_CMPXCHG(0x49),
 
     ;
 }
@@ -38,6 +38,7 @@ enum class TypeKind(val id: Int) {
                 "i64" -> I64
                 "f32" -> F32
                 "f64" -> F64
+                "v128" -> V128
                 else -> throw NotImplementedError()
             }
         }
@@ -1,6 +1,7 @@
 package wasm.writer
 
 import jvm.JVMFlags
+import maxSharedMemoryPages
 import me.anno.utils.assertions.assertEquals
 import me.anno.utils.assertions.assertNull
 import me.anno.utils.assertions.assertTrue
@@ -56,6 +57,14 @@ object WASMWriter {
                 insertIndicesAndDepths(instr.ifTrue, nextDepth)
                 insertIndicesAndDepths(instr.ifFalse, nextDepth)
             }
+            is SwitchCase -> {
+                instr.typeIndex = getTypeIndex(FuncType(instr.params, instr.results, Unit))
+                // case i is placed after the end of block i, so it is nested in the outer block and blocks i+1 until n-1
+                val numCases = instr.cases.size
+                for (i in 0 until numCases) {
+                    insertIndicesAndDepths(instr.cases[i], depth + numCases - i)
+                }
+            }
             // depth is relative, and -1
             is Jump -> instr.depth = depth - branchDepth[instr.label]!! - 1
             is JumpIf -> instr.depth = depth - branchDepth[instr.label]!! - 1
@@ -86,6 +95,11 @@ object WASMWriter {
         dataSections: List<DataSection>
     ): ByteArrayList {
 
+        // the type indices must not depend on previous calls
+        typeToIndex.clear()
+        typesList.clear()
+        branchDepth.clear()
+
         // write it as binary WASM
         for (i in functions.indices) {
             getTypeIndex(functions[i].toFuncType())
@@ -101,10 +115,11 @@ object WASMWriter {
             f64 to Type(TypeKind.F64),
         )
 
+        // shared memory must have a maximum, see maxSharedMemoryPages
         val memory = Memory(
             Limits(
-                false, is64Bit = !JVMFlags.is32Bits,
-                memorySizeInBlocks.toLong(), null
+                JVMFlags.useSharedMemory, is64Bit = !JVMFlags.is32Bits,
+                memorySizeInBlocks.toLong(), if (JVMFlags.useSharedMemory) maxSharedMemoryPages.toLong() else null
             )
         )
 
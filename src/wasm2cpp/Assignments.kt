@@ -33,6 +33,11 @@ object Assignments {
             is ParamSet -> insertAssignment(instr.name, i, result)
             is GlobalSet -> insertAssignment(instr.name, i, result)
             is LoopInstr -> insertAssignments(instr.body, i, result, pureFunctions)
+            is SwitchCase -> {
+                for (case in instr.cases) {
+                    insertAssignments(case, i, result, pureFunctions)
+                }
+            }
             is IfBranch -> {
                 insertAssignments(instr.ifTrue, i, result, pureFunctions)
                 insertAssignments(instr.ifFalse, i, result, pureFunctions)
@@ -49,6 +54,7 @@ object Assignments {
                 insertAssignment(MEMORY_DEPENDENCY, i, result)
                 // be field-specific???
             }
+            is BulkMemoryInstr, is V128StoreInstr -> insertAssignment(MEMORY_DEPENDENCY, i, result)
             is SimpleInstr, is Const, is Jump, is JumpIf, is Comment,
             is LocalGet, is ParamGet, is GlobalGet -> {
                 // nothing to do
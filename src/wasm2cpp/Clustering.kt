@@ -88,6 +88,11 @@ class Clustering(val functions: List<FunctionImpl>, var complexity: Int) {
         ) {
             when (instr) {
                 is LoopInstr -> findDependencies(instr.body, funcByName, dst)
+                is SwitchCase -> {
+                    for (case in instr.cases) {
+                        findDependencies(case, funcByName, dst)
+                    }
+                }
                 is IfBranch -> {
                     findDependencies(instr.ifTrue, funcByName, dst)
                     findDependencies(instr.ifFalse, funcByName, dst)
@@ -163,6 +168,7 @@ class Clustering(val functions: List<FunctionImpl>, var complexity: Int) {
             return when (instr) {
                 is LoopInstr -> 2 + getComplexity(instr.body)
                 is IfBranch -> 1 + getComplexity(instr.ifTrue) + getComplexity(instr.ifFalse)
+                is SwitchCase -> 1 + instr.cases.sumOfInt { getComplexity(it) }
                 else -> 1
             }
         }
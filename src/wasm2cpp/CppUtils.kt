@@ -36,6 +36,7 @@ fun defineFunctionImplementations(
 ) {
     writer.append("// implementations\n")
     writer.append("#include <cmath> // trunc, ...\n")
+    writer.append("#include <cstring> // memmove, memset\n")
     val stackToDeclarative = StackToDeclarative(
         globals, functionsByName, pureFunctions,
         useHighLevelMemoryAccess = false,
@@ -94,6 +94,11 @@ class DeclarativeOptimizer(val globals: Map<String, GlobalVariable>) {
                 incUsages(instr.addrExpr)
                 incUsages(instr.valueExpr)
             }
+            is CppBulkMemoryInstr -> {
+                incUsages(instr.dstExpr)
+                incUsages(instr.srcOrValueExpr)
+                incUsages(instr.lengthExpr)
+            }
             is ExprReturn -> {
                 incUsages1(instr.results)
             }
@@ -118,6 +123,7 @@ class DeclarativeOptimizer(val globals: Map<String, GlobalVariable>) {
                 incAssign(instr.instanceName)
             }
             is ExprIfBranch -> incUsages(instr.expr)
+            is ExprSwitch -> incUsages(instr.expr)
             is GotoInstr -> usedJumpLabels.add(instr.label)
             BreakThisLoopInstr, Unreachable, is NullDeclaration, is Comment, is LoopInstr -> {
                 // nothing to do
@@ -188,6 +194,12 @@ class DeclarativeOptimizer(val globals: Map<String, GlobalVariable>) {
                     removeRedundantAssignments(instr.ifFalse)
                     previousAssignments.clear()
                 }
+                is ExprSwitch -> {
+                    for (case in instr.cases) {
+                        removeRedundantAssignments(case)
+                    }
+                    previousAssignments.clear()
+                }
                 is LoopInstr -> {
                     removeRedundantAssignments(instr.body)
                     if (instr.label !in usedJumpLabels) {
@@ -195,7 +207,7 @@ class DeclarativeOptimizer(val globals: Map<String, GlobalVariable>) {
                     }
                     previousAssignments.clear()
                 }
-                is IfBranch, is Jumping, is CppStoreInstr,
+                is IfBranch, is Jumping, is CppStoreInstr, is CppBulkMemoryInstr,
                 is ExprCall, is GotoInstr, is ExprReturn, Unreachable,
                 is FieldAssignment -> {
                     previousAssignments.clear()
@@ -289,12 +301,14 @@ class DeclarativeOptimizer(val globals: Map<String, GlobalVariable>) {
             is GotoInstr, BreakThisLoopInstr,
             is CppLoadInstr,
             is CppStoreInstr,
+            is CppBulkMemoryInstr,
             is FieldAssignment -> writer.add(instr)
             is ExprReturn -> writeExprReturn(instr, isLastInstr)
             is NullDeclaration -> writeNullDeclaration(instr)
             is Declaration -> return writeDeclaration(instr, nextInstr)
             is Assignment -> writeAssignment(instr)
             is ExprIfBranch -> writeIfBranch(instr, isLastInstr)
+            is ExprSwitch -> writeSwitch(instr, isLastInstr)
             is CallAssignment -> return writeExprCall(instr, nextInstr)
             is LoopInstr -> writeLoopInstr(instr)
             is ExprCall -> writer.add(instr)
@@ -464,4 +478,13 @@ class DeclarativeOptimizer(val globals: Map<String, GlobalVariable>) {
         val ifFalse = getSubList(i1)
         writer.add(ExprIfBranch(instr.expr, ifTrue, ifFalse))
     }
+
+    private fun writeSwitch(instr: ExprSwitch, isLastInstr: Boolean) {
+        val cases = instr.cases.map { case ->
+            val i0 = writer.size
+            writeInstructions(case, isLastInstr)
+            getSubList(i0)
+        }
+        writer.add(ExprSwitch(instr.expr, instr.table, cases))
+    }
 }
@@ -1,5 +1,6 @@
 package wasm2cpp
 
+import jvm.JVMFlags.useNativeThreads
 import me.anno.utils.assertions.assertEquals
 import me.anno.utils.assertions.assertFail
 import me.anno.utils.assertions.assertTrue
@@ -10,6 +11,7 @@ import wasm.instr.Comment
 import wasm.instr.Instruction
 import wasm.instr.Instructions.Unreachable
 import wasm.instr.LoopInstr
+import wasm.instr.SwitchCase
 import wasm.parser.FunctionImpl
 import wasm.parser.GlobalVariable
 import wasm2cpp.StackToDeclarative.Companion.nextInstr
@@ -83,12 +85,14 @@ class FunctionWriter(val globals: Map<String, GlobalVariable>, val language: Tar
         when (instr) {
             is CppLoadInstr -> language.writeLoadInstr(instr, this)
             is CppStoreInstr -> language.writeStoreInstr(instr, this)
+            is CppBulkMemoryInstr -> language.writeBulkMemoryInstr(instr, this)
             is Declaration -> writeDeclaration(instr)
             is Assignment -> writeAssignment(instr)
             is FieldAssignment -> writeFieldAssignment(instr)
             is ExprReturn -> writeExprReturn(instr)
             Unreachable -> writeUnreachable()
             is ExprIfBranch -> writeIfBranch(instr, emptyList())
+            is ExprSwitch -> writeSwitch(instr)
             is UnresolvedCallAssignment -> writeUnresolvedCallAssignment(instr)
             is CallAssignment -> writeCallAssignment(instr)
             is UnresolvedExprCall -> writeUnresolvedExprCall(instr)
@@ -242,12 +246,60 @@ class FunctionWriter(val globals: Map<String, GlobalVariable>, val language: Tar
         writer.append(if (compact) "for(;;){" else "while (true) {")
         language.ln()
         depth++
+        if (useNativeThreads && language !is HighLevelJavaScript) {
+            begin().append("safepoint();")
+            language.ln()
+        }
         writeInstructions(instr.body)
         depth--
         begin().append("}")
         language.ln()
     }
 
+    /**
+     * cases get their own scope, so declarations don't cross case labels;
+     * the last case is the default, so table entries pointing to it are skipped
+     * */
+    private fun writeSwitch(instr: ExprSwitch) {
+        val compact = language is HighLevelJavaScript && minifyJavaScript
+        begin().append(if (compact) "switch(" else "switch (")
+        language.appendExpr(instr.expr.expr)
+        writer.append(if (compact) "){" else ") {")
+        language.ln()
+        depth++
+        val cases = instr.cases
+        for (ci in cases.indices) {
+            if (ci < cases.lastIndex) {
+                if (instr.table.none { it == ci }) continue
+                begin()
+                var first = true
+                for (index in instr.table.indices) {
+                    if (instr.table[index] != ci) continue
+                    if (!first && !compact) writer.append(' ')
+                    writer.append("case ").append(index).append(':')
+                    first = false
+                }
+            } else {
+                begin().append("default:")
+            }
+            writer.append(if (compact) "{" else " {")
+            language.ln()
+            depth++
+            val case = cases[ci]
+            writeInstructions(case)
+            if (!SwitchCase.isReturning(case)) {
+                begin().append("break")
+                language.end()
+            }
+            depth--
+            begin().append("}")
+            language.ln()
+        }
+        depth--
+        begin().append("}")
+        language.ln()
+    }
+
     private fun writeIfBranch(instr: ExprIfBranch, extraComments: List<Instruction>) {
         val compact = language is HighLevelJavaScript && minifyJavaScript
         if (!writer.endsWith(if (compact) "else if(" else "else if (")) {
@@ -1,12 +1,26 @@
 package wasm2cpp
 
+import jvm.JVMFlags
 import jvm2wasm
 import me.anno.utils.Clock
+import useGLCommandBuffer
+import writeWAT
+
+/**
+ * runs java.lang.Thread on std::thread, with locking monitors, see jvm/NativeThreads.java;
+ * only the C++ target supports it.
+ * Memory can only grow in place with the mmap-backed memory (Linux, macOS); elsewhere, e.g., on Windows,
+ * growing by realloc is disabled once a thread has been started, so allocations fail when the heap is full
+ * */
+var useNativeThreadsInCpp = false
 
 fun main() {
     val clock = Clock("JVM2CPP")
+    JVMFlags.useNativeThreads = useNativeThreadsInCpp
+    useGLCommandBuffer = false // only the WASM target decodes it
+    val testWATParser = false // opt-in, because it needs the WAT, which is skipped by default
+    if (testWATParser) writeWAT = true // read by validateWAT()
     jvm2wasm()
-    val testWATParser = true
     if (testWATParser) {
         validateWAT()
     }
@@ -18,7 +18,7 @@ class MayBePureDetector(
         when (instr) {
             is Call -> processCall(instr.name)
             is GlobalSet,
-            is StoreInstr -> canBePure = false
+            is StoreInstr, is BulkMemoryInstr, is V128StoreInstr, is AtomicInstr -> canBePure = false
             is CallIndirect -> {
                 // call-indirect could call only a specific function maybe, but that's too complicated to find out ;)
                 processIndirectCall(instr.options)
@@ -28,7 +28,7 @@ class MayBePureDetector(
             is PtrDupInstr -> {
                 // instruction is pure
             }
-            is IfBranch, is LoopInstr -> {
+            is IfBranch, is LoopInstr, is SwitchCase -> {
                 // content is handled by InstructionProcessor
             }
             is FieldSetInstr -> canBePure = false
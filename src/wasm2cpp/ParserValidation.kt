@@ -14,6 +14,7 @@ import wasm.instr.BreakableInstruction
 import wasm.instr.IfBranch
 import wasm.instr.Instruction
 import wasm.instr.LoopInstr
+import wasm.instr.SwitchCase
 import wasm.parser.FunctionImpl
 import wasm.parser.GlobalVariable
 import wasm.parser.Module
@@ -103,6 +104,8 @@ object ParserValidation {
     private val ElsePseudo = PseudoInstr("else")
     private val EndPseudo = PseudoInstr("end")
     private val LoopPseudo = PseudoInstr("loop")
+    private val SwitchPseudo = PseudoInstr("switch")
+    private val CasePseudo = PseudoInstr("case")
 
     private fun serialize(instructions: List<Instruction>, dst: ArrayList<Instruction>) {
         for (i in instructions.indices) {
@@ -123,6 +126,16 @@ object ParserValidation {
                     serialize(instr.body, dst)
                     dst.add(EndPseudo)
                 }
+                is SwitchCase -> {
+                    dst.add(SwitchPseudo)
+                    dst.add(PseudoInstr2(instr))
+                    dst.add(PseudoInstr(instr.table.joinToString()))
+                    for (case in instr.cases) {
+                        dst.add(CasePseudo)
+                        serialize(case, dst)
+                    }
+                    dst.add(EndPseudo)
+                }
                 is BreakableInstruction -> throw NotImplementedError()
                 else -> dst.add(instr)
             }
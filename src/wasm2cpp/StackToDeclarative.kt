@@ -5,6 +5,7 @@ import gIndex
 import hIndex
 import hierarchy.HierarchyIndex.getAlias
 import highlevel.*
+import jvm.JVMFlags.useNativeThreads
 import me.anno.utils.Warning.unused
 import me.anno.utils.assertions.*
 import me.anno.utils.structures.lists.Lists.any2
@@ -219,7 +220,8 @@ class StackToDeclarative(
             funcName.startsWith("getNth_") -> {
                 stack.add(stack[stack.size - params.size])
             }
-            funcName == "wasStaticInited" -> {
+            // with threads, it must be called for the lock, see NativeThreads.wasStaticInited()
+            funcName == "wasStaticInited" && !useNativeThreads -> {
                 popElement(i32)
                 stack.add(zeroForStaticInited)
             }
@@ -471,6 +473,19 @@ class StackToDeclarative(
             I64Store -> store(i64)
             F32Store -> store(f32)
             F64Store -> store(f64)
+            is V128LoadInstr -> load(v128)
+            is V128StoreInstr -> store(v128)
+            is SIMDInstr -> {
+                // implemented as inline functions in jvm2wasm-types.h, e.g. f32x4_add
+                val popped = i.params.reversed().map { popElement(it) }.reversed()
+                inlinePureCall(i.name.replace('.', '_'), popped, i.results[0])
+            }
+            is BulkMemoryInstr -> {
+                val length = popElement(ptrType)
+                val srcOrValue = popElement(i.valueType)
+                val dst = popElement(ptrType)
+                append(CppBulkMemoryInstr(i.isCopy, dst, srcOrValue, length))
+            }
             // other operations
             is EqualsZeroInstruction -> unaryInstr(i.popType, i.pushType, k, assignments, true) {
                 UnaryExpr(i, it, "boolean")
@@ -656,6 +671,21 @@ class StackToDeclarative(
                 writer.removeLast()
                 append(LoopInstr(i.label, newLoop, i.params, i.results))
             }
+            is SwitchCase -> {
+                val index = popElement(i32)
+                val stackSave = ArrayList(stack)
+                val newCases = i.cases.map { case ->
+                    val newCase = ArrayList<Instruction>()
+                    writer.add(newCase)
+                    stack.clear()
+                    writeInstructions(case)
+                    writer.removeLast()
+                    newCase
+                }
+                stack.clear()
+                stack.addAll(stackSave)
+                append(ExprSwitch(index, i.table, newCases))
+            }
             is Jump -> {
                 // C++ doesn't have proper continue@label/break@label, so use goto
                 append(GotoInstr(i.label))
@@ -1,14 +1,17 @@
 package wasm2cpp
 
+import buildSIMDFlavor
 import crashOnAllExceptions
 import dIndex
 import gIndex
 import globals
 import hIndex
 import jvm.JVMFlags.is32Bits
+import jvm.JVMFlags.useNativeThreads
 import me.anno.io.files.FileReference
 import me.anno.utils.Clock
 import me.anno.utils.assertions.assertEquals
+import optimizer.LoopVectorizer
 import org.apache.logging.log4j.LogManager
 import targetsFolder
 import translator.GeneratorIndex
@@ -88,6 +91,11 @@ fun wasm2cpp(
     functions: ArrayList<FunctionImpl>, functionTable: List<String>,
     imports: List<Import>, globals: Map<String, GlobalVariable>
 ) {
+    if (buildSIMDFlavor) {
+        // uses the vector extensions of GCC and Clang, see jvm2wasm-types.h
+        functions.replaceAll { LoopVectorizer.vectorize(it) }
+        LoopVectorizer.printStatistics()
+    }
     val functionsByName = createFunctionByNameMap(functions, imports)
     functions.removeIf { it.funcName.startsWith("getNth_") }
     writeHeader(functions, functionTable, imports, globals)
@@ -346,6 +354,7 @@ fun writeHeader(
     writer.append("#include \"jvm2wasm-types.h\"\n") // for debugging
     if (crashOnAllExceptions) writer.append("#define NO_ERRORS\n")
     if (is32Bits) writer.append("#define IS32BITS\n")
+    if (useNativeThreads) writer.append("#define NATIVE_THREADS\n")
     writer.append('\n')
 
     writer.append("// header\n")
@@ -357,6 +366,13 @@ fun writeHeader(
     writer.append("  extern void* indirect[").append(functionTable.size).append("];\n")
     writer.append("#endif\n")
     writer.append("[[noreturn]] void unreachable(std::string);\n")
+    if (useNativeThreads) {
+        // polled by FunctionWriter in every loop, so the GC can stop all threads
+        writer.append("#include <atomic>\n")
+        writer.append("extern std::atomic<bool> safepointRequested;\n")
+        writer.append("void enterSafepoint();\n")
+        writer.append("inline void safepoint() { if (safepointRequested.load(std::memory_order_relaxed)) enterSafepoint(); }\n")
+    }
     writer.append('\n')
 
     defineGlobals(globals)
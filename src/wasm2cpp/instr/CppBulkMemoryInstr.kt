@@ -0,0 +1,11 @@
+package wasm2cpp.instr
+
+import wasm2cpp.StackElement
+
+/**
+ * memory.copy or memory.fill; srcOrValueExpr is the source address for copies, and the byte value for fills
+ * */
+class CppBulkMemoryInstr(
+    val isCopy: Boolean, val dstExpr: StackElement,
+    val srcOrValueExpr: StackElement, val lengthExpr: StackElement
+) : CppInstruction
@@ -0,0 +1,18 @@
+package wasm2cpp.instr
+
+import wasm.instr.Instruction
+import wasm.instr.SwitchCase
+import wasm2cpp.StackElement
+
+/**
+ * switch-statement; the last case is the default; cases don't fall through
+ * */
+class ExprSwitch(
+    val expr: StackElement,
+    val table: IntArray,
+    val cases: List<ArrayList<Instruction>>
+) : CppInstruction {
+    override fun isReturning(): Boolean {
+        return cases.all { SwitchCase.isReturning(it) }
+    }
+}
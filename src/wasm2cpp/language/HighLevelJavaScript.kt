@@ -13,6 +13,8 @@ import wasm.instr.Instructions.I32Add
 import wasm.instr.Instructions.I32Mul
 import wasm.instr.Instructions.I32Sub
 import wasm.instr.Instructions.I32_DIVS
+import wasm.instr.Instructions.I64Shl
+import wasm.instr.Instructions.I64ShrS
 import wasm.instr.Instructions.I64ShrU
 import wasm.parser.FunctionImpl
 import wasm2cpp.FunctionWriter
@@ -21,6 +23,7 @@ import wasm2cpp.StackToDeclarative.Companion.isNumber
 import wasm2cpp.expr.*
 import wasm2cpp.instr.*
 import wasm2js.*
+import wasm2js.LongRangeAnalysis.Companion.getConstShift
 import kotlin.streams.toList
 
 class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
@@ -62,6 +65,16 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
 
     private var thisVariable: String? = null
 
+    /**
+     * which longs of the current function are doubles; null, if lowerLongsToNumbers is disabled
+     * */
+    private var longRanges: LongRangeAnalysis? = null
+
+    /**
+     * set by beginDeclaration/beginAssignment, when the next expression is assigned to a long stored as a double
+     * */
+    private var isNumberContext = false
+
     override fun end() {
         dst.append(if (minifyJavaScript) ";" else ";\n")
     }
@@ -103,6 +116,78 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
         }
         dst.append(") {").ln()
         thisVariable = if (!writer.isStatic) params[0].name else null
+        longRanges = if (lowerLongsToNumbers) LongRangeAnalysis(function) else null
+        isNumberContext = false
+    }
+
+    private fun isSmallLocal(name: String): Boolean {
+        return longRanges?.isSmallLocal(name) == true
+    }
+
+    private fun isSmallLong(expr: Expr): Boolean {
+        return longRanges?.isSmall(expr) == true
+    }
+
+    override fun appendExpr(expr: Expr) {
+        if (isNumberContext) {
+            isNumberContext = false
+            appendNumberExpr(expr)
+        } else if (expr !is ConstExpr && isSmallLong(expr)) {
+            dst.append("BigInt(")
+            appendNumberExpr(expr)
+            dst.append(')')
+        } else super.appendExpr(expr)
+    }
+
+    /**
+     * appends a long as a double; LongRangeAnalysis guarantees that this is exact
+     * */
+    private fun appendNumberExpr(expr: Expr) {
+        if (!isSmallLong(expr)) {
+            dst.append("Number(")
+            appendExpr(expr)
+            dst.append(')')
+            return
+        }
+        when (expr) {
+            is ConstExpr -> dst.append((expr.value as Number).toLong())
+            is VariableExpr -> appendName(expr.name, AppendNameType.SRC_VARIABLE)
+            is UnaryExpr -> when (expr.instr) {
+                Instructions.I64_EXTEND_I32S -> appendExprSafely(expr.input)
+                Instructions.I64_EXTEND_I32U -> {
+                    dst.append('(')
+                    appendExprSafely(expr.input)
+                    dst.append(" >>> 0)")
+                }
+                else -> throw NotImplementedError(expr.instr.toString())
+            }
+            is BinaryExpr -> appendNumberBinaryExpr(expr)
+            else -> throw NotImplementedError(expr.javaClass.toString())
+        }
+    }
+
+    private fun appendNumberBinaryExpr(expr: BinaryExpr) {
+        when (val i = expr.instr) {
+            I64Shl -> {
+                dst.append('(')
+                appendNumberExpr(expr.compA)
+                dst.append(" * 2 ** ").append(getConstShift(expr.compB)!!).append(')')
+            }
+            I64ShrS -> {
+                dst.append("Math.floor(")
+                appendNumberExpr(expr.compA)
+                dst.append(" / 2 ** ").append(getConstShift(expr.compB)!!).append(')')
+            }
+            else -> {
+                // add, sub, mul, and, or, xor; bitwise operators are only used on 31-bit values
+                i as BinaryInstruction
+                dst.append('(')
+                appendNumberExpr(expr.compA)
+                dst.append(' ').append(i.operator.symbol).append(' ')
+                appendNumberExpr(expr.compB)
+                dst.append(')')
+            }
+        }
     }
 
     override fun writeStaticInitCheck(writer: FunctionWriter) {
@@ -170,7 +255,8 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
         when (val i = expr.instr) {
             is EqualsZeroInstruction -> {
                 dst.append("!")
-                appendExprSafely(expr.input)
+                if (isSmallLong(expr.input)) appendNumberExpr(expr.input)
+                else appendExprSafely(expr.input)
             }
             is UnaryFloatInstruction -> {
                 if (i.operator != UnaryOperator.NEGATE) dst.append("Math.")
@@ -184,6 +270,20 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
     }
 
     override fun appendNumberCastExpr(expr: UnaryExpr, instr: NumberCastInstruction) {
+        if (isSmallLong(expr.input)) {
+            when (instr) {
+                Instructions.I32_WRAP_I64 -> {
+                    dst.append('(')
+                    appendNumberExpr(expr.input)
+                    dst.append("|0)")
+                    return
+                }
+                Instructions.F32_CONVERT_I64S, Instructions.F64_CONVERT_I64S -> {
+                    appendNumberExpr(expr.input)
+                    return
+                }
+            }
+        }
         val prefix = getNumberCastPrefix(instr)
         dst.append(prefix)
         appendExprSafely(expr.input)
@@ -265,6 +365,12 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
                 appendExprSafely(i1)
             }
             is CompareInstr -> {
+                if (i.castType == null && isSmallLong(i0) && isSmallLong(i1)) {
+                    appendNumberExpr(i0)
+                    dst.append(' ').append(i.operator.symbol).append(' ')
+                    appendNumberExpr(i1)
+                    return
+                }
                 val castType = when (i.castType) {
                     "u32" -> " >>> 0"
                     "u64" -> " & 0xffffffffffffffffn"
@@ -349,6 +455,7 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
                 lastType = instr.jvmType
             }
             dst.append(if (minifyJavaScript) "=" else " = ")
+            isNumberContext = isSmallLocal(instr.name)
             appendExpr(instr.initialValue.expr)
         }
         end()
@@ -360,11 +467,13 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
         if (!minifyJavaScript) {
             dst.append(" /* ").append(jvmType).append(" */ = ")
         } else dst.append('=')
+        isNumberContext = isSmallLocal(name)
     }
 
     override fun beginAssignment(name: String) {
         appendName(name, AppendNameType.DST_VARIABLE)
         dst.append(if (minifyJavaScript) "=" else " = ")
+        isNumberContext = isSmallLocal(name)
     }
 
     override fun writeFunctionTypeDefinition(instr: FunctionTypeDefinition, writer: FunctionWriter) {
@@ -441,6 +550,10 @@ class HighLevelJavaScript(dst: StringBuilder2) : LowLevelCpp(dst) {
         writer.begin().append("throw new Error('storeInstr not supported');").ln()
     }
 
+    override fun writeBulkMemoryInstr(instr: CppBulkMemoryInstr, writer: FunctionWriter) {
+        writer.begin().append("throw new Error('bulkMemoryInstr not supported');").ln()
+    }
+
     override fun writeReturnStruct(results: List<Expr>) {
         val totalType = results.joinToString("") { jvm2wasmTyped(it.jvmType).wasmName }
         dst.append("return { ")
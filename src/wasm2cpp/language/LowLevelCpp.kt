@@ -4,6 +4,7 @@ import gIndex
 import hIndex
 import highlevel.FieldSetInstr
 import jvm.JVMFlags.is32Bits
+import jvm.JVMFlags.useNativeThreads
 import me.anno.utils.assertions.assertTrue
 import translator.JavaTypes.convertTypeToWASM
 import translator.LoadStoreHelper.getLoadCall
@@ -78,6 +79,8 @@ open class LowLevelCpp(val dst: StringBuilder2) : TargetLanguage {
     }
 
     override fun writeStaticInitCheck(writer: FunctionWriter) {
+        // with threads, wasStaticInited() isn't replaced, and guards it instead
+        if (useNativeThreads) return
         writer.begin().append("static bool wasCalled = false;\n")
         writer.begin().append(
             if (writer.function.results.isEmpty()) "if(wasCalled) return;\n"
@@ -394,6 +397,23 @@ open class LowLevelCpp(val dst: StringBuilder2) : TargetLanguage {
         dst.append(";\n")
     }
 
+    override fun writeBulkMemoryInstr(instr: CppBulkMemoryInstr, writer: FunctionWriter) {
+        // memmove, because memory.copy allows overlapping ranges
+        writer.begin().append(if (instr.isCopy) "memmove(" else "memset(")
+        dst.append("(uint8_t*) memory + ").append(usz)
+        appendExprSafely(instr.dstExpr.expr)
+        dst.append(", ")
+        if (instr.isCopy) {
+            dst.append("(uint8_t*) memory + ").append(usz)
+            appendExprSafely(instr.srcOrValueExpr.expr)
+        } else {
+            appendExpr(instr.srcOrValueExpr.expr)
+        }
+        dst.append(", ").append(usz)
+        appendExprSafely(instr.lengthExpr.expr)
+        dst.append(");\n")
+    }
+
     override fun writeReturnStruct(results: List<Expr>) {
         dst.append("return { ")
         for (ri in results.indices) {
@@ -26,6 +26,7 @@ interface TargetLanguage {
 
     fun writeLoadInstr(instr: CppLoadInstr, writer: FunctionWriter)
     fun writeStoreInstr(instr: CppStoreInstr, writer: FunctionWriter)
+    fun writeBulkMemoryInstr(instr: CppBulkMemoryInstr, writer: FunctionWriter)
     fun writeReturnStruct(results: List<Expr>)
 
     fun writeUnreachable(function: FunctionWriter)
@@ -12,6 +12,7 @@ import me.anno.utils.Clock
 import me.anno.utils.types.Booleans.toInt
 import org.objectweb.asm.Opcodes.ACC_STATIC
 import targetsFolder
+import useGLCommandBuffer
 import utils.*
 import utils.DefaultClassLayouts.GC_FIELD_NAME
 import utils.MethodResolver.resolveMethod
@@ -22,6 +23,7 @@ import wasm2cpp.*
 import wasm2cpp.language.HighLevelJavaScript
 import wasm2cpp.language.HighLevelJavaScript.Companion.fieldName
 import wasm2cpp.language.HighLevelJavaScript.Companion.jsKeywords
+import writeWAT
 
 val jsFolder = targetsFolder.getChild("javascript")
 
@@ -37,14 +39,23 @@ val jsFolder = targetsFolder.getChild("javascript")
 // todo bug: minify is broken :/, producing different results than usual
 var minifyJavaScript = false
 
+/**
+ * local longs, which fit into 53 bits, are stored and computed as doubles instead of BigInts;
+ * see LongRangeAnalysis for which loop counters it proves.
+ * Disabled until its effect on SciMark has been measured
+ * */
+var lowerLongsToNumbers = false
+
 val CLASS_INSTANCE_NAME = if (minifyJavaScript) "\$C" else "CLASS_INSTANCE"
 val LAMBDA_INSTANCE_NAME = if (minifyJavaScript) "\$L" else "LAMBDA_INSTANCE"
 val DO_NOTHING_NAME = if (minifyJavaScript) "$0" else "DO_NOTHING"
 
 fun main() {
     val clock = Clock("JVM2JS")
+    useGLCommandBuffer = false // only the WASM target decodes it
+    val testWATParser = false // opt-in, because it needs the WAT, which is skipped by default
+    if (testWATParser) writeWAT = true // read by validateWAT()
     jvm2wasm()
-    val testWATParser = true
     if (testWATParser) {
         validateWAT()
     }
@@ -0,0 +1,307 @@
+package wasm2js
+
+import wasm.instr.Comment
+import wasm.instr.Instruction
+import wasm.instr.Instructions.I32EQZ
+import wasm.instr.Instructions.I64Add
+import wasm.instr.Instructions.I64And
+import wasm.instr.Instructions.I64GES
+import wasm.instr.Instructions.I64GTS
+import wasm.instr.Instructions.I64LES
+import wasm.instr.Instructions.I64LTS
+import wasm.instr.Instructions.I64Mul
+import wasm.instr.Instructions.I64Or
+import wasm.instr.Instructions.I64Shl
+import wasm.instr.Instructions.I64ShrS
+import wasm.instr.Instructions.I64Sub
+import wasm.instr.Instructions.I64XOr
+import wasm.instr.Instructions.I64_EXTEND_I32S
+import wasm.instr.Instructions.I64_EXTEND_I32U
+import wasm.instr.LoopInstr
+import wasm.parser.FunctionImpl
+import wasm2cpp.expr.*
+import wasm2cpp.instr.*
+import kotlin.math.max
+
+/**
+ * Finds the longs of a function, which fit into 53 bits, so HighLevelJavaScript can use doubles for them
+ * instead of BigInts. The range of a value is tracked as the number of bits k, such that it is within [-2^k, 2^k).
+ *
+ * Parameters, fields, array elements and call results are unknown, and stay BigInts;
+ * local variables get the union of all values assigned to them anywhere in the function.
+ *
+ * Accumulations like i = i + 1 or sum = sum - x grow by one bit per round of the fixpoint, until they are unknown.
+ * The only exception are loop counters, whose bound is proven: i = i + c with a constant c > 0,
+ * where i < n or i <= n holds since the last write to i, ends below n + c, no matter how often it runs;
+ * decrements work the same with i > n or i >= n.
+ *
+ * Unknown longs stay BigInts; splitting them into hi/lo int32 pairs would change how longs cross fields,
+ * arrays and calls, and therefore the runtime, so it isn't done.
+ * */
+class LongRangeAnalysis(function: FunctionImpl) {
+
+    companion object {
+
+        /**
+         * doubles represent all integers in [-2^53, 2^53] exactly
+         * */
+        const val MAX_SAFE_BITS = 53
+        private const val UNKNOWN = 64
+
+        fun isLong(jvmType: String): Boolean {
+            return jvmType == "i64" || jvmType == "long"
+        }
+
+        fun getConstShift(expr: Expr): Int? {
+            return if (expr is ConstExpr && expr.value is Number) {
+                (expr.value as Number).toInt() and 63
+            } else null
+        }
+
+        private fun getBits(value: Long): Int {
+            return 64 - java.lang.Long.numberOfLeadingZeros(if (value < 0) value.inv() else value)
+        }
+    }
+
+    /**
+     * which upper and lower bounds are known for variables at a point in the function;
+     * the bounds themselves are expressions, whose bits are evaluated with the union of all their values
+     * */
+    private class Bounds(val upper: HashMap<String, Expr>, val lower: HashMap<String, Expr>) {
+
+        constructor() : this(HashMap(), HashMap())
+
+        fun copy() = Bounds(HashMap(upper), HashMap(lower))
+
+        fun remove(name: String) {
+            upper.remove(name)
+            lower.remove(name)
+        }
+
+        fun removeAll(names: Set<String>) {
+            upper.keys.removeAll(names)
+            lower.keys.removeAll(names)
+        }
+
+        fun retainAll(other: Bounds) {
+            upper.entries.removeIf { other.upper[it.key] !== it.value }
+            lower.entries.removeIf { other.lower[it.key] !== it.value }
+        }
+
+        /**
+         * adds the bound, which holds, when condition is isTrue
+         * */
+        fun add(condition: Expr, isTrue: Boolean) {
+            if (condition is UnaryExpr && condition.instr == I32EQZ) {
+                add(condition.input, !isTrue)
+                return
+            }
+            if (condition !is BinaryExpr) return
+            val a = condition.compA
+            val b = condition.compB
+            // whether a < b or a <= b holds
+            val isLess = when (condition.instr) {
+                I64LTS, I64LES -> isTrue
+                I64GTS, I64GES -> !isTrue
+                else -> return
+            }
+            if (a is VariableExpr) (if (isLess) upper else lower)[a.name] = b
+            if (b is VariableExpr) (if (isLess) lower else upper)[b.name] = a
+        }
+    }
+
+    private val localBits = HashMap<String, Int>()
+
+    init {
+        val definitions = HashMap<String, ArrayList<Expr?>>()
+        collectDefinitions(function.body, definitions, Bounds())
+        for (param in function.params) {
+            definitions.remove(param.name)
+        }
+        for (name in definitions.keys) {
+            localBits[name] = 0
+        }
+        // the bits of each variable only ever increase, and are capped at UNKNOWN, so this terminates
+        do {
+            var changed = false
+            for ((name, values) in definitions) {
+                var bits = 0
+                for (value in values) {
+                    bits = max(bits, if (value != null) getBits(value) else UNKNOWN)
+                }
+                if (bits > localBits[name]!!) {
+                    localBits[name] = bits
+                    changed = true
+                }
+            }
+        } while (changed)
+    }
+
+    /**
+     * if value is name + c or name - c with a constant c, which moves name towards a bound of it,
+     * returns that bound plus or minus c, which has at least as many bits as the new value
+     * */
+    private fun getBoundedAccumulation(name: String, value: Expr, bounds: Bounds): Expr? {
+        if (value !is BinaryExpr) return null
+        val a = value.compA
+        val b = value.compB
+        val step = when {
+            a is VariableExpr && a.name == name && b is ConstExpr -> b
+            b is VariableExpr && b.name == name && a is ConstExpr && value.instr == I64Add -> a
+            else -> return null
+        }
+        val stepValue = (step.value as? Number)?.toLong() ?: return null
+        val delta = when (value.instr) {
+            I64Add -> stepValue
+            I64Sub -> -stepValue
+            else -> return null
+        }
+        return when {
+            delta > 0 -> BinaryExpr(I64Add, bounds.upper[name] ?: return null, step, value.jvmType)
+            delta < 0 -> BinaryExpr(I64Sub, bounds.lower[name] ?: return null, step, value.jvmType)
+            else -> null
+        }
+    }
+
+    /**
+     * null in the list of a variable means an unknown value;
+     * bounds are the ones known before the first instruction, and afterward, the ones, which hold after the last one
+     * */
+    private fun collectDefinitions(
+        instructions: List<Instruction>, dst: HashMap<String, ArrayList<Expr?>>, bounds: Bounds
+    ) {
+        for (instr in instructions) {
+            when (instr) {
+                is Declaration -> if (isLong(instr.jvmType)) {
+                    dst.getOrPut(instr.name, ::ArrayList).add(instr.initialValue.expr)
+                    bounds.remove(instr.name)
+                }
+                is NullDeclaration -> if (isLong(instr.jvmType)) {
+                    dst.getOrPut(instr.name, ::ArrayList).add(ConstExpr(0L, instr.jvmType))
+                    bounds.remove(instr.name)
+                }
+                is Assignment -> if (isLong(instr.jvmType)) {
+                    val value = instr.newValue.expr
+                    val bounded = getBoundedAccumulation(instr.name, value, bounds)
+                    dst.getOrPut(instr.name, ::ArrayList).add(bounded ?: value)
+                    bounds.remove(instr.name)
+                }
+                is CallAssignment -> {
+                    val name = instr.resultName
+                    if (name != null) {
+                        dst.getOrPut(name, ::ArrayList).add(null)
+                        bounds.remove(name)
+                    }
+                }
+                is ExprIfBranch -> {
+                    val condition = instr.expr.expr
+                    val ifTrue = bounds.copy()
+                    ifTrue.add(condition, true)
+                    collectDefinitions(instr.ifTrue, dst, ifTrue)
+                    val ifFalse = bounds.copy()
+                    ifFalse.add(condition, false)
+                    collectDefinitions(instr.ifFalse, dst, ifFalse)
+                    // continue with the bounds of the branches, which can reach the next instruction
+                    val trueLeaves = leaves(instr.ifTrue)
+                    val falseLeaves = leaves(instr.ifFalse)
+                    val next = when {
+                        trueLeaves && !falseLeaves -> ifFalse
+                        falseLeaves && !trueLeaves -> ifTrue
+                        else -> ifTrue.apply { retainAll(ifFalse) }
+                    }
+                    bounds.upper.clear()
+                    bounds.upper.putAll(next.upper)
+                    bounds.lower.clear()
+                    bounds.lower.putAll(next.lower)
+                }
+                is ExprSwitch -> {
+                    // cases may break out of the switch anywhere
+                    for (case in instr.cases) collectDefinitions(case, dst, bounds.copy())
+                    bounds.removeAll(instr.cases.flatMapTo(HashSet()) { getAssignedNames(it) })
+                }
+                is LoopInstr -> {
+                    // the body may continue or break anywhere
+                    bounds.removeAll(getAssignedNames(instr.body))
+                    collectDefinitions(instr.body, dst, bounds.copy())
+                }
+            }
+        }
+    }
+
+    /**
+     * whether the instructions never continue with the instruction after them
+     * */
+    private fun leaves(instructions: List<Instruction>): Boolean {
+        val last = instructions.lastOrNull { it !is Comment } ?: return false
+        return last == BreakThisLoopInstr || last is GotoInstr || last.isReturning()
+    }
+
+    private fun getAssignedNames(instructions: List<Instruction>, dst: HashSet<String> = HashSet()): HashSet<String> {
+        for (instr in instructions) {
+            when (instr) {
+                is Declaration -> dst.add(instr.name)
+                is NullDeclaration -> dst.add(instr.name)
+                is Assignment -> dst.add(instr.name)
+                is CallAssignment -> dst.add(instr.resultName ?: continue)
+                is ExprIfBranch -> {
+                    getAssignedNames(instr.ifTrue, dst)
+                    getAssignedNames(instr.ifFalse, dst)
+                }
+                is ExprSwitch -> for (case in instr.cases) getAssignedNames(case, dst)
+                is LoopInstr -> getAssignedNames(instr.body, dst)
+            }
+        }
+        return dst
+    }
+
+    /**
+     * how many bits the value of a long expression needs, UNKNOWN if it cannot be evaluated using doubles
+     * */
+    private fun getBits(expr: Expr): Int {
+        val bits = when (expr) {
+            is ConstExpr -> if (expr.value is Number) getBits((expr.value as Number).toLong()) else UNKNOWN
+            is VariableExpr -> localBits[expr.name] ?: UNKNOWN
+            is UnaryExpr -> when (expr.instr) {
+                I64_EXTEND_I32S -> 31
+                I64_EXTEND_I32U -> 32
+                else -> UNKNOWN
+            }
+            is BinaryExpr -> getBits(expr)
+            else -> UNKNOWN
+        }
+        return if (bits > MAX_SAFE_BITS) UNKNOWN else bits
+    }
+
+    private fun getBits(expr: BinaryExpr): Int {
+        val a = getBits(expr.compA)
+        if (a == UNKNOWN) return UNKNOWN
+        return when (expr.instr) {
+            I64Add, I64Sub -> max(a, getBits(expr.compB)) + 1
+            // -2^a * -2^b = 2^(a+b) needs one more bit
+            I64Mul -> a + getBits(expr.compB) + 1
+            // JavaScript's bitwise operators only work on int32
+            I64And, I64Or, I64XOr -> {
+                val bits = max(a, getBits(expr.compB))
+                if (bits <= 31) bits else UNKNOWN
+            }
+            // shifts become multiplications and divisions by powers of two
+            I64Shl -> a + (getConstShift(expr.compB) ?: UNKNOWN)
+            I64ShrS -> max(a - (getConstShift(expr.compB) ?: return UNKNOWN), 0)
+            else -> UNKNOWN
+        }
+    }
+
+    /**
+     * whether expr is a long, which can be computed using doubles
+     * */
+    fun isSmall(expr: Expr): Boolean {
+        return isLong(expr.jvmType) && getBits(expr) <= MAX_SAFE_BITS
+    }
+
+    /**
+     * whether this local variable is stored as a double
+     * */
+    fun isSmallLocal(name: String): Boolean {
+        return (localBits[name] ?: UNKNOWN) <= MAX_SAFE_BITS
+    }
+}
@@ -9,6 +9,24 @@
 #include <fstream>
 #include <thread>
 #include <mutex>
+#include <atomic>
+#include <condition_variable>
+#include <algorithm>
+#include <cstdlib>
+
+#if defined(__GNUC__) && !defined(_WIN32)
+    #define NATIVE_STACK_TRACES
+    #include <execinfo.h>
+    #include <dlfcn.h>
+    #include <cxxabi.h>
+#endif
+
+#if defined(__unix__) || defined(__APPLE__)
+    #define MAPPED_MEMORY
+    #include <sys/mman.h>
+    #include <fcntl.h>
+    #include <unistd.h>
+#endif
 
 #include <glad/gl.h>
 #include <GLFW/glfw3.h>
@@ -62,11 +80,15 @@ isz findClass(i32);
 roid runRunnable(isz);
 void parallelGC0();
 void parallelGC1();
+i32 parallelGC1Init();
+void parallelGC1Range(i32);
+void parallelGC1Finish();
 void parallelGC2();
 void concurrentGC0();
 i32 concurrentGC1();
 void initFunctionTable();
 void gc();
+void minorGC();
 
 // engine functions
 roid EngineKeyModState(i32);
@@ -101,6 +123,16 @@ constexpr i32 objectOverhead = 4;
 constexpr i32 arrayOverhead = 4 + 4;
 constexpr bool countAllocations = false;
 
+// the heap is a reserved address range, where the runtime image is mapped copy-on-write, and grow() commits pages in place;
+// that way, memory never moves, and grow() doesn't have to wait for the parallel GC
+constexpr bool useMappedMemory = true;
+#ifdef IS32BITS
+constexpr size_t reservedMemorySize = (size_t) 4 << 30;
+#else
+constexpr size_t reservedMemorySize = (size_t) 64 << 30;
+#endif
+bool isMappedMemory = false;
+
 enum GarbageCollector {
   GC_SERIAL,
   GC_CONCURRENT,
@@ -108,18 +140,43 @@ enum GarbageCollector {
 };
 
 constexpr enum GarbageCollector chosenCollector = GC_CONCURRENT;
-constexpr int gcIntervalFrames = 2000;
+// stress test: runs a GC cycle every frame, without window, and prints the pause times
+constexpr bool gcStressTest = false;
+constexpr int gcStressIterations = 1000000;
+constexpr int gcIntervalFrames = gcStressTest ? 1 : 2000;
 
 // ParallelGC stuff
 constexpr bool useParallelGC = (chosenCollector == GC_PARALLEL);
 volatile i32 parallelGCStage = 0;
-bool shutdown = false;
+std::atomic<bool> shutdown(false);
 std::thread* gcThread = nullptr;
 
+// the sweep is split into address ranges; the GC thread and these workers take ranges until none are left
+constexpr int numGCWorkers = 4;
+std::vector<std::thread> gcWorkers;
+std::mutex gcWorkMutex;
+std::condition_variable gcWorkCondition;
+// gcNextRange holds the generation in its upper 32 bits, so a worker of an old cycle cannot take ranges of the next one;
+// gcWorkGeneration and gcNumRanges are guarded by gcWorkMutex
+std::atomic<i64> gcNextRange(0);
+std::atomic<i32> gcRangesDone(0);
+i32 gcWorkGeneration = 0, gcNumRanges = 0;
+
 // ConcurrentGC stuff
 constexpr bool useConcurrentGC = (chosenCollector == GC_CONCURRENT);
 i32 concurrentGCStage = 0;
 
+// NativeThreads stuff, see below
+#ifdef NATIVE_THREADS
+constexpr bool useNativeThreads = true;
+#else
+constexpr bool useNativeThreads = false;
+#endif
+static_assert(!(useNativeThreads && useParallelGC), "the parallel sweep would run while worker threads allocate");
+// a thread, which holds the malloc mutex, might have an unformatted instance on the heap, so it must not stop at a safepoint
+thread_local i32 mallocLockDepth = 0;
+std::atomic<i32> numStartedThreads(0);
+
 // GLFW-stuff
 int width = 800, height = 600;
 double mouseX = width * 0.5, mouseY = height * 0.5;
@@ -144,10 +201,16 @@ char* addrToCpp(isz addr) {
 // realloc could be handled with a mutex, too...
 std::recursive_mutex mallocMutex;
 void lockMallocMutex(){
-    if(useParallelGC) mallocMutex.lock();
+    if(useParallelGC || useNativeThreads) {
+        mallocMutex.lock();
+        mallocLockDepth++;
+    }
 }
 void unlockMallocMutex(){
-    if(useParallelGC) mallocMutex.unlock();
+    if(useParallelGC || useNativeThreads) {
+        mallocLockDepth--;
+        mallocMutex.unlock();
+    }
 }
 
 i32 isParallelGC() {
@@ -532,6 +595,34 @@ void jvm_JavaThrowable_printStackTraceLine_Ljava_lang_StringLjava_lang_StringIV(
     printStackTraceLine(1, clazz, method, line, true);
 }
 
+// for useNativeStackTraces: hashes the function names of the innermost frames like the compiler (FNV-1a, seed from the table);
+// needs dynamic symbols (ENABLE_EXPORTS), and inlined functions don't have their own frame
+i32 jvm_JavaThrowable_captureNativeFrames_Ljvm_PointerIII(isz dst, i32 maxFrames, i32 seed) {
+#ifdef NATIVE_STACK_TRACES
+    void* frames[256];
+    int numFrames = backtrace(frames, std::min(maxFrames, 256));
+    i32* dst1 = (i32*) addrToCpp(dst);
+    i32 numHashes = 0;
+    for (int i = 0; i < numFrames; i++) {
+        Dl_info info;
+        if (!dladdr(frames[i], &info) || !info.dli_sname) continue;
+        // "java_lang_Object_hashCode_I(int)" -> "java_lang_Object_hashCode_I"
+        int status = 0;
+        char* demangled = abi::__cxa_demangle(info.dli_sname, nullptr, nullptr, &status);
+        const char* name = status == 0 ? demangled : info.dli_sname;
+        u32 hash = (u32) seed;
+        for (const char* c = name; *c && *c != '('; c++) {
+            hash = (hash ^ (unsigned char) *c) * 0x01000193;
+        }
+        dst1[numHashes++] = (i32) hash;
+        free(demangled);
+    }
+    return numHashes;
+#else
+    return 0;
+#endif
+}
+
 roid java_text_SimpleDateFormat_subFormat_IILjava_text_FormatXFieldDelegateLjava_lang_StringBufferZV(i32, i32, i32, i32, i32, i32) { return RET_VOID; }
 roid java_util_zip_Deflater_end_JV(i64) { return RET_VOID; }
 roid java_util_zip_Deflater_initIDs_V() { return RET_VOID; }
@@ -550,7 +641,21 @@ void engine_Engine_discoverGLNamesImpl_ACLjava_util_HashMapV(isz buffer, isz dst
 std::vector<void*> garbageWhileGC;
 isz getAllocatedSize() { return allocatedSize; }
 i32 jvm_JVMShared_grow_IZ(i32 numExtraPages) {
-    size_t extraSize = numExtraPages << 16;
+    size_t extraSize = (size_t) numExtraPages << 16;
+    #ifdef MAPPED_MEMORY
+    if(isMappedMemory) {
+        if(allocatedSize + extraSize > reservedMemorySize) return 0;
+        // pages are committed in place, so the GC can keep running
+        if(mprotect(addrToCpp(allocatedSize), extraSize, PROT_READ | PROT_WRITE)) return 0;
+        allocatedSize += extraSize;
+        return 1;
+    }
+    #endif
+    if(numStartedThreads > 0) {
+        // other threads might access memory while it is moved
+        std::cerr << "Cannot reallocate memory while native threads are running" << std::endl;
+        return 0;
+    }
     if(parallelGCStage == 1) {
         std::cerr << "Reallocating during GC!!" << std::endl;
         while(parallelGCStage == 1) {
@@ -780,11 +885,63 @@ void unreachable(std::string msg) {
     exit(-1);
 }
 
+#ifdef MAPPED_MEMORY
+bool initMappedMemory(const std::string& path) {
+
+    int fd = open(path.c_str(), O_RDONLY);
+    if(fd < 0) {
+        std::cerr << "Failed opening file " << path << std::endl;
+        return false;
+    }
+    size_t fileSize = (size_t) lseek(fd, 0, SEEK_END);
+    size_t pageSize = (size_t) sysconf(_SC_PAGESIZE);
+    size_t mappedSize = (fileSize + pageSize - 1) / pageSize * pageSize;
+    allocatedSize = std::max(allocatedSize, (mappedSize + 0xffff) & ~(size_t) 0xffff);
+
+    // reserve the whole address range, but only commit what's needed
+    void* range = mmap(nullptr, reservedMemorySize, PROT_NONE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);
+    if(range == MAP_FAILED) {
+        std::cerr << "Failed reserving " << reservedMemorySize << " bytes" << std::endl;
+        close(fd);
+        return false;
+    }
+
+    // copy-on-write, so pages of the image are only loaded, when they're touched
+    if(mappedSize > 0 && mmap(range, mappedSize, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_FIXED, fd, 0) == MAP_FAILED) {
+        std::cerr << "Failed mapping file " << path << std::endl;
+        munmap(range, reservedMemorySize);
+        close(fd);
+        return false;
+    }
+    close(fd); // the mapping stays valid
+
+    // the rest is zeroed anonymous memory
+    if(allocatedSize > mappedSize &&
+        mprotect((char*) range + mappedSize, allocatedSize - mappedSize, PROT_READ | PROT_WRITE)) {
+        std::cerr << "Failed committing initial memory" << std::endl;
+        munmap(range, reservedMemorySize);
+        return false;
+    }
+
+    memory = range;
+    isMappedMemory = true;
+    std::cout << "Mapped " << fileSize << " bytes from " << path << ", committed " << allocatedSize <<
+        " bytes, address " << (u64) memory << std::endl;
+    return true;
+}
+#endif
+
 void initMemory() {
 
     // 10 as some buffer for the first allocations
     size_t baseSizeInBlocks = (global_allocationStart >> 16) + 10;
     allocatedSize = baseSizeInBlocks << 16;
+    std::string path = "runtime-data.bin";
+
+    #ifdef MAPPED_MEMORY
+    if(useMappedMemory && initMappedMemory(path)) return;
+    allocatedSize = baseSizeInBlocks << 16;
+    #endif
 
     // allocate memory
     memory = calloc(allocatedSize, 1);
@@ -797,7 +954,6 @@ void initMemory() {
     std::cout << "Allocated " << allocatedSize << " bytes, address " << (u64) memory << std::endl;
 
     // load memory block
-    std::string path = "runtime-data.bin";
     std::ifstream file(path, std::ios::binary);
     size_t size = std::min(std::filesystem::file_size(path), allocatedSize);
     file.read(addrToCpp(0), size);
@@ -926,10 +1082,388 @@ void attachGLFWListeners() {
     }
 }
 
+#ifdef NATIVE_THREADS
+// java.lang.Thread runs on std::thread, see jvm/NativeThreads.java.
+// The GC still runs on the main thread between two frames: it stops all workers at a safepoint, which they poll in every loop,
+// or while they are blocked in a native. Their stacks are then scanned conservatively by GCTraversal.markThreadStacks().
+#include <unordered_map>
+
+void runThread(isz);
+void formatFreeRegion(isz, isz);
+
+struct ThreadState {
+    isz thread = 0; // java.lang.Thread, a GC root while running
+    char* stackBase = nullptr;
+    char* stackTop = nullptr; // only valid while parked
+    isz tlabPtr = 0, tlabEnd = 0;
+    std::atomic<bool> finished{false};
+    std::mutex finishMutex;
+    std::condition_variable finishCondition;
+};
+
+std::mutex threadsMutex;
+std::unordered_map<isz, ThreadState*> nativeThreads; // by Thread instance, which is never moved
+thread_local ThreadState* currentThreadState = nullptr; // nullptr on the main thread
+
+std::atomic<bool> safepointRequested(false);
+std::mutex safepointMutex;
+std::condition_variable safepointCondition;
+i32 numRunningThreads = 0; // workers, which are neither parked nor finished; guarded by safepointMutex
+
+std::vector<isz> stackRoots;
+size_t nextStackRootIndex = 0;
+
+// called by blockingNative(), so this frame is below all registers, which it spilled;
+// not inlined, so the frame address is ours
+__attribute__((noinline)) void parkThread(ThreadState* state) {
+    {
+        std::lock_guard<std::mutex> lock(safepointMutex);
+        state->stackTop = (char*) __builtin_frame_address(0);
+        numRunningThreads--;
+    }
+    safepointCondition.notify_all();
+}
+
+// parks the current worker while f() runs, e.g. while waiting for a lock;
+// __builtin_unwind_init() spills all callee-saved registers into this frame, so the scanned stack contains
+// all references of the callers. setjmp() isn't enough: glibc mangles the stack and frame pointers in its jmp_buf
+template<typename F>
+void blockingNative(F f) {
+    ThreadState* state = currentThreadState;
+    if (!state) { // the main thread runs the GC, so it never needs to stop
+        f();
+        return;
+    }
+    __builtin_unwind_init();
+    parkThread(state);
+    f();
+    std::unique_lock<std::mutex> lock(safepointMutex);
+    safepointCondition.wait(lock, [] { return !safepointRequested; });
+    numRunningThreads++;
+}
+
+void enterSafepoint() {
+    if (mallocLockDepth > 0) return;
+    blockingNative([] {});
+}
+
+// the rest of a TLAB becomes an unused byte[], so the heap stays walkable
+void retireTLAB(ThreadState* state) {
+    if (state->tlabPtr != state->tlabEnd) formatFreeRegion(state->tlabPtr, state->tlabEnd);
+    state->tlabPtr = state->tlabEnd = 0;
+}
+
+i32 isWorkerThread() {
+    return currentThreadState != nullptr;
+}
+
+isz allocateInTLAB(isz size) {
+    ThreadState* state = currentThreadState;
+    if (!state || (usz) (state->tlabEnd - state->tlabPtr) < (usz) size) return 0;
+    isz ptr = state->tlabPtr;
+    state->tlabPtr += size;
+    return ptr;
+}
+
+void refillTLAB(isz start, isz end) {
+    ThreadState* state = currentThreadState;
+    retireTLAB(state);
+    state->tlabPtr = start;
+    state->tlabEnd = end;
+}
+
+void runNativeThread(ThreadState* state) {
+    currentThreadState = state;
+    state->stackBase = (char*) __builtin_frame_address(0);
+    handleError(runThread(state->thread));
+    retireTLAB(state);
+    {
+        std::lock_guard<std::mutex> lock(state->finishMutex);
+        state->finished = true;
+    }
+    state->finishCondition.notify_all();
+    {
+        std::lock_guard<std::mutex> lock(safepointMutex);
+        numRunningThreads--;
+    }
+    safepointCondition.notify_all();
+}
+
+void startNativeThread(isz thread) {
+    ThreadState* state = new ThreadState();
+    state->thread = thread;
+    {
+        std::lock_guard<std::mutex> lock(threadsMutex);
+        ThreadState*& slot = nativeThreads[thread];
+        // a previous Thread at this address has been collected, so nobody can join it anymore
+        delete slot;
+        slot = state;
+    }
+    {
+        std::lock_guard<std::mutex> lock(safepointMutex);
+        numRunningThreads++;
+    }
+    numStartedThreads++;
+    std::thread(runNativeThread, state).detach();
+}
+
+ThreadState* findNativeThread(isz thread) {
+    std::lock_guard<std::mutex> lock(threadsMutex);
+    auto it = nativeThreads.find(thread);
+    return it != nativeThreads.end() ? it->second : nullptr;
+}
+
+void joinNativeThread(isz thread, i64 timeoutMillis) {
+    ThreadState* state = findNativeThread(thread);
+    if (!state) return;
+    blockingNative([state, timeoutMillis] {
+        std::unique_lock<std::mutex> lock(state->finishMutex);
+        auto isFinished = [state] { return state->finished.load(); };
+        if (timeoutMillis > 0) state->finishCondition.wait_for(lock, std::chrono::milliseconds(timeoutMillis), isFinished);
+        else state->finishCondition.wait(lock, isFinished);
+    });
+}
+
+i32 isNativeThreadAlive(isz thread) {
+    ThreadState* state = findNativeThread(thread);
+    return state && !state->finished;
+}
+
+isz getNativeCurrentThread() {
+    return currentThreadState ? currentThreadState->thread : 0;
+}
+
+void nativeSleep(i64 millis) {
+    blockingNative([millis] {
+        if (millis > 0) std::this_thread::sleep_for(std::chrono::milliseconds(millis));
+        else std::this_thread::yield();
+    });
+}
+
+// monitors are kept in a side table, because the object header only has room for the class and the GC state
+struct Monitor {
+    std::mutex mutex;
+    std::condition_variable condition;
+    std::atomic<std::thread::id> owner;
+    i32 count = 0; // reentrant locks by owner
+    i32 users = 0; // threads, which hold it or are waiting for it; guarded by monitorsMutex
+};
+
+std::mutex monitorsMutex;
+std::unordered_map<isz, Monitor*> monitors;
+
+Monitor* findMonitor(isz instance, i32 addedUsers) {
+    std::lock_guard<std::mutex> lock(monitorsMutex);
+    if (addedUsers > 0) {
+        Monitor*& monitor = monitors[instance];
+        if (!monitor) monitor = new Monitor();
+        monitor->users += addedUsers;
+        return monitor;
+    }
+    auto it = monitors.find(instance);
+    if (it == monitors.end()) return nullptr;
+    it->second->users += addedUsers;
+    return it->second;
+}
+
+void nativeMonitorEnter(isz instance) {
+    Monitor* monitor = findMonitor(instance, 1);
+    std::thread::id self = std::this_thread::get_id();
+    if (monitor->owner == self) {
+        monitor->count++;
+        return;
+    }
+    if (!monitor->mutex.try_lock()) {
+        blockingNative([monitor] { monitor->mutex.lock(); });
+    }
+    monitor->owner = self;
+    monitor->count = 1;
+}
+
+i32 nativeMonitorTryEnter(isz instance) {
+    Monitor* monitor = findMonitor(instance, 1);
+    std::thread::id self = std::this_thread::get_id();
+    if (monitor->owner == self) {
+        monitor->count++;
+        return 1;
+    }
+    if (!monitor->mutex.try_lock()) {
+        findMonitor(instance, -1);
+        return 0;
+    }
+    monitor->owner = self;
+    monitor->count = 1;
+    return 1;
+}
+
+void nativeMonitorExit(isz instance) {
+    Monitor* monitor = findMonitor(instance, 0);
+    if (!monitor || monitor->owner != std::this_thread::get_id()) return; // IllegalMonitorStateException
+    if (--monitor->count == 0) {
+        monitor->owner = std::thread::id();
+        monitor->mutex.unlock();
+    }
+    findMonitor(instance, -1);
+}
+
+i32 nativeHoldsLock(isz instance) {
+    Monitor* monitor = findMonitor(instance, 0);
+    return monitor && monitor->owner == std::this_thread::get_id();
+}
+
+void nativeMonitorWait(isz instance, i64 timeoutMillis) {
+    Monitor* monitor = findMonitor(instance, 0);
+    std::thread::id self = std::this_thread::get_id();
+    if (!monitor || monitor->owner != self) return; // IllegalMonitorStateException
+    i32 count = monitor->count;
+    monitor->count = 0;
+    monitor->owner = std::thread::id();
+    blockingNative([monitor, timeoutMillis] {
+        std::unique_lock<std::mutex> lock(monitor->mutex, std::adopt_lock);
+        if (timeoutMillis > 0) monitor->condition.wait_for(lock, std::chrono::milliseconds(timeoutMillis));
+        else monitor->condition.wait(lock);
+        lock.release(); // we own the monitor again
+    });
+    monitor->owner = self;
+    monitor->count = count;
+}
+
+void nativeMonitorNotify(isz instance, i32 all) {
+    Monitor* monitor = findMonitor(instance, 0);
+    if (!monitor) return;
+    if (all) monitor->condition.notify_all();
+    else monitor->condition.notify_one();
+}
+
+template<typename V>
+std::atomic_ref<V> atomicField(isz addr) {
+    return std::atomic_ref<V>(*(V*) addrToCpp(addr));
+}
+
+// the read-modify-write functions return the previous value
+i32 atomicLoadI32(isz addr) { return atomicField<i32>(addr).load(); }
+void atomicStoreI32(isz addr, i32 value) { atomicField<i32>(addr).store(value); }
+i32 atomicAddI32(isz addr, i32 delta) { return atomicField<i32>(addr).fetch_add(delta); }
+i32 atomicExchangeI32(isz addr, i32 value) { return atomicField<i32>(addr).exchange(value); }
+i32 atomicCompareExchangeI32(isz addr, i32 expected, i32 value) {
+    atomicField<i32>(addr).compare_exchange_strong(expected, value);
+    return expected;
+}
+i64 atomicLoadI64(isz addr) { return atomicField<i64>(addr).load(); }
+void atomicStoreI64(isz addr, i64 value) { atomicField<i64>(addr).store(value); }
+i64 atomicAddI64(isz addr, i64 delta) { return atomicField<i64>(addr).fetch_add(delta); }
+i64 atomicCompareExchangeI64(isz addr, i64 expected, i64 value) {
+    atomicField<i64>(addr).compare_exchange_strong(expected, value);
+    return expected;
+}
+// only used by WorkerThreads, which replaces native threads in the WASM target
+i32 atomicWaitI32(isz, i32, i64) { return 1; }
+i32 atomicNotify(isz, i32) { return 0; }
+
+// every aligned word on the stacks of parked threads, which points into the heap, is a candidate;
+// ints are stored in 64-bit slots, too, so 4 bytes are skipped at a time
+void collectStackRoots() {
+    stackRoots.clear();
+    nextStackRootIndex = 0;
+    usz heapStart = (usz) global_allocationStart, heapEnd = (usz) global_allocationPointer;
+    for (auto& [thread, state] : nativeThreads) {
+        if (state->finished) continue;
+        stackRoots.push_back(thread);
+        char* top = (char*) (((uintptr_t) state->stackTop + 3) & ~(uintptr_t) 3);
+        for (char* ptr = top; ptr + sizeof(isz) <= state->stackBase; ptr += 4) {
+            usz value;
+            memcpy(&value, ptr, sizeof(usz));
+            if (value >= heapStart && value < heapEnd) stackRoots.push_back((isz) value);
+        }
+    }
+    std::sort(stackRoots.begin(), stackRoots.end(), [](isz a, isz b) { return (usz) a < (usz) b; });
+    stackRoots.erase(std::unique(stackRoots.begin(), stackRoots.end()), stackRoots.end());
+}
+
+isz nextStackRoot() {
+    return nextStackRootIndex < stackRoots.size() ? stackRoots[nextStackRootIndex++] : 0;
+}
+
+// waits until all workers are parked, and prepares the heap for the GC
+void stopTheWorld() {
+    {
+        std::unique_lock<std::mutex> lock(safepointMutex);
+        safepointRequested = true;
+        safepointCondition.wait(lock, [] { return numRunningThreads == 0; });
+    }
+    std::lock_guard<std::mutex> lock(threadsMutex);
+    for (auto& [thread, state] : nativeThreads) {
+        if (!state->finished) retireTLAB(state);
+    }
+    collectStackRoots();
+}
+
+void resumeTheWorld() {
+    {
+        // instances of idle monitors might be collected, and their address reused
+        std::lock_guard<std::mutex> lock(monitorsMutex);
+        for (auto it = monitors.begin(); it != monitors.end();) {
+            if (it->second->users == 0) {
+                delete it->second;
+                it = monitors.erase(it);
+            } else ++it;
+        }
+    }
+    {
+        std::lock_guard<std::mutex> lock(safepointMutex);
+        safepointRequested = false;
+    }
+    safepointCondition.notify_all();
+}
+#endif
+
+void sweepGCRanges(i32 generation, i32 numRanges) {
+    i64 next = gcNextRange;
+    while(true) {
+        // once the next cycle has started, its ranges belong to it
+        if ((i32) (next >> 32) != generation) break;
+        i32 rangeIndex = (i32) next;
+        if (rangeIndex >= numRanges) break;
+        if (!gcNextRange.compare_exchange_weak(next, next + 1)) continue;
+        parallelGC1Range(rangeIndex);
+        gcRangesDone++;
+        next = gcNextRange;
+    }
+}
+
+void runGCWorker() {
+    i32 lastGeneration = 0;
+    while(true) {
+        i32 numRanges;
+        {
+            std::unique_lock<std::mutex> lock(gcWorkMutex);
+            gcWorkCondition.wait(lock, [&] { return shutdown || gcWorkGeneration != lastGeneration; });
+            if (shutdown) return;
+            lastGeneration = gcWorkGeneration;
+            numRanges = gcNumRanges;
+        }
+        sweepGCRanges(lastGeneration, numRanges);
+    }
+}
+
 void runGCThread() {
     while(!shutdown) {
         if (parallelGCStage == 1) {
-            parallelGC1();
+            i32 numRanges = parallelGC1Init();
+            i32 generation;
+            {
+                std::lock_guard<std::mutex> lock(gcWorkMutex);
+                generation = ++gcWorkGeneration;
+                gcNumRanges = numRanges;
+                gcRangesDone = 0;
+                gcNextRange = (i64) generation << 32;
+            }
+            gcWorkCondition.notify_all();
+            sweepGCRanges(generation, numRanges);
+            while (gcRangesDone < numRanges) {
+                std::this_thread::yield();
+            }
+            parallelGC1Finish();
             parallelGCStage = 2;
         } else {
             std::this_thread::sleep_for(std::chrono::milliseconds(1));
@@ -940,6 +1474,88 @@ void runGCThread() {
 void startGCThread(){
     if(useParallelGC) {
         gcThread = new std::thread(runGCThread);
+        for (int i = 0; i < numGCWorkers - 1; i++) {
+            gcWorkers.emplace_back(runGCWorker);
+        }
+    }
+}
+
+void stopGCThread() {
+    {
+        std::lock_guard<std::mutex> lock(gcWorkMutex);
+        shutdown = true;
+    }
+    gcWorkCondition.notify_all();
+    if(gcThread) {
+        gcThread->join();
+    }
+    for (auto& worker : gcWorkers) {
+        worker.join();
+    }
+}
+
+// runs the chosen GC step by step, once gcIntervalFrames have passed
+void runGCStep() {
+    minorGC(); // returns immediately, unless the nursery is in use and half full
+    if (++gcCtr >= gcIntervalFrames) {
+        #ifdef NATIVE_THREADS
+        stopTheWorld();
+        #endif
+        if (useParallelGC) {
+            if (parallelGCStage == 0) {
+                parallelGC0();
+                parallelGCStage = 1;
+            } else if (parallelGCStage == 2) {
+                parallelGC2();
+                parallelGCStage = 0;
+                gcCtr = 0;
+            }
+        } else if (useConcurrentGC) {
+            if (concurrentGCStage == 0) {
+                concurrentGC0();
+                concurrentGCStage = 1;
+            } else {
+                if (concurrentGC1()) {
+                    concurrentGCStage = 0;
+                    gcCtr = 0;
+                } // else stage stays the same
+            }
+        } else {
+            gc();
+            gcCtr = 0;
+        }
+        #ifdef NATIVE_THREADS
+        resumeTheWorld();
+        #endif
+    }
+}
+
+void printGCPauses(std::vector<i64>& pauses, int iteration) {
+    std::sort(pauses.begin(), pauses.end());
+    i64 sum = 0;
+    for (i64 pause : pauses) sum += pause;
+    std::cout << "[GC-Stress] " << iteration << "/" << gcStressIterations << ", pauses in us: " <<
+        "min " << pauses.front() / 1000 << ", " <<
+        "avg " << sum / (i64) pauses.size() / 1000 << ", " <<
+        "p99 " << pauses[pauses.size() * 99 / 100] / 1000 << ", " <<
+        "max " << pauses.back() / 1000 << std::endl;
+    pauses.clear();
+}
+
+// the mutator keeps running while the GC is busy, so any corruption shows up quickly
+void runGCStressTest() {
+    constexpr int reportInterval = 10000;
+    std::vector<i64> pauses;
+    pauses.reserve(reportInterval);
+    for (int i = 1; i <= gcStressIterations; i++) {
+        EngineUpdate(width, height, 1.0 / 60.0);
+        i64 t0 = java_lang_System_nanoTime_J();
+        runGCStep();
+        i64 t1 = java_lang_System_nanoTime_J();
+        pauses.push_back(t1 - t0);
+        if (i % reportInterval == 0) {
+            printGCPauses(pauses, i);
+        }
     }
 }
 
@@ -963,6 +1579,13 @@ int main() {
     attachGLFWListeners();
     startGCThread();
 
+    if (gcStressTest) {
+        runGCStressTest();
+        stopGCThread();
+        glfwTerminate();
+        return 0;
+    }
+
     if (countAllocations) {
         printClassStatistics();
     }
@@ -991,31 +1614,7 @@ int main() {
             csCtr = 0;
         }
 
-        if (++gcCtr >= gcIntervalFrames) {
-            if (useParallelGC) {
-                if (parallelGCStage == 0) {
-                    parallelGC0();
-                    parallelGCStage = 1;
-                } else if (parallelGCStage == 2) {
-                    parallelGC2();
-                    parallelGCStage = 0;
-                    gcCtr = 0;
-                }
-            } else if (useConcurrentGC) {
-                if (concurrentGCStage == 0) {
-                    concurrentGC0();
-                    concurrentGCStage = 1;
-                } else {
-                    if (concurrentGC1()) {
-                        concurrentGCStage = 0;
-                        gcCtr = 0;
-                    } // else stage stays the same
-                }
-            } else {
-                gc();
-                gcCtr = 0;
-            }
-        }
+        runGCStep();
 
         glfwSwapBuffers(window);
         i64 thisTime = java_lang_System_nanoTime_J();
@@ -1023,11 +1622,8 @@ int main() {
         lastTime = thisTime;
     }
 
-    shutdown = true;
     glfwTerminate();
-    if(gcThread) {
-        gcThread->join();
-    }
+    stopGCThread();
 
     return 0;
 }
\ No newline at end of file
@@ -8,3 +8,62 @@ typedef uint32_t u32;
 typedef uint64_t u64;
 typedef float f32;
 typedef double f64;
+
+// v128 for the SIMD flavor (buildSIMDFlavor), using the vector extensions of GCC and Clang;
+// array elements are only 4-byte-aligned, and the lane types are reinterpreted by casting
+#include <cmath>
+#include <algorithm>
+
+typedef i32 v128 __attribute__((vector_size(16), aligned(4)));
+typedef i32 i32x4 __attribute__((vector_size(16)));
+typedef u32 u32x4 __attribute__((vector_size(16)));
+typedef i64 i64x2 __attribute__((vector_size(16)));
+typedef f32 f32x4 __attribute__((vector_size(16)));
+typedef f64 f64x2 __attribute__((vector_size(16)));
+
+#define V128_LANES(type, n, a, expr) { type r = (type) (a); for (int k = 0; k < n; k++) { r[k] = expr; } return (v128) r; }
+
+inline v128 i32x4_splat(i32 x) { return (v128) (i32x4) { x, x, x, x }; }
+inline v128 i64x2_splat(i64 x) { return (v128) (i64x2) { x, x }; }
+inline v128 f32x4_splat(f32 x) { return (v128) (f32x4) { x, x, x, x }; }
+inline v128 f64x2_splat(f64 x) { return (v128) (f64x2) { x, x }; }
+
+inline v128 v128_and(v128 a, v128 b) { return a & b; }
+inline v128 v128_or(v128 a, v128 b) { return a | b; }
+inline v128 v128_xor(v128 a, v128 b) { return a ^ b; }
+
+inline v128 i32x4_add(v128 a, v128 b) { return (v128) ((i32x4) a + (i32x4) b); }
+inline v128 i32x4_sub(v128 a, v128 b) { return (v128) ((i32x4) a - (i32x4) b); }
+inline v128 i32x4_mul(v128 a, v128 b) { return (v128) ((u32x4) a * (u32x4) b); }
+inline v128 i32x4_shl(v128 a, i32 b) { return (v128) ((u32x4) a << (b & 31)); }
+inline v128 i32x4_shr_s(v128 a, i32 b) { return (v128) ((i32x4) a >> (b & 31)); }
+inline v128 i32x4_shr_u(v128 a, i32 b) { return (v128) ((u32x4) a >> (b & 31)); }
+
+inline v128 i64x2_add(v128 a, v128 b) { return (v128) ((i64x2) a + (i64x2) b); }
+inline v128 i64x2_sub(v128 a, v128 b) { return (v128) ((i64x2) a - (i64x2) b); }
+inline v128 i64x2_mul(v128 a, v128 b) V128_LANES(i64x2, 2, a, (i64) ((u64) r[k] * (u64) ((i64x2) b)[k]))
+
+inline v128 f32x4_add(v128 a, v128 b) { return (v128) ((f32x4) a + (f32x4) b); }
+inline v128 f32x4_sub(v128 a, v128 b) { return (v128) ((f32x4) a - (f32x4) b); }
+inline v128 f32x4_mul(v128 a, v128 b) { return (v128) ((f32x4) a * (f32x4) b); }
+inline v128 f32x4_div(v128 a, v128 b) { return (v128) ((f32x4) a / (f32x4) b); }
+inline v128 f32x4_min(v128 a, v128 b) V128_LANES(f32x4, 4, a, std::min(r[k], ((f32x4) b)[k]))
+inline v128 f32x4_max(v128 a, v128 b) V128_LANES(f32x4, 4, a, std::max(r[k], ((f32x4) b)[k]))
+inline v128 f32x4_neg(v128 a) { return (v128) (-(f32x4) a); }
+inline v128 f32x4_abs(v128 a) V128_LANES(f32x4, 4, a, std::abs(r[k]))
+inline v128 f32x4_sqrt(v128 a) V128_LANES(f32x4, 4, a, std::sqrt(r[k]))
+inline v128 f32x4_floor(v128 a) V128_LANES(f32x4, 4, a, std::floor(r[k]))
+inline v128 f32x4_ceil(v128 a) V128_LANES(f32x4, 4, a, std::ceil(r[k]))
+inline v128 f32x4_convert_i32x4_s(v128 a) { return (v128) __builtin_convertvector((i32x4) a, f32x4); }
+
+inline v128 f64x2_add(v128 a, v128 b) { return (v128) ((f64x2) a + (f64x2) b); }
+inline v128 f64x2_sub(v128 a, v128 b) { return (v128) ((f64x2) a - (f64x2) b); }
+inline v128 f64x2_mul(v128 a, v128 b) { return (v128) ((f64x2) a * (f64x2) b); }
+inline v128 f64x2_div(v128 a, v128 b) { return (v128) ((f64x2) a / (f64x2) b); }
+inline v128 f64x2_min(v128 a, v128 b) V128_LANES(f64x2, 2, a, std::min(r[k], ((f64x2) b)[k]))
+inline v128 f64x2_max(v128 a, v128 b) V128_LANES(f64x2, 2, a, std::max(r[k], ((f64x2) b)[k]))
+inline v128 f64x2_neg(v128 a) { return (v128) (-(f64x2) a); }
+inline v128 f64x2_abs(v128 a) V128_LANES(f64x2, 2, a, std::abs(r[k]))
+inline v128 f64x2_sqrt(v128 a) V128_LANES(f64x2, 2, a, std::sqrt(r[k]))
+inline v128 f64x2_floor(v128 a) V128_LANES(f64x2, 2, a, std::floor(r[k]))
+inline v128 f64x2_ceil(v128 a) V128_LANES(f64x2, 2, a, std::ceil(r[k]))
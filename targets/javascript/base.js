@@ -182,7 +182,7 @@ function createClass(classId,superId,modifiers,interfaces,fields,methods) {
         const dstList = isConstructor ? constructors2 : methods2;
         dstList.push(method1);
     }
-    clazz.interfaceIds = interfaces
+    clazz.interfaceIds = new Set(interfaces) // for instanceOf
     return clazz;
 }
  
@@ -7,6 +7,7 @@ let instance = null
 let startTime = Date.now()
 
 import { autoJS } from "./index0.js";
+import "./runtime.js";
 import { webGPU } from './../webgpu/webgpu.js';
 
 window.inited = false
@@ -15,7 +16,17 @@ try {
 
     window.is32Bits = autoJS.is32Bits;
 
-    var memory = window.memory = new WebAssembly.Memory(is32Bits ? {
+    // shared memory is only available on cross-origin isolated pages, see serve.py
+    if(autoJS.useSharedMemory && !window.crossOriginIsolated) {
+        throw "This build uses threads, so it must be served with the headers " +
+            "Cross-Origin-Opener-Policy: same-origin and Cross-Origin-Embedder-Policy: require-corp"
+    }
+
+    var memory = window.memory = new WebAssembly.Memory(is32Bits ? autoJS.useSharedMemory ? {
+        initial: autoJS.initialMemorySize,
+        maximum: autoJS.maximumMemorySize,
+        shared: true
+    } : {
         initial: autoJS.initialMemorySize,
     } : {
         initial: BigInt(autoJS.initialMemorySize),
@@ -35,93 +46,6 @@ try {
 
     window.commandLine = [[],[]]
 
-    window.str = function(x) {
-        // convert Java string into JavaScript string
-        if(x == 0) return null
-        if(lib.rCl(x) == 10) {
-            let chars = lib.r32(x + objectOverhead + 4)
-            if(chars == 0) return null
-            let cl = lib.rCl(chars)
-            if(cl == 6) {
-                let length = lib.r32(chars + objectOverhead)
-                if(length < 0 || length > 65535) return "STRING TOO LONG OR SHORT11!!: "+length
-                let str = []
-                for(var i=0;i<length;i++){
-                    str.push(String.fromCharCode(lib.r16(chars + arrayOverhead + (i+i))))
-                }
-                return str.join("")
-            } else if(cl == 5) {
-                let length = lib.r32(chars + objectOverhead)
-                if(length < 0 || length > 65535) return "STRING TOO LONG OR SHORT11!!: "+length
-                return new TextDecoder().decode(new Uint8Array(memory.buffer, chars + arrayOverhead, length));
-            } else throw "INCORRECT CLASS IN STRING.CHARS!!!"
-        } else throw "INVALID_STRING!!1! at " + x + ", class " + lib.rCl(x)
-        return x;
-    }
-
-    window.ptr2err = function(ptr){
-        var msg = str(lib.r32(ptr + objectOverhead)) // 0 = offset of "detailMessage"
-        var name = str(lib.java_lang_Class_getName_Ljava_lang_String(lib.findClass(lib.rCl(ptr)))[0])
-        return msg ? name+": "+msg : name
-    }
-
-    window.cls2err = function(cls){
-        return str(lib.java_lang_Class_getName_Ljava_lang_String(lib.findClass(cls))[0])
-    }
-
-    window.trace = function(th){
-        if(th == 0) return null
-        if(lib.instanceOf(th, 14)){// 14 = Throwable
-            var clazz = ptr2err(th)
-            var trace = lib.r32(th + objectOverhead + 4) // first is message
-            if(trace && lib.instanceOf(trace, 1)){
-                var traceLength = lib.r32(trace + objectOverhead)
-                var trace1 = []
-                for(var i=0;i<traceLength;i++){
-                    var element = lib.r32(trace + arrayOverhead + 4 * i)
-                    if(element && lib.rCl(element) == 15){
-                        trace1.push(
-                            str(lib.r32(element + objectOverhead))+'.'+
-                            str(lib.r32(element + objectOverhead + 4))+'(:'+
-                            lib.r32(element + objectOverhead + 12)+')'
-                        )
-                    } else trace1.push(null)
-                }
-                trace = trace1
-            }
-            console.log(clazz, trace)
-        } else console.error('Not a Throwable', lib.rCl(th))
-        return th
-    }
-
-    window.trace1 = function(trace){
-        if(trace && lib.instanceOf(trace, 1)){
-            var traceLength = lib.r32(trace + objectOverhead)
-            var trace1 = []
-            for(var i=0;i<traceLength;i++){
-                var element = lib.r32(trace + arrayOverhead + 4 * i)
-                if(element && lib.rCl(element) == 15){
-                    trace1.push(
-                        str(lib.r32(element + objectOverhead))+'.'+
-                        str(lib.r32(element + objectOverhead + 4))+'(:'+
-                        lib.r32(element + objectOverhead + 12)+')'
-                    )
-                } else trace1.push(null)
-            }
-            console.log(trace1)
-        }
-    }
-
-    window.fill = function(buffer, str) {
-        if(buffer == 0) return 0
-        str = str + ""
-        var l = Math.max(Math.min(lib.r32(buffer + objectOverhead), str.length), 0)
-        for(var i=0;i<l;i++) {
-            lib.w16(buffer + arrayOverhead + i+i, str.charCodeAt(i))
-        }
-        return l
-    }
-
     window.find = function(word) {
         for(key in gl) if(gl[key] == word) return key
     }
@@ -171,6 +95,7 @@ try {
 
         console.log("Calling main function")
         safe(lib.EngineMain(0))
+        glFlush()
         console.log("Called main function")
 
         window.lastTime = 0
@@ -185,9 +110,19 @@ try {
             }
             const dt = (time-window.lastTime)*1e-3
             safe(lib.EngineUpdate(innerWidth, innerHeight, dt))
+            glFlush() // end of frame
             window.lastTime = time
+            lib.minorGC() // returns immediately, unless the nursery is in use and half full
             if (window.gcCtr++ >= 2000) {
-                if (window.gcStage == 0) {
+                if (autoJS.useSharedMemory) {
+                    // with workers, the GC waits until none of them runs a thread, and keeps them stopped until it's done;
+                    // it finishes within this frame, because the main thread would wait forever, if it joined a stopped thread
+                    if (stopWorkers()) {
+                        lib.gc();
+                        window.gcCtr = 0;
+                        lib.resumeWorkers();
+                    }
+                } else if (window.gcStage == 0) {
                     lib.concurrentGC0();
                     window.gcStage = 1;
                 } else if (lib.concurrentGC1()) {
@@ -216,13 +151,34 @@ try {
         return glMap[id]
     }
 
+    // executes the GL calls, which were encoded into GLCommandBuffer; [0] = number of used words
+    window.glCommandBuffer = 0
+    window.glFlush = function(){
+        if(!glCommandBuffer) {
+            if(!lib || !lib.glCommandBuffer) return
+            glCommandBuffer = Number(lib.glCommandBuffer()) + arrayOverhead
+        }
+        const i32 = new Int32Array(memory.buffer), f32 = new Float32Array(memory.buffer)
+        const start = glCommandBuffer >> 2, end = start + 1 + i32[start]
+        for(let i = start + 1; i < end;) {
+            i = autoJS.glCommands(i32[i], i32, f32, i + 1)
+        }
+        i32[start] = 0
+    }
+
     window.delmap = function(id){
         glMap[id] = ""
     }
 
     window.hasCrashed = 0
     window.lib = 0
-    var fetched = fetch("../wasm/jvm2wasm.wasm")
+    // smallest module using a v128 instruction (i32x4.splat), to check whether the browser supports SIMD
+    var supportsSIMD = WebAssembly.validate(new Uint8Array([
+        0, 97, 115, 109, 1, 0, 0, 0, 1, 5, 1, 96, 0, 1, 123, 3, 2, 1, 0,
+        10, 8, 1, 6, 0, 65, 0, 253, 17, 11
+    ]))
+    var useSIMD = autoJS.hasSIMDFlavor && supportsSIMD
+    var fetched = fetch(useSIMD ? "../wasm/jvm2wasm-simd.wasm" : "../wasm/jvm2wasm.wasm")
 	fetched
         .then(response => response.arrayBuffer())
         .then(buffer => WebAssembly.instantiate(buffer, imports))
@@ -253,11 +209,37 @@ try {
     	safe(lib.init())
     	console.log("calling lib.gc()")
         safe(lib.gc())
+        if(autoJS.useSharedMemory) startWorkers()
         var sleep = Math.max(0, startTime - Date.now() + 300)
         console.log('Showing logo for '+sleep+' ms')
         setTimeout(startEngine, sleep)
     }
 
+    // runs java.lang.Thread, see worker.js and jvm/WorkerThreads.java, which spawns them on demand;
+    // workers use a flavor without data segments, because those would overwrite the shared memory
+    function startWorkers() {
+        WebAssembly.compileStreaming(fetch(useSIMD ? "../wasm/jvm2wasm-simd-worker.wasm" : "../wasm/jvm2wasm-worker.wasm"))
+            .then(workerModule => {
+                window.workerModule = workerModule
+                var pending = window.pendingWorkers || []
+                window.pendingWorkers = null
+                for(var i=0;i<pending.length;i++) spawnWorker(pending[i])
+            })
+    }
+
+    // threads, which never finish, prevent the GC, so warn once, when it has been waiting for long
+    window.gcWaitingFrames = 0
+    function stopWorkers() {
+        if (lib.stopWorkers()) {
+            window.gcWaitingFrames = 0
+            return true
+        }
+        if (++window.gcWaitingFrames == 600) {
+            console.warn("The GC has been waiting for running threads for 600 frames; threads, which never finish, prevent it")
+        }
+        return false
+    }
+
     window.calloc = {}
     window.findClass = function(id){
         return str(lib.java_lang_Class_getName_Ljava_lang_String(lib.findClass(id))[0])
@@ -0,0 +1,101 @@
+// helpers for the JavaScript natives, shared by index.js and worker.js;
+// they expect lib, memory, objectOverhead and arrayOverhead to be globals
+
+self.str = function(x) {
+    // convert Java string into JavaScript string
+    if(x == 0) return null
+    if(lib.rCl(x) == 10) {
+        let chars = lib.r32(x + objectOverhead + 4)
+        if(chars == 0) return null
+        let cl = lib.rCl(chars)
+        if(cl == 6) {
+            let length = lib.r32(chars + objectOverhead)
+            if(length < 0 || length > 65535) return "STRING TOO LONG OR SHORT11!!: "+length
+            let str = []
+            for(var i=0;i<length;i++){
+                str.push(String.fromCharCode(lib.r16(chars + arrayOverhead + (i+i))))
+            }
+            return str.join("")
+        } else if(cl == 5) {
+            let length = lib.r32(chars + objectOverhead)
+            if(length < 0 || length > 65535) return "STRING TOO LONG OR SHORT11!!: "+length
+            // TextDecoder doesn't accept views of shared memory, so copy them
+            return new TextDecoder().decode(new Uint8Array(memory.buffer, chars + arrayOverhead, length).slice());
+        } else throw "INCORRECT CLASS IN STRING.CHARS!!!"
+    } else throw "INVALID_STRING!!1! at " + x + ", class " + lib.rCl(x)
+    return x;
+}
+
+self.ptr2err = function(ptr){
+    var msg = str(lib.r32(ptr + objectOverhead)) // 0 = offset of "detailMessage"
+    var name = str(lib.java_lang_Class_getName_Ljava_lang_String(lib.findClass(lib.rCl(ptr)))[0])
+    return msg ? name+": "+msg : name
+}
+
+self.cls2err = function(cls){
+    return str(lib.java_lang_Class_getName_Ljava_lang_String(lib.findClass(cls))[0])
+}
+
+self.trace = function(th){
+    if(th == 0) return null
+    if(lib.instanceOf(th, 14)){// 14 = Throwable
+        var clazz = ptr2err(th)
+        var trace = lib.r32(th + objectOverhead + 4) // first is message
+        if(trace && lib.instanceOf(trace, 1)){
+            var traceLength = lib.r32(trace + objectOverhead)
+            var trace1 = []
+            for(var i=0;i<traceLength;i++){
+                var element = lib.r32(trace + arrayOverhead + 4 * i)
+                if(element && lib.rCl(element) == 15){
+                    trace1.push(
+                        str(lib.r32(element + objectOverhead))+'.'+
+                        str(lib.r32(element + objectOverhead + 4))+'(:'+
+                        lib.r32(element + objectOverhead + 12)+')'
+                    )
+                } else trace1.push(null)
+            }
+            trace = trace1
+        }
+        console.log(clazz, trace)
+    } else console.error('Not a Throwable', lib.rCl(th))
+    return th
+}
+
+self.trace1 = function(trace){
+    if(trace && lib.instanceOf(trace, 1)){
+        var traceLength = lib.r32(trace + objectOverhead)
+        var trace1 = []
+        for(var i=0;i<traceLength;i++){
+            var element = lib.r32(trace + arrayOverhead + 4 * i)
+            if(element && lib.rCl(element) == 15){
+                trace1.push(
+                    str(lib.r32(element + objectOverhead))+'.'+
+                    str(lib.r32(element + objectOverhead + 4))+'(:'+
+                    lib.r32(element + objectOverhead + 12)+')'
+                )
+            } else trace1.push(null)
+        }
+        console.log(trace1)
+    }
+}
+
+self.fill = function(buffer, str) {
+    if(buffer == 0) return 0
+    str = str + ""
+    var l = Math.max(Math.min(lib.r32(buffer + objectOverhead), str.length), 0)
+    for(var i=0;i<l;i++) {
+        lib.w16(buffer + arrayOverhead + i+i, str.charCodeAt(i))
+    }
+    return l
+}
+
+// starts a worker for jvm/WorkerThreads.java; called on the main thread, and by workers, which start threads, too.
+// Until index.js has compiled the worker flavor of the module, the workers are queued
+self.spawnWorker = function(workerIndex) {
+    if(!self.workerModule) {
+        (self.pendingWorkers = self.pendingWorkers || []).push(workerIndex)
+        return
+    }
+    var worker = new Worker("./worker.js", { type: "module" })
+    worker.postMessage({ module: self.workerModule, memory: memory, workerIndex: workerIndex })
+}
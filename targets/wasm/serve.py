@@ -0,0 +1,17 @@
+# Serves the repository root like "python -m http.server", but with the headers, which make the page
+# cross-origin isolated; browsers only provide shared memory, and therefore threads, to such pages.
+# Usage: python targets/wasm/serve.py [port], then open http://localhost:8000/targets/wasm/
+import sys
+from http.server import SimpleHTTPRequestHandler, ThreadingHTTPServer
+
+
+class IsolatedRequestHandler(SimpleHTTPRequestHandler):
+    def end_headers(self):
+        self.send_header("Cross-Origin-Opener-Policy", "same-origin")
+        self.send_header("Cross-Origin-Embedder-Policy", "require-corp")
+        super().end_headers()
+
+
+if __name__ == "__main__":
+    port = int(sys.argv[1]) if len(sys.argv) > 1 else 8000
+    ThreadingHTTPServer(("", port), IsolatedRequestHandler).serve_forever()
@@ -0,0 +1,28 @@
+// Web Worker for builds with JVMFlags.useSharedMemory, started by index.js;
+// it instantiates the module on the shared memory, and then runs java.lang.Thread instances forever
+import { autoJS } from "./index0.js";
+import "./runtime.js";
+
+self.window = self
+
+self.onmessage = function(e) {
+    var data = e.data
+    self.workerIndex = data.workerIndex
+    self.memory = data.memory
+    self.workerModule = data.module // for the workers, which this one spawns
+    var imports = {
+        jvm: { },
+        js: { mem: data.memory }
+    }
+    for (var key in autoJS) {
+        imports.jvm[key] = autoJS[key]
+    }
+    WebAssembly.instantiate(data.module, imports).then(instance => {
+        self.lib = instance.exports
+        self.objectOverhead = lib.oo()
+        self.arrayOverhead = objectOverhead + 4
+        // static fields were initialized by the main thread, so lib.init() must not be called again
+        var error = lib.runWorker()
+        if(error) trace(error)
+    })
+}
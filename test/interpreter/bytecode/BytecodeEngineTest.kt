@@ -0,0 +1,225 @@
+package interpreter.bytecode
+
+import interpreter.WASMEngine
+import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertTrue
+import org.junit.jupiter.api.Test
+import wasm.parser.WATParser
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * runs the same static initializers on the tree-walker and on the bytecode interpreter,
+ * and compares the static fields, the heap and the globals afterward, like CallStaticInit.compareInterpreters does
+ * */
+class BytecodeEngineTest {
+
+    companion object {
+
+        private const val STATIC_FIELDS = 256
+        private const val HEAP_START = 1024
+
+        /**
+         * static fields of three classes live at STATIC_FIELDS, objects are allocated from HEAP_START
+         * */
+        private val module = """
+            (module
+            (memory (export "memory") 1)
+            (table 2 funcref)
+            (elem (i32.const 0) ${'$'}fib ${'$'}square)
+            (global ${'$'}allocationPointer (mut i32) (i32.const $HEAP_START))
+            (global ${'$'}counter (mut i64) (i64.const 5))
+            (global ${'$'}ratio (mut f64) (f64.const 0.5))
+            (global ${'$'}scale (mut f32) (f32.const 1.5))
+            (data (i32.const 64) "\ff\80\7f\01\fe\ff\ff\ff")
+            (func ${'$'}fib (param i32) (result i32)
+              local.get 0 i32.const 2 i32.lt_s
+              (if (result i32) (then local.get 0)
+                (else local.get 0 i32.const 1 i32.sub call ${'$'}fib local.get 0 i32.const 2 i32.sub call ${'$'}fib i32.add))
+              return)
+            (func ${'$'}square (param i32) (result i32)
+              local.get 0 local.get 0 i32.mul return)
+            (func ${'$'}alloc (param i32) (result i32) (local ${'$'}ptr i32)
+              global.get ${'$'}allocationPointer local.set ${'$'}ptr
+              global.get ${'$'}allocationPointer local.get 0 i32.add global.set ${'$'}allocationPointer
+              local.get ${'$'}ptr return)
+            (func ${'$'}clinitIntegers (local ${'$'}i i32) (local ${'$'}sum i64)
+              i32.const 0 local.set ${'$'}i
+              i64.const 0 local.set ${'$'}sum
+              (loop ${'$'}sumOfSquares
+                local.get ${'$'}sum local.get ${'$'}i i64.extend_i32_s local.get ${'$'}i i64.extend_i32_s i64.mul i64.add
+                local.set ${'$'}sum
+                local.get ${'$'}i i32.const 1 i32.add local.set ${'$'}i
+                local.get ${'$'}i i32.const 1000 i32.lt_s br_if ${'$'}sumOfSquares)
+              i32.const 256 local.get ${'$'}sum i64.store
+              i32.const 264 i32.const -1 i64.extend_i32_u i64.store
+              i32.const 272 i32.const 64 i32.load8_s i32.store
+              i32.const 276 i32.const 64 i32.load8_u i32.store
+              i32.const 280 i32.const 68 i32.load16_s i32.store
+              i32.const 284 i32.const 65 i32.load16_u i32.store
+              i32.const 288 i32.const 20 call ${'$'}fib i32.store
+              i32.const 292 i32.const -7 i32.const 2 i32.rem_s i32.store
+              i32.const 296 i32.const -7 i32.const 1 i32.shr_u i32.store
+              i32.const 300 i32.const 305419896 i32.store8
+              i32.const 302 i32.const 305419896 i32.store16
+              i32.const 304 i64.const -3 i32.const 67 i32.load i64.extend_i32_u i64.mul i64.store
+              global.get ${'$'}counter local.get ${'$'}sum i64.add global.set ${'$'}counter
+              return)
+            (func ${'$'}clinitFloats (local ${'$'}nan f64) (local ${'$'}nanF f32)
+              f64.const 0 f64.const 0 f64.div local.set ${'$'}nan
+              f32.const 0 f32.const 0 f32.div local.set ${'$'}nanF
+              i32.const 320 local.get ${'$'}nan local.get ${'$'}nan f64.eq i32.store
+              i32.const 324 local.get ${'$'}nan local.get ${'$'}nan f64.ne i32.store
+              i32.const 328 local.get ${'$'}nan f64.const 1 f64.lt i32.store
+              i32.const 332 local.get ${'$'}nan f64.const 1 f64.ge i32.store
+              i32.const 336 f64.const 0 f64.neg f64.const 0 f64.eq i32.store
+              i32.const 340 f64.const 0 f64.neg f64.const 0 f64.lt i32.store
+              i32.const 344 local.get ${'$'}nanF f32.const 1 f32.gt i32.store
+              i32.const 348 local.get ${'$'}nanF local.get ${'$'}nanF f32.ne i32.store
+              i32.const 352 f64.const 2 f64.sqrt f64.store
+              i32.const 360 f64.const 1 call ${'$'}java_lang_StrictMath_sin_DD f64.store
+              i32.const 368 local.get ${'$'}nan f64.const 1 call ${'$'}dcmpg i32.store
+              i32.const 372 local.get ${'$'}nan f64.const 1 call ${'$'}dcmpl i32.store
+              i32.const 376 f64.const 2.5 f64.nearest f64.store
+              i32.const 384 f64.const -3.7 i32.trunc_f64_s i32.store
+              i32.const 388 i32.const -1 f32.convert_i32_u f32.store
+              i32.const 392 i64.const -1 f64.convert_i64_u f64.store
+              global.get ${'$'}ratio f64.const 0.75 f64.mul global.set ${'$'}ratio
+              global.get ${'$'}scale f32.const 2 f32.mul global.set ${'$'}scale
+              return)
+            (func ${'$'}clinitObjects (local ${'$'}array i32) (local ${'$'}i i32) (local ${'$'}value i32)
+              i32.const 72 call ${'$'}alloc local.set ${'$'}array
+              local.get ${'$'}array i32.const 7 i32.store
+              local.get ${'$'}array i32.const 4 i32.add i32.const 16 i32.store
+              i32.const 0 local.set ${'$'}i
+              (loop ${'$'}fill
+                local.get ${'$'}i i32.const 3 i32.rem_s
+                (block ${'$'}switch (block ${'$'}case2 (block ${'$'}case1 (block ${'$'}case0 br_table ${'$'}case0 ${'$'}case1 ${'$'}case2)
+                  local.get ${'$'}i i32.const 0 call_indirect (type ${'$'}iXi) local.set ${'$'}value br ${'$'}switch)
+                  local.get ${'$'}i i32.const 1 call_indirect (type ${'$'}iXi) local.set ${'$'}value br ${'$'}switch)
+                  local.get ${'$'}i i32.const -1 i32.xor local.set ${'$'}value)
+                local.get ${'$'}array i32.const 8 i32.add local.get ${'$'}i i32.const 2 i32.shl i32.add
+                local.get ${'$'}value i32.store
+                local.get ${'$'}i i32.const 1 i32.add local.set ${'$'}i
+                local.get ${'$'}i i32.const 16 i32.lt_s br_if ${'$'}fill)
+              i32.const 400 local.get ${'$'}array i32.store
+              i32.const 404 i32.const 24 call ${'$'}alloc i32.store
+              return)
+            )
+        """.trimIndent()
+
+        private val staticInitFunctions = listOf("clinitIntegers", "clinitFloats", "clinitObjects")
+
+        private fun createEngine(): WASMEngine {
+            val parser = WATParser()
+            parser.parse(module)
+            val engine = WASMEngine(parser.memorySizeInBlocks shl 16)
+            engine.registerGlobals(parser.globals)
+            engine.registerSpecialFunctions()
+            engine.registerMemorySections(parser.dataSections)
+            engine.registerFunctions(parser.functions)
+            engine.resolveCalls()
+            engine.registerFunctionTable(parser.functionTable)
+            return engine
+        }
+
+        private val treeWalker by lazy {
+            val engine = createEngine()
+            for (name in staticInitFunctions) assertTrue(engine.executeFunction(name))
+            engine
+        }
+
+        private val bytecode by lazy {
+            val engine = createEngine()
+            val bytecode = BytecodeEngine(engine)
+            for (name in staticInitFunctions) assertTrue(bytecode.executeFunction(name))
+            engine
+        }
+    }
+
+    private fun WASMEngine.field(address: Int): ByteBuffer {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).position(address) as ByteBuffer
+    }
+
+    @Test
+    fun testIdenticalMemory() {
+        val end = treeWalker.globals["allocationPointer"]!!.toInt()
+        assertEquals(end, bytecode.globals["allocationPointer"]!!.toInt())
+        assertEquals(HEAP_START + 72 + 24, end)
+        val a = treeWalker.bytes
+        val b = bytecode.bytes
+        assertEquals(a.size, b.size)
+        for (i in a.indices) {
+            assertEquals(a[i], b[i], "Memory differs at $i")
+        }
+    }
+
+    @Test
+    fun testIdenticalGlobals() {
+        assertEquals(treeWalker.globals, bytecode.globals)
+        assertEquals(5L + 332_833_500L, bytecode.globals["counter"])
+        assertEquals(0.375, bytecode.globals["ratio"])
+        assertEquals(3f, bytecode.globals["scale"])
+    }
+
+    /**
+     * both interpreters could agree on something wrong, so the fields are checked against the JVM, too
+     * */
+    @Test
+    fun testIntegerFields() {
+        for (engine in listOf(treeWalker, bytecode)) {
+            val fields = engine.field(STATIC_FIELDS)
+            assertEquals(332_833_500L, fields.getLong())
+            assertEquals(0xffffffffL, fields.getLong())
+            assertEquals(-1, fields.getInt())
+            assertEquals(255, fields.getInt())
+            assertEquals(-2, fields.getInt())
+            assertEquals(0x7f80, fields.getInt())
+            assertEquals(6765, fields.getInt())
+            assertEquals(-1, fields.getInt())
+            assertEquals(-7 ushr 1, fields.getInt())
+            assertEquals(0x78.toByte(), fields.get())
+            assertEquals(0, fields.get().toInt())
+            assertEquals(0x5678.toShort(), fields.getShort())
+            assertEquals(-3L * 0xfffffe01L, fields.getLong())
+        }
+    }
+
+    @Test
+    fun testFloatFields() {
+        for (engine in listOf(treeWalker, bytecode)) {
+            val fields = engine.field(STATIC_FIELDS + 64)
+            assertEquals(listOf(0, 1, 0, 0, 1, 0, 0, 1), (0 until 8).map { fields.getInt() })
+            assertEquals(kotlin.math.sqrt(2.0), fields.getDouble())
+            assertEquals(StrictMath.sin(1.0), fields.getDouble())
+            assertEquals(1, fields.getInt()) // dcmpg: NaN is greater
+            assertEquals(-1, fields.getInt()) // dcmpl: NaN is less
+            assertEquals(Math.rint(2.5), fields.getDouble())
+            assertEquals(-3, fields.getInt())
+            assertEquals(4294967295f, fields.getFloat())
+            assertEquals(1.8446744073709552E19, fields.getDouble())
+        }
+    }
+
+    @Test
+    fun testObjectFields() {
+        for (engine in listOf(treeWalker, bytecode)) {
+            val array = engine.field(STATIC_FIELDS + 144).getInt()
+            assertEquals(HEAP_START, array)
+            assertEquals(HEAP_START + 72, engine.field(STATIC_FIELDS + 148).getInt())
+            val elements = engine.field(array)
+            assertEquals(7, elements.getInt())
+            assertEquals(16, elements.getInt())
+            for (i in 0 until 16) {
+                val expected = when (i % 3) {
+                    0 -> fib(i)
+                    1 -> i * i
+                    else -> i.inv()
+                }
+                assertEquals(expected, elements.getInt(), "element $i")
+            }
+        }
+    }
+
+    private fun fib(i: Int): Int = if (i < 2) i else fib(i - 1) + fib(i - 2)
+}
@@ -0,0 +1,230 @@
+package jvm.custom
+
+import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import kotlin.math.min
+import kotlin.random.Random
+import java.util.zip.Deflater as ZipDeflater
+import java.util.zip.Inflater as ZipInflater
+
+/**
+ * round-trips data through Inflater and Deflater, and through java.util.zip, which they replace, in both directions
+ * */
+class InflaterDeflaterTest {
+
+    private val levels = listOf(Deflater.DEFAULT_COMPRESSION) + (Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION)
+
+    private val text = run {
+        val words = listOf("the ", "quick ", "brown ", "fox ", "jumps ", "over ", "lazy ", "dog", ".\n", "0x", "1f", "42 ")
+        val random = Random(1234)
+        val builder = StringBuilder()
+        while (builder.length < 100_000) builder.append(words[random.nextInt(words.size)])
+        builder.toString().encodeToByteArray()
+    }
+
+    private val datasets = listOf(
+        ByteArray(0),
+        byteArrayOf(42),
+        text,
+        Random(5678).nextBytes(70_000), // incompressible, so stored blocks are chosen
+        ByteArray(300_000), // matches of the maximum length
+        text.copyOf(50_000) + Random(91).nextBytes(20_000) + ByteArray(40_000) + text.copyOf(30_000)
+    )
+
+    /**
+     * the common interface of both implementations
+     * */
+    private class DeflaterAPI(
+        val setInput: (ByteArray, Int, Int) -> Unit,
+        val needsInput: () -> Boolean,
+        val deflate: (ByteArray, Int) -> Int,
+        val finish: () -> Unit,
+        val finished: () -> Boolean,
+        val adler: () -> Int
+    )
+
+    private class InflaterAPI(
+        val setInput: (ByteArray, Int, Int) -> Unit,
+        val needsInput: () -> Boolean,
+        val inflate: (ByteArray) -> Int,
+        val finished: () -> Boolean,
+        val adler: () -> Int
+    )
+
+    private fun custom(level: Int, nowrap: Boolean): DeflaterAPI {
+        val deflater = Deflater(level, nowrap)
+        return DeflaterAPI(
+            deflater::setInput, deflater::needsInput, { bytes, flush -> deflater.deflate(bytes, 0, bytes.size, flush) },
+            deflater::finish, deflater::finished, deflater::getAdler
+        )
+    }
+
+    private fun java(level: Int, nowrap: Boolean): DeflaterAPI {
+        val deflater = ZipDeflater(level, nowrap)
+        return DeflaterAPI(
+            deflater::setInput, deflater::needsInput, { bytes, flush -> deflater.deflate(bytes, 0, bytes.size, flush) },
+            deflater::finish, deflater::finished, deflater::getAdler
+        )
+    }
+
+    private fun customInflater(nowrap: Boolean): InflaterAPI {
+        val inflater = Inflater(nowrap)
+        return InflaterAPI(inflater::setInput, inflater::needsInput, inflater::inflate, inflater::finished, inflater::getAdler)
+    }
+
+    private fun javaInflater(nowrap: Boolean): InflaterAPI {
+        val inflater = ZipInflater(nowrap)
+        return InflaterAPI(inflater::setInput, inflater::needsInput, inflater::inflate, inflater::finished, inflater::getAdler)
+    }
+
+    /**
+     * flushes after each chunk with flush, and finishes the stream at the end
+     * */
+    private fun deflate(
+        deflater: DeflaterAPI, data: ByteArray, inputChunk: Int, outputChunk: Int,
+        flush: Int = Deflater.NO_FLUSH, afterChunk: (ByteArray) -> Unit = {}
+    ): ByteArray {
+        val dst = ByteArrayOutputStream()
+        val buffer = ByteArray(outputChunk)
+        for (start in data.indices step inputChunk) {
+            deflater.setInput(data, start, min(inputChunk, data.size - start))
+            while (!deflater.needsInput()) {
+                dst.write(buffer, 0, deflater.deflate(buffer, Deflater.NO_FLUSH))
+            }
+            if (flush != Deflater.NO_FLUSH) {
+                // like with zlib, the flush is complete, once the output isn't full
+                do {
+                    val n = deflater.deflate(buffer, flush)
+                    dst.write(buffer, 0, n)
+                } while (n == buffer.size)
+                afterChunk(dst.toByteArray())
+            }
+        }
+        deflater.finish()
+        while (!deflater.finished()) {
+            dst.write(buffer, 0, deflater.deflate(buffer, Deflater.NO_FLUSH))
+        }
+        return dst.toByteArray()
+    }
+
+    /**
+     * inflates as much as possible; the stream doesn't need to be finished
+     * */
+    private fun inflate(inflater: InflaterAPI, compressed: ByteArray, inputChunk: Int, outputChunk: Int): ByteArray {
+        val dst = ByteArrayOutputStream()
+        val buffer = ByteArray(outputChunk)
+        var start = 0
+        while (!inflater.finished()) {
+            if (inflater.needsInput() && start < compressed.size) {
+                val length = min(inputChunk, compressed.size - start)
+                inflater.setInput(compressed, start, length)
+                start += length
+            }
+            // all input may be consumed, while some output is still pending
+            val n = inflater.inflate(buffer)
+            dst.write(buffer, 0, n)
+            if (n == 0 && inflater.needsInput() && start >= compressed.size) break
+        }
+        return dst.toByteArray()
+    }
+
+    private fun assertRoundTrip(
+        data: ByteArray, deflater: DeflaterAPI, inflater: InflaterAPI,
+        inputChunk: Int = 1 shl 16, outputChunk: Int = 1 shl 16
+    ) {
+        val compressed = deflate(deflater, data, inputChunk, outputChunk)
+        val inflated = inflate(inflater, compressed, inputChunk, outputChunk)
+        assertTrue(inflater.finished())
+        assertEquals(data.size, inflated.size)
+        assertTrue(data.contentEquals(inflated))
+    }
+
+    @Test
+    fun testAllLevels() {
+        for (level in levels) {
+            for (nowrap in listOf(false, true)) {
+                for (data in datasets) {
+                    assertRoundTrip(data, custom(level, nowrap), javaInflater(nowrap))
+                    assertRoundTrip(data, java(level, nowrap), customInflater(nowrap))
+                    assertRoundTrip(data, custom(level, nowrap), customInflater(nowrap))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testChecksums() {
+        for (data in datasets) {
+            val customDeflater = custom(6, false)
+            val javaDeflater = java(6, false)
+            val compressed = deflate(javaDeflater, data, 1 shl 16, 1 shl 16)
+            deflate(customDeflater, data, 1 shl 16, 1 shl 16)
+            assertEquals(javaDeflater.adler(), customDeflater.adler())
+            val inflater = customInflater(false)
+            inflate(inflater, compressed, 1 shl 16, 1 shl 16)
+            assertEquals(javaDeflater.adler(), inflater.adler())
+        }
+    }
+
+    @Test
+    fun testChunkedInputAndOutput() {
+        val data = datasets.last()
+        for (level in listOf(Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION)) {
+            for ((inputChunk, outputChunk) in listOf(1 to 1, 7 to 13, 4096 to 1, 1 to 65536, 1000 to 333)) {
+                // one byte at a time is slow, so only for a part of the data
+                val part = if (inputChunk == 1 || outputChunk == 1) data.copyOf(20_000) else data
+                assertRoundTrip(part, custom(level, false), javaInflater(false), inputChunk, outputChunk)
+                assertRoundTrip(part, java(level, false), customInflater(false), inputChunk, outputChunk)
+                assertRoundTrip(part, custom(level, true), customInflater(true), inputChunk, outputChunk)
+            }
+        }
+    }
+
+    /**
+     * after each SYNC_FLUSH, everything so far must be decodable, before the stream is finished
+     * */
+    private fun assertFlushedPrefixes(
+        deflater: DeflaterAPI, data: ByteArray, chunk: Int, createInflaters: List<() -> InflaterAPI>
+    ) {
+        var numChunks = 0
+        val compressed = deflate(deflater, data, chunk, 4096, Deflater.SYNC_FLUSH) { flushed ->
+            numChunks++
+            val expected = data.copyOf(min(numChunks * chunk, data.size))
+            for (createInflater in createInflaters) {
+                assertTrue(expected.contentEquals(inflate(createInflater(), flushed, flushed.size, 1 shl 20)))
+            }
+        }
+        assertTrue(numChunks > 1)
+        for (createInflater in createInflaters) {
+            assertTrue(data.contentEquals(inflate(createInflater(), compressed, compressed.size, 1 shl 20)))
+        }
+    }
+
+    @Test
+    fun testSyncFlush() {
+        val data = datasets.last()
+        for (level in listOf(Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION)) {
+            for (chunk in listOf(1000, 33_333)) {
+                assertFlushedPrefixes(
+                    custom(level, false), data, chunk,
+                    listOf({ javaInflater(false) }, { customInflater(false) })
+                )
+                assertFlushedPrefixes(java(level, false), data, chunk, listOf { customInflater(false) })
+            }
+        }
+    }
+
+    @Test
+    fun testEmptyInput() {
+        for (level in levels) {
+            for (nowrap in listOf(false, true)) {
+                val compressed = deflate(custom(level, nowrap), ByteArray(0), 1, 64)
+                assertTrue(compressed.isNotEmpty())
+                assertEquals(0, inflate(javaInflater(nowrap), compressed, 64, 64).size)
+                assertEquals(0, inflate(customInflater(nowrap), deflate(java(level, nowrap), ByteArray(0), 1, 64), 64, 64).size)
+            }
+        }
+    }
+}
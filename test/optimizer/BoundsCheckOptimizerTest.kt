@@ -0,0 +1,149 @@
+package optimizer
+
+import checkArrayAccess
+import eliminateBoundsChecks
+import me.anno.utils.assertions.assertEquals
+import org.junit.jupiter.api.Test
+import utils.Builder
+import wasm.instr.*
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Const.Companion.i32Const0
+import wasm.instr.Const.Companion.i32Const1
+import wasm.instr.Instructions.I32Add
+import wasm.instr.Instructions.I32LES
+import wasm.instr.Instructions.I32LTS
+import wasm.instr.Instructions.I32Sub
+
+/**
+ * checks, which bounds checks in counted loops over a[i] are removed,
+ * and that the ones, which cannot be proven, stay
+ * */
+class BoundsCheckOptimizerTest {
+
+    private val a = ParamGet(0, "a")
+    private val i = LocalGet("i")
+    private val setI = LocalSet("i")
+
+    private val store = listOf(a, i, i32Const(7), Call.i32ArrayStore)
+    private val increment = listOf(i, i32Const1, I32Add, setI)
+
+    /**
+     * i = start; loop { if (i <compare> a.length) { body; br loop } }
+     * */
+    private fun createLoop(start: Int, compare: Instruction, body: (LoopInstr) -> List<Instruction>): ArrayList<Instruction> {
+        val loop = LoopInstr("loop", ArrayList(), emptyList(), emptyList())
+        loop.body.addAll(listOf(i, a, Call.arrayLength, compare))
+        val ifTrue = ArrayList(body(loop))
+        ifTrue.add(Jump(loop))
+        loop.body.add(IfBranch(ifTrue))
+        return arrayListOf(i32Const(start), setI, loop)
+    }
+
+    /**
+     * returns how many checked calls remain, either as calls to the checked functions, or inlined
+     * */
+    private fun optimize(instructions: ArrayList<Instruction>): Int {
+        val previous = Pair(checkArrayAccess, eliminateBoundsChecks)
+        checkArrayAccess = true
+        eliminateBoundsChecks = true
+        try {
+            BoundsCheckOptimizer.optimizeBoundsChecks(Builder(instructions))
+        } finally {
+            checkArrayAccess = previous.first
+            eliminateBoundsChecks = previous.second
+        }
+        return countChecks(instructions)
+    }
+
+    private fun countChecks(instructions: List<Instruction>): Int {
+        var sum = 0
+        for (instr in instructions) {
+            sum += when (instr) {
+                Call.i32ArrayStore, Call.i32ArrayLoad, Call.throwArrayAccess -> 1
+                is IfBranch -> countChecks(instr.ifTrue) + countChecks(instr.ifFalse)
+                is LoopInstr -> countChecks(instr.body)
+                is SwitchCase -> instr.cases.sumOf { countChecks(it) }
+                else -> 0
+            }
+        }
+        return sum
+    }
+
+    @Test
+    fun testCountedLoopIsUnchecked() {
+        val loop = createLoop(0, I32LTS) { store + increment }
+        assertEquals(0, optimize(loop))
+    }
+
+    @Test
+    fun testLessOrEqualLengthStaysChecked() {
+        // i <= a.length allows i == a.length
+        val loop = createLoop(0, I32LES) { store + increment }
+        assertEquals(1, optimize(loop))
+    }
+
+    @Test
+    fun testNegativeStartStaysChecked() {
+        val loop = createLoop(-1, I32LTS) { store + increment }
+        assertEquals(1, optimize(loop))
+    }
+
+    @Test
+    fun testIncrementBeforeAccessStaysChecked() {
+        // i < a.length, then i++, so i might be a.length
+        val loop = createLoop(0, I32LTS) { increment + store }
+        assertEquals(1, optimize(loop))
+    }
+
+    @Test
+    fun testDecrementInLoopStaysChecked() {
+        // the second iteration sees i = i + 1 - 2, which may be negative
+        val loop = createLoop(0, I32LTS) {
+            store + listOf(i, i32Const(2), I32Sub, setI) + increment
+        }
+        assertEquals(1, optimize(loop))
+    }
+
+    @Test
+    fun testOtherWriteToIndexStaysChecked() {
+        // i = j with unknown j
+        val loop = createLoop(0, I32LTS) {
+            listOf(ParamGet(1, "j"), setI) + store + increment
+        }
+        assertEquals(1, optimize(loop))
+    }
+
+    @Test
+    fun testSwitchWithoutIndexArithmeticIsUnchecked() {
+        val loop = createLoop(0, I32LTS) {
+            val switch = SwitchCase("switch", intArrayOf(0), listOf(ArrayList(store), ArrayList()))
+            listOf(i32Const0, switch) + store + increment
+        }
+        assertEquals(0, optimize(loop))
+    }
+
+    @Test
+    fun testIndexArithmeticInSwitchStaysChecked() {
+        // case 0 increments i and breaks out of the switch, so after the switch, i may be a.length
+        val loop = createLoop(0, I32LTS) {
+            val case0 = ArrayList<Instruction>(increment)
+            val switch = SwitchCase("switch", intArrayOf(0), listOf(case0, ArrayList()))
+            case0.add(Jump(switch))
+            listOf(i32Const0, switch) + store + increment
+        }
+        assertEquals(1, optimize(loop))
+    }
+
+    @Test
+    fun testIndexArithmeticWithinSwitchCaseStaysChecked() {
+        val loop = createLoop(0, I32LTS) {
+            // case 0 accesses a[i + 1], case 1 accesses a[i]
+            val case0 = ArrayList<Instruction>(increment + store)
+            val case1 = ArrayList<Instruction>(store + increment)
+            val switch = SwitchCase("switch", intArrayOf(0), listOf(case0, case1))
+            case0.add(Jump(switch))
+            listOf(i32Const0, switch)
+        }
+        assertEquals(1, optimize(loop))
+    }
+}
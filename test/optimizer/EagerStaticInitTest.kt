@@ -0,0 +1,79 @@
+package optimizer
+
+import crashOnAllExceptions
+import me.anno.utils.assertions.assertEquals
+import org.junit.jupiter.api.Test
+import wasm.instr.Call
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.IfBranch
+import wasm.instr.Instruction
+
+class EagerStaticInitTest {
+
+    private val initA = Call("static_A")
+    private val initB = Call("static_B")
+    private val work = Call("work")
+
+    private fun guarded(init: Call): List<Instruction> {
+        return listOf(i32Const(7), Call.stackPush, init, Call.stackPop)
+    }
+
+    @Test
+    fun testRepeatedGuardIsRemoved() {
+        val body = arrayListOf<Instruction>(initA, work, initA, initB, work)
+        assertEquals(1, EagerStaticInit.removeImpliedGuards(body, HashSet()))
+        assertEquals(listOf(initA, work, initB, work), body)
+    }
+
+    @Test
+    fun testGuardFromCallerIsRemoved() {
+        val body = arrayListOf<Instruction>(initA, work, initB)
+        assertEquals(1, EagerStaticInit.removeImpliedGuards(body, hashSetOf(initB.name)))
+        assertEquals(listOf(initA, work), body)
+    }
+
+    @Test
+    fun testStackPushIsRemovedWithGuard() {
+        val body = ArrayList<Instruction>()
+        body.addAll(guarded(initA))
+        body.add(work)
+        body.addAll(guarded(initA))
+        body.add(work)
+        assertEquals(1, EagerStaticInit.removeImpliedGuards(body, HashSet()))
+        assertEquals(guarded(initA) + work + work, body)
+    }
+
+    @Test
+    fun testGuardOnOneBranchOnlyStays() {
+        val body = arrayListOf<Instruction>(
+            IfBranch(arrayListOf(initA), arrayListOf(work)),
+            initA
+        )
+        assertEquals(0, EagerStaticInit.removeImpliedGuards(body, HashSet()))
+        assertEquals(2, body.size)
+    }
+
+    @Test
+    fun testGuardOnBothBranchesIsRemoved() {
+        val body = arrayListOf<Instruction>(
+            IfBranch(arrayListOf(initA, work), arrayListOf(initA)),
+            initA, work
+        )
+        assertEquals(1, EagerStaticInit.removeImpliedGuards(body, HashSet()))
+        assertEquals(2, body.size)
+    }
+
+    @Test
+    fun testThrowingGuardStays() {
+        // with results for throwables, the guard is followed by its Throwable-handling, which needs its result
+        val previous = crashOnAllExceptions
+        crashOnAllExceptions = false
+        try {
+            val body = arrayListOf<Instruction>(initA, work, initA, work)
+            assertEquals(0, EagerStaticInit.removeImpliedGuards(body, HashSet()))
+            assertEquals(4, body.size)
+        } finally {
+            crashOnAllExceptions = previous
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package optimizer
+
+import interpreter.WASMEngine
+import jvm.JVMShared.arrayOverhead
+import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertNotEquals
+import me.anno.utils.assertions.assertSame
+import org.junit.jupiter.api.Test
+import utils.Param
+import utils.WASMType
+import wasm.instr.*
+import wasm.instr.Const.Companion.i32Const
+import wasm.instr.Const.Companion.i32Const0
+import wasm.instr.Const.Companion.i32Const1
+import wasm.instr.Instructions.F64Add
+import wasm.instr.Instructions.F64Load
+import wasm.instr.Instructions.F64Mul
+import wasm.instr.Instructions.F64Store
+import wasm.instr.Instructions.I32Add
+import wasm.instr.Instructions.I32LTS
+import wasm.instr.Instructions.I32Load
+import wasm.instr.Instructions.I32Mul
+import wasm.instr.Instructions.I32Shl
+import wasm.instr.Instructions.I32Store
+import wasm.instr.Instructions.Return
+import wasm.parser.FunctionImpl
+import wasm.parser.LocalVariable
+
+/**
+ * runs each loop once as written, and once vectorized, in WASMEngine, and compares the arrays afterward
+ * */
+class LoopVectorizerTest {
+
+    companion object {
+        private const val ARRAY_A = 256
+        private const val ARRAY_B = 512
+        private const val ARRAY_C = 768
+        private const val MEMORY_SIZE = 1024
+    }
+
+    private val a = ParamGet(0, "a")
+    private val b = ParamGet(1, "b")
+    private val c = ParamGet(2, "c")
+    private val n = ParamGet(3, "n")
+    private val i = LocalGet("i")
+
+    private fun createLoop(bound: List<Instruction>, statements: List<Instruction>): FunctionImpl {
+        val params = listOf(
+            Param("a", "int[]", WASMType.I32), Param("b", "int[]", WASMType.I32),
+            Param("c", "int[]", WASMType.I32), Param("n", "int", WASMType.I32)
+        )
+        val locals = listOf(LocalVariable("i", "int", WASMType.I32))
+        val loop = LoopInstr("loop", ArrayList(), emptyList(), emptyList())
+        val continueBranch = ArrayList(statements)
+        continueBranch.addAll(listOf(i, i32Const1, I32Add, LocalSet("i"), Jump(loop)))
+        loop.body.add(i)
+        loop.body.addAll(bound)
+        loop.body.add(I32LTS)
+        loop.body.add(IfBranch(continueBranch))
+        val body = arrayListOf(i32Const0, LocalSet("i"), loop, Return)
+        return FunctionImpl("loop", params, emptyList(), locals, body, false)
+    }
+
+    private fun createArrayAccess(name: String, shift: Int, access: Instruction, isStore: Boolean): FunctionImpl {
+        val type = if (shift == 2) WASMType.I32 else WASMType.F64
+        val params = arrayListOf(Param("instance", "Object", WASMType.I32), Param("index", "int", WASMType.I32))
+        if (isStore) params.add(Param("value", type.wasmName, type))
+        val body = arrayListOf(
+            ParamGet(0, "instance"), ParamGet(1, "index"), i32Const(shift), I32Shl, I32Add,
+            i32Const(arrayOverhead), I32Add
+        )
+        if (isStore) body.add(ParamGet(2, "value"))
+        body.add(access)
+        body.add(Return)
+        val results = if (isStore) emptyList() else listOf(type.wasmName)
+        return FunctionImpl(name, params, results, emptyList(), body, false)
+    }
+
+    private val arrayAccess = listOf(
+        createArrayAccess(Call.i32ArrayLoadU.name, 2, I32Load, false),
+        createArrayAccess(Call.i32ArrayStoreU.name, 2, I32Store, true),
+        createArrayAccess(Call.f64ArrayLoadU.name, 3, F64Load, false),
+        createArrayAccess(Call.f64ArrayStoreU.name, 3, F64Store, true),
+        FunctionImpl(
+            Call.arrayLengthU.name, listOf(Param("instance", "Object", WASMType.I32)), listOf("i32"),
+            emptyList(), arrayListOf(ParamGet(0, "instance"), i32Const(4), I32Add, I32Load, Return), false
+        )
+    )
+
+    private fun run(
+        function: FunctionImpl, arrayB: Int, arrayC: Int, numElements: Int, bound: Int,
+        init: (WASMEngine) -> Unit
+    ): ByteArray {
+        val engine = WASMEngine(MEMORY_SIZE)
+        engine.registerFunctions(arrayAccess + function)
+        engine.resolveCalls()
+        for (array in listOf(ARRAY_A, ARRAY_B, ARRAY_C)) {
+            engine.buffer.putInt(array + 4, numElements)
+        }
+        init(engine)
+        for (param in listOf(ARRAY_A, arrayB, arrayC, bound)) {
+            engine.push(param)
+        }
+        engine.executeFunction(function.funcName)
+        return engine.bytes
+    }
+
+    private fun compareScalarAndVectorized(
+        bound: List<Instruction>, statements: List<Instruction>,
+        numElements: Int, arrayB: Int = ARRAY_B, arrayC: Int = ARRAY_C,
+        init: (WASMEngine) -> Unit
+    ): ByteArray {
+        val scalar = createLoop(bound, statements)
+        val vectorized = LoopVectorizer.vectorize(scalar)
+        assertNotEquals(scalar.body, vectorized.body, "Expected loop to be vectorized")
+        val expected = run(scalar, arrayB, arrayC, numElements, numElements, init)
+        val actual = run(vectorized, arrayB, arrayC, numElements, numElements, init)
+        assertEquals(expected.toList(), actual.toList())
+        return actual
+    }
+
+    private fun initI32(engine: WASMEngine) {
+        for (j in 0 until 48) {
+            engine.buffer.putInt(ARRAY_B + arrayOverhead + j * 4, j * 3 - 7)
+            engine.buffer.putInt(ARRAY_C + arrayOverhead + j * 4, 11 - j)
+        }
+    }
+
+    private fun readI32(bytes: ByteArray, array: Int, index: Int): Int {
+        val offset = array + arrayOverhead + index * 4
+        return (bytes[offset].toInt() and 255) or
+                (bytes[offset + 1].toInt() and 255).shl(8) or
+                (bytes[offset + 2].toInt() and 255).shl(16) or
+                bytes[offset + 3].toInt().shl(24)
+    }
+
+    // a[i] = b[i] * c[i] + 5
+    private val multiplyAdd = listOf(
+        a, i, b, i, Call.i32ArrayLoadU, c, i, Call.i32ArrayLoadU, I32Mul,
+        i32Const(5), I32Add, Call.i32ArrayStoreU
+    )
+
+    @Test
+    fun testTripCountsNotMultipleOfLanes() {
+        for (numElements in 0..13) {
+            val bytes = compareScalarAndVectorized(listOf(n), multiplyAdd, numElements, init = ::initI32)
+            for (j in 0 until numElements) {
+                assertEquals((j * 3 - 7) * (11 - j) + 5, readI32(bytes, ARRAY_A, j))
+            }
+            // the element after the last one must not have been written
+            assertEquals(0, readI32(bytes, ARRAY_A, numElements))
+        }
+    }
+
+    @Test
+    fun testArrayLengthBound() {
+        for (numElements in listOf(3, 4, 9)) {
+            compareScalarAndVectorized(listOf(a, Call.arrayLengthU), multiplyAdd, numElements, init = ::initI32)
+        }
+    }
+
+    @Test
+    fun testNegativeBound() {
+        // i < n - 3 must not underflow into a large, positive bound
+        val scalar = createLoop(listOf(n), multiplyAdd)
+        val vectorized = LoopVectorizer.vectorize(scalar)
+        val expected = run(scalar, ARRAY_B, ARRAY_C, 4, Int.MIN_VALUE + 1, ::initI32)
+        val actual = run(vectorized, ARRAY_B, ARRAY_C, 4, Int.MIN_VALUE + 1, ::initI32)
+        assertEquals(expected.toList(), actual.toList())
+    }
+
+    @Test
+    fun testAliasingArrays() {
+        // a[i] = b[i] + c[i], with b == c, and with a == b
+        for (numElements in listOf(5, 8, 11)) {
+            compareScalarAndVectorized(listOf(n), listOf(
+                a, i, b, i, Call.i32ArrayLoadU, c, i, Call.i32ArrayLoadU, I32Add, Call.i32ArrayStoreU
+            ), numElements, ARRAY_B, ARRAY_B, ::initI32)
+            compareScalarAndVectorized(listOf(n), listOf(
+                a, i, b, i, Call.i32ArrayLoadU, c, i, Call.i32ArrayLoadU, I32Add, Call.i32ArrayStoreU
+            ), numElements, ARRAY_A, ARRAY_C) { engine ->
+                initI32(engine)
+                for (j in 0 until numElements) engine.buffer.putInt(ARRAY_A + arrayOverhead + j * 4, j)
+            }
+        }
+    }
+
+    @Test
+    fun testAliasingStoresInSequence() {
+        // a[i] = b[i] + 1; c[i] = a[i] * b[i], with c == b: each element still sees the previous statement
+        val statements = listOf(
+            a, i, b, i, Call.i32ArrayLoadU, i32Const1, I32Add, Call.i32ArrayStoreU,
+            c, i, a, i, Call.i32ArrayLoadU, b, i, Call.i32ArrayLoadU, I32Mul, Call.i32ArrayStoreU
+        )
+        for (numElements in listOf(4, 7)) {
+            compareScalarAndVectorized(listOf(n), statements, numElements, ARRAY_B, ARRAY_B, ::initI32)
+        }
+    }
+
+    @Test
+    fun testTwoLanes() {
+        // a[i] = b[i] * c[i] + a[i] with doubles, which only have two lanes
+        val statements = listOf(
+            a, i, b, i, Call.f64ArrayLoadU, c, i, Call.f64ArrayLoadU, F64Mul,
+            a, i, Call.f64ArrayLoadU, F64Add, Call.f64ArrayStoreU
+        )
+        for (numElements in 1..5) {
+            compareScalarAndVectorized(listOf(n), statements, numElements) { engine ->
+                for (j in 0 until numElements) {
+                    engine.buffer.putDouble(ARRAY_A + arrayOverhead + j * 8, j * 0.5)
+                    engine.buffer.putDouble(ARRAY_B + arrayOverhead + j * 8, 1.0 + j)
+                    engine.buffer.putDouble(ARRAY_C + arrayOverhead + j * 8, 3.0 - j * 0.25)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testOtherIndexIsNotVectorized() {
+        // a[i] = b[i + 1] depends on other elements, so it must stay scalar
+        val function = createLoop(listOf(n), listOf(
+            a, i, b, i, i32Const1, I32Add, Call.i32ArrayLoadU, Call.i32ArrayStoreU
+        ))
+        assertSame(function, LoopVectorizer.vectorize(function))
+    }
+
+    @Test
+    fun testMixedElementSizesAreNotVectorized() {
+        // a[i] = (int) b[i] mixes 4- and 8-byte lanes
+        val function = createLoop(listOf(n), listOf(
+            a, i, b, i, Call.f64ArrayLoadU, Instructions.I32_TRUNC_F64S, Call.i32ArrayStoreU
+        ))
+        assertSame(function, LoopVectorizer.vectorize(function))
+    }
+}
@@ -0,0 +1,160 @@
+package translator
+
+import hierarchy.HierarchyIndex
+import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertNotEquals
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes.*
+import translator.GeneratorIndex.FieldData
+import utils.FieldSig
+import utils.MethodSig
+
+/**
+ * the key of a cached class must change, when something changes, which its translation depends on,
+ * and must stay the same for unrelated classes
+ * */
+class TranslationCacheTest {
+
+    companion object {
+        private const val OBJECT = "java/lang/Object"
+        private var numFixtures = 0
+    }
+
+    // each test gets its own classes, because the indices are global
+    private val prefix = "test/cache${numFixtures++}/"
+
+    private val base = "${prefix}Base"
+    private val child = "${prefix}Child"
+    private val other = "${prefix}Other"
+    private val interfaceI = "${prefix}I"
+    private val impl = "${prefix}Impl"
+
+    private val defaultMethod = MethodSig.c(interfaceI, "m", "()I")
+
+    private val classBytes = HashMap<String, ByteArray>()
+
+    init {
+        addClass(base, OBJECT, emptyList(), ACC_PUBLIC) { writer ->
+            writer.visitField(ACC_PUBLIC, "x", "I", null, null).visitEnd()
+        }
+        addClass(child, base, emptyList(), ACC_PUBLIC) { writer ->
+            // int get() { return x; }
+            val method = writer.visitMethod(ACC_PUBLIC, "get", "()I", null, null)
+            method.visitCode()
+            method.visitVarInsn(ALOAD, 0)
+            method.visitFieldInsn(GETFIELD, child, "x", "I")
+            method.visitInsn(IRETURN)
+            method.visitMaxs(1, 1)
+            method.visitEnd()
+        }
+        addClass(other, OBJECT, emptyList(), ACC_PUBLIC) {}
+        addInterface(1)
+        addClass(impl, OBJECT, listOf(interfaceI), ACC_PUBLIC) { writer ->
+            // int call() { return m(); }
+            val method = writer.visitMethod(ACC_PUBLIC, "call", "()I", null, null)
+            method.visitCode()
+            method.visitVarInsn(ALOAD, 0)
+            method.visitMethodInsn(INVOKEVIRTUAL, impl, "m", "()I", false)
+            method.visitInsn(IRETURN)
+            method.visitMaxs(1, 1)
+            method.visitEnd()
+        }
+        GeneratorIndex.getFieldOffset(base, "x", "I", false)
+        GeneratorIndex.getFieldOffsets(child, false)
+    }
+
+    private fun addClass(
+        name: String, superClass: String, interfaces: List<String>, flags: Int,
+        addMembers: (ClassWriter) -> Unit
+    ) {
+        val writer = ClassWriter(0)
+        writer.visit(V1_8, flags, name, null, superClass, interfaces.toTypedArray())
+        addMembers(writer)
+        writer.visitEnd()
+        classBytes[name] = writer.toByteArray()
+        HierarchyIndex.superClass[name] = superClass
+        HierarchyIndex.interfaces[name] = interfaces
+        HierarchyIndex.classFlags[name] = flags
+        if (flags.hasFlag(ACC_INTERFACE)) HierarchyIndex.interfaceClasses.add(name)
+        GeneratorIndex.getClassId(name)
+    }
+
+    /**
+     * interface I { default int m() { return value; } }
+     * */
+    private fun addInterface(value: Int) {
+        addClass(interfaceI, OBJECT, emptyList(), ACC_PUBLIC or ACC_INTERFACE or ACC_ABSTRACT) { writer ->
+            val method = writer.visitMethod(ACC_PUBLIC, "m", "()I", null, null)
+            method.visitCode()
+            method.visitLdcInsn(value)
+            method.visitInsn(IRETURN)
+            method.visitMaxs(1, 1)
+            method.visitEnd()
+        }
+        HierarchyIndex.methodsByClass.getOrPut(interfaceI, ::HashSet).add(defaultMethod)
+        HierarchyIndex.methodFlags[defaultMethod] = ACC_PUBLIC
+    }
+
+    private fun Int.hasFlag(flag: Int): Boolean = (this and flag) != 0
+
+    private fun computeKeys(): Map<String, String> {
+        TranslationCache.open()
+        return classBytes.mapValues { (clazz, bytes) -> TranslationCache.getFileName(clazz, bytes) }
+    }
+
+    private fun assertChanged(before: Map<String, String>, after: Map<String, String>, vararg changed: String) {
+        for (clazz in before.keys) {
+            if (clazz in changed) assertNotEquals(before[clazz], after[clazz], "$clazz must be invalidated")
+            else assertEquals(before[clazz], after[clazz], "$clazz must stay valid")
+        }
+    }
+
+    @Test
+    fun testUnchangedIndicesKeepKeys() {
+        assertChanged(computeKeys(), computeKeys())
+    }
+
+    @Test
+    fun testSuperClassFieldLayout() {
+        val before = computeKeys()
+        // the next build finds another field in Base; Child's class file is the same, but its field offsets are not
+        val offsets = GeneratorIndex.getFieldOffsets(base, false)
+        offsets.fields["y"] = FieldData(offsets.offset, "I")
+        offsets.offset += 4
+        assertChanged(before, computeKeys(), base, child)
+    }
+
+    @Test
+    fun testDefaultMethodBecomesAbstract() {
+        val before = computeKeys()
+        HierarchyIndex.methodFlags[defaultMethod] = ACC_PUBLIC or ACC_ABSTRACT
+        HierarchyIndex.abstractMethods.add(defaultMethod)
+        assertChanged(before, computeKeys(), interfaceI, impl)
+    }
+
+    @Test
+    fun testDefaultMethodAdded() {
+        val before = computeKeys()
+        val added = MethodSig.c(interfaceI, "n", "()I")
+        HierarchyIndex.methodsByClass[interfaceI]!!.add(added)
+        HierarchyIndex.methodFlags[added] = ACC_PUBLIC
+        assertChanged(before, computeKeys(), interfaceI, impl)
+    }
+
+    @Test
+    fun testDefaultMethodBecomesGetter() {
+        val before = computeKeys()
+        // calls to getters are inlined into the caller, so Impl must be translated again
+        HierarchyIndex.getterMethods[defaultMethod] = FieldSig(interfaceI, "VALUE", "I", true)
+        assertChanged(before, computeKeys(), interfaceI, impl)
+    }
+
+    @Test
+    fun testDefaultMethodBodyOnly() {
+        val before = computeKeys()
+        // a new body, which the indices don't see, is only translated into I itself
+        addInterface(2)
+        assertChanged(before, computeKeys(), interfaceI)
+    }
+}
@@ -0,0 +1,169 @@
+package utils
+
+import hierarchy.HierarchyIndex
+import jvm.JVMShared.MAX_DISPLAY_DEPTH
+import jvm.JVMShared.MAX_INTERFACE_BITS
+import jvm.JVMShared.NO_DISPLAY
+import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.Opcodes.ACC_INTERFACE
+import translator.GeneratorIndex
+
+/**
+ * builds the type display table for a class chain deeper than MAX_DISPLAY_DEPTH, and more checked interfaces
+ * than MAX_INTERFACE_BITS, and reads it like JVMShared.isChildOrSameClass() does:
+ * every answer from the table must be right, and everything else must fall back to walking the hierarchy
+ * */
+class DynIndexTest {
+
+    companion object {
+
+        private const val PREFIX = "test/display/"
+        private const val OBJECT = "java/lang/Object"
+        private const val NUM_CLASSES = 12
+        private const val NUM_INTERFACES = 300
+
+        private fun clazz(i: Int) = "${PREFIX}C$i"
+        private fun interfaceName(i: Int) = "${PREFIX}I$i"
+        private const val SUB_INTERFACE = "${PREFIX}J"
+        private const val UNCHECKED_INTERFACE = "${PREFIX}K"
+
+        private val classes = (0 until NUM_CLASSES).map(::clazz)
+        private val interfaces = (0 until NUM_INTERFACES).map(::interfaceName) + SUB_INTERFACE + UNCHECKED_INTERFACE
+
+        private fun addClass(name: String, superClass: String, interfaces: List<String>, flags: Int) {
+            HierarchyIndex.superClass[name] = superClass
+            HierarchyIndex.interfaces[name] = interfaces
+            HierarchyIndex.classFlags[name] = flags
+            if (flags == ACC_INTERFACE) HierarchyIndex.interfaceClasses.add(name)
+            GeneratorIndex.getClassId(name)
+        }
+
+        private val table: ByteArray by lazy {
+            GeneratorIndex.getClassId(OBJECT)
+            for (i in 0 until NUM_INTERFACES) {
+                addClass(interfaceName(i), OBJECT, emptyList(), ACC_INTERFACE)
+                // the first ones are checked most often, so the last ones don't get a bit
+                DynIndex.checkedInterfaces[interfaceName(i)] = 1000 + NUM_INTERFACES - i
+            }
+            addClass(SUB_INTERFACE, OBJECT, listOf(interfaceName(3), interfaceName(290)), ACC_INTERFACE)
+            DynIndex.checkedInterfaces[SUB_INTERFACE] = 1
+            addClass(UNCHECKED_INTERFACE, OBJECT, emptyList(), ACC_INTERFACE)
+            for (i in 0 until NUM_CLASSES) {
+                val implemented = when (i) {
+                    2 -> listOf(interfaceName(0), interfaceName(280))
+                    5 -> listOf(SUB_INTERFACE, UNCHECKED_INTERFACE)
+                    9 -> listOf(interfaceName(255), interfaceName(256))
+                    else -> listOf(interfaceName(i * 25))
+                }
+                addClass(clazz(i), if (i == 0) OBJECT else clazz(i - 1), implemented, 0)
+            }
+            val numClasses = GeneratorIndex.classNames.size
+            val ptr = 1 shl 28 // far away from other data
+            DynIndex.appendTypeDisplayTable(StringBuilder2(), ptr, numClasses)
+            // remove it again, so it doesn't overlap with other tests
+            val section = dataSections.removeLast()
+            assertEquals(ptr, section.startIndex)
+            section.content
+        }
+
+        private fun isExpectedChild(child: String, parent: String): Boolean {
+            if (child == parent || parent == OBJECT) return true
+            if (child == OBJECT) return false
+            return HierarchyIndex.interfaces[child].orEmpty().any { isExpectedChild(it, parent) } ||
+                    isExpectedChild(HierarchyIndex.superClass[child] ?: return false, parent)
+        }
+    }
+
+    private fun read(classId: Int, index: Int): Int {
+        val offset = classId * DynIndex.typeDisplayStride + index * 4
+        return (table[offset].toInt() and 255) or
+                (table[offset + 1].toInt() and 255).shl(8) or
+                (table[offset + 2].toInt() and 255).shl(16) or
+                table[offset + 3].toInt().shl(24)
+    }
+
+    /**
+     * JVMShared.isChildOrSameClass() on the table; returns null, where it walks the hierarchy instead
+     * */
+    private fun isChildByTable(child: String, parent: String): Boolean? {
+        val childId = GeneratorIndex.getClassId(child)
+        val parentId = GeneratorIndex.getClassId(parent)
+        if (childId == parentId || parentId == 0) return true
+        val parentInfo = read(parentId, 0)
+        if (parentInfo >= 0) {
+            if (parentInfo <= MAX_DISPLAY_DEPTH) return read(childId, parentInfo) == parentId
+        } else if (parentInfo != NO_DISPLAY) {
+            val bit = -1 - parentInfo
+            val word = read(childId, MAX_DISPLAY_DEPTH + 1 + (bit ushr 5))
+            return (word ushr bit).and(1) != 0
+        }
+        return null
+    }
+
+    @Test
+    fun testTableLayout() {
+        val size = table.size
+        assertEquals(0, GeneratorIndex.getClassId(OBJECT))
+        // all 256 bits are used, so a row has 1 + MAX_DISPLAY_DEPTH + 8 words
+        assertEquals((1 + MAX_DISPLAY_DEPTH + MAX_INTERFACE_BITS / 32) * 4, DynIndex.typeDisplayStride)
+        assertEquals(GeneratorIndex.classNames.size * DynIndex.typeDisplayStride, size)
+        for (i in 0 until NUM_CLASSES) {
+            assertEquals(i + 1, read(GeneratorIndex.getClassId(clazz(i)), 0))
+        }
+        assertEquals(NO_DISPLAY, read(GeneratorIndex.getClassId(UNCHECKED_INTERFACE), 0))
+    }
+
+    @Test
+    fun testClassesWithinDisplay() {
+        for (parent in classes.take(MAX_DISPLAY_DEPTH) + OBJECT) {
+            for (child in classes + interfaces + OBJECT) {
+                assertEquals(isExpectedChild(child, parent), isChildByTable(child, parent), "$child instanceof $parent")
+            }
+        }
+    }
+
+    @Test
+    fun testDeepClassesWalk() {
+        for (parent in classes.drop(MAX_DISPLAY_DEPTH)) {
+            for (child in classes + OBJECT) {
+                val byTable = isChildByTable(child, parent)
+                // only the class itself is answered without walking
+                if (child == parent) assertEquals(true, byTable)
+                else assertEquals(null, byTable, "$child instanceof $parent")
+            }
+        }
+    }
+
+    @Test
+    fun testInterfaceBits() {
+        val withBits = interfaces.take(MAX_INTERFACE_BITS)
+        for (parent in withBits) {
+            for (child in classes + interfaces + OBJECT) {
+                assertEquals(isExpectedChild(child, parent), isChildByTable(child, parent), "$child instanceof $parent")
+            }
+        }
+        // inherited through the super class chain and a sub-interface
+        assertEquals(true, isChildByTable(clazz(11), interfaceName(0)))
+        assertEquals(true, isChildByTable(clazz(7), interfaceName(3)))
+        assertEquals(true, isChildByTable(SUB_INTERFACE, interfaceName(3)))
+        assertEquals(false, isChildByTable(clazz(4), interfaceName(3)))
+    }
+
+    @Test
+    fun testRareInterfacesWalk() {
+        // the least checked interfaces, the sub-interface, and unchecked ones don't get a bit
+        val withoutBits = interfaces.drop(MAX_INTERFACE_BITS)
+        assertTrue(withoutBits.size > 2)
+        for (parent in withoutBits) {
+            for (child in classes + OBJECT) {
+                assertEquals(null, isChildByTable(child, parent), "$child instanceof $parent")
+            }
+        }
+        // they still are correct in the hierarchy, which the walk uses
+        assertTrue(isExpectedChild(clazz(11), interfaceName(280)))
+        assertTrue(isExpectedChild(clazz(5), interfaceName(290)))
+        assertTrue(isExpectedChild(clazz(5), UNCHECKED_INTERFACE))
+    }
+}
@@ -0,0 +1,67 @@
+package utils
+
+import jvm.JVMFlags
+import jvm2wasm
+import me.anno.utils.assertions.assertEquals
+import me.anno.utils.assertions.assertTrue
+import org.junit.jupiter.api.Test
+import parallelTranslation
+import useWorkerThreads
+import writeWAT
+import java.io.File
+
+/**
+ * compiles the whole project twice, once with and once without parallelTranslation, and compares the outputs byte by byte;
+ * the indices are global, so each compilation runs in its own process.
+ * Like the compiler itself, it needs the compiled runtime (jvm/, engine/) and its libraries on the class path
+ * */
+class ParallelTranslationTest {
+
+    companion object {
+
+        private val wasmFolder = File("targets/wasm")
+        private val outputs = listOf(
+            "jvm2wasm.wat", "jvm2wasm.wasm", "jvm2wasm-worker.wasm",
+            "jvm2wasm-simd.wasm", "jvm2wasm-simd-worker.wasm", "index0.js"
+        )
+
+        /**
+         * entry point of the child processes; args[0] is the value of parallelTranslation
+         * */
+        @JvmStatic
+        fun main(args: Array<String>) {
+            parallelTranslation = args[0].toBooleanStrict()
+            writeWAT = true
+            JVMFlags.useNativeThreads = useWorkerThreads
+            JVMFlags.useSharedMemory = useWorkerThreads
+            jvm2wasm()
+        }
+    }
+
+    private fun compile(parallel: Boolean): Map<String, ByteArray> {
+        for (name in outputs) File(wasmFolder, name).delete()
+        val java = File(System.getProperty("java.home"), "bin/java").absolutePath
+        val process = ProcessBuilder(
+            java, "-cp", System.getProperty("java.class.path"),
+            ParallelTranslationTest::class.java.name, parallel.toString()
+        ).inheritIO().start()
+        assertEquals(0, process.waitFor(), "Compilation with parallelTranslation=$parallel failed")
+        return outputs.map { File(wasmFolder, it) }
+            .filter { it.exists() }
+            .associate { it.name to it.readBytes() }
+    }
+
+    @Test
+    fun testParallelOutputIsIdenticalToSerialOutput() {
+        val serial = compile(false)
+        val parallel = compile(true)
+        assertTrue("jvm2wasm.wasm" in serial && "jvm2wasm.wat" in serial)
+        assertEquals(serial.keys, parallel.keys)
+        for ((name, expected) in serial) {
+            val actual = parallel[name]!!
+            val mismatch = expected.indices.firstOrNull { it >= actual.size || expected[it] != actual[it] }
+                ?: if (expected.size != actual.size) expected.size else -1
+            assertEquals(-1, mismatch, "$name differs at byte $mismatch")
+        }
+    }
+}
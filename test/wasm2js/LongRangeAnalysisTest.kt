@@ -0,0 +1,177 @@
+package wasm2js
+
+import me.anno.utils.assertions.assertFalse
+import me.anno.utils.assertions.assertTrue
+import org.junit.jupiter.api.Test
+import utils.Param
+import utils.WASMType
+import wasm.instr.Instruction
+import wasm.instr.Instructions.I64Add
+import wasm.instr.Instructions.I64GES
+import wasm.instr.Instructions.I64LES
+import wasm.instr.Instructions.I64LTS
+import wasm.instr.Instructions.I64Mul
+import wasm.instr.Instructions.I64Sub
+import wasm.instr.Instructions.I64_EXTEND_I32S
+import wasm.instr.LoopInstr
+import wasm.parser.FunctionImpl
+import wasm2cpp.StackElement
+import wasm2cpp.expr.*
+import wasm2cpp.instr.*
+
+class LongRangeAnalysisTest {
+
+    private val i = VariableExpr("i", "i64")
+    private val sum = VariableExpr("sum", "i64")
+    private val n = VariableExpr("n", "i64")
+
+    private fun const(value: Long) = ConstExpr(value, "i64")
+    private fun element(expr: Expr) = StackElement(expr, emptyList(), false)
+    private fun declare(name: String, value: Expr) = Declaration("i64", name, element(value))
+    private fun assign(name: String, value: Expr) = Assignment(name, element(value))
+    private fun binary(instr: Instruction, a: Expr, b: Expr) = BinaryExpr(instr, a, b, "i64")
+    private fun compare(instr: Instruction, a: Expr, b: Expr) = BinaryExpr(instr, a, b, "i32")
+    private fun condition(instr: Instruction, a: Expr, b: Expr) = element(compare(instr, a, b))
+
+    private val increment = assign("i", binary(I64Add, i, const(1)))
+
+    private fun loop(vararg body: Instruction): LoopInstr {
+        return LoopInstr("loop", arrayListOf(*body), emptyList(), emptyList())
+    }
+
+    /**
+     * if (i < bound) { body; continue } else break
+     * */
+    private fun countedLoop(bound: Expr, vararg body: Instruction): LoopInstr {
+        val ifTrue = arrayListOf(*body)
+        ifTrue.add(GotoInstr("loop"))
+        return loop(ExprIfBranch(condition(I64LTS, i, bound), ifTrue, arrayListOf(BreakThisLoopInstr)))
+    }
+
+    private fun analyze(vararg body: Instruction): LongRangeAnalysis {
+        val params = listOf(Param("n", "long", WASMType.I64), Param("m", "int", WASMType.I32))
+        return LongRangeAnalysis(FunctionImpl("f", params, emptyList(), emptyList(), arrayListOf(*body), false))
+    }
+
+    @Test
+    fun testConstantsAreSmall() {
+        val analysis = analyze(
+            declare("a", const(5)),
+            declare("b", binary(I64Mul, binary(I64Add, VariableExpr("a", "i64"), const(3)), const(1000))),
+            declare("c", UnaryExpr(I64_EXTEND_I32S, VariableExpr("m", "i32"), "i64")),
+        )
+        assertTrue(analysis.isSmallLocal("a"))
+        assertTrue(analysis.isSmallLocal("b"))
+        assertTrue(analysis.isSmallLocal("c"))
+    }
+
+    @Test
+    fun testParamsAreUnknown() {
+        val analysis = analyze(declare("a", binary(I64Add, n, const(1))))
+        assertFalse(analysis.isSmallLocal("n"))
+        assertFalse(analysis.isSmallLocal("a"))
+    }
+
+    @Test
+    fun testUnboundedCounterIsUnknown() {
+        val analysis = analyze(declare("i", const(0)), loop(increment, GotoInstr("loop")))
+        assertFalse(analysis.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testCountedLoopIsSmall() {
+        val analysis = analyze(declare("i", const(0)), countedLoop(const(1000), increment))
+        assertTrue(analysis.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testCounterAfterBreakIsSmall() {
+        // i = 0; loop { if (i >= 1000) break; i++ }
+        val increasing = analyze(
+            declare("i", const(0)),
+            loop(
+                ExprIfBranch(condition(I64GES, i, const(1000)), arrayListOf(BreakThisLoopInstr), arrayListOf()),
+                increment, GotoInstr("loop")
+            )
+        )
+        assertTrue(increasing.isSmallLocal("i"))
+        // i = 1000; loop { if (0 < i) { i -= 2 } else break }
+        val decreasing = analyze(
+            declare("i", const(1000)),
+            loop(
+                ExprIfBranch(
+                    condition(I64LTS, const(0), i),
+                    arrayListOf(assign("i", binary(I64Sub, i, const(2))), GotoInstr("loop")),
+                    arrayListOf(BreakThisLoopInstr)
+                )
+            )
+        )
+        assertTrue(decreasing.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testUnknownBoundIsUnknown() {
+        assertFalse(analyze(declare("i", const(0)), countedLoop(n, increment)).isSmallLocal("i"))
+        assertFalse(analyze(declare("i", const(0)), countedLoop(const(1L shl 60), increment)).isSmallLocal("i"))
+    }
+
+    @Test
+    fun testSecondIncrementIsUnknown() {
+        // only the first increment is bounded by i < 1000
+        val analysis = analyze(declare("i", const(0)), countedLoop(const(1000), increment, increment))
+        assertFalse(analysis.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testWrongDirectionIsUnknown() {
+        // i < 1000 doesn't bound i - 1 from below
+        val analysis = analyze(
+            declare("i", const(0)),
+            countedLoop(const(1000), assign("i", binary(I64Sub, i, const(1))))
+        )
+        assertFalse(analysis.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testBoundBeforeLoopIsUnknownInLoop() {
+        // if (i <= 1000) { loop { i++ } }
+        val analysis = analyze(
+            declare("i", const(0)),
+            ExprIfBranch(
+                condition(I64LES, i, const(1000)),
+                arrayListOf(loop(increment, GotoInstr("loop"))), arrayListOf()
+            )
+        )
+        assertFalse(analysis.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testBoundAfterBranchIsUnknown() {
+        // if (i < 1000) { } else { }; i++, where the if doesn't leave on either side
+        val analysis = analyze(
+            declare("i", const(0)),
+            loop(
+                ExprIfBranch(condition(I64LTS, i, const(1000)), arrayListOf(), arrayListOf()),
+                increment, GotoInstr("loop")
+            )
+        )
+        assertFalse(analysis.isSmallLocal("i"))
+    }
+
+    @Test
+    fun testSumInCountedLoopIsUnknown() {
+        // i is bounded, but the number of iterations isn't proven for sum, so each accumulation is unknown
+        val analysis = analyze(
+            declare("i", const(0)),
+            declare("sum", const(0)),
+            countedLoop(
+                const(1000),
+                assign("sum", binary(I64Add, sum, i)),
+                assign("sum", binary(I64Add, sum, const(1))),
+                increment
+            )
+        )
+        assertTrue(analysis.isSmallLocal("i"))
+        assertFalse(analysis.isSmallLocal("sum"))
+    }
+}